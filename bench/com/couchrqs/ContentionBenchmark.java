@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * One producer and several consumers on the same queue, against a {@link CouchStandIn}.
+ * <p>
+ * Consumers all read the head of the pending view, so they race to lock the same messages. The throughput of the
+ * <code>consume</code> group shows what those lock conflicts cost; the conflict count is printed at the end of each
+ * trial, with the rest of the queue metrics.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentionBenchmark {
+
+	static final int BATCH_SIZE = 10;
+
+	/** Latency injected into every request, in microseconds. */
+	@Param({"0", "500"})
+	public long latencyMicros;
+
+	CouchStandIn standIn;
+	QueueService service;
+	Queue queue;
+	List<byte[]> batch;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		standIn = new CouchStandIn();
+		standIn.setLatencyMicros(latencyMicros);
+		service = new QueueService(standIn.getHost(), standIn.getPort());
+		queue = service.createQueue("rqs_contention");
+		batch = new ArrayList<byte[]>();
+		for (int i = 0; i < BATCH_SIZE; i++)
+			batch.add(new byte[256]);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		System.out.println();
+		System.out.println(service.getMetrics());
+		System.out.printf("  server conflicts=%d requests=%d pending=%d%n", standIn.getConflictCount(),
+						  standIn.getRequestCount(), queue.numberOfMessagesPending());
+		service.deleteQueue(queue.getName());
+		service.shutdown();
+		standIn.stop();
+	}
+
+	@Benchmark
+	@Group("contention")
+	@GroupThreads(1)
+	public List<String> produce() throws Exception {
+		return queue.sendMessages(batch);
+	}
+
+	/**
+	 * Returns silently when the queue is empty, so an idle consumer counts as an operation - the producer's score
+	 * tells how many messages there were to consume.
+	 */
+	@Benchmark
+	@Group("contention")
+	@GroupThreads(4)
+	public void consume(Blackhole blackhole) throws Exception {
+		Message message = queue.receiveMessage();
+		if (message == null)
+			return;
+		blackhole.consume(message.getData());
+		try {
+			queue.deleteMessage(message.getMessageId(), message.getReceiptToken());
+		} catch (NoSuchMessageException e) {
+			// the lock expired and another consumer already deleted it
+		}
+	}
+
+}
@@ -0,0 +1,1155 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * An in-process HTTP server that speaks enough of the CouchDB API for RQS queues, for benchmarks and load tests.
+ * <p>
+ * It implements databases, documents with revisions and a single attachment, <code>_bulk_docs</code>,
+ * <code>_all_docs</code> with keys or an id range, <code>_uuids</code>, and the RQS views and update handlers - with the same
+ * ordering and conflict behavior as CouchDB, but without persistence, replication or arbitrary views. Like
+ * CouchDB, writes to a database are serialized.
+ * <p>
+ * Every request can be delayed by a configurable latency, plus random jitter, to model a remote server. The delay
+ * is spent on the server's own thread, so concurrent requests are delayed concurrently, as they would be over a
+ * network.
+ * <p>
+ * Run it standalone with <code>ant bench.standin</code>, or
+ * <code>java com.couchrqs.CouchStandIn [port] [latencyMicros] [jitterMicros]</code>.
+ */
+public class CouchStandIn {
+
+	static final ObjectMapper MAPPER = new ObjectMapper();
+	static final String DESIGN_PREFIX = "_design/";
+
+	static {
+		// otherwise Nagle's algorithm holds back small responses, adding 40ms to most requests
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	/**
+	 * A revision of a document. Immutable.
+	 */
+	static final class Doc {
+		/** Revisions only need to be unique, and this is cheaper than hashing the document like CouchDB does. */
+		private static final AtomicLong REVISIONS = new AtomicLong();
+
+		final String id;
+		final String rev;
+		final int generation;
+		final ObjectNode json;
+		final byte[] attachment;
+		final String contentType;
+
+		Doc(String id, int generation, ObjectNode json, byte[] attachment, String contentType) {
+			this.id = id;
+			this.generation = generation;
+			this.rev = generation + "-" + Long.toHexString(REVISIONS.incrementAndGet());
+			this.json = json;
+			this.attachment = attachment;
+			this.contentType = contentType;
+		}
+
+		boolean isLocked() {
+			return json.get("lock") != null;
+		}
+
+		ViewKey pendingKey() {
+			return new ViewKey(json.path("sent_at").getLongValue(), json.path("sent_seq").getIntValue(), id);
+		}
+	}
+
+	/**
+	 * A view key: a number, with a second number for the pending view's <code>[sent_at, sent_seq]</code>, then the
+	 * document id, as CouchDB collates equal keys.
+	 */
+	static final class ViewKey implements Comparable<ViewKey> {
+		final long key;
+		final int seq;
+		final String id;
+
+		ViewKey(long key, String id) {
+			this(key, 0, id);
+		}
+
+		ViewKey(long key, int seq, String id) {
+			this.key = key;
+			this.seq = seq;
+			this.id = id;
+		}
+
+		public int compareTo(ViewKey o) {
+			if (key != o.key)
+				return (key < o.key) ? -1 : 1;
+			if (seq != o.seq)
+				return (seq < o.seq) ? -1 : 1;
+			return id.compareTo(o.id);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return (o instanceof ViewKey) && compareTo((ViewKey) o) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return id.hashCode();
+		}
+	}
+
+	/**
+	 * A database. Reads are lock-free; writes synchronize on the database.
+	 */
+	static final class Database {
+		/** Ordered by id, for _all_docs. */
+		final ConcurrentSkipListMap<String, Doc> docs = new ConcurrentSkipListMap<String, Doc>();
+		/** The size of <code>docs</code>, which the skip list can only count one by one. */
+		final AtomicInteger docCount = new AtomicInteger();
+		/** The messages that aren't locked, grouped or not. */
+		final ConcurrentSkipListMap<ViewKey, Doc> pending = new ConcurrentSkipListMap<ViewKey, Doc>();
+		/** The pending view: the messages that aren't locked, and aren't in a group. */
+		final ConcurrentSkipListMap<ViewKey, Doc> ungrouped = new ConcurrentSkipListMap<ViewKey, Doc>();
+		final ConcurrentSkipListMap<ViewKey, Doc> locked = new ConcurrentSkipListMap<ViewKey, Doc>();
+		/** The messages of each message group, locked or not, ordered like the pending view. */
+		final ConcurrentSkipListMap<String, ConcurrentSkipListMap<ViewKey, Doc>> groups =
+				new ConcurrentSkipListMap<String, ConcurrentSkipListMap<ViewKey, Doc>>();
+		/** The messages that expire, locked or not, by expiry time. */
+		final ConcurrentSkipListMap<ViewKey, Doc> expiring = new ConcurrentSkipListMap<ViewKey, Doc>();
+		/** The latest change to each document, deleted or not, by sequence number, for _changes. */
+		final ConcurrentSkipListMap<Long, String> changes = new ConcurrentSkipListMap<Long, String>();
+		/** The sequence number of each document's latest change. Only used while synchronized on the database. */
+		final Map<String, Long> changeSeqs = new HashMap<String, Long>();
+		/**
+		 * The generation of each deleted document's deletion, so a document stored again continues from there.
+		 * Only used while synchronized on the database.
+		 */
+		final Map<String, Integer> tombstones = new HashMap<String, Integer>();
+		long updateSeq;
+		/** The _local documents, which have no history and no place in _changes. */
+		final ConcurrentHashMap<String, ObjectNode> locals = new ConcurrentHashMap<String, ObjectNode>();
+
+		/**
+		 * Replace the current revision of a document - or delete it, if <code>next</code> is null - keeping the
+		 * views up to date. Must be called while synchronized on the database.
+		 */
+		void swap(String id, Doc current, Doc next) {
+			Long previousSeq = changeSeqs.put(id, ++updateSeq);
+			if (previousSeq != null)
+				changes.remove(previousSeq);
+			changes.put(updateSeq, id);
+			if (current != null && !id.startsWith(DESIGN_PREFIX)) {
+				String group = Queue.getGroupId(current.json);
+				if (current.isLocked())
+					locked.remove(lockedKey(current));
+				else {
+					pending.remove(current.pendingKey());
+					if (group == null)
+						ungrouped.remove(current.pendingKey());
+				}
+				if (group != null) {
+					ConcurrentSkipListMap<ViewKey, Doc> members = groups.get(group);
+					members.remove(current.pendingKey());
+					if (members.isEmpty())
+						groups.remove(group);
+				}
+				if (Queue.getExpiresAt(current.json) > 0)
+					expiring.remove(new ViewKey(Queue.getExpiresAt(current.json), id));
+			}
+			if (next == null) {
+				if (docs.remove(id) != null)
+					docCount.decrementAndGet();
+				if (current != null)
+					tombstones.put(id, current.generation + 1);
+				return;
+			}
+			if (docs.put(id, next) == null)
+				docCount.incrementAndGet();
+			if (!id.startsWith(DESIGN_PREFIX)) {
+				String group = Queue.getGroupId(next.json);
+				if (next.isLocked())
+					locked.put(lockedKey(next), next);
+				else {
+					pending.put(next.pendingKey(), next);
+					if (group == null)
+						ungrouped.put(next.pendingKey(), next);
+				}
+				if (group != null) {
+					ConcurrentSkipListMap<ViewKey, Doc> members = groups.get(group);
+					if (members == null) {
+						members = new ConcurrentSkipListMap<ViewKey, Doc>();
+						groups.put(group, members);
+					}
+					members.put(next.pendingKey(), next);
+				}
+				if (Queue.getExpiresAt(next.json) > 0)
+					expiring.put(new ViewKey(Queue.getExpiresAt(next.json), id), next);
+			}
+		}
+
+		/**
+		 * The locked view's key: when the lock expires, then document id.
+		 */
+		static ViewKey lockedKey(Doc doc) {
+			JsonNode lock = doc.json.get("lock");
+			long expires = lock.path("locked_at").getLongValue() + lock.path("visibility_timeout").getLongValue();
+			return new ViewKey(expires, doc.id);
+		}
+	}
+
+	/**
+	 * An error response, with CouchDB's error and reason.
+	 */
+	static final class CouchError extends Exception {
+		final int status;
+		final String error;
+
+		CouchError(int status, String error, String reason) {
+			super(reason);
+			this.status = status;
+			this.error = error;
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final ConcurrentHashMap<String, Database> databases = new ConcurrentHashMap<String, Database>();
+	private final Random random = new Random();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicInteger conflicts = new AtomicInteger();
+	private volatile long latencyMicros;
+	private volatile long jitterMicros;
+
+	/**
+	 * Start a stand-in on the specified port of the loopback interface. Port 0 picks a free port.
+	 */
+	public CouchStandIn(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 256);
+		executor = Executors.newCachedThreadPool(new java.util.concurrent.ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CouchStandIn-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+		server.start();
+	}
+
+	public CouchStandIn() throws IOException {
+		this(0);
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public String getHost() {
+		return "127.0.0.1";
+	}
+
+	/**
+	 * Set the delay added to every request, in microseconds.
+	 */
+	public void setLatencyMicros(long latencyMicros) {
+		this.latencyMicros = latencyMicros;
+	}
+
+	public long getLatencyMicros() {
+		return latencyMicros;
+	}
+
+	/**
+	 * Set the maximum random delay added to every request on top of the latency, in microseconds.
+	 */
+	public void setJitterMicros(long jitterMicros) {
+		this.jitterMicros = jitterMicros;
+	}
+
+	public long getJitterMicros() {
+		return jitterMicros;
+	}
+
+	/**
+	 * Returns the number of requests served so far.
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * Returns the number of document updates rejected with 409 Conflict so far.
+	 */
+	public int getConflictCount() {
+		return conflicts.get();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void delay() {
+		long micros = latencyMicros;
+		long jitter = jitterMicros;
+		if (jitter > 0) {
+			synchronized (random) {
+				micros += (long) (random.nextDouble() * jitter);
+			}
+		}
+		if (micros > 0)
+			LockSupport.parkNanos(micros * 1000);
+	}
+
+	/*
+	 * HTTP plumbing
+	 */
+
+	private void serve(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		try {
+			delay();
+			String method = exchange.getRequestMethod();
+			List<String> path = splitPath(exchange.getRequestURI().getRawPath());
+			Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+			byte[] body = readFully(exchange.getRequestBody());
+			route(exchange, method, path, params, body);
+		} catch (CouchError e) {
+			ObjectNode error = JsonNodeFactory.instance.objectNode();
+			error.put("error", e.error);
+			error.put("reason", e.getMessage());
+			if (e.status == 409)
+				conflicts.incrementAndGet();
+			sendJson(exchange, e.status, error);
+		} catch (Exception e) {
+			ObjectNode error = JsonNodeFactory.instance.objectNode();
+			error.put("error", "unknown_error");
+			error.put("reason", String.valueOf(e));
+			sendJson(exchange, 500, error);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static List<String> splitPath(String rawPath) throws UnsupportedEncodingException {
+		List<String> segments = new ArrayList<String>();
+		for (String segment : rawPath.split("/")) {
+			if (segment.length() > 0)
+				segments.add(URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8"));
+		}
+		return segments;
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+		Map<String, String> params = new HashMap<String, String>();
+		if (rawQuery == null)
+			return params;
+		for (String pair : rawQuery.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq < 0)
+				params.put(URLDecoder.decode(pair, "UTF-8"), "");
+			else
+				params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+						   URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return params;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) > 0)
+			out.write(buffer, 0, n);
+		return out.toByteArray();
+	}
+
+	private static void sendJson(HttpExchange exchange, int status, JsonNode json) throws IOException {
+		sendBytes(exchange, status, MAPPER.writeValueAsBytes(json), "application/json");
+	}
+
+	private static void sendBytes(HttpExchange exchange, int status, byte[] data, String contentType)
+			throws IOException
+	{
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		if ("HEAD".equals(exchange.getRequestMethod())) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		exchange.sendResponseHeaders(status, data.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(data);
+		out.close();
+	}
+
+	private static ObjectNode ok() {
+		ObjectNode ok = JsonNodeFactory.instance.objectNode();
+		ok.put("ok", true);
+		return ok;
+	}
+
+	private static ObjectNode revResult(Doc doc) {
+		ObjectNode result = ok();
+		result.put("id", doc.id);
+		result.put("rev", doc.rev);
+		return result;
+	}
+
+	private static CouchError notFound() {
+		return new CouchError(404, "not_found", "missing");
+	}
+
+	private static CouchError conflict() {
+		return new CouchError(409, "conflict", "Document update conflict.");
+	}
+
+	private static boolean flag(Map<String, String> params, String name) {
+		return "true".equals(params.get(name));
+	}
+
+	/*
+	 * Routing
+	 */
+
+	private void route(HttpExchange exchange, String method, List<String> path, Map<String, String> params,
+					   byte[] body) throws CouchError, IOException
+	{
+		if (path.isEmpty()) {
+			ObjectNode welcome = JsonNodeFactory.instance.objectNode();
+			welcome.put("couchdb", "Welcome");
+			welcome.put("version", "1.0.2");
+			sendJson(exchange, 200, welcome);
+			return;
+		}
+		String first = path.get(0);
+		if (first.equals("_uuids")) {
+			int count = params.containsKey("count") ? Integer.parseInt(params.get("count")) : 1;
+			ObjectNode result = JsonNodeFactory.instance.objectNode();
+			ArrayNode uuids = result.putArray("uuids");
+			for (int i = 0; i < count; i++)
+				uuids.add(UUID.randomUUID().toString().replace("-", ""));
+			sendJson(exchange, 200, result);
+			return;
+		}
+		if (first.equals("_replicate") && method.equals("POST")) {
+			sendJson(exchange, 200, replicate(MAPPER.readTree(new String(body, "UTF-8"))));
+			return;
+		}
+		if (first.equals("_all_dbs")) {
+			ArrayNode names = JsonNodeFactory.instance.arrayNode();
+			for (String name : new TreeSet<String>(databases.keySet()))
+				names.add(name);
+			sendJson(exchange, 200, names);
+			return;
+		}
+		if (path.size() == 1) {
+			routeDatabase(exchange, method, first);
+			return;
+		}
+		Database db = databases.get(first);
+		if (db == null)
+			throw new CouchError(404, "not_found", "no_db_file");
+		String second = path.get(1);
+		if (second.equals("_bulk_docs") && method.equals("POST")) {
+			sendJson(exchange, 201, bulkDocs(db, MAPPER.readTree(new String(body, "UTF-8"))));
+			return;
+		}
+		if (second.equals("_changes")) {
+			sendJson(exchange, 200, changes(db, params));
+			return;
+		}
+		if (second.equals("_local")) {
+			if (path.size() != 3)
+				throw notFound();
+			routeLocal(exchange, method, db, path.get(2), params, body);
+			return;
+		}
+		if (second.equals("_all_docs")) {
+			JsonNode keys = (body.length > 0) ? MAPPER.readTree(new String(body, "UTF-8")).get("keys") : null;
+			sendJson(exchange, 200, allDocs(db, keys, params));
+			return;
+		}
+		String docId;
+		int attachmentIndex;
+		if (second.equals("_design")) {
+			if (path.size() < 3)
+				throw notFound();
+			if (path.size() >= 5 && path.get(3).equals("_view")) {
+				sendJson(exchange, 200, view(db, DESIGN_PREFIX + path.get(2), path.get(4), params));
+				return;
+			}
+			if (path.size() >= 6 && path.get(3).equals("_update")) {
+				update(exchange, db, DESIGN_PREFIX + path.get(2), path.get(4), path.get(5), params);
+				return;
+			}
+			docId = DESIGN_PREFIX + path.get(2);
+			attachmentIndex = 3;
+		} else {
+			docId = second;
+			attachmentIndex = 2;
+		}
+		if (path.size() > attachmentIndex)
+			routeAttachment(exchange, method, db, docId, params, body);
+		else
+			routeDocument(exchange, method, db, docId, params, body);
+	}
+
+	private void routeDatabase(HttpExchange exchange, String method, String name) throws CouchError, IOException {
+		if (method.equals("PUT")) {
+			if (databases.putIfAbsent(name, new Database()) != null)
+				throw new CouchError(412, "file_exists", "The database could not be created, the file already exists.");
+			sendJson(exchange, 201, ok());
+		} else if (method.equals("DELETE")) {
+			if (databases.remove(name) == null)
+				throw new CouchError(404, "not_found", "missing");
+			sendJson(exchange, 200, ok());
+		} else {
+			Database db = databases.get(name);
+			if (db == null)
+				throw new CouchError(404, "not_found", "no_db_file");
+			ObjectNode info = JsonNodeFactory.instance.objectNode();
+			info.put("db_name", name);
+			info.put("doc_count", db.docCount.get());
+			sendJson(exchange, 200, info);
+		}
+	}
+
+	private void routeDocument(HttpExchange exchange, String method, Database db, String id,
+							   Map<String, String> params, byte[] body) throws CouchError, IOException
+	{
+		if (method.equals("GET") || method.equals("HEAD")) {
+			Doc doc = db.docs.get(id);
+			if (doc == null)
+				throw notFound();
+			exchange.getResponseHeaders().set("ETag", "\"" + doc.rev + "\"");
+			sendJson(exchange, 200, toJson(doc, flag(params, "attachments")));
+		} else if (method.equals("PUT")) {
+			ObjectNode json = (ObjectNode) MAPPER.readTree(new String(body, "UTF-8"));
+			String rev = params.containsKey("rev") ? params.get("rev") : textOrNull(json.get("_rev"));
+			sendJson(exchange, 201, revResult(save(db, id, rev, json)));
+		} else if (method.equals("DELETE")) {
+			synchronized (db) {
+				Doc current = db.docs.get(id);
+				if (current == null)
+					throw notFound();
+				if (!current.rev.equals(params.get("rev")))
+					throw conflict();
+				db.swap(id, current, null);
+			}
+			ObjectNode result = ok();
+			result.put("id", id);
+			sendJson(exchange, 200, result);
+		} else {
+			throw new CouchError(405, "method_not_allowed", "Only GET,HEAD,PUT,DELETE allowed");
+		}
+	}
+
+	/**
+	 * A _local document. Its revisions are "0-" and a counter, as in CouchDB.
+	 */
+	private void routeLocal(HttpExchange exchange, String method, Database db, String name,
+							Map<String, String> params, byte[] body) throws CouchError, IOException
+	{
+		String id = "_local/" + name;
+		if (method.equals("GET")) {
+			ObjectNode json = db.locals.get(id);
+			if (json == null)
+				throw notFound();
+			sendJson(exchange, 200, json);
+			return;
+		}
+		synchronized (db) {
+			ObjectNode current = db.locals.get(id);
+			String currentRev = (current == null) ? null : current.get("_rev").getTextValue();
+			if (method.equals("PUT")) {
+				ObjectNode json = (ObjectNode) MAPPER.readTree(new String(body, "UTF-8"));
+				String rev = params.containsKey("rev") ? params.get("rev") : textOrNull(json.get("_rev"));
+				if (currentRev == null ? rev != null : !currentRev.equals(rev))
+					throw conflict();
+				int generation = (currentRev == null) ? 1 : Integer.parseInt(currentRev.substring(2)) + 1;
+				json.put("_id", id);
+				json.put("_rev", "0-" + generation);
+				db.locals.put(id, json);
+				ObjectNode result = ok();
+				result.put("id", id);
+				result.put("rev", "0-" + generation);
+				sendJson(exchange, 201, result);
+			} else if (method.equals("DELETE")) {
+				if (current == null)
+					throw notFound();
+				if (!currentRev.equals(params.get("rev")))
+					throw conflict();
+				db.locals.remove(id);
+				ObjectNode result = ok();
+				result.put("id", id);
+				sendJson(exchange, 200, result);
+			} else {
+				throw new CouchError(405, "method_not_allowed", "Only GET,PUT,DELETE allowed");
+			}
+		}
+	}
+
+	private void routeAttachment(HttpExchange exchange, String method, Database db, String id,
+								 Map<String, String> params, byte[] body) throws CouchError, IOException
+	{
+		if (method.equals("GET")) {
+			Doc doc = db.docs.get(id);
+			if (doc == null || doc.attachment == null)
+				throw notFound();
+			sendBytes(exchange, 200, doc.attachment, doc.contentType);
+		} else if (method.equals("PUT")) {
+			String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+			Doc next;
+			synchronized (db) {
+				Doc current = db.docs.get(id);
+				if (current == null || !current.rev.equals(params.get("rev")))
+					throw conflict();
+				next = new Doc(id, current.generation + 1, current.json, body,
+							   (contentType != null) ? contentType : "application/octet-stream");
+				db.swap(id, current, next);
+			}
+			sendJson(exchange, 201, revResult(next));
+		} else {
+			throw new CouchError(405, "method_not_allowed", "Only GET,PUT allowed");
+		}
+	}
+
+	/*
+	 * Documents
+	 */
+
+	private static String textOrNull(JsonNode node) {
+		return (node == null || node.isNull()) ? null : node.getTextValue();
+	}
+
+	/**
+	 * Returns the document as CouchDB would: with _id, _rev, and its attachment - as a stub, or inline.
+	 */
+	static ObjectNode toJson(Doc doc, boolean attachments) {
+		ObjectNode json = JsonNodeFactory.instance.objectNode();
+		json.put("_id", doc.id);
+		json.put("_rev", doc.rev);
+		json.putAll(doc.json);
+		if (doc.attachment != null) {
+			ObjectNode attachment = json.putObject("_attachments").putObject(Queue.MESSAGE_ATTACHMENT_NAME);
+			attachment.put("content_type", doc.contentType);
+			attachment.put("length", doc.attachment.length);
+			attachment.put("revpos", doc.generation);
+			if (attachments)
+				attachment.put("data", doc.attachment);
+			else
+				attachment.put("stub", true);
+		}
+		return json;
+	}
+
+	/**
+	 * Create or update a document. The revision must match the current one, or be null for a new document.<br />
+	 * The attachment is kept if the JSON has an attachment stub, replaced if it has inline data, and removed if
+	 * it has neither.
+	 */
+	private Doc save(Database db, String id, String rev, ObjectNode json) throws CouchError {
+		ObjectNode fields = json.objectNode();
+		JsonNode attachments = null;
+		for (Iterator<Map.Entry<String, JsonNode>> it = json.getFields(); it.hasNext(); ) {
+			Map.Entry<String, JsonNode> field = it.next();
+			if (field.getKey().equals("_attachments"))
+				attachments = field.getValue();
+			else if (!field.getKey().startsWith("_"))
+				fields.put(field.getKey(), field.getValue());
+		}
+		JsonNode inline = (attachments == null) ? null : attachments.get(Queue.MESSAGE_ATTACHMENT_NAME);
+		synchronized (db) {
+			Doc current = db.docs.get(id);
+			if (current == null ? rev != null : !current.rev.equals(rev))
+				throw conflict();
+			byte[] data = null;
+			String contentType = null;
+			if (inline != null) {
+				if (inline.get("data") != null) {
+					try {
+						data = inline.get("data").getBinaryValue();
+					} catch (IOException e) {
+						throw new CouchError(400, "bad_request", "Invalid attachment data");
+					}
+					contentType = textOrNull(inline.get("content_type"));
+				} else if (current != null) {
+					data = current.attachment;
+					contentType = current.contentType;
+				}
+			}
+			Integer deleted = db.tombstones.get(id);
+			int generation = (current != null) ? current.generation + 1 : (deleted != null) ? deleted + 1 : 1;
+			Doc next = new Doc(id, generation, fields, data, contentType);
+			db.swap(id, current, next);
+			return next;
+		}
+	}
+
+	private JsonNode bulkDocs(Database db, JsonNode request) {
+		ArrayNode results = JsonNodeFactory.instance.arrayNode();
+		for (JsonNode doc : request.get("docs")) {
+			String id = textOrNull(doc.get("_id"));
+			if (id == null)
+				id = UUID.randomUUID().toString().replace("-", "");
+			String rev = textOrNull(doc.get("_rev"));
+			try {
+				if (doc.path("_deleted").getBooleanValue()) {
+					synchronized (db) {
+						Doc current = db.docs.get(id);
+						if (current == null || !current.rev.equals(rev))
+							throw conflict();
+						db.swap(id, current, null);
+					}
+					ObjectNode result = results.addObject();
+					result.put("id", id);
+					result.put("rev", rev);
+				} else {
+					Doc saved = save(db, id, rev, (ObjectNode) doc);
+					ObjectNode result = results.addObject();
+					result.put("id", saved.id);
+					result.put("rev", saved.rev);
+				}
+			} catch (CouchError e) {
+				conflicts.incrementAndGet();
+				ObjectNode result = results.addObject();
+				result.put("id", id);
+				result.put("error", e.error);
+				result.put("reason", e.getMessage());
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * A one-off replication between two local databases, of the documents in <code>doc_ids</code>. Revisions are
+	 * shared, so a copy has the same revision as its source. There's no revision tree: a document the target has at
+	 * a later generation is left alone, like a conflict CouchDB would resolve in the target's favor.
+	 */
+	private JsonNode replicate(JsonNode request) throws CouchError {
+		Database source = databases.get(textOrNull(request.get("source")));
+		Database target = databases.get(textOrNull(request.get("target")));
+		if (source == null || target == null || request.get("doc_ids") == null)
+			throw new CouchError(404, "db_not_found", "could not open database");
+		int written = 0;
+		for (JsonNode id : request.get("doc_ids")) {
+			Doc doc = source.docs.get(id.getTextValue());
+			if (doc == null)
+				continue;
+			synchronized (target) {
+				Doc current = target.docs.get(doc.id);
+				if (current != null && (current == doc || current.generation >= doc.generation))
+					continue;
+				target.swap(doc.id, current, doc);
+			}
+			written++;
+		}
+		ObjectNode result = ok();
+		result.putArray("history").addObject().put("docs_written", written);
+		return result;
+	}
+
+	/**
+	 * The _changes feed, normal or descending, with <code>since</code> and <code>limit</code>. Sequences are
+	 * numbers, as in CouchDB 1.x.
+	 */
+	private JsonNode changes(Database db, Map<String, String> params) {
+		long since = params.containsKey("since") ? Long.parseLong(params.get("since")) : 0;
+		int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : Integer.MAX_VALUE;
+		ConcurrentNavigableMap<Long, String> range = flag(params, "descending") ?
+				db.changes.descendingMap() : db.changes.tailMap(since, false);
+		ObjectNode result = JsonNodeFactory.instance.objectNode();
+		ArrayNode results = result.putArray("results");
+		long lastSeq = flag(params, "descending") ? 0 : since;
+		for (Map.Entry<Long, String> change : range.entrySet()) {
+			if (results.size() >= limit)
+				break;
+			String id = change.getValue();
+			Doc doc = db.docs.get(id);
+			ObjectNode row = results.addObject();
+			row.put("seq", change.getKey());
+			row.put("id", id);
+			if (doc == null) {
+				row.putArray("changes");
+				row.put("deleted", true);
+			} else {
+				row.putArray("changes").addObject().put("rev", doc.rev);
+			}
+			lastSeq = change.getKey();
+		}
+		result.put("last_seq", lastSeq);
+		return result;
+	}
+
+	/**
+	 * _all_docs with a list of keys. Without keys, returns the documents in id order, between the startkey and endkey.
+	 */
+	private JsonNode allDocs(Database db, JsonNode keys, Map<String, String> params) throws IOException {
+		boolean includeDocs = flag(params, "include_docs");
+		boolean attachments = flag(params, "attachments");
+		ObjectNode result = JsonNodeFactory.instance.objectNode();
+		result.put("total_rows", db.docCount.get());
+		result.put("offset", 0);
+		ArrayNode rows = result.putArray("rows");
+		List<String> ids = new ArrayList<String>();
+		if (keys != null) {
+			for (JsonNode key : keys)
+				ids.add(key.getTextValue());
+		} else {
+			// ids are ASCII, so the skip list's order is CouchDB's raw collation
+			ConcurrentNavigableMap<String, Doc> range = flag(params, "descending") ? db.docs.descendingMap() : db.docs;
+			if (params.containsKey("startkey"))
+				range = range.tailMap(MAPPER.readTree(params.get("startkey")).getTextValue(), true);
+			if (params.containsKey("endkey"))
+				range = range.headMap(MAPPER.readTree(params.get("endkey")).getTextValue(), true);
+			int skip = params.containsKey("skip") ? Integer.parseInt(params.get("skip")) : 0;
+			int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : Integer.MAX_VALUE;
+			for (String id : range.keySet()) {
+				if (ids.size() >= limit)
+					break;
+				if (skip > 0)
+					skip--;
+				else
+					ids.add(id);
+			}
+		}
+		for (String id : ids) {
+			ObjectNode row = rows.addObject();
+			row.put("key", id);
+			Doc doc = db.docs.get(id);
+			if (doc == null) {
+				row.put("error", "not_found");
+				continue;
+			}
+			row.put("id", id);
+			row.putObject("value").put("rev", doc.rev);
+			if (includeDocs)
+				row.put("doc", toJson(doc, attachments));
+		}
+		return result;
+	}
+
+	/**
+	 * The groups view, reduced with <code>group_level=1</code>: a row for each group, whose value is the sent_at,
+	 * sent_seq, id and lock expiry of the group's oldest message, and how many of the group's messages aren't
+	 * locked. Only the group in the startkey and endkey, and a limit, are supported. Without a group level, the
+	 * view is reduced to a single row, for the oldest grouped message.
+	 */
+	private JsonNode groupHeads(Database db, Map<String, String> params) throws CouchError, IOException {
+		if (!params.containsKey("group_level") && !flag(params, "include_docs"))
+			return allGroupsHead(db);
+		if (!"1".equals(params.get("group_level")) || flag(params, "include_docs"))
+			throw new CouchError(400, "query_parse_error", "The stand-in only supports group_level=1 on this view");
+		int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : Integer.MAX_VALUE;
+		ConcurrentNavigableMap<String, ConcurrentSkipListMap<ViewKey, Doc>> range = db.groups;
+		if (params.containsKey("startkey"))
+			range = range.tailMap(MAPPER.readTree(params.get("startkey")).get(0).getTextValue(), true);
+		if (params.containsKey("endkey"))
+			range = range.headMap(MAPPER.readTree(params.get("endkey")).get(0).getTextValue(), true);
+		ObjectNode result = JsonNodeFactory.instance.objectNode();
+		ArrayNode rows = result.putArray("rows");
+		for (Map.Entry<String, ConcurrentSkipListMap<ViewKey, Doc>> entry : range.entrySet()) {
+			if (rows.size() >= limit)
+				break;
+			Map.Entry<ViewKey, Doc> head = entry.getValue().firstEntry();
+			if (head == null)
+				continue;
+			int pending = 0;
+			for (Doc member : entry.getValue().values()) {
+				if (!member.isLocked())
+					pending++;
+			}
+			ObjectNode row = rows.addObject();
+			row.putArray("key").add(entry.getKey());
+			groupValue(row, head, pending);
+		}
+		return result;
+	}
+
+	/**
+	 * The groups view reduced to a single row. The grouped messages that aren't locked are counted as the pending
+	 * ones less the pending view's.
+	 */
+	private static JsonNode allGroupsHead(Database db) {
+		Map.Entry<ViewKey, Doc> head = null;
+		for (ConcurrentSkipListMap<ViewKey, Doc> members : db.groups.values()) {
+			Map.Entry<ViewKey, Doc> first = members.firstEntry();
+			if (first != null && (head == null || first.getKey().compareTo(head.getKey()) < 0))
+				head = first;
+		}
+		ObjectNode result = JsonNodeFactory.instance.objectNode();
+		ArrayNode rows = result.putArray("rows");
+		if (head != null) {
+			ObjectNode row = rows.addObject();
+			row.putNull("key");
+			groupValue(row, head, Math.max(db.pending.size() - db.ungrouped.size(), 0));
+		}
+		return result;
+	}
+
+	private static void groupValue(ObjectNode row, Map.Entry<ViewKey, Doc> head, int pending) {
+		ArrayNode value = row.putArray("value");
+		value.add(head.getKey().key);
+		value.add(head.getKey().seq);
+		value.add(head.getKey().id);
+		value.add(head.getValue().isLocked() ? Database.lockedKey(head.getValue()).key : 0);
+		value.add(pending);
+	}
+
+	/**
+	 * The attributes view, for the range of a single attribute value: the pending messages with that value, in the
+	 * order of the pending view. Found by reading the pending view, so it takes time in proportion to the messages
+	 * before the last one returned.
+	 */
+	/**
+	 * The expiring view, ascending, up to an endkey: the expiry time of each message, with its revision and lock
+	 * expiry as the value.
+	 */
+	private JsonNode expiringView(Database db, Map<String, String> params) {
+		ConcurrentNavigableMap<ViewKey, Doc> range = db.expiring;
+		if (params.containsKey("endkey"))
+			range = range.headMap(new ViewKey(Long.parseLong(params.get("endkey")), "\uffff"), true);
+		int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : Integer.MAX_VALUE;
+		ObjectNode result = JsonNodeFactory.instance.objectNode();
+		result.put("total_rows", db.expiring.size());
+		result.put("offset", 0);
+		ArrayNode rows = result.putArray("rows");
+		for (Map.Entry<ViewKey, Doc> entry : range.entrySet()) {
+			if (rows.size() >= limit)
+				break;
+			Doc doc = entry.getValue();
+			ObjectNode row = rows.addObject();
+			row.put("id", doc.id);
+			row.put("key", entry.getKey().key);
+			ArrayNode value = row.putArray("value");
+			value.add(doc.rev);
+			value.add(doc.isLocked() ? Database.lockedKey(doc).key : 0);
+		}
+		return result;
+	}
+
+	private JsonNode attributeView(Database db, Map<String, String> params) throws CouchError, IOException {
+		boolean descending = flag(params, "descending");
+		JsonNode low = MAPPER.readTree(params.get(descending ? "endkey" : "startkey"));
+		JsonNode start = MAPPER.readTree(params.get("startkey"));
+		if (low == null || low.size() < 2 || start == null || start.size() < 2)
+			throw new CouchError(400, "query_parse_error", "The stand-in only supports a single attribute value");
+		String attribute = low.get(0).getTextValue();
+		int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : Integer.MAX_VALUE;
+		ObjectNode result = JsonNodeFactory.instance.objectNode();
+		result.put("offset", 0);
+		ArrayNode rows = result.putArray("rows");
+		ConcurrentNavigableMap<ViewKey, Doc> ordered = descending ? db.pending.descendingMap() : db.pending;
+		// a page after the first starts at the [attribute, value, sent_at, sent_seq] key and document id of the
+		// last row of the page before
+		if (start.size() == 4) {
+			String docId = params.containsKey("startkey_docid") ? params.get("startkey_docid") :
+					(descending ? "\uffff" : "");
+			ordered = ordered.tailMap(new ViewKey(start.get(2).getLongValue(), start.get(3).getIntValue(), docId), true);
+		}
+		for (Doc doc : ordered.values()) {
+			if (rows.size() >= limit)
+				break;
+			if (!Queue.hasAttribute(doc.json, attribute, low.get(1)))
+				continue;
+			ObjectNode row = rows.addObject();
+			row.put("id", doc.id);
+			ArrayNode key = row.putArray("key");
+			key.add(attribute);
+			key.add(low.get(1));
+			key.add(doc.json.path("sent_at").getLongValue());
+			key.add(doc.json.path("sent_seq").getIntValue());
+			row.putNull("value");
+			if (flag(params, "include_docs"))
+				row.put("doc", toJson(doc, false));
+		}
+		return result;
+	}
+
+	/**
+	 * The RQS views, with their <code>_count</code> reduces. Other views are not supported, but the views can be
+	 * queried through any design document that declares them, as CouchDB shares indexes between identical views.
+	 */
+	private JsonNode view(Database db, String designId, String name, Map<String, String> params)
+			throws CouchError, IOException
+	{
+		Doc design = db.docs.get(designId);
+		if (design == null)
+			throw new CouchError(404, "not_found", "missing");
+		JsonNode definition = design.json.path("views").get(name);
+		ConcurrentSkipListMap<ViewKey, Doc> index;
+		if (definition == null)
+			throw new CouchError(404, "not_found", "missing_named_view");
+		else if (name.equals(Queue.RQS_PENDING_VIEW_NAME))
+			index = db.ungrouped;
+		else if (name.equals(Queue.RQS_LOCKED_VIEW_NAME))
+			index = db.locked;
+		else if (name.equals(Queue.RQS_GROUPS_VIEW_NAME))
+			return groupHeads(db, params);
+		else if (name.equals(Queue.RQS_ATTRIBUTES_VIEW_NAME))
+			return attributeView(db, params);
+		else if (name.equals(Queue.RQS_EXPIRING_VIEW_NAME))
+			return expiringView(db, params);
+		else
+			throw new CouchError(404, "not_found", "missing_named_view");
+		boolean hasReduce = definition.get("reduce") != null;
+		boolean reduce = params.containsKey("reduce") ? flag(params, "reduce") : hasReduce;
+		boolean includeDocs = flag(params, "include_docs");
+		boolean descending = flag(params, "descending");
+		if (reduce && !hasReduce)
+			throw new CouchError(400, "query_parse_error", "Invalid use of reduce on a map-only view");
+		if (reduce && includeDocs)
+			throw new CouchError(400, "query_parse_error", "include_docs is invalid for reduce");
+		int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : Integer.MAX_VALUE;
+
+		// startkey and endkey are in the order of the query, so they swap when it's descending
+		String lowParam = descending ? "endkey" : "startkey";
+		String highParam = descending ? "startkey" : "endkey";
+		ViewKey low = params.containsKey(lowParam) ? new ViewKey(Long.parseLong(params.get(lowParam)), "") : null;
+		ViewKey high = params.containsKey(highParam) ?
+				new ViewKey(Long.parseLong(params.get(highParam)), "\uffff") : null;
+		ConcurrentNavigableMap<ViewKey, Doc> range = index;
+		if (low != null)
+			range = range.tailMap(low, true);
+		if (high != null)
+			range = range.headMap(high, true);
+
+		ObjectNode result = JsonNodeFactory.instance.objectNode();
+		ArrayNode rows;
+		if (reduce) {
+			rows = result.putArray("rows");
+			int count = range.size();
+			if (count > 0 && limit > 0) {
+				ObjectNode row = rows.addObject();
+				row.putNull("key");
+				row.put("value", count);
+			}
+			return result;
+		}
+		result.put("total_rows", index.size());
+		result.put("offset", 0);
+		rows = result.putArray("rows");
+		Map<ViewKey, Doc> ordered = descending ? range.descendingMap() : range;
+		int count = 0;
+		for (Map.Entry<ViewKey, Doc> entry : ordered.entrySet()) {
+			if (count++ >= limit)
+				break;
+			ObjectNode row = rows.addObject();
+			row.put("id", entry.getKey().id);
+			if (index == db.ungrouped) {
+				ArrayNode key = row.putArray("key");
+				key.add(entry.getKey().key);
+				key.add(entry.getKey().seq);
+			} else
+				row.put("key", entry.getKey().key);
+			row.putNull("value");
+			if (includeDocs)
+				row.put("doc", toJson(entry.getValue(), false));
+		}
+		return result;
+	}
+
+	/**
+	 * The RQS update handlers, reimplemented here, since the stand-in can't run JavaScript. Like CouchDB, a handler
+	 * is only found if the design document declares it.
+	 */
+	private void update(HttpExchange exchange, Database db, String designId, String name, String id,
+						Map<String, String> params) throws CouchError, IOException
+	{
+		Doc design = db.docs.get(designId);
+		if (design == null || design.json.path("updates").get(name) == null)
+			throw new CouchError(404, "not_found", "missing function " + name);
+		Doc previous;
+		Doc next;
+		JsonNode response;
+		synchronized (db) {
+			Doc current = db.docs.get(id);
+			if (current == null)
+				throw new CouchError(404, "no_such_message", "missing");
+			String rev = params.get("rev");
+			ObjectNode json = (ObjectNode) Message.copyJson(current.json);
+			if (name.equals(Queue.RQS_LOCK_UPDATE_NAME)) {
+				if (rev != null && !rev.equals(current.rev))
+					throw conflict();
+				json.put("lock", MAPPER.readTree(params.get("lock")));
+			} else if (name.equals(Queue.RQS_EXTEND_LOCK_UPDATE_NAME)) {
+				ObjectNode lock = (ObjectNode) json.get("lock");
+				if (!current.rev.equals(rev) || lock == null)
+					throw conflict();
+				lock.put("visibility_timeout",
+						 lock.get("visibility_timeout").getLongValue() + Long.parseLong(params.get("extension")));
+			} else {
+				throw new CouchError(404, "not_found", "missing function " + name);
+			}
+			next = new Doc(id, current.generation + 1, json, current.attachment, current.contentType);
+			db.swap(id, current, next);
+			previous = current;
+		}
+		if (name.equals(Queue.RQS_LOCK_UPDATE_NAME)) {
+			// the handler returns the document before it's saved, with the previous revision
+			ObjectNode doc = toJson(next, false);
+			doc.put("_rev", previous.rev);
+			response = doc;
+		} else {
+			response = ok();
+		}
+		exchange.getResponseHeaders().set(CouchTransport.UPDATE_NEW_REV_HEADER, next.rev);
+		sendJson(exchange, 201, response);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : 5984;
+		CouchStandIn standIn = new CouchStandIn(port);
+		if (args.length > 1)
+			standIn.setLatencyMicros(Long.parseLong(args[1]));
+		if (args.length > 2)
+			standIn.setJitterMicros(Long.parseLong(args[2]));
+		System.out.printf("CouchDB stand-in listening on http://%s:%d, latency %d+%d us%n",
+						  standIn.getHost(), standIn.getPort(), standIn.getLatencyMicros(), standIn.getJitterMicros());
+		// the server's threads are daemons
+		Thread.currentThread().join();
+	}
+
+}
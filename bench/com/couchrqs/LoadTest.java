@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * An end-to-end load test: producer and consumer threads on one or more queues, for a fixed duration.
+ * <p>
+ * Every payload carries the id of the producer that sent it and a sequence number, so the consumers can tell
+ * which messages were delivered more than once, and - after the queues are drained at the end - which were never
+ * delivered at all. End-to-end latency is measured from the message's <code>sent_at</code> to its receipt, which
+ * makes it only as accurate as the clocks of the hosts involved, and in milliseconds.
+ * <p>
+ * Producers send at a fixed rate, if one is given, rather than as fast as they can. An unthrottled producer
+ * always outruns the consumers eventually, and the latency then measures nothing but the growing backlog.
+ * <p>
+ * Without <code>-host</code> the test runs against a {@link CouchStandIn} in the same JVM. Options, with their
+ * defaults:
+ * <pre>
+ * -host      CouchDB host (none: start a stand-in)
+ * -port      CouchDB port (5984)
+ * -latency   stand-in latency per request, in microseconds (0)
+ * -queues    number of queues (1)
+ * -producers producer threads, spread over the queues (2)
+ * -consumers consumer threads, spread over the queues (4)
+ * -rate      total messages per second, 0 for as fast as possible (1000)
+ * -batch     messages per send and receive (10)
+ * -payload   payload size in bytes, at least 8 (256)
+ * -duration  seconds to produce for (30)
+ * -drain     seconds to wait for the consumers to empty the queues afterwards (60)
+ * -timeout   visibility timeout in milliseconds (30000)
+ * -mode      how the queues receive: VIEW or ID - see {@link ReceiveMode} (VIEW)
+ * -hgrm      write the latency histogram to this file, in HdrHistogram's percentile format
+ * </pre>
+ * Run it with <code>ant loadtest -Dloadtest.args="-producers 4 -rate 5000"</code>.
+ */
+public class LoadTest {
+
+	static final String QUEUE_NAME_PREFIX = "rqs_loadtest_";
+	/** One hour, in microseconds. */
+	static final long HIGHEST_LATENCY = 3600L * 1000 * 1000;
+
+	final Map<String, String> options;
+	final int producerCount;
+	final int consumerCount;
+	final int batchSize;
+	final int payloadSize;
+	final long rate;
+
+	QueueService service;
+	CouchStandIn standIn;
+	final List<Queue> queues = new ArrayList<Queue>();
+
+	final ConcurrentHistogram latency = new ConcurrentHistogram(HIGHEST_LATENCY, 3);
+	/** The sequence numbers each producer sent successfully, and the ones its consumers received. */
+	BitSet[] sent;
+	BitSet[] received;
+	final AtomicLong sentCount = new AtomicLong();
+	final AtomicLong failedSends = new AtomicLong();
+	final AtomicLong receivedCount = new AtomicLong();
+	final AtomicLong duplicates = new AtomicLong();
+	final AtomicLong failedDeletes = new AtomicLong();
+	final AtomicLong errors = new AtomicLong();
+	volatile boolean producing = true;
+	volatile boolean consuming = true;
+
+	LoadTest(Map<String, String> options) {
+		this.options = options;
+		producerCount = intOption("producers", 2);
+		consumerCount = intOption("consumers", 4);
+		batchSize = intOption("batch", 10);
+		payloadSize = Math.max(8, intOption("payload", 256));
+		rate = intOption("rate", 1000);
+	}
+
+	int intOption(String name, int defaultValue) {
+		return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+	}
+
+	String option(String name, String defaultValue) {
+		return options.containsKey(name) ? options.get(name) : defaultValue;
+	}
+
+	void setUp() throws Exception {
+		if (options.containsKey("host")) {
+			service = new QueueService(options.get("host"), intOption("port", 5984));
+		} else {
+			standIn = new CouchStandIn();
+			standIn.setLatencyMicros(intOption("latency", 0));
+			service = new QueueService(standIn.getHost(), standIn.getPort());
+		}
+		for (int i = 0; i < intOption("queues", 1); i++) {
+			String name = QUEUE_NAME_PREFIX + i;
+			if (service.isQueue(name))
+				service.deleteQueue(name);
+			queues.add(service.createQueue(name, ReceiveMode.valueOf(option("mode", "VIEW"))));
+		}
+		sent = new BitSet[producerCount];
+		received = new BitSet[producerCount];
+		for (int i = 0; i < producerCount; i++) {
+			sent[i] = new BitSet();
+			received[i] = new BitSet();
+		}
+	}
+
+	void tearDown() throws Exception {
+		for (Queue queue : queues)
+			service.deleteQueue(queue.getName());
+		service.shutdown();
+		if (standIn != null)
+			standIn.stop();
+	}
+
+	/**
+	 * Each queue gets a separate Queue instance per thread.
+	 */
+	Queue queueFor(int thread) throws RQSException {
+		Queue queue = service.getQueue(queues.get(thread % queues.size()).getName());
+		queue.setVisibilityTimeout(intOption("timeout", 30000));
+		return queue;
+	}
+
+	class Producer implements Runnable {
+		final int id;
+		final Queue queue;
+		final CountDownLatch done;
+
+		Producer(int id, Queue queue, CountDownLatch done) {
+			this.id = id;
+			this.queue = queue;
+			this.done = done;
+		}
+
+		public void run() {
+			long interval = (rate > 0) ? TimeUnit.SECONDS.toNanos(1) * batchSize * producerCount / rate : 0;
+			long next = System.nanoTime();
+			int sequence = 0;
+			try {
+				while (producing) {
+					if (interval > 0) {
+						// pace by schedule rather than by the last send, so a slow send doesn't lower the rate
+						long wait = next - System.nanoTime();
+						if (wait > 0)
+							LockSupport.parkNanos(wait);
+						next += interval;
+					}
+					List<byte[]> batch = new ArrayList<byte[]>(batchSize);
+					for (int i = 0; i < batchSize; i++)
+						batch.add(payload(id, sequence + i));
+					try {
+						queue.sendMessages(batch);
+						synchronized (sent[id]) {
+							sent[id].set(sequence, sequence + batchSize);
+						}
+						sentCount.addAndGet(batchSize);
+					} catch (RQSException e) {
+						// these may or may not have been stored, so they count neither as sent nor as lost
+						failedSends.addAndGet(batchSize);
+					}
+					sequence += batchSize;
+				}
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+
+	class Consumer implements Runnable {
+		final Queue queue;
+		final CountDownLatch done;
+
+		Consumer(Queue queue, CountDownLatch done) {
+			this.queue = queue;
+			this.done = done;
+		}
+
+		public void run() {
+			try {
+				while (consuming) {
+					List<Message> messages;
+					try {
+						messages = queue.receiveMessages(batchSize);
+					} catch (RQSException e) {
+						errors.incrementAndGet();
+						continue;
+					}
+					long now = System.currentTimeMillis();
+					if (messages.isEmpty()) {
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+						continue;
+					}
+					for (Message message : messages) {
+						latency.recordValue(Math.max(0, now - message.getSentTimestamp()) * 1000);
+						ByteBuffer payload = ByteBuffer.wrap(message.getData());
+						int producer = payload.getInt();
+						int sequence = payload.getInt();
+						boolean duplicate;
+						synchronized (received[producer]) {
+							duplicate = received[producer].get(sequence);
+							received[producer].set(sequence);
+						}
+						if (duplicate)
+							duplicates.incrementAndGet();
+						receivedCount.incrementAndGet();
+						try {
+							queue.deleteMessage(message.getMessageId(), message.getReceiptToken());
+						} catch (RQSException e) {
+							// the lock expired, and the message may be delivered again
+							failedDeletes.incrementAndGet();
+						}
+					}
+				}
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+
+	byte[] payload(int producer, int sequence) {
+		ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+		payload.putInt(producer).putInt(sequence);
+		return payload.array();
+	}
+
+	void run() throws Exception {
+		long duration = TimeUnit.SECONDS.toMillis(intOption("duration", 30));
+		CountDownLatch producersDone = new CountDownLatch(producerCount);
+		CountDownLatch consumersDone = new CountDownLatch(consumerCount);
+		for (int i = 0; i < consumerCount; i++)
+			startThread(new Consumer(queueFor(i), consumersDone), "consumer-" + i);
+		for (int i = 0; i < producerCount; i++)
+			startThread(new Producer(i, queueFor(i), producersDone), "producer-" + i);
+
+		long start = System.currentTimeMillis();
+		long lastSent = 0;
+		long lastReceived = 0;
+		while (System.currentTimeMillis() - start < duration) {
+			Thread.sleep(Math.min(1000, duration - (System.currentTimeMillis() - start)));
+			long sentNow = sentCount.get();
+			long receivedNow = receivedCount.get();
+			System.out.printf("%6.1fs  sent %8d/s  received %8d/s  p99 %8.1fms%n",
+							  (System.currentTimeMillis() - start) / 1000.0, sentNow - lastSent,
+							  receivedNow - lastReceived, latency.getValueAtPercentile(99) / 1000.0);
+			lastSent = sentNow;
+			lastReceived = receivedNow;
+		}
+		producing = false;
+		producersDone.await();
+		long produceTime = System.currentTimeMillis() - start;
+
+		long drainDeadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(intOption("drain", 60));
+		while (System.currentTimeMillis() < drainDeadline && !isDrained())
+			Thread.sleep(500);
+		consuming = false;
+		consumersDone.await();
+		report(produceTime, System.currentTimeMillis() - start);
+	}
+
+	boolean isDrained() throws RQSException {
+		for (Queue queue : queues) {
+			if (queue.numberOfMessagesPending() > 0 || queue.numberOfMessagesNotVisible() > 0)
+				return false;
+		}
+		return true;
+	}
+
+	static void startThread(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void report(long produceTime, long totalTime) throws IOException {
+		long lost = 0;
+		long unconfirmed = 0;
+		for (int i = 0; i < producerCount; i++) {
+			BitSet missing = (BitSet) sent[i].clone();
+			missing.andNot(received[i]);
+			lost += missing.cardinality();
+			BitSet extra = (BitSet) received[i].clone();
+			extra.andNot(sent[i]);
+			unconfirmed += extra.cardinality();
+		}
+		QueueMetrics metrics = service.getMetrics();
+		PrintStream out = System.out;
+		out.println();
+		out.printf("producers=%d consumers=%d queues=%d batch=%d payload=%d rate=%d%n",
+				   producerCount, consumerCount, queues.size(), batchSize, payloadSize, rate);
+		out.printf("sent:       %d in %.1fs (%.0f/s), %d failed%n", sentCount.get(), produceTime / 1000.0,
+				   sentCount.get() * 1000.0 / produceTime, failedSends.get());
+		out.printf("received:   %d in %.1fs (%.0f/s)%n", receivedCount.get(), totalTime / 1000.0,
+				   receivedCount.get() * 1000.0 / totalTime);
+		out.printf("duplicates: %d, lost: %d, received after a failed send: %d%n", duplicates.get(), lost,
+				   unconfirmed);
+		out.printf("deletes failed: %d, receive errors: %d%n", failedDeletes.get(), errors.get());
+		out.printf("locks:      %d attempted, %d conflicts (%.1f%%), %d of %d receives empty%n",
+				   metrics.getLockAttempts(), metrics.getLockConflicts(),
+				   (metrics.getLockAttempts() == 0) ? 0 : 100.0 * metrics.getLockConflicts() / metrics.getLockAttempts(),
+				   metrics.getEmptyReceiveCount(), metrics.getReceiveCount());
+		out.printf("end-to-end latency (ms): p50=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+				   latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(99) / 1000.0,
+				   latency.getValueAtPercentile(99.9) / 1000.0, latency.getMaxValue() / 1000.0);
+		out.println();
+		out.println(metrics);
+		out.println();
+		Histogram snapshot = latency.copy();
+		snapshot.outputPercentileDistribution(out, 1000.0);
+		if (options.containsKey("hgrm")) {
+			PrintStream file = new PrintStream(new FileOutputStream(options.get("hgrm")));
+			try {
+				snapshot.outputPercentileDistribution(file, 1000.0);
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	static Map<String, String> parseOptions(String[] args) {
+		Map<String, String> options = new HashMap<String, String>();
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("-") || i + 1 == args.length)
+				throw new IllegalArgumentException("Expected -option value, got " + args[i]);
+			options.put(args[i].substring(1), args[++i]);
+		}
+		return options;
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadTest test = new LoadTest(parseOptions(args));
+		test.setUp();
+		try {
+			test.run();
+		} finally {
+			test.tearDown();
+		}
+	}
+
+}
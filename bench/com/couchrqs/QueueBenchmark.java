@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Single-threaded benchmarks of the Queue hot paths - send, and a full send, receive and delete cycle - one message
+ * at a time and in batches, against a {@link CouchStandIn} with injected latency.
+ * <p>
+ * With no latency, the score is the client's own overhead: JSON, HTTP and the number of requests per message.
+ * With latency, it shows how much batching saves per message. Run with <code>ant bench</code>; the default
+ * arguments add the GC profiler, so the allocation rate per operation is reported too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueBenchmark {
+
+	static final int BATCH_SIZE = 10;
+
+	/** Latency injected into every request, in microseconds. */
+	@Param({"0", "500"})
+	public long latencyMicros;
+
+	@Param({"128", "4096", "65536"})
+	public int payloadSize;
+
+	CouchStandIn standIn;
+	QueueService service;
+	Queue queue;
+	byte[] payload;
+	List<byte[]> batch;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		standIn = new CouchStandIn();
+		standIn.setLatencyMicros(latencyMicros);
+		service = new QueueService(standIn.getHost(), standIn.getPort());
+		queue = service.createQueue("rqs_benchmark");
+		payload = new byte[payloadSize];
+		new Random(42).nextBytes(payload);
+		batch = new ArrayList<byte[]>();
+		for (int i = 0; i < BATCH_SIZE; i++)
+			batch.add(payload);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		System.out.println();
+		System.out.println(service.getMetrics());
+		service.deleteQueue(queue.getName());
+		service.shutdown();
+		standIn.stop();
+	}
+
+	/**
+	 * Sent messages pile up, so start each iteration with an empty queue, or the views get slower as it goes.
+	 */
+	@Setup(Level.Iteration)
+	public void emptyQueue() throws Exception {
+		List<Message> messages;
+		while (!(messages = queue.receiveMessages(1000)).isEmpty()) {
+			for (Message message : messages)
+				queue.deleteMessage(message.getMessageId(), message.getReceiptToken());
+		}
+	}
+
+	@Benchmark
+	public String send() throws Exception {
+		return queue.sendMessage(payload);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public List<String> sendBatch() throws Exception {
+		return queue.sendMessages(batch);
+	}
+
+	@Benchmark
+	public void cycle(Blackhole blackhole) throws Exception {
+		queue.sendMessage(payload);
+		Message message = queue.receiveMessage();
+		blackhole.consume(message.getData());
+		queue.deleteMessage(message.getMessageId(), message.getReceiptToken());
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void cycleBatch(Blackhole blackhole) throws Exception {
+		queue.sendMessages(batch);
+		for (Message message : queue.receiveMessages(BATCH_SIZE)) {
+			blackhole.consume(message.getData());
+			queue.deleteMessage(message.getMessageId(), message.getReceiptToken());
+		}
+	}
+
+}
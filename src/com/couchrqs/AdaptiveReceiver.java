@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Receives messages from a queue in batches whose size tunes itself, and backs off while the queue is empty.
+ * <p>
+ * The right <code>maxNumberOfMessages</code> for {@link Queue#receiveMessages(int, long) } depends on things that
+ * change while the consumer runs. Too small a batch wastes round trips. Too large a batch collides with other
+ * consumers over the same messages, and keeps messages locked while they wait to be processed. An
+ * AdaptiveReceiver starts at {@link #DEFAULT_INITIAL_BATCH_SIZE} and, after each receive:
+ * <ul>
+ * <li>halves the batch if more than {@link #MAX_CONFLICT_RATIO} of the messages it tried to lock were locked by
+ * another process first,</li>
+ * <li>grows it by a quarter if it got every message it asked for,</li>
+ * <li>and caps it so that the batch, at the rate the caller processes messages, is done within
+ * {@link #VISIBILITY_BUDGET} of the visibility timeout.</li>
+ * </ul>
+ * The processing rate is measured as the time between the end of one receive and the start of the next, so the
+ * caller should process each batch before receiving the next one.
+ * <p>
+ * A receive that comes back empty sleeps before it returns, for a backoff that doubles with each empty receive,
+ * from {@link #getMinBackoff() } up to {@link #getMaxBackoff() }, and starts over once messages are received. The
+ * sleep is a random time between half the backoff and all of it, so consumers that found the queue empty together
+ * don't all poll again at once.
+ * <p>
+ * An AdaptiveReceiver tunes itself to the thread that uses it, and is not thread-safe: give each consumer thread
+ * its own.
+ */
+public class AdaptiveReceiver {
+
+	public static final int DEFAULT_INITIAL_BATCH_SIZE = PrefetchingReceiver.DEFAULT_PREFETCH_COUNT;
+	public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+	public static final long DEFAULT_MIN_BACKOFF = 10;
+	public static final long DEFAULT_MAX_BACKOFF = 5000;
+	/** The share of lock conflicts above which the batch is halved. */
+	static final double MAX_CONFLICT_RATIO = 0.25;
+	/** The share of the visibility timeout a batch may take to process. */
+	static final double VISIBILITY_BUDGET = 0.5;
+	/** The weight of the latest measurement in the average processing time. */
+	static final double PROCESSING_SMOOTHING = 0.3;
+
+	private final Queue queue;
+	private final Random random = new Random();
+
+	private int minBatchSize = 1;
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private long minBackoff = DEFAULT_MIN_BACKOFF;
+	private long maxBackoff = DEFAULT_MAX_BACKOFF;
+	private long visibilityTimeout;
+
+	private int batchSize = DEFAULT_INITIAL_BATCH_SIZE;
+	/** The current backoff, or 0 if the last receive returned messages. */
+	private long backoff;
+	/** The average time it takes the caller to process a message, in milliseconds, or -1 until measured. */
+	private double processingMillis = -1;
+	/** When the last receive returned, and how many messages it returned. */
+	private long lastReceiveEnd;
+	private int lastReceiveCount;
+
+	/**
+	 * Creates a receiver that receives with the queue's visibility timeout.
+	 */
+	public AdaptiveReceiver(Queue queue) {
+		this.queue = queue;
+		this.visibilityTimeout = queue.getVisibilityTimeout();
+	}
+
+	/**
+	 * Returns the number of messages the next receive asks for.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public int getMinBatchSize() {
+		return minBatchSize;
+	}
+
+	public void setMinBatchSize(int minBatchSize) {
+		this.minBatchSize = minBatchSize;
+		batchSize = Math.max(batchSize, minBatchSize);
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+		batchSize = Math.min(batchSize, maxBatchSize);
+	}
+
+	/**
+	 * Returns the first backoff (in milliseconds) after a receive comes back empty.
+	 */
+	public long getMinBackoff() {
+		return minBackoff;
+	}
+
+	public void setMinBackoff(long minBackoff) {
+		this.minBackoff = minBackoff;
+	}
+
+	/**
+	 * Returns the longest backoff (in milliseconds) while the queue stays empty.
+	 */
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	public void setMaxBackoff(long maxBackoff) {
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * Returns the visibility timeout (in milliseconds) that messages are received with.
+	 */
+	public long getVisibilityTimeout() {
+		return visibilityTimeout;
+	}
+
+	public void setVisibilityTimeout(long visibilityTimeout) {
+		this.visibilityTimeout = visibilityTimeout;
+	}
+
+	/**
+	 * Retrieves a batch of messages from the queue's head (FIFO), and tunes the size of the next batch.<br />
+	 * If no messages are received, sleeps for the backoff before returning an empty list. An interrupt cuts the
+	 * sleep short, and leaves the thread's interrupt status set.
+	 *
+	 * @return	a list of messages for processing. The list may be empty but never null.
+	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public List<Message> receiveMessages() throws RQSException {
+		if (lastReceiveCount > 0)
+			measureProcessing((currentTimeMillis() - lastReceiveEnd) / (double) lastReceiveCount);
+		int requested = batchSize;
+		int[] attempted = new int[1];
+		List<Message> messages = queue.receiveMessages(requested, visibilityTimeout, attempted);
+		lastReceiveEnd = currentTimeMillis();
+		lastReceiveCount = messages.size();
+		adjust(requested, attempted[0], messages.size());
+		if (messages.isEmpty())
+			sleep(nextBackoff());
+		else
+			backoff = 0;
+		return messages;
+	}
+
+	/**
+	 * Add a measurement of the time it took to process a message to the average.
+	 */
+	void measureProcessing(double millis) {
+		processingMillis = (processingMillis < 0) ? millis :
+				PROCESSING_SMOOTHING * millis + (1 - PROCESSING_SMOOTHING) * processingMillis;
+	}
+
+	/**
+	 * Set the size of the next batch, after a receive that asked for <code>requested</code> messages, tried to lock
+	 * <code>attempted</code> and got <code>received</code>.
+	 */
+	void adjust(int requested, int attempted, int received) {
+		int size = batchSize;
+		if (attempted > 0 && attempted - received > attempted * MAX_CONFLICT_RATIO)
+			size /= 2;
+		else if (received >= requested)
+			size += Math.max(1, size / 4);
+		// otherwise the queue had fewer messages than were asked for, which says nothing about the batch size
+		if (processingMillis > 0)
+			size = (int) Math.min(size, visibilityTimeout * VISIBILITY_BUDGET / processingMillis);
+		batchSize = Math.max(minBatchSize, Math.min(size, maxBatchSize));
+	}
+
+	/**
+	 * Double the backoff, and return a random time between half of it and all of it.
+	 */
+	long nextBackoff() {
+		backoff = (backoff == 0) ? minBackoff : Math.min(2 * backoff, maxBackoff);
+		return backoff - (long) (random.nextDouble() * (backoff / 2));
+	}
+
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Sleep for the backoff. Tests override this to skip the sleep.
+	 */
+	void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.util.Map;
+
+/**
+ * A storage backend for RQS queues.<br />
+ * The backend manages the set of queues; each queue's messages are manipulated through the {@link QueueBackend}
+ * returned by {@link #openQueue(java.lang.String) }.
+ * <p>
+ * The default backend stores every queue as a CouchDB database. Pass another implementation, such as
+ * {@link InMemoryBackend}, to {@link QueueService#QueueService(com.couchrqs.Backend) } to use different storage.
+ * Queue names are validated by <code>QueueService</code> before they reach the backend.
+ */
+public interface Backend {
+
+	/**
+	 * Returns true iff a queue, or any other storage object that would clash with a queue, exists with that name.
+	 */
+	boolean exists(String queueName) throws RQSException;
+
+	/**
+	 * Returns true iff <code>queueName</code> identifies an existing RQS queue.
+	 */
+	boolean isQueue(String queueName) throws RQSException;
+
+	/**
+	 * Creates the storage for a new queue and returns it.<br />
+	 * The caller has already verified that the name is not taken.
+	 * @param receiveMode	how the queue finds pending messages. Backends that don't index their messages
+	 * asynchronously may ignore it
+	 */
+	QueueBackend createQueue(String queueName, ReceiveMode receiveMode) throws RQSException;
+
+	/**
+	 * Returns the storage for an existing queue.<br />
+	 * Backends that can't tell cheaply whether the queue exists may skip the check, and fail on first use instead.
+	 */
+	QueueBackend openQueue(String queueName) throws RQSException;
+
+	/**
+	 * Permanently removes the queue and all its messages.
+	 * @return true iff the queue existed and was deleted
+	 */
+	boolean deleteQueue(String queueName) throws RQSException;
+
+	/**
+	 * Returns all the queues in this backend, opened - as by {@link #openQueue(java.lang.String) } - by name, in
+	 * the order of their names.
+	 */
+	Map<String, QueueBackend> listQueues() throws RQSException;
+
+	/**
+	 * Brings the queue's storage up to date with this version of the library, if it was created by an older one.
+	 * @return true iff anything was changed
+	 */
+	boolean upgradeQueue(String queueName) throws RQSException;
+
+	/**
+	 * Releases any resources held by the backend, such as pooled connections.
+	 */
+	void shutdown();
+
+}
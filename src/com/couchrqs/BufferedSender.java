@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.codehaus.jackson.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends messages to a queue in the background, in bulk.
+ * <p>
+ * {@link #send(byte[]) } appends the message to a local spool and returns its id right away, without waiting
+ * for the server. A background thread sends the spooled messages to the queue in bulk writes of up to
+ * {@link #getBatchSize() } messages. It sends a batch as soon as it is full, or once the oldest message in it
+ * has waited {@link #getLinger() } milliseconds - whichever comes first.
+ * <p>
+ * When the spool is a file, it is memory-mapped, and messages survive a crash of this process: creating a
+ * BufferedSender on the same file sends whatever was left in it, in the order it was sent. While the server is
+ * slow or unreachable, messages accumulate in the spool and go out when the server recovers.
+ * {@link #send(byte[]) } fails only when the spool is full.
+ * <p>
+ * Delivery is at-least-once: a message may be stored twice if the process crashes right after a batch was
+ * stored but before the spool recorded it.
+ * <p>
+ * BufferedSender is thread-safe. Call {@link #close() } when done, to send the remaining messages and
+ * stop the background thread.
+ */
+public class BufferedSender {
+
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	public static final long DEFAULT_LINGER = 5;
+	public static final int DEFAULT_SPOOL_CAPACITY = 64 * 1024 * 1024;
+	static final long MIN_RETRY_DELAY = 100;
+	static final long MAX_RETRY_DELAY = 5000;
+
+	private static final Logger logger = LoggerFactory.getLogger(BufferedSender.class);
+
+	private final Queue queue;
+	private final Spool spool;
+	private final ReentrantLock lock = new ReentrantLock();
+	/** Signalled when the flusher should look at the spool: a batch filled up, a flush was requested, or close. */
+	private final Condition wakeUp = lock.newCondition();
+	/** Signalled when messages were committed. */
+	private final Condition committed = lock.newCondition();
+	private final Thread flusher;
+
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+	private volatile long linger = DEFAULT_LINGER;
+	/** Total number of messages appended to and committed from the spool, including ones recovered at startup. */
+	private long appendedCount;
+	private long committedCount;
+	/** System.nanoTime() when the oldest message not yet picked up by the flusher was spooled. */
+	private long oldestSpooledAt;
+	private boolean flushRequested;
+	private boolean closed;
+
+	/**
+	 * Creates a sender that spools messages to a memory-mapped file, and sends any messages left in that
+	 * file by an earlier run.
+	 *
+	 * @param queue			the queue to send to
+	 * @param spoolFile		the spool file. Created if it doesn't exist. Must not be shared with another sender
+	 * @param spoolCapacity	size of the spool file in bytes, if it is created
+	 * @throws RQSException	if the spool file can't be opened
+	 */
+	public BufferedSender(Queue queue, File spoolFile, int spoolCapacity) throws RQSException {
+		this.queue = queue;
+		try {
+			this.spool = new Spool(spoolFile, spoolCapacity);
+		} catch (IOException e) {
+			throw new RQSException(e);
+		}
+		this.flusher = startFlusher();
+	}
+
+	public BufferedSender(Queue queue, File spoolFile) throws RQSException {
+		this(queue, spoolFile, DEFAULT_SPOOL_CAPACITY);
+	}
+
+	/**
+	 * Creates a sender that spools messages in memory only. Spooled messages are lost if the process exits.
+	 */
+	public BufferedSender(Queue queue, int spoolCapacity) {
+		this.queue = queue;
+		this.spool = new Spool(spoolCapacity);
+		this.flusher = startFlusher();
+	}
+
+	private Thread startFlusher() {
+		appendedCount = spool.pendingRecords();
+		oldestSpooledAt = System.nanoTime();
+		Thread thread = new Thread("BufferedSender-" + queue.getName()) {
+			@Override
+			public void run() {
+				runFlusher();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Returns the maximum number of messages sent in one bulk write.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Set the maximum number of messages sent in one bulk write. A batch is sent as soon as it is full.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Returns how long (in milliseconds) a message may wait for its batch to fill up before it is sent anyway.
+	 */
+	public long getLinger() {
+		return linger;
+	}
+
+	/**
+	 * Set how long (in milliseconds) a message may wait for its batch to fill up before it is sent anyway.
+	 * Zero sends every message as soon as the background thread gets to it.
+	 */
+	public void setLinger(long linger) {
+		this.linger = linger;
+	}
+
+	/**
+	 * Add a message to the queue, asynchronously.<br />
+	 * The message is in the spool when this method returns; it is stored in the queue later, by the
+	 * background thread. The message is kept for the queue's {@link Queue#getRetentionPeriod() retention period},
+	 * counted from when it was sent - the period set on the queue at the time it is stored.
+	 *
+	 * @param data	the message content
+	 * @return	the id that the message will have in the queue
+	 * @throws RQSException	if the sender is closed, or the spool is full
+	 */
+	public String send(byte[] data) throws RQSException {
+		long stamp = Queue.CLOCK.now();
+		String id = Queue.newMessageId(stamp);
+		lock.lock();
+		try {
+			if (closed)
+				throw new RQSException("BufferedSender is closed");
+			if (!spool.append(id, stamp, data)) {
+				if (data.length > spool.maxPayload(id.length()))
+					throw new RQSException("Message of " + data.length + " bytes is larger than the spool");
+				throw new RQSException("Spool is full - " + spool.pendingRecords() + " messages are waiting to be sent");
+			}
+			if (appendedCount == committedCount)
+				oldestSpooledAt = System.nanoTime();
+			appendedCount++;
+			if (appendedCount - committedCount >= batchSize)
+				wakeUp.signal();
+		} finally {
+			lock.unlock();
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the number of messages that were sent but aren't stored in the queue yet.
+	 */
+	public int pendingCount() {
+		lock.lock();
+		try {
+			return spool.pendingRecords();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Send all the messages spooled so far right away, and wait until they are stored in the queue.
+	 *
+	 * @param timeout	maximum time to wait, in milliseconds
+	 * @return true if all the messages were stored, false if the timeout elapsed first
+	 */
+	public boolean flush(long timeout) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		lock.lock();
+		try {
+			long target = appendedCount;
+			flushRequested = true;
+			wakeUp.signal();
+			while (committedCount < target) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					return false;
+				committed.awaitNanos(remaining);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Send the remaining messages and stop the background thread.<br />
+	 * If the server can't be reached, the remaining messages stay in the spool file, to be sent by the next
+	 * BufferedSender that opens it.
+	 */
+	public void close() throws RQSException {
+		lock.lock();
+		try {
+			closed = true;
+			wakeUp.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			flusher.join();
+			spool.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RQSException(e);
+		} catch (IOException e) {
+			throw new RQSException(e);
+		}
+	}
+
+	/**
+	 * Wait until there is a batch to send, then return it. Returns null when closed and there's nothing left,
+	 * or when closed and the last attempt to send failed.
+	 */
+	private List<Message> nextBatch(boolean lastAttemptFailed) throws InterruptedException {
+		lock.lock();
+		try {
+			while (true) {
+				long spooled = appendedCount - committedCount;
+				if (closed && (spooled == 0 || lastAttemptFailed))
+					return null;
+				if (spooled > 0) {
+					long waited = System.nanoTime() - oldestSpooledAt;
+					long lingerNanos = TimeUnit.MILLISECONDS.toNanos(linger);
+					if (spooled >= batchSize || waited >= lingerNanos || flushRequested || closed)
+						return spool.peek(batchSize);
+					wakeUp.awaitNanos(lingerNanos - waited);
+				} else {
+					flushRequested = false;
+					wakeUp.await();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void runFlusher() {
+		long retryDelay = 0;
+		try {
+			while (true) {
+				List<Message> batch = nextBatch(retryDelay > 0);
+				if (batch == null)
+					return;
+				long retentionPeriod = queue.getRetentionPeriod();
+				for (Message message : batch) {
+					ObjectNode json = (ObjectNode) message.getDoc().getJson();
+					Queue.putExpiry(json, Queue.getSentStamp(json), retentionPeriod);
+				}
+				try {
+					queue.sendPrepared(batch);
+					retryDelay = 0;
+				} catch (RQSException e) {
+					retryDelay = Math.min(Math.max(retryDelay * 2, MIN_RETRY_DELAY), MAX_RETRY_DELAY);
+					logger.warn("Failed to send {} spooled messages to {}, retrying in {} ms",
+							new Object[] {batch.size(), queue.getName(), retryDelay});
+					Thread.sleep(retryDelay);
+					continue;
+				}
+				lock.lock();
+				try {
+					spool.commit(batch.size());
+					committedCount += batch.size();
+					// whatever is left has been waiting already, so don't linger on it again
+					oldestSpooledAt = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(linger);
+					committed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		} catch (InterruptedException e) {
+			// exit; the spool keeps whatever wasn't sent
+		}
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.io.IOException;
+
+/**
+ * Fails requests to a CouchDB server fast while the server is unhealthy, instead of having every caller wait for a
+ * timeout or an error.
+ * <p>
+ * The breaker opens after {@link #FAILURE_THRESHOLD} requests in a row failed - with an I/O error or a 5xx status.
+ * While it's open, requests fail at once with an {@link OpenException}. Once the open period is over, a single
+ * request is let through as a trial: if it succeeds the breaker closes, and if it fails the breaker opens again, for
+ * twice as long, up to {@link #MAX_OPEN_MILLIS}.
+ * <p>
+ * One breaker is kept per {@link CouchTransport}, that is per server, and shared by all the queues on that server.
+ * When the breaker is closed, a request costs one volatile read and one volatile write at most.
+ */
+class CircuitBreaker {
+
+	/** How many requests in a row must fail for the breaker to open. */
+	static final int FAILURE_THRESHOLD = 5;
+	/** How long (in milliseconds) the breaker stays open the first time it opens. */
+	static final long OPEN_MILLIS = 1000;
+	/** The longest (in milliseconds) the breaker stays open. */
+	static final long MAX_OPEN_MILLIS = 30000;
+
+	/**
+	 * Signals that a request wasn't sent, since the breaker is open.
+	 */
+	static final class OpenException extends IOException {
+		OpenException(String message) {
+			super(message);
+		}
+	}
+
+	private final String server;
+	/** How many requests in a row failed. */
+	private volatile int failures;
+	private long openUntil;
+	private long openMillis = OPEN_MILLIS;
+	/** True while the trial request is out. */
+	private boolean trial;
+
+	CircuitBreaker(String server) {
+		this.server = server;
+	}
+
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Call before sending a request.
+	 *
+	 * @throws OpenException if the breaker is open, or the trial request is still out
+	 */
+	void acquire() throws OpenException {
+		if (failures < FAILURE_THRESHOLD)
+			return;
+		synchronized (this) {
+			if (failures < FAILURE_THRESHOLD)
+				return;
+			if (trial || currentTimeMillis() < openUntil)
+				throw new OpenException("CouchDB at " + server + " is unavailable: the last " + failures +
+						" requests failed");
+			trial = true;
+		}
+	}
+
+	/**
+	 * Call when the server answered a request, with any status under 500.
+	 */
+	void succeeded() {
+		if (failures == 0)
+			return;
+		synchronized (this) {
+			failures = 0;
+			trial = false;
+			openMillis = OPEN_MILLIS;
+		}
+	}
+
+	/**
+	 * Call when a request failed with an I/O error, or the server answered with a 5xx status.
+	 */
+	synchronized void failed() {
+		failures++;
+		if (trial || failures == FAILURE_THRESHOLD) {
+			if (trial)
+				openMillis = Math.min(openMillis * 2, MAX_OPEN_MILLIS);
+			openUntil = currentTimeMillis() + openMillis;
+			trial = false;
+		}
+	}
+
+	/**
+	 * Returns true while requests are failed fast.
+	 */
+	synchronized boolean isOpen() {
+		return failures >= FAILURE_THRESHOLD && (trial || currentTimeMillis() < openUntil);
+	}
+
+}
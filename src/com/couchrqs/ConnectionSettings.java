@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+/**
+ * Configuration of the HTTP connection pool that a {@link QueueService} shares among all the queues it hands out.
+ * <p>
+ * The defaults are suitable for a moderate number of threads working against a single CouchDB server.
+ * When many threads share a <code>QueueService</code>, raise {@link #setMaxConnectionsPerRoute(int)} so that
+ * threads don't wait for a free connection.<br />
+ * Settings are read once, when the <code>QueueService</code> is created. Changing them afterwards has no effect
+ * on an existing service.
+ */
+public class ConnectionSettings {
+
+	static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 50;
+	static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 200;
+	static final int DEFAULT_CONNECTION_TIMEOUT = 5000;
+	static final int DEFAULT_SOCKET_TIMEOUT = 60000;
+	static final long DEFAULT_KEEP_ALIVE = 30000;
+
+	private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+	private int maxConnectionsTotal = DEFAULT_MAX_CONNECTIONS_TOTAL;
+	private int connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+	private int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+	private long keepAlive = DEFAULT_KEEP_ALIVE;
+	private boolean tcpNoDelay = true;
+
+	/**
+	 * Returns the maximum number of concurrent connections to a single CouchDB server.
+	 */
+	public int getMaxConnectionsPerRoute() {
+		return maxConnectionsPerRoute;
+	}
+
+	/**
+	 * Set the maximum number of concurrent connections to a single CouchDB server.<br />
+	 * A thread that needs a connection while all of them are in use waits until one is released.
+	 */
+	public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+	}
+
+	/**
+	 * Returns the maximum number of concurrent connections in the pool, across all servers.
+	 */
+	public int getMaxConnectionsTotal() {
+		return maxConnectionsTotal;
+	}
+
+	/**
+	 * Set the maximum number of concurrent connections in the pool, across all servers.
+	 */
+	public void setMaxConnectionsTotal(int maxConnectionsTotal) {
+		this.maxConnectionsTotal = maxConnectionsTotal;
+	}
+
+	/**
+	 * Returns the timeout (in milliseconds) for establishing a new connection.
+	 */
+	public int getConnectionTimeout() {
+		return connectionTimeout;
+	}
+
+	/**
+	 * Set the timeout (in milliseconds) for establishing a new connection. Zero means no timeout.
+	 */
+	public void setConnectionTimeout(int connectionTimeout) {
+		this.connectionTimeout = connectionTimeout;
+	}
+
+	/**
+	 * Returns the socket read timeout (in milliseconds).
+	 */
+	public int getSocketTimeout() {
+		return socketTimeout;
+	}
+
+	/**
+	 * Set the socket read timeout (in milliseconds) - the longest time to wait for data from the server.
+	 * Zero means no timeout.
+	 */
+	public void setSocketTimeout(int socketTimeout) {
+		this.socketTimeout = socketTimeout;
+	}
+
+	/**
+	 * Returns how long (in milliseconds) an idle connection is kept open for reuse.
+	 */
+	public long getKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Set how long (in milliseconds) an idle connection is kept open for reuse.<br />
+	 * If the server asks for a shorter period through its <code>Keep-Alive</code> header, the server's value is used.
+	 */
+	public void setKeepAlive(long keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Returns true if Nagle's algorithm is disabled on the pooled sockets.
+	 */
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Set whether to disable Nagle's algorithm on the pooled sockets. Defaults to true, since queue requests
+	 * are small and latency sensitive.
+	 */
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ConnectionSettings[perRoute=%d, total=%d, connectTimeout=%d, soTimeout=%d, keepAlive=%d, " +
+				"tcpNoDelay=%b]", maxConnectionsPerRoute, maxConnectionsTotal, connectionTimeout, socketTimeout,
+				keepAlive, tcpNoDelay);
+	}
+
+}
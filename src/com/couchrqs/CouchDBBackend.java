@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import com.jzboy.couchdb.Server;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * The default backend: every queue is a CouchDB database with a RQS design document.
+ */
+class CouchDBBackend implements Backend {
+
+	/** Maximum number of databases read at the same time by {@link #listQueues() }. */
+	static final int MAX_LIST_PARALLELISM = 16;
+
+	/**
+	 * The version of the design document created by this code. Queues with an older design document keep it, and
+	 * work without the features that need a newer one, until they're upgraded - see
+	 * {@link #upgradeQueue(java.lang.String) }. Opening a queue never upgrades it, since older versions of RQS may
+	 * still be using it.
+	 * <p>
+	 * Version 1, which had no version field, had map-only pending and locked views, keyed by send time and by lock
+	 * time. Version 2 adds built-in <code>_count</code> reduces, so counting needs no JavaScript, and keys the locked
+	 * view by the time the lock expires, so expired locks can be found and reclaimed. It keys the pending view by
+	 * <code>[sent_at, sent_seq]</code>, so messages sent by one process in the same millisecond keep their order -
+	 * see {@link HybridClock}; CouchDB orders rows with equal keys by document id. It leaves grouped messages out of
+	 * the pending view, so that a long group can't fill every page of it, and adds the groups view, whose reduce finds
+	 * the oldest message of each message group and whether it's locked, and counts the grouped messages that aren't
+	 * locked. It adds the attributes view, of pending messages by <code>[attribute, value, sent_at, sent_seq]</code>,
+	 * and the expiring view, of messages by the time they expire, with their revision and lock expiry, so expired
+	 * messages can be deleted without reading them.
+	 */
+	static final int DESIGN_VERSION = 2;
+	static final String DESIGN_VERSION_FIELD = "rqs_version";
+	/** The queue's {@link ReceiveMode}, if it's not the default. Kept across upgrades. */
+	static final String RECEIVE_MODE_FIELD = "rqs_receive_mode";
+	/** Where a new version of the design document is indexed before it replaces the current one. */
+	static final String STAGING_DESIGN_DOC_NAME = Queue.RQS_DESIGN_DOC_NAME + "_staging";
+	/** How many times to wait for the staging index to build before giving up, if each wait times out. */
+	static final int MAX_INDEX_BUILD_WAITS = 100;
+
+	/*
+	 * The update handlers change a message's lock on the server, so the client sends only the lock rather than the
+	 * whole document. Both answer 404 "no_such_message" for a missing message - unlike a missing handler - and 409
+	 * when the message is no longer at the revision given. The lock handler returns the locked document.
+	 */
+	static final String DESIGN_DOC_JSON = "{\"" + DESIGN_VERSION_FIELD + "\":" + DESIGN_VERSION + "," +
+		"\"views\":{" +
+		"\"" + Queue.RQS_PENDING_VIEW_NAME + "\":{\"map\":\"function(doc) {" +
+			" if(!doc.lock && !doc." + Queue.MESSAGE_GROUP_FIELD + ")" +
+			" emit([doc.sent_at, doc.sent_seq || 0], null);}\"," +
+			"\"reduce\":\"_count\"}," +
+		"\"" + Queue.RQS_LOCKED_VIEW_NAME + "\":{\"map\":\"function(doc) {" +
+			" if(doc.lock) emit(doc.lock.locked_at + doc.lock.visibility_timeout, null);}\"," +
+			"\"reduce\":\"_count\"}," +
+		// the value is when the message's lock expires, or 0; the reduce is [sent_at, sent_seq, id, lock expiry]
+		// of the group's oldest message, and then how many of the group's messages aren't locked
+		"\"" + Queue.RQS_GROUPS_VIEW_NAME + "\":{\"map\":\"function(doc) { if(doc." + Queue.MESSAGE_GROUP_FIELD + ")" +
+			" emit([doc." + Queue.MESSAGE_GROUP_FIELD + ", doc.sent_at, doc.sent_seq || 0]," +
+			" doc.lock ? doc.lock.locked_at + doc.lock.visibility_timeout : 0);}\"," +
+			"\"reduce\":\"function(keys, values, rereduce) { var head = null; var pending = 0;" +
+			" for (var i = 0; i < values.length; i++) {" +
+			" var v = rereduce ? values[i] : [keys[i][0][1], keys[i][0][2], keys[i][1], values[i]];" +
+			" pending += rereduce ? values[i][4] : (values[i] == 0 ? 1 : 0);" +
+			" if (head == null || v[0] < head[0] ||" +
+			" (v[0] == head[0] && (v[1] < head[1] || (v[1] == head[1] && v[2] < head[2]))))" +
+			" head = v;}" +
+			" return [head[0], head[1], head[2], head[3], pending];}\"}," +
+		"\"" + Queue.RQS_ATTRIBUTES_VIEW_NAME + "\":{\"map\":\"function(doc) { if(!doc.lock && doc." +
+			Queue.MESSAGE_ATTRIBUTES_FIELD + ") for (var name in doc." + Queue.MESSAGE_ATTRIBUTES_FIELD + ")" +
+			" emit([name, doc." + Queue.MESSAGE_ATTRIBUTES_FIELD + "[name]," +
+			" doc.sent_at, doc.sent_seq || 0], null);}\"}," +
+		"\"" + Queue.RQS_EXPIRING_VIEW_NAME + "\":{\"map\":\"function(doc) { if(doc." + Queue.MESSAGE_EXPIRES_FIELD + ")" +
+			" emit(doc." + Queue.MESSAGE_EXPIRES_FIELD + "," +
+			" [doc._rev, doc.lock ? doc.lock.locked_at + doc.lock.visibility_timeout : 0]);}\"}}," +
+		"\"updates\":{" +
+		"\"" + Queue.RQS_LOCK_UPDATE_NAME + "\":\"function(doc, req) {" +
+			" if (!doc) return [null, {code: 404, body: JSON.stringify({error: 'no_such_message'})}];" +
+			" if (req.query.rev && doc._rev != req.query.rev)" +
+			" return [null, {code: 409, body: JSON.stringify({error: 'conflict'})}];" +
+			" doc.lock = JSON.parse(req.query.lock);" +
+			" return [doc, JSON.stringify(doc)];}\"," +
+		"\"" + Queue.RQS_EXTEND_LOCK_UPDATE_NAME + "\":\"function(doc, req) {" +
+			" if (!doc) return [null, {code: 404, body: JSON.stringify({error: 'no_such_message'})}];" +
+			" if (doc._rev != req.query.rev || !doc.lock)" +
+			" return [null, {code: 409, body: JSON.stringify({error: 'conflict'})}];" +
+			" doc.lock.visibility_timeout += parseInt(req.query.extension, 10);" +
+			" return [doc, JSON.stringify({ok: true})];}\"}}";
+
+	/**
+	 * The backends of the queues opened by {@link Queue#Queue(Server, String) }, one per server - "host:port". They
+	 * are never shut down, and their connection pools stay open for the life of the process.
+	 */
+	private static final Map<String, CouchDBBackend> SERVER_BACKENDS = new HashMap<String, CouchDBBackend>();
+
+	final Server couchDB;
+	/** Pooled HTTP transport, shared by all the queues in this backend. */
+	final CouchTransport transport;
+	/** Where the queues' reads go - to the primary, through <code>transport</code>, if there are no replicas. */
+	final ReplicaRouter replicas;
+	/** Never more than half the connections per route, to leave room for queue operations. */
+	private final int listParallelism;
+	/** Sends the queues' hedged reads - see {@link RequestGuard}. Threads are started as needed and kept a minute. */
+	final ExecutorService hedger = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "couchrqs-hedge");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	CouchDBBackend(String host, int port, ConnectionSettings settings) {
+		this(host, port, new ReplicaSettings(), settings);
+	}
+
+	CouchDBBackend(String host, int port, ReplicaSettings replicaSettings, ConnectionSettings settings) {
+		couchDB = new Server(host, port);
+		transport = new CouchTransport(host, port, settings);
+		replicas = new ReplicaRouter(transport, replicaSettings, settings);
+		listParallelism = Math.max(1, Math.min(MAX_LIST_PARALLELISM, settings.getMaxConnectionsPerRoute() / 2));
+	}
+
+	/**
+	 * Count the requests to the primary and to the replicas in the metrics.
+	 */
+	void setMetrics(QueueMetrics metrics) {
+		transport.setMetrics(metrics);
+		for (CouchTransport replica : replicas.getReplicaTransports())
+			replica.setMetrics(metrics);
+	}
+
+	@Override
+	public boolean exists(String queueName) throws RQSException {
+		try {
+			return transport.exists(CouchTransport.path(queueName));
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	@Override
+	public boolean isQueue(String queueName) throws RQSException {
+		try {
+			// a 404 means either there's no such database, or it has no RQS design doc
+			return transport.exists(CouchTransport.path(queueName, "_design", Queue.RQS_DESIGN_DOC_NAME));
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	/**
+	 * Initializes a Couch database for use by RQS by creating a design document with the necessary views.
+	 */
+	@Override
+	public QueueBackend createQueue(String queueName, ReceiveMode receiveMode) throws RQSException {
+		try {
+			transport.put(CouchTransport.path(queueName), null, null);
+			transport.put(CouchTransport.path(queueName, "_design", Queue.RQS_DESIGN_DOC_NAME), null,
+						  newDesignDocument(receiveMode));
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+		return new CouchDBQueueBackend(this, queueName, DESIGN_VERSION, receiveMode);
+	}
+
+	/**
+	 * Returns the current version of the design document, for a queue with the receive mode.
+	 */
+	static ObjectNode newDesignDocument(ReceiveMode receiveMode) throws IOException {
+		ObjectNode design = (ObjectNode) CouchTransport.MAPPER.readTree(DESIGN_DOC_JSON);
+		if (receiveMode != ReceiveMode.VIEW)
+			design.put(RECEIVE_MODE_FIELD, receiveMode.name());
+		return design;
+	}
+
+	/**
+	 * Reads the version and receive mode of the queue's design document. An out of date design document is left as
+	 * it is.
+	 */
+	@Override
+	public QueueBackend openQueue(String queueName) throws RQSException {
+		return toQueueBackend(queueName, readDesignDocument(queueName));
+	}
+
+	/**
+	 * Opens the queue for {@link Queue#Queue(Server, String) }, through the backend shared by all the queues opened
+	 * that way on the same server. The design document is read when the queue first needs it.
+	 */
+	static QueueBackend openQueue(Server couchDB, String queueName) {
+		String key = couchDB.getHost() + ":" + couchDB.getPort();
+		CouchDBBackend backend;
+		synchronized (SERVER_BACKENDS) {
+			backend = SERVER_BACKENDS.get(key);
+			if (backend == null) {
+				backend = new CouchDBBackend(couchDB.getHost(), couchDB.getPort(), new ConnectionSettings());
+				SERVER_BACKENDS.put(key, backend);
+			}
+		}
+		return new CouchDBQueueBackend(backend, queueName);
+	}
+
+	/**
+	 * Returns the queue's design document, or null if there's none.
+	 */
+	private JsonNode readDesignDocument(String queueName) throws RQSException {
+		try {
+			return transport.getOrNull(CouchTransport.path(queueName, "_design", Queue.RQS_DESIGN_DOC_NAME), null);
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	/**
+	 * Returns the storage of a queue with the design document, which may be null.
+	 */
+	private CouchDBQueueBackend toQueueBackend(String queueName, JsonNode design) {
+		return new CouchDBQueueBackend(this, queueName, getVersion(design), getReceiveMode(design));
+	}
+
+	/**
+	 * Returns the version of the design document, or 0 if it's null.
+	 */
+	static int getVersion(JsonNode design) {
+		if (design == null)
+			return 0;
+		JsonNode version = design.get(DESIGN_VERSION_FIELD);
+		return (version == null) ? 1 : version.getIntValue();
+	}
+
+	/**
+	 * Returns the receive mode of the design document, which is {@link ReceiveMode#VIEW} if it's null.
+	 */
+	static ReceiveMode getReceiveMode(JsonNode design) {
+		if (design == null)
+			return ReceiveMode.VIEW;
+		JsonNode mode = design.get(RECEIVE_MODE_FIELD);
+		return (mode == null) ? ReceiveMode.VIEW : ReceiveMode.valueOf(mode.getTextValue());
+	}
+
+	/**
+	 * Upgrade the queue's design document to the current version, if it's older. Returns once the new version is
+	 * in place, which may take a while for a large queue. The queue can be used meanwhile.<br />
+	 * Only call this once no process runs a version of RQS older than the design document, which may depend on the
+	 * views as they were.
+	 * <p>
+	 * The new design document is saved under another name first, and its views are built there while the queue
+	 * keeps using the old ones. CouchDB shares view indexes between design documents with identical views, so
+	 * once the new document replaces the old one - in a single update - its index is already built.
+	 *
+	 * @return true iff the design document was upgraded by this call
+	 */
+	@Override
+	public boolean upgradeQueue(String queueName) throws RQSException {
+		String designPath = CouchTransport.path(queueName, "_design", Queue.RQS_DESIGN_DOC_NAME);
+		String stagingPath = CouchTransport.path(queueName, "_design", STAGING_DESIGN_DOC_NAME);
+		try {
+			JsonNode current = transport.getOrNull(designPath, null);
+			if (current == null || getVersion(current) >= DESIGN_VERSION)
+				return false;
+
+			// stage, replacing what an interrupted upgrade may have left behind
+			ObjectNode staging = (ObjectNode) CouchTransport.MAPPER.readTree(DESIGN_DOC_JSON);
+			JsonNode leftover = transport.getOrNull(stagingPath, null);
+			if (leftover != null)
+				staging.put("_rev", leftover.get("_rev").getTextValue());
+			String stagingRev = transport.put(stagingPath, null, staging).get("rev").getTextValue();
+			waitForIndex(queueName);
+
+			// swap - a conflict means another process upgraded the queue first
+			ObjectNode upgraded = (ObjectNode) CouchTransport.MAPPER.readTree(DESIGN_DOC_JSON);
+			upgraded.put("_rev", current.get("_rev").getTextValue());
+			if (current.get(RECEIVE_MODE_FIELD) != null)
+				upgraded.put(RECEIVE_MODE_FIELD, current.get(RECEIVE_MODE_FIELD));
+			boolean swapped = true;
+			try {
+				transport.put(designPath, null, upgraded);
+			} catch (CouchHttpException che) {
+				if (che.getStatusCode() != 409)
+					throw che;
+				swapped = false;
+			}
+			transport.delete(stagingPath, Collections.<NameValuePair>singletonList(new BasicNameValuePair("rev", stagingRev)));
+			return swapped;
+		} catch (RQSException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	/**
+	 * Query the staging views until they're built. Querying a view makes CouchDB bring its index up to date before
+	 * answering, and the build goes on if the request times out, so every retry waits for what's left.
+	 */
+	private void waitForIndex(String queueName) throws CouchHttpException, IOException, RQSException {
+		List<NameValuePair> params = new ArrayList<NameValuePair>(2);
+		params.add(new BasicNameValuePair("limit", "0"));
+		params.add(new BasicNameValuePair("reduce", "false"));
+		String viewPath = CouchTransport.path(queueName, "_design", STAGING_DESIGN_DOC_NAME, "_view",
+											  Queue.RQS_PENDING_VIEW_NAME);
+		for (int attempt = 1; ; attempt++) {
+			try {
+				transport.get(viewPath, params);
+				return;
+			} catch (SocketTimeoutException e) {
+				if (attempt == MAX_INDEX_BUILD_WAITS)
+					throw new RQSException("Gave up waiting for the index of " + queueName + " to build", e);
+			}
+		}
+	}
+
+	@Override
+	public boolean deleteQueue(String queueName) throws RQSException {
+		try {
+			transport.delete(CouchTransport.path(queueName), null);
+			return true;
+		} catch (CouchHttpException che) {
+			if (che.getStatusCode() == 404)
+				return false;
+			throw new RQSException(che);
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	/**
+	 * Note that this method is inefficient when there is a large number of databases on the server,
+	 * as it takes the list of all databases and reads the design document of each one separately. The reads run
+	 * concurrently, on up to {@link #MAX_LIST_PARALLELISM} connections, and each one is all it takes to open the
+	 * queue, so the queues are returned opened. Listing doesn't upgrade old queues.
+	 */
+	@Override
+	public Map<String, QueueBackend> listQueues() throws RQSException {
+		JsonNode dbNames;
+		try {
+			dbNames = transport.get("/_all_dbs", null);
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+		List<String> candidates = new ArrayList<String>();
+		for (JsonNode dbName : dbNames) {
+			String queueName = dbName.getTextValue();
+			if (!queueName.startsWith("_")) // system databases, e.g. _users
+				candidates.add(queueName);
+		}
+		Map<String, QueueBackend> queues = new LinkedHashMap<String, QueueBackend>();
+		if (candidates.isEmpty())
+			return queues;
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(listParallelism, candidates.size()));
+		try {
+			List<Future<JsonNode>> reads = new ArrayList<Future<JsonNode>>(candidates.size());
+			for (final String queueName : candidates) {
+				reads.add(executor.submit(new Callable<JsonNode>() {
+					@Override
+					public JsonNode call() throws RQSException {
+						return readDesignDocument(queueName);
+					}
+				}));
+			}
+			for (int i = 0; i < candidates.size(); i++) {
+				JsonNode design = reads.get(i).get();
+				// a database without the RQS design document isn't a queue
+				if (design != null)
+					queues.put(candidates.get(i), toQueueBackend(candidates.get(i), design));
+			}
+			return queues;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RQSException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RQSException)
+				throw (RQSException) e.getCause();
+			throw new RQSException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		hedger.shutdownNow();
+		transport.shutdown();
+		replicas.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return transport.toString();
+	}
+
+}
@@ -0,0 +1,1463 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import com.jzboy.couchdb.Database;
+import com.jzboy.couchdb.Document;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores a queue's messages in a CouchDB database.<br />
+ * Each message is a document with the payload as an attachment. The pending and locked documents are
+ * found through the views in the RQS design document - or, in {@link ReceiveMode#ID}, pending documents are found
+ * by scanning <code>_all_docs</code>, which CouchDB keeps up to date as documents are written.
+ * <p>
+ * A lock that outlives its visibility timeout is removed by the next receive or count after it expires, and the
+ * message becomes pending again.
+ * <p>
+ * Messages in a message group are received through the groups view instead, which tells the oldest message of
+ * each group and whether it's locked, and the pending view and the id scan leave them out. Receives by attribute
+ * query the attributes view, whatever the receive mode, and expired messages are found through the expiring view.
+ * <p>
+ * A queue whose design document is still version 1 - see {@link CouchDBBackend#DESIGN_VERSION} - has none of these
+ * views, so until it's upgraded expired locks stay in place, grouped messages aren't received, receives by
+ * attribute find nothing, and expired messages aren't deleted.
+ * <p>
+ * With {@link ReplicaSettings replicas}, the pending, locked and attributes views, the counts and the payloads are
+ * read from a replica. Everything else goes to the primary: the writes, the id scan - whose cursor counts on an up
+ * to date <code>_all_docs</code> - and the reads of the groups view and of documents by id, which decide the order
+ * within groups and the status of messages. Documents read from a replica are written to the primary at the
+ * revision the replica had, so a lagging replica only causes conflicts.
+ * <p>
+ * Reads go through the queue's {@link RequestGuard}, which retries them after transient errors. The views and the
+ * payloads are hedged too: sent again if they take longer than most, which keeps a slow moment of the server, such
+ * as a view index refresh, from holding up receives.
+ */
+class CouchDBQueueBackend implements QueueBackend {
+
+	/** The minimum time between looks for expired locks. */
+	static final long RECLAIM_INTERVAL_MILLIS = 1000;
+	/** The maximum number of expired locks reclaimed at once. */
+	static final int RECLAIM_BATCH_SIZE = 100;
+	/** The fewest and most rows read by each request of an id scan. */
+	private static final Logger logger = LoggerFactory.getLogger(CouchDBQueueBackend.class);
+
+	static final int MIN_SCAN_PAGE_SIZE = 20;
+	static final int MAX_SCAN_PAGE_SIZE = 1000;
+	/** The most requests made by a single id scan, in case the head of the queue is full of locked messages. */
+	static final int MAX_SCAN_PAGES = 10;
+	/**
+	 * How old a message id must be before the scan cursor may pass it. A message is stored a while after its id
+	 * is generated, and clocks on different hosts differ, so a newer id may still show up before it.
+	 */
+	static final long SCAN_CURSOR_LAG_MILLIS = 2000;
+	/** The longest a scan cursor is used before scanning from the start again, to find any late messages. */
+	static final long SCAN_CURSOR_TTL_MILLIS = 1000;
+	/**
+	 * How many times a message is stored while the queue's database is missing - as it is for a moment during a
+	 * {@link #purge() } - and the pause between tries.
+	 */
+	static final int MISSING_DATABASE_TRIES = 25;
+	static final long MISSING_DATABASE_PAUSE_MILLIS = 20;
+
+	/**
+	 * Where an ascending id scan starts. Every document before the cursor's id was either deleted, or locked until
+	 * after <code>expires</code>. Immutable.
+	 */
+	private static final class ScanCursor {
+		final String id;
+		final long expires;
+
+		ScanCursor(String id, long expires) {
+			this.id = id;
+			this.expires = expires;
+		}
+	}
+
+	/** The version and receive mode of the queue's design document. Immutable. */
+	private static final class Design {
+		final int version;
+		final ReceiveMode receiveMode;
+
+		Design(int version, ReceiveMode receiveMode) {
+			this.version = version;
+			this.receiveMode = receiveMode;
+		}
+	}
+
+	/** The JZBoy view of the same database, for direct access by callers outside the queue operations. */
+	final Database db;
+	final CouchTransport transport;
+	private final ReplicaRouter replicas;
+	private final String name;
+	private final RequestGuard guard;
+	/** The recent latencies of the views, of single payloads, and of batches of payloads, for hedging. */
+	private final RequestGuard.Latencies viewLatencies = new RequestGuard.Latencies();
+	private final RequestGuard.Latencies payloadLatencies = new RequestGuard.Latencies();
+	private final RequestGuard.Latencies batchLatencies = new RequestGuard.Latencies();
+	/**
+	 * False once the queue's design document turned out to predate the update handlers. The lock is then changed
+	 * by reading and saving the whole document instead.
+	 */
+	private volatile boolean useUpdateHandlers = true;
+
+	/**
+	 * The queue's design document, whose version decides how its views are queried - or null until it's first
+	 * needed, for a queue opened without reading it.
+	 */
+	private volatile Design design;
+	/** When expired locks were last looked for, in milliseconds. */
+	private final AtomicLong lastReclaim = new AtomicLong();
+	/** Where the next ascending id scan starts, or null to start from the first document. */
+	private volatile ScanCursor scanCursor;
+	/**
+	 * The group the next read of the groups view starts at, or null to start from the first group. Moves on with
+	 * each read, so every group gets its turn when there are more groups than a read returns.
+	 */
+	private volatile String groupCursor;
+
+	CouchDBQueueBackend(CouchDBBackend backend, String name, int designVersion, ReceiveMode receiveMode) {
+		this.db = new Database(backend.couchDB, name);
+		this.transport = backend.transport;
+		this.replicas = backend.replicas;
+		this.name = name;
+		this.guard = new RequestGuard(backend.hedger);
+		this.design = new Design(designVersion, receiveMode);
+	}
+
+	/**
+	 * Creates the storage of a queue whose design document is read when it's first needed, rather than now.
+	 */
+	CouchDBQueueBackend(CouchDBBackend backend, String name) {
+		this.db = new Database(backend.couchDB, name);
+		this.transport = backend.transport;
+		this.replicas = backend.replicas;
+		this.name = name;
+		this.guard = new RequestGuard(backend.hedger);
+	}
+
+	int getDesignVersion() {
+		return getDesign().version;
+	}
+
+	/**
+	 * Returns true if the queue's design document is the current version, and false if it's version 1, or missing.
+	 */
+	private boolean isDesignCurrent() {
+		return getDesign().version >= CouchDBBackend.DESIGN_VERSION;
+	}
+
+	/**
+	 * Returns the queue's design document, reading it if it wasn't read yet. If it can't be read, the queue is used
+	 * as a version 1 queue - the only version there was when queues were opened without reading it - and the read
+	 * is tried again next time.
+	 */
+	private Design getDesign() {
+		Design current = design;
+		if (current != null)
+			return current;
+		try {
+			JsonNode doc = transport.getOrNull(CouchTransport.path(name, "_design", Queue.RQS_DESIGN_DOC_NAME), null);
+			current = new Design(CouchDBBackend.getVersion(doc), CouchDBBackend.getReceiveMode(doc));
+			design = current;
+			return current;
+		} catch (Exception e) {
+			logger.warn("Failed to read the design document of " + name + ", using it as a version 1 queue", e);
+			return new Design(1, ReceiveMode.VIEW);
+		}
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	private String docPath(String messageId) {
+		return CouchTransport.path(name, messageId);
+	}
+
+	private String viewPath(String viewName) {
+		return CouchTransport.path(name, "_design", Queue.RQS_DESIGN_DOC_NAME, "_view", viewName);
+	}
+
+	private String updatePath(String updateName, String messageId) {
+		return CouchTransport.path(name, "_design", Queue.RQS_DESIGN_DOC_NAME, "_update", updateName, messageId);
+	}
+
+	private static List<NameValuePair> revParam(String rev) {
+		return Collections.<NameValuePair>singletonList(new BasicNameValuePair("rev", rev));
+	}
+
+	RequestGuard getRequestGuard() {
+		return guard;
+	}
+
+	/**
+	 * Read a view - hedged, and retried after transient errors.
+	 */
+	private JsonNode read(final String path, final List<NameValuePair> params) throws CouchHttpException, IOException {
+		return guard.read(new RequestGuard.Request<JsonNode>() {
+			@Override
+			public JsonNode send() throws CouchHttpException, IOException {
+				return readOnce(path, params);
+			}
+		}, viewLatencies);
+	}
+
+	/**
+	 * GET from a replica, if there's one fresh enough, or else from the primary - and from the primary if the
+	 * replica fails, e.g. since it doesn't have the queue yet.
+	 */
+	private JsonNode readOnce(String path, List<NameValuePair> params) throws CouchHttpException, IOException {
+		CouchTransport reader = replicas.reader(name);
+		if (reader != transport) {
+			try {
+				return reader.get(path, params);
+			} catch (CouchHttpException che) {
+				replicas.failed(reader, name, che);
+			} catch (IOException e) {
+				replicas.failed(reader, name, e);
+			}
+		}
+		return transport.get(path, params);
+	}
+
+	/**
+	 * GET from the primary, retried after transient errors.
+	 */
+	private JsonNode readPrimary(final String path, final List<NameValuePair> params)
+			throws CouchHttpException, IOException
+	{
+		return guard.read(new RequestGuard.Request<JsonNode>() {
+			@Override
+			public JsonNode send() throws CouchHttpException, IOException {
+				return transport.get(path, params);
+			}
+		});
+	}
+
+	/**
+	 * Like {@link #readPrimary}, but returns null if the server responds with 404.
+	 */
+	private JsonNode readPrimaryOrNull(final String path) throws CouchHttpException, IOException {
+		return guard.read(new RequestGuard.Request<JsonNode>() {
+			@Override
+			public JsonNode send() throws CouchHttpException, IOException {
+				return transport.getOrNull(path, null);
+			}
+		});
+	}
+
+	/**
+	 * Wrap a document JSON, as returned by CouchDB, in a Document.
+	 */
+	static Document toDocument(JsonNode json) {
+		Document doc = new Document(json.get("_id").getTextValue(), json);
+		doc.setRev(json.get("_rev").getTextValue());
+		return doc;
+	}
+
+	/**
+	 * Return the JSON of the document, with its current id and revision, ready to be sent to CouchDB.
+	 */
+	static ObjectNode toJson(Document doc) {
+		ObjectNode json = (ObjectNode) doc.getJson();
+		json.put("_id", doc.getId());
+		if (doc.getRev() != null)
+			json.put("_rev", doc.getRev());
+		return json;
+	}
+
+	/**
+	 * Extract the included documents from the rows of a view or _all_docs response.<br />
+	 * Rows for missing or deleted documents are skipped.
+	 */
+	private static List<Document> docsFromRows(JsonNode response) {
+		List<Document> docs = new ArrayList<Document>();
+		for (JsonNode row : response.get("rows")) {
+			JsonNode doc = row.get("doc");
+			if (doc != null && doc.isObject())
+				docs.add(toDocument(doc));
+		}
+		return docs;
+	}
+
+	/**
+	 * The id is generated here rather than by the server, which saves a round trip, and keeps ids ordered by send
+	 * time for {@link ReceiveMode#ID}.
+	 */
+	@Override
+	public String createMessage(ObjectNode json, byte[] data) throws RQSException {
+		try {
+			String uuid = Queue.newMessageId(Queue.getSentStamp(json));
+			for (int tries = 1; ; tries++) {
+				try {
+					JsonNode res = transport.put(docPath(uuid), null, json);
+					transport.putBytes(CouchTransport.path(name, uuid, Queue.MESSAGE_ATTACHMENT_NAME),
+									   revParam(res.get("rev").getTextValue()), data, Queue.MESSAGE_MIME_TYPE);
+					return uuid;
+				} catch (CouchHttpException che) {
+					if (!awaitDatabase(che, tries))
+						throw che;
+				}
+			}
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	/**
+	 * Returns whether to try a write again, after it failed with the exception. That's when the queue's database
+	 * wasn't found, which should be because it's being purged, and there are tries left. Pauses first.
+	 */
+	private boolean awaitDatabase(CouchHttpException che, int tries) throws InterruptedException {
+		if (che.getStatusCode() != 404 || tries >= MISSING_DATABASE_TRIES)
+			return false;
+		Thread.sleep(MISSING_DATABASE_PAUSE_MILLIS);
+		return true;
+	}
+
+	/**
+	 * Creates all the messages in one _bulk_docs request, with the payloads as inline attachments.<br />
+	 * Inline attachments are base64 encoded, so this suits many small messages better than a few large ones.
+	 */
+	@Override
+	public void createMessages(List<Message> messages) throws RQSException {
+		ObjectNode body = new ObjectNode(JsonNodeFactory.instance);
+		ArrayNode bulk = body.putArray("docs");
+		for (Message message : messages) {
+			ObjectNode json = toJson(message.getDoc());
+			ObjectNode attachment = json.putObject("_attachments").putObject(Queue.MESSAGE_ATTACHMENT_NAME);
+			attachment.put("content_type", Queue.MESSAGE_MIME_TYPE);
+			attachment.put("data", message.getData());
+			bulk.add(json);
+		}
+		JsonNode results;
+		try {
+			for (int tries = 1; ; tries++) {
+				try {
+					results = transport.post(CouchTransport.path(name, "_bulk_docs"), null, body);
+					break;
+				} catch (CouchHttpException che) {
+					if (!awaitDatabase(che, tries))
+						throw che;
+				}
+			}
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+		for (JsonNode res : results) {
+			JsonNode error = res.get("error");
+			// a conflict means the message was already stored by an earlier attempt
+			if (error != null && !"conflict".equals(error.getTextValue()))
+				throw new RQSException("Failed to store message " + res.get("id") + ": " + res);
+		}
+		// e.g. spooled messages sent long after their ids were generated
+		ScanCursor cursor = scanCursor;
+		if (cursor != null) {
+			for (Message message : messages) {
+				if (message.getMessageId().compareTo(cursor.id) < 0) {
+					scanCursor = null;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get as many as limit pending messages, from the pending view or by an id scan, depending on the receive
+	 * mode.<br />
+	 * The descending param is used to get LIFO (if true) or FIFO (if false) behavior.
+	 */
+	@Override
+	public List<Document> queryPending(int limit, boolean descending) throws RQSException {
+		List<Document> docs = (getDesign().receiveMode == ReceiveMode.ID) ?
+				scanPending(limit, descending) : queryPendingView(limit, descending);
+		return withGroupHeads(docs, limit, descending);
+	}
+
+	private List<Document> queryPendingView(final int limit, final boolean descending) throws RQSException {
+		reclaimExpiredLocks();
+		List<NameValuePair> params = new ArrayList<NameValuePair>() {{
+				// the current view has a reduce, and version 1's map-only view accepts this too
+				add(new BasicNameValuePair("reduce", "false"));
+				add(new BasicNameValuePair("include_docs", "true"));
+				add(new BasicNameValuePair("limit", String.valueOf(limit)));
+				if (descending)
+					add(new BasicNameValuePair("descending", "true"));
+		}};
+		try {
+			return docsFromRows(read(viewPath(Queue.RQS_PENDING_VIEW_NAME), params));
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	/**
+	 * Get as many as limit pending messages with the attribute value, from the attributes view.
+	 */
+	@Override
+	public List<Document> queryPendingByAttribute(String name, JsonNode value, int limit, boolean descending)
+			throws RQSException
+	{
+		if (!isDesignCurrent())
+			return Collections.emptyList();
+		reclaimExpiredLocks();
+		String low = keyRange(name, value, false);
+		String high = keyRange(name, value, true);
+		long now = System.currentTimeMillis();
+		Map<String, String> heads = new HashMap<String, String>();
+		List<Document> found = new ArrayList<Document>();
+		String startKey = descending ? high : low;
+		String startId = null;
+		// the first page is all it takes unless grouped messages are dropped
+		int pageSize = limit;
+		for (int page = 0; page < MAX_SCAN_PAGES && found.size() < limit; page++) {
+			List<NameValuePair> params = new ArrayList<NameValuePair>();
+			params.add(new BasicNameValuePair("include_docs", "true"));
+			params.add(new BasicNameValuePair("limit", String.valueOf(pageSize)));
+			params.add(new BasicNameValuePair("startkey", startKey));
+			if (startId != null)
+				params.add(new BasicNameValuePair("startkey_docid", startId));
+			params.add(new BasicNameValuePair("endkey", descending ? low : high));
+			if (descending)
+				params.add(new BasicNameValuePair("descending", "true"));
+			JsonNode rows;
+			try {
+				rows = read(viewPath(Queue.RQS_ATTRIBUTES_VIEW_NAME), params).get("rows");
+				if (rows.size() > 0) {
+					JsonNode last = rows.get(rows.size() - 1);
+					startKey = CouchTransport.MAPPER.writeValueAsString(last.get("key"));
+				}
+			} catch (Exception e) {
+				throw new RQSException(e);
+			}
+			List<Document> docs = new ArrayList<Document>(rows.size());
+			for (JsonNode row : rows) {
+				String id = row.get("id").getTextValue();
+				JsonNode doc = row.get("doc");
+				// the page starts at the last row of the previous one, unless that message was received since
+				if (!id.equals(startId) && doc != null && doc.isObject())
+					docs.add(toDocument(doc));
+			}
+			for (Document doc : onlyGroupHeads(docs, heads, now)) {
+				if (found.size() < limit)
+					found.add(doc);
+			}
+			if (rows.size() < pageSize)
+				break;
+			startId = rows.get(rows.size() - 1).get("id").getTextValue();
+			// the view is read past grouped messages that aren't the heads of their groups
+			pageSize = Math.min(Math.max(2 * limit, MIN_SCAN_PAGE_SIZE), MAX_SCAN_PAGE_SIZE) + 1;
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the JSON of a view key that begins with <code>first</code> and then <code>second</code>, if it's not
+	 * null. The high end of the range ends with an object, which collates after every other value.
+	 */
+	private static String keyRange(String first, JsonNode second, boolean high) throws RQSException {
+		ArrayNode key = JsonNodeFactory.instance.arrayNode();
+		key.add(first);
+		if (second != null)
+			key.add(second);
+		if (high)
+			key.addObject();
+		try {
+			return CouchTransport.MAPPER.writeValueAsString(key);
+		} catch (IOException e) {
+			throw new RQSException(e);
+		}
+	}
+
+	/**
+	 * Drop the grouped documents that aren't the oldest in their group, or whose group has a locked message.
+	 * Reads the head of each group from the groups view, unless it's in <code>heads</code> already.
+	 */
+	private List<Document> onlyGroupHeads(List<Document> docs, Map<String, String> heads, long now)
+			throws RQSException
+	{
+		List<Document> kept = new ArrayList<Document>(docs.size());
+		for (Document doc : docs) {
+			String group = Queue.getGroupId(doc.getJson());
+			if (group != null) {
+				if (!heads.containsKey(group))
+					heads.put(group, readGroupHead(group, now));
+				if (!doc.getId().equals(heads.get(group)))
+					continue;
+			}
+			kept.add(doc);
+		}
+		return kept;
+	}
+
+	/**
+	 * Returns the id of the group's oldest message, or null if it's locked.
+	 */
+	private String readGroupHead(String group, long now) throws RQSException {
+		List<NameValuePair> params = new ArrayList<NameValuePair>();
+		params.add(new BasicNameValuePair("group_level", "1"));
+		params.add(new BasicNameValuePair("startkey", keyRange(group, null, false)));
+		params.add(new BasicNameValuePair("endkey", keyRange(group, null, true)));
+		try {
+			JsonNode rows = readPrimary(viewPath(Queue.RQS_GROUPS_VIEW_NAME), params).get("rows");
+			if (rows.size() == 0)
+				return null;
+			JsonNode head = rows.get(0).get("value");
+			return (head.get(3).getLongValue() <= now) ? head.get(2).getTextValue() : null;
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	/**
+	 * Add the oldest messages of groups that have none locked to the pending messages that aren't in a group, and
+	 * return the first <code>limit</code> of them, in the order of the pending view.
+	 * <p>
+	 * The id scan and the pending view have no grouped messages, so the groups view is always read. The pending view
+	 * of a version 1 design document has them, but no groups view to receive them through, so they're dropped.
+	 */
+	private List<Document> withGroupHeads(List<Document> docs, int limit, final boolean descending)
+			throws RQSException
+	{
+		List<Document> merged = new ArrayList<Document>(docs.size());
+		for (Document doc : docs) {
+			if (Queue.getGroupId(doc.getJson()) == null)
+				merged.add(doc);
+		}
+		if (!isDesignCurrent())
+			return merged;
+		merged.addAll(queryGroupHeads(limit));
+		Collections.sort(merged, new Comparator<Document>() {
+			@Override
+			public int compare(Document d1, Document d2) {
+				long s1 = Queue.getSentStamp(d1.getJson());
+				long s2 = Queue.getSentStamp(d2.getJson());
+				int c = (s1 != s2) ? ((s1 < s2) ? -1 : 1) : d1.getId().compareTo(d2.getId());
+				return descending ? -c : c;
+			}
+		});
+		return (merged.size() <= limit) ? merged : new ArrayList<Document>(merged.subList(0, limit));
+	}
+
+	/**
+	 * Returns up to limit messages that are the oldest in their group, and not locked - or locked with an
+	 * expired lock, which is returned with the message.<br />
+	 * They're picked at random from a page of groups, so processes receiving at the same time mostly pick
+	 * different groups. The messages are read again after the groups view, since the view doesn't hold revisions,
+	 * and those locked in between are dropped.
+	 */
+	private List<Document> queryGroupHeads(int limit) throws RQSException {
+		if (limit <= 0)
+			return Collections.emptyList();
+		long now = System.currentTimeMillis();
+		int pageSize = Math.min(Math.max(2 * limit, MIN_SCAN_PAGE_SIZE), MAX_SCAN_PAGE_SIZE);
+		String cursor = groupCursor;
+		List<NameValuePair> params = new ArrayList<NameValuePair>();
+		params.add(new BasicNameValuePair("group_level", "1"));
+		params.add(new BasicNameValuePair("limit", String.valueOf(pageSize)));
+		List<String> ids = new ArrayList<String>();
+		try {
+			if (cursor != null)
+				params.add(new BasicNameValuePair("startkey",
+						CouchTransport.MAPPER.writeValueAsString(Collections.singletonList(cursor))));
+			JsonNode rows = readPrimary(viewPath(Queue.RQS_GROUPS_VIEW_NAME), params).get("rows");
+			groupCursor = (rows.size() < pageSize) ? null : rows.get(rows.size() - 1).get("key").get(0).getTextValue();
+			for (JsonNode row : rows) {
+				JsonNode head = row.get("value");
+				if (head.get(3).getLongValue() <= now)
+					ids.add(head.get(2).getTextValue());
+			}
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+		if (ids.isEmpty())
+			return Collections.emptyList();
+		Collections.shuffle(ids);
+		List<Document> heads = new ArrayList<Document>(Math.min(limit, ids.size()));
+		for (Document doc : getDocuments(ids.subList(0, Math.min(limit, ids.size())))) {
+			JsonNode lock = doc.getJson().get("lock");
+			if (lock == null || lockExpires(lock) <= now)
+				heads.add(doc);
+		}
+		return heads;
+	}
+
+	/**
+	 * Returns when the lock expires.
+	 */
+	private static long lockExpires(JsonNode lock) {
+		return lock.path("locked_at").getLongValue() + lock.path("visibility_timeout").getLongValue();
+	}
+
+	/**
+	 * Drop the scan cursor if the document is about to be released, or locked for less time than the cursor
+	 * counts on - the cursor might skip it while it's pending.
+	 */
+	private void checkScanCursor(Document doc) {
+		ScanCursor cursor = scanCursor;
+		if (cursor == null)
+			return;
+		JsonNode lock = doc.getJson().get("lock");
+		if (lock == null || lockExpires(lock) < cursor.expires)
+			scanCursor = null;
+	}
+
+	/**
+	 * Get as many as limit pending messages, by reading the documents in order of id - and so in order of send
+	 * time. Messages whose lock expired count as pending, and are returned with the expired lock.
+	 * <p>
+	 * An ascending scan starts at the cursor, and moves it past the deleted and locked messages at the head of the
+	 * queue. The cursor stops at messages too new to be sure no earlier ones are still to come, and is dropped when
+	 * the first lock it skipped expires, or when messages are released or stored with old ids by this process.
+	 * Messages released by other processes are found once the cursor is dropped - within
+	 * {@link #SCAN_CURSOR_TTL_MILLIS}. The cursor never passes a message whose id doesn't tell when it was sent - see
+	 * {@link Queue#messageIdTime(String) }.
+	 * <p>
+	 * Grouped messages are skipped, as they're received through the groups view, and the cursor moves past them
+	 * like past locked ones.
+	 */
+	private List<Document> scanPending(int limit, boolean descending) throws RQSException {
+		long now = System.currentTimeMillis();
+		ScanCursor cursor = descending ? null : scanCursor;
+		if (cursor != null && cursor.expires <= now)
+			cursor = null;
+		int pageSize = Math.min(Math.max(2 * limit, MIN_SCAN_PAGE_SIZE), MAX_SCAN_PAGE_SIZE);
+		String nextCursorId = (cursor == null) ? null : cursor.id;
+		// a cursor carried on keeps its expiry, so the queue is scanned from the start every so often
+		long nextCursorExpires = (cursor == null) ? now + SCAN_CURSOR_TTL_MILLIS : cursor.expires;
+		boolean headOfQueue = !descending;
+		List<Document> found = new ArrayList<Document>();
+		String startKey = nextCursorId;
+		boolean skipStartKey = false;
+		for (int page = 0; page < MAX_SCAN_PAGES && found.size() < limit; page++) {
+			List<NameValuePair> params = new ArrayList<NameValuePair>();
+			params.add(new BasicNameValuePair("include_docs", "true"));
+			params.add(new BasicNameValuePair("limit", String.valueOf(pageSize)));
+			if (descending)
+				params.add(new BasicNameValuePair("descending", "true"));
+			JsonNode rows;
+			try {
+				if (startKey != null)
+					params.add(new BasicNameValuePair("startkey", CouchTransport.MAPPER.writeValueAsString(startKey)));
+				if (skipStartKey)
+					params.add(new BasicNameValuePair("skip", "1"));
+				rows = readPrimary(CouchTransport.path(name, "_all_docs"), params).get("rows");
+			} catch (Exception e) {
+				throw new RQSException(e);
+			}
+			for (JsonNode row : rows) {
+				String id = row.get("id").getTextValue();
+				startKey = id;
+				JsonNode json = row.get("doc");
+				if (id.startsWith("_design/") || json == null || !json.isObject())
+					continue;
+				JsonNode lock = json.get("lock");
+				long lockExpires = (lock == null) ? 0 : lockExpires(lock);
+				long sentAt = Queue.messageIdTime(id);
+				// newer messages may still be stored before a message that isn't settled
+				boolean settled = sentAt >= 0 && sentAt <= now - SCAN_CURSOR_LAG_MILLIS;
+				if (Queue.getGroupId(json) != null) {
+					if (headOfQueue) {
+						if (settled) {
+							nextCursorId = id;
+							continue;
+						}
+						headOfQueue = false;
+					}
+					continue;
+				}
+				if (lockExpires > now) {
+					if (headOfQueue && settled) {
+						nextCursorId = id;
+						nextCursorExpires = Math.min(nextCursorExpires, lockExpires);
+						continue;
+					}
+				} else if (found.size() < limit) {
+					found.add(toDocument(json));
+				}
+				if (headOfQueue) {
+					// the cursor stops at the first message it can't pass
+					headOfQueue = false;
+					if (settled)
+						nextCursorId = id;
+				}
+			}
+			if (rows.size() < pageSize)
+				break;
+			skipStartKey = true;
+		}
+		if (!descending && nextCursorId != null)
+			scanCursor = new ScanCursor(nextCursorId, nextCursorExpires);
+		return found;
+	}
+
+	@Override
+	public List<Document> getDocuments(List<String> ids) throws RQSException {
+		final List<NameValuePair> params = Collections.<NameValuePair>singletonList(
+				new BasicNameValuePair("include_docs", "true"));
+		final ObjectNode body = new ObjectNode(JsonNodeFactory.instance);
+		ArrayNode keys = body.putArray("keys");
+		for (String id : ids)
+			keys.add(id);
+		try {
+			// a POST to _all_docs only reads, so it's retried like a GET
+			return docsFromRows(guard.read(new RequestGuard.Request<JsonNode>() {
+				@Override
+				public JsonNode send() throws CouchHttpException, IOException {
+					return transport.post(CouchTransport.path(name, "_all_docs"), params, body);
+				}
+			}));
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	@Override
+	public Document getDocumentOrNull(String id) throws RQSException {
+		try {
+			JsonNode json = readPrimaryOrNull(docPath(id));
+			return (json == null) ? null : toDocument(json);
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	@Override
+	public List<Document> getDocumentsByPrefix(String prefix) throws RQSException {
+		try {
+			List<NameValuePair> params = new ArrayList<NameValuePair>(3);
+			params.add(new BasicNameValuePair("include_docs", "true"));
+			params.add(new BasicNameValuePair("startkey", CouchTransport.MAPPER.writeValueAsString(prefix)));
+			params.add(new BasicNameValuePair("endkey", CouchTransport.MAPPER.writeValueAsString(prefix + "\ufff0")));
+			return docsFromRows(readPrimary(CouchTransport.path(name, "_all_docs"), params));
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	/**
+	 * Stores the documents in a single _bulk_docs request, without revisions, so a document whose id is taken
+	 * fails with a conflict.
+	 */
+	@Override
+	public List<Document> createDocuments(List<Document> docs) throws RQSException {
+		if (docs.isEmpty())
+			return new ArrayList<Document>();
+		ObjectNode body = new ObjectNode(JsonNodeFactory.instance);
+		ArrayNode bulk = body.putArray("docs");
+		for (Document doc : docs)
+			bulk.add(toJson(doc));
+		JsonNode results;
+		try {
+			results = transport.post(CouchTransport.path(name, "_bulk_docs"), null, body);
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+		return createUpdatedDocs(docs, results);
+	}
+
+	/**
+	 * Bulk-update the documents with a "lock" field in a single _bulk_docs request.<br />
+	 * Some or all of the documents may not have been saved due to update conflict (some other process
+	 * had already updated these docs).
+	 */
+	@Override
+	public List<Document> lockDocuments(List<Document> docs, JsonNode lock) throws RQSException {
+		for (Document doc : docs)
+			((ObjectNode) doc.getJson()).put("lock", lock);
+		return updateDocuments(docs);
+	}
+
+	@Override
+	public List<Document> updateDocuments(List<Document> docs) throws RQSException {
+		ObjectNode body = new ObjectNode(JsonNodeFactory.instance);
+		ArrayNode bulk = body.putArray("docs");
+		for (Document doc : docs) {
+			checkScanCursor(doc);
+			bulk.add(toJson(doc));
+		}
+		JsonNode results;
+		try {
+			results = transport.post(CouchTransport.path(name, "_bulk_docs"), null, body);
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+		return createUpdatedDocs(docs, results);
+	}
+
+	/**
+	 * Returns the documents that were updated successfully, with their new revisions.
+	 * </p>
+	 * The results JSONs contain message ids, that should match ids in docs, and an optional error.
+	 */
+	/*
+	 * This runs in O(n^2) time. I'm assuming that normally people won't retrieve lots of messages
+	 * at once. Still, consider revising for long lists.
+	 */
+	private List<Document> createUpdatedDocs(List<Document> docs, JsonNode results) {
+		List<Document> updated = new ArrayList<Document>();
+		for (JsonNode res : results) {
+			if (res.get("error") != null)
+				continue;
+			String id = res.get("id").getTextValue();
+			String rev = res.get("rev").getTextValue();
+			Document doc = findDocById(docs, id);
+			doc.setRev(rev);
+			updated.add(doc);
+		}
+		return updated;
+	}
+
+	/**
+	 * Return the first document in the list whose id is the same as the id specified, or null
+	 * if no such document is found.
+	 */
+	private Document findDocById(List<Document> docs, String id) {
+		for (Document doc : docs) {
+			if (doc.getId().equals(id))
+				return doc;
+		}
+		return null;
+	}
+
+	/**
+	 * Call the update handler on the message, or return null if the handler is missing from the design document.
+	 * @throws NoSuchMessageException			if the handler found no such message
+	 * @throws ReceiptTokenOutOfDateException	if the handler refused the update, or it conflicted with another
+	 */
+	private JsonNode callUpdateHandler(String updateName, String id, List<NameValuePair> params)
+			throws NoSuchMessageException, ReceiptTokenOutOfDateException, RQSException
+	{
+		try {
+			return transport.update(updatePath(updateName, id), params);
+		} catch (CouchHttpException che) {
+			if (che.getStatusCode() == 404 && "no_such_message".equals(che.getError()))
+				throw new NoSuchMessageException("The queue has no message with ID " + id, che);
+			if (che.getStatusCode() == 409)
+				throw new ReceiptTokenOutOfDateException("The message was already acquired by another process", che);
+			if (che.getStatusCode() != 404)
+				throw new RQSException(che);
+			useUpdateHandlers = false;
+			return null;
+		} catch (IOException e) {
+			throw new RQSException(e);
+		}
+	}
+
+	@Override
+	public Document lockDocument(String id, String rev, JsonNode lock)
+			throws ReceiptTokenOutOfDateException, RQSException
+	{
+		if (useUpdateHandlers) {
+			try {
+				List<NameValuePair> params = new ArrayList<NameValuePair>(2);
+				params.add(new BasicNameValuePair("lock", CouchTransport.MAPPER.writeValueAsString(lock)));
+				if (rev != null)
+					params.add(new BasicNameValuePair("rev", rev));
+				JsonNode json = callUpdateHandler(Queue.RQS_LOCK_UPDATE_NAME, id, params);
+				if (json != null)
+					return toDocument(json);
+			} catch (NoSuchMessageException e) {
+				return null;
+			} catch (IOException e) {
+				throw new RQSException(e);
+			}
+		}
+		Document doc = getDocumentOrNull(id);
+		if (doc == null)
+			return null;
+		if (rev != null && !doc.getRev().equals(rev))
+			throw new ReceiptTokenOutOfDateException("The message was already acquired by another process");
+		((ObjectNode) doc.getJson()).put("lock", lock);
+		return updateDocument(doc);
+	}
+
+	@Override
+	public String extendLock(String id, String rev, long extension)
+			throws NoSuchMessageException, ReceiptTokenOutOfDateException, RQSException
+	{
+		if (useUpdateHandlers) {
+			List<NameValuePair> params = new ArrayList<NameValuePair>(2);
+			params.add(new BasicNameValuePair("rev", rev));
+			params.add(new BasicNameValuePair("extension", String.valueOf(extension)));
+			JsonNode json = callUpdateHandler(Queue.RQS_EXTEND_LOCK_UPDATE_NAME, id, params);
+			if (json != null)
+				return json.get("_rev").getTextValue();
+		}
+		Document doc = getDocumentOrNull(id);
+		if (doc == null)
+			throw new NoSuchMessageException("The queue has no message with ID " + id);
+		ObjectNode lock = (ObjectNode) doc.getJson().get("lock");
+		if (!doc.getRev().equals(rev) || lock == null)
+			throw new ReceiptTokenOutOfDateException("The message was already acquired by another process");
+		lock.put("visibility_timeout", lock.get("visibility_timeout").getLongValue() + extension);
+		// an update conflict is reported as a ReceiptTokenOutOfDateException
+		return updateDocument(doc).getRev();
+	}
+
+	@Override
+	public Document updateDocument(Document doc) throws ReceiptTokenOutOfDateException, RQSException {
+		checkScanCursor(doc);
+		try {
+			JsonNode res = transport.put(docPath(doc.getId()), null, toJson(doc));
+			doc.setRev(res.get("rev").getTextValue());
+			return doc;
+		} catch (CouchHttpException che) {
+			if (che.getStatusCode() == 409) // update conflict
+				throw new ReceiptTokenOutOfDateException("The message was already acquired by another process", che);
+			throw new RQSException(che);
+		} catch (IOException e) {
+			throw new RQSException(e);
+		}
+	}
+
+	/**
+	 * A payload never changes, so it's read from a replica, if there's one fresh enough - or from the primary, if
+	 * the replica doesn't have the message yet.
+	 */
+	@Override
+	public byte[] getPayload(final String id) throws RQSException {
+		try {
+			return guard.read(new RequestGuard.Request<byte[]>() {
+				@Override
+				public byte[] send() throws CouchHttpException, IOException {
+					return readPayload(replicas.reader(name), id);
+				}
+			}, payloadLatencies);
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	private byte[] readPayload(CouchTransport reader, String id) throws CouchHttpException, IOException {
+		String path = CouchTransport.path(name, id, Queue.MESSAGE_ATTACHMENT_NAME);
+		if (reader != transport) {
+			try {
+				return reader.getBytes(path);
+			} catch (CouchHttpException che) {
+				if (che.getStatusCode() != 404)
+					replicas.failed(reader, name, che);
+			} catch (IOException e) {
+				replicas.failed(reader, name, e);
+			}
+		}
+		return transport.getBytes(path);
+	}
+
+	/**
+	 * Fetches the documents with their attachments inlined, in a single _all_docs request - from a replica, if
+	 * there's one fresh enough, and then the ones it doesn't have yet from the primary.<br />
+	 * Servers that don't inline attachments in _all_docs return stubs instead; those payloads are fetched
+	 * one by one.
+	 */
+	@Override
+	public Map<String, byte[]> getPayloads(final List<String> ids) throws RQSException {
+		try {
+			return guard.read(new RequestGuard.Request<Map<String, byte[]>>() {
+				@Override
+				public Map<String, byte[]> send() throws CouchHttpException, IOException {
+					return readPayloads(ids);
+				}
+			}, batchLatencies);
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	private Map<String, byte[]> readPayloads(List<String> ids) throws CouchHttpException, IOException {
+		CouchTransport reader = replicas.reader(name);
+		Map<String, byte[]> payloads = null;
+		if (reader != transport) {
+			try {
+				payloads = getPayloads(reader, ids);
+			} catch (CouchHttpException che) {
+				replicas.failed(reader, name, che);
+			} catch (IOException e) {
+				replicas.failed(reader, name, e);
+			}
+		}
+		if (payloads == null)
+			payloads = new HashMap<String, byte[]>();
+		if (payloads.size() < ids.size()) {
+			List<String> missing = new ArrayList<String>();
+			for (String id : ids) {
+				if (!payloads.containsKey(id))
+					missing.add(id);
+			}
+			payloads.putAll(getPayloads(transport, missing));
+		}
+		return payloads;
+	}
+
+	private Map<String, byte[]> getPayloads(CouchTransport reader, List<String> ids)
+			throws CouchHttpException, IOException
+	{
+		List<NameValuePair> params = new ArrayList<NameValuePair>() {{
+			add(new BasicNameValuePair("include_docs", "true"));
+			add(new BasicNameValuePair("attachments", "true"));
+		}};
+		ObjectNode body = new ObjectNode(JsonNodeFactory.instance);
+		ArrayNode keys = body.putArray("keys");
+		for (String id : ids)
+			keys.add(id);
+		Map<String, byte[]> payloads = new HashMap<String, byte[]>();
+		JsonNode response = reader.post(CouchTransport.path(name, "_all_docs"), params, body);
+		for (JsonNode row : response.get("rows")) {
+			JsonNode doc = row.get("doc");
+			if (doc == null || !doc.isObject())
+				continue;
+			String id = doc.get("_id").getTextValue();
+			JsonNode data = doc.path("_attachments").path(Queue.MESSAGE_ATTACHMENT_NAME).get("data");
+			payloads.put(id, (data != null) ? data.getBinaryValue() : readPayload(reader, id));
+		}
+		return payloads;
+	}
+
+	/**
+	 * Pages through _all_docs, with the attachments inlined, skipping the design documents. Messages whose payload
+	 * isn't stored yet are skipped too.
+	 */
+	@Override
+	public List<Message> listMessages(String afterId, int limit) throws RQSException {
+		List<Message> messages = new ArrayList<Message>(limit);
+		String startKey = afterId;
+		try {
+			while (messages.size() < limit) {
+				int pageSize = limit - messages.size();
+				List<NameValuePair> params = new ArrayList<NameValuePair>();
+				params.add(new BasicNameValuePair("include_docs", "true"));
+				params.add(new BasicNameValuePair("attachments", "true"));
+				params.add(new BasicNameValuePair("limit", String.valueOf(pageSize)));
+				// the smallest id after the last one - rather than skipping it, which would skip the next message
+				// instead if it was deleted meanwhile
+				if (startKey != null)
+					params.add(new BasicNameValuePair("startkey",
+							CouchTransport.MAPPER.writeValueAsString(startKey + "\u0000")));
+				JsonNode rows = readPrimary(CouchTransport.path(name, "_all_docs"), params).get("rows");
+				for (JsonNode row : rows) {
+					String id = row.get("id").getTextValue();
+					startKey = id;
+					JsonNode json = row.get("doc");
+					if (id.startsWith("_design/") || json == null || !json.isObject())
+						continue;
+					JsonNode attachment = json.path("_attachments").get(Queue.MESSAGE_ATTACHMENT_NAME);
+					if (attachment == null)
+						continue;
+					JsonNode data = attachment.get("data");
+					byte[] payload = (data != null) ? data.getBinaryValue() : readPayload(transport, id);
+					((ObjectNode) json).remove("_attachments");
+					messages.add(new Message(toDocument(json), payload));
+				}
+				if (rows.size() < pageSize)
+					break;
+			}
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+		return messages;
+	}
+
+	@Override
+	public void deleteDocument(String id, String rev)
+			throws NoSuchMessageException, ReceiptTokenOutOfDateException, RQSException
+	{
+		try {
+			transport.delete(docPath(id), revParam(rev));
+		} catch (CouchHttpException che) {
+			if (che.getStatusCode() == 404)
+				throw new NoSuchMessageException("The queue has no message with ID " + id, che);
+			if (che.getStatusCode() == 409)
+				throw new ReceiptTokenOutOfDateException("The message was already acquired by another process", che);
+			else
+				throw new RQSException(che);
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	/**
+	 * Return messages whose lock expired to pending state, by removing their locks in a bulk update.<br />
+	 * Runs at most once every {@link #RECLAIM_INTERVAL_MILLIS} per queue, and only with a design document
+	 * whose locked view is keyed by expiry time.
+	 */
+	private void reclaimExpiredLocks() throws RQSException {
+		final long now = System.currentTimeMillis();
+		long last = lastReclaim.get();
+		if (!isDesignCurrent() || now - last < RECLAIM_INTERVAL_MILLIS || !lastReclaim.compareAndSet(last, now))
+			return;
+		List<NameValuePair> params = new ArrayList<NameValuePair>() {{
+			add(new BasicNameValuePair("reduce", "false"));
+			add(new BasicNameValuePair("include_docs", "true"));
+			add(new BasicNameValuePair("endkey", String.valueOf(now)));
+			add(new BasicNameValuePair("limit", String.valueOf(RECLAIM_BATCH_SIZE)));
+		}};
+		List<Document> expired;
+		try {
+			expired = docsFromRows(read(viewPath(Queue.RQS_LOCKED_VIEW_NAME), params));
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+		if (expired.isEmpty())
+			return;
+		for (Document doc : expired)
+			((ObjectNode) doc.getJson()).remove("lock");
+		// a conflict means the lock's owner, or another process, got there first
+		updateDocuments(expired);
+	}
+
+	/**
+	 * Deletes expired messages in one _bulk_docs request, with the revisions from the expiring view - the messages
+	 * themselves aren't read. A conflict means the message was just locked or deleted by another process.<br />
+	 * Messages locked past their expiry don't count toward <code>limit</code>: the view is read on past them, so
+	 * they don't hold up the expiry of the messages behind them.
+	 */
+	@Override
+	public int deleteExpired(long now, int limit) throws RQSException {
+		if (!isDesignCurrent())
+			return 0;
+		List<Document> expired = new ArrayList<Document>();
+		String startKey = null;
+		String startId = null;
+		int pageSize = limit;
+		for (int page = 0; page < MAX_SCAN_PAGES && expired.size() < limit; page++) {
+			List<NameValuePair> params = new ArrayList<NameValuePair>();
+			if (startKey != null) {
+				params.add(new BasicNameValuePair("startkey", startKey));
+				params.add(new BasicNameValuePair("startkey_docid", startId));
+			}
+			params.add(new BasicNameValuePair("endkey", String.valueOf(now)));
+			params.add(new BasicNameValuePair("limit", String.valueOf(pageSize)));
+			JsonNode rows;
+			try {
+				rows = transport.get(viewPath(Queue.RQS_EXPIRING_VIEW_NAME), params).get("rows");
+				if (rows.size() > 0) {
+					JsonNode last = rows.get(rows.size() - 1);
+					startKey = CouchTransport.MAPPER.writeValueAsString(last.get("key"));
+				}
+			} catch (Exception e) {
+				throw new RQSException(e);
+			}
+			for (JsonNode row : rows) {
+				String id = row.get("id").getTextValue();
+				JsonNode value = row.get("value");
+				// the page starts at the last row of the previous one
+				if (id.equals(startId) || value.get(1).getLongValue() > now)
+					continue; // or locked by a process that may still delete it
+				if (expired.size() < limit) {
+					Document doc = new Document(id, new ObjectNode(JsonNodeFactory.instance));
+					doc.setRev(value.get(0).getTextValue());
+					expired.add(doc);
+				}
+			}
+			if (rows.size() < pageSize)
+				break;
+			startId = rows.get(rows.size() - 1).get("id").getTextValue();
+			pageSize = Math.min(Math.max(2 * limit, MIN_SCAN_PAGE_SIZE), MAX_SCAN_PAGE_SIZE) + 1;
+		}
+		return deleteDocuments(expired).size();
+	}
+
+	/**
+	 * Deletes the documents in one _bulk_docs request, with just their ids and revisions.
+	 */
+	@Override
+	public List<String> deleteDocuments(List<Document> docs) throws RQSException {
+		List<String> deleted = new ArrayList<String>(docs.size());
+		if (docs.isEmpty())
+			return deleted;
+		ObjectNode body = new ObjectNode(JsonNodeFactory.instance);
+		ArrayNode bulk = body.putArray("docs");
+		for (Document doc : docs) {
+			ObjectNode deletion = bulk.addObject();
+			deletion.put("_id", doc.getId());
+			deletion.put("_rev", doc.getRev());
+			deletion.put("_deleted", true);
+		}
+		try {
+			for (JsonNode res : transport.post(CouchTransport.path(name, "_bulk_docs"), null, body)) {
+				if (res.get("error") == null)
+					deleted.add(res.get("id").getTextValue());
+			}
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+		return deleted;
+	}
+
+	/**
+	 * Replicates the documents to the target's database with <code>doc_ids</code>, when both databases are on the
+	 * same server, so the attachments are copied by the server.<br />
+	 * The copies arrive at the revisions they had here, so saving them in the target at those revisions both
+	 * confirms that they were written and replaces the lock. A copy that arrived at another revision - the document
+	 * changed here after it was read - is deleted from the target again.
+	 */
+	@Override
+	public List<String> copyDocuments(List<Document> docs, QueueBackend target) throws RQSException {
+		if (!(target instanceof CouchDBQueueBackend))
+			return null;
+		CouchDBQueueBackend other = (CouchDBQueueBackend) target;
+		if (!transport.getHost().equals(other.transport.getHost()) || transport.getPort() != other.transport.getPort())
+			return null;
+		List<String> copied = new ArrayList<String>(docs.size());
+		if (docs.isEmpty())
+			return copied;
+		ObjectNode body = new ObjectNode(JsonNodeFactory.instance);
+		body.put("source", name);
+		body.put("target", other.name);
+		ArrayNode ids = body.putArray("doc_ids");
+		for (Document doc : docs)
+			ids.add(doc.getId());
+		try {
+			JsonNode res = transport.post(CouchTransport.path("_replicate"), null, body);
+			if (!res.path("ok").getBooleanValue())
+				throw new RQSException("Failed to replicate " + name + " to " + other.name + ": " + res);
+		} catch (RQSException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+		List<String> unconfirmed = new ArrayList<String>();
+		Map<String, Document> saved = new HashMap<String, Document>();
+		for (Document doc : other.updateDocuments(docs))
+			saved.put(doc.getId(), doc);
+		for (Document doc : docs) {
+			if (saved.containsKey(doc.getId()))
+				copied.add(doc.getId());
+			else
+				unconfirmed.add(doc.getId());
+		}
+		if (!unconfirmed.isEmpty())
+			other.deleteDocuments(other.getDocuments(unconfirmed));
+		return copied;
+	}
+
+	/**
+	 * Deletes the queue's database and creates it again, with the design document it had - at the same version and
+	 * receive mode, so processes running an older release can still read it - in a handful of requests however many
+	 * messages there are. Then queries the pending view, so that the first receive doesn't wait for its index to be
+	 * built.
+	 * <p>
+	 * While the database is missing, messages sent are stored once it's back, for up to
+	 * {@link #MISSING_DATABASE_TRIES} tries; receives fail until the design document is back, which is a few
+	 * requests later. Locks held on the purged messages are lost, and deleting them fails as for any missing
+	 * message. Replication of the queue to {@link ReplicaSettings replicas} stops with the old database, and needs
+	 * to be started again.
+	 */
+	@Override
+	public void purge() throws RQSException {
+		String dbPath = CouchTransport.path(name);
+		String designPath = CouchTransport.path(name, "_design", Queue.RQS_DESIGN_DOC_NAME);
+		try {
+			ObjectNode design;
+			// another process purging the queue at the same time puts it back in a moment
+			for (int tries = 1; (design = (ObjectNode) transport.getOrNull(designPath, null)) == null; tries++) {
+				if (tries >= MISSING_DATABASE_TRIES)
+					throw new NoSuchQueueException("Queue not found: " + name);
+				Thread.sleep(MISSING_DATABASE_PAUSE_MILLIS);
+			}
+			design.remove("_rev");
+			try {
+				transport.delete(dbPath, null);
+			} catch (CouchHttpException che) {
+				// another process purging the queue at the same time
+				if (che.getStatusCode() != 404)
+					throw che;
+			}
+			try {
+				transport.put(dbPath, null, null);
+			} catch (CouchHttpException che) {
+				// the other process created it first
+				if (che.getStatusCode() != 412)
+					throw che;
+			}
+			try {
+				transport.put(designPath, null, design);
+			} catch (CouchHttpException che) {
+				// the other process put it back first
+				if (che.getStatusCode() != 409)
+					throw che;
+			}
+			List<NameValuePair> params = new ArrayList<NameValuePair>(2);
+			params.add(new BasicNameValuePair("reduce", "false"));
+			params.add(new BasicNameValuePair("limit", "0"));
+			transport.get(viewPath(Queue.RQS_PENDING_VIEW_NAME), params);
+		} catch (RQSException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+		scanCursor = null;
+		groupCursor = null;
+	}
+
+	/**
+	 * Pages through _changes, skipping the design documents and deleted messages.
+	 */
+	@Override
+	public Changes getChanges(String since, int limit) throws RQSException {
+		List<String> ids = new ArrayList<String>(limit);
+		String lastSequence = since;
+		try {
+			while (ids.size() < limit) {
+				int pageSize = limit - ids.size();
+				List<NameValuePair> params = new ArrayList<NameValuePair>(2);
+				if (lastSequence != null)
+					params.add(new BasicNameValuePair("since", lastSequence));
+				params.add(new BasicNameValuePair("limit", String.valueOf(pageSize)));
+				JsonNode results = readPrimary(CouchTransport.path(name, "_changes"), params).get("results");
+				for (JsonNode change : results) {
+					lastSequence = sequence(change.get("seq"));
+					String id = change.get("id").getTextValue();
+					if (!id.startsWith("_design/") && !change.path("deleted").getBooleanValue())
+						ids.add(id);
+				}
+				if (results.size() < pageSize)
+					break;
+			}
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+		return new Changes(ids, lastSequence);
+	}
+
+	@Override
+	public String getLastSequence() throws RQSException {
+		List<NameValuePair> params = new ArrayList<NameValuePair>(2);
+		params.add(new BasicNameValuePair("descending", "true"));
+		params.add(new BasicNameValuePair("limit", "1"));
+		try {
+			return sequence(readPrimary(CouchTransport.path(name, "_changes"), params).get("last_seq"));
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	/**
+	 * Returns a sequence mark as sent back in <code>since</code>: a number up to CouchDB 1.x, and an opaque
+	 * string since.
+	 */
+	private static String sequence(JsonNode seq) {
+		return seq.isTextual() ? seq.getTextValue() : seq.toString();
+	}
+
+	private String localPath(String id) {
+		return CouchTransport.path(name, "_local", id);
+	}
+
+	/**
+	 * Local documents are stored as CouchDB's <code>_local</code> documents, which aren't replicated, and don't
+	 * show in _changes or _all_docs.
+	 */
+	@Override
+	public ObjectNode getLocalDocument(String id) throws RQSException {
+		try {
+			return (ObjectNode) readPrimaryOrNull(localPath(id));
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	@Override
+	public String putLocalDocument(String id, ObjectNode json) throws ReceiptTokenOutOfDateException, RQSException {
+		try {
+			return transport.put(localPath(id), null, json).get("rev").getTextValue();
+		} catch (CouchHttpException che) {
+			if (che.getStatusCode() == 409)
+				throw new ReceiptTokenOutOfDateException("Another process updated " + id, che);
+			throw new RQSException(che);
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	@Override
+	public boolean deleteLocalDocument(String id, String rev) throws ReceiptTokenOutOfDateException, RQSException {
+		try {
+			transport.delete(localPath(id), revParam(rev));
+			return true;
+		} catch (CouchHttpException che) {
+			if (che.getStatusCode() == 404)
+				return false;
+			if (che.getStatusCode() == 409)
+				throw new ReceiptTokenOutOfDateException("Another process updated " + id, che);
+			throw new RQSException(che);
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	private int getNumberOfMessages(String viewName) throws RQSException {
+		// with a reduce, the count is its value; otherwise use limit=0 to get just the view metadata, including
+		// total rows, but no actual rows
+		final boolean reduce = isDesignCurrent();
+		List<NameValuePair> params = new ArrayList<NameValuePair>() {{
+			if (!reduce) {
+				add(new BasicNameValuePair("reduce", "false"));
+				add(new BasicNameValuePair("limit", "0"));
+			}
+		}};
+		try {
+			JsonNode json = read(viewPath(viewName), params);
+			if (!reduce)
+				return json.get("total_rows").getIntValue();
+			JsonNode rows = json.get("rows");
+			return (rows.size() == 0) ? 0 : rows.get(0).get("value").getIntValue();
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	/**
+	 * Returns how many grouped messages aren't locked, from the groups view's reduce. A version 1 design document
+	 * has no groups view, and counts them in the pending view.
+	 */
+	private int countGroupedPending() throws RQSException {
+		if (!isDesignCurrent())
+			return 0;
+		try {
+			JsonNode rows = read(viewPath(Queue.RQS_GROUPS_VIEW_NAME), null).get("rows");
+			return (rows.size() == 0) ? 0 : rows.get(0).get("value").get(4).getIntValue();
+		} catch (Exception e) {
+			throw new RQSException(e);
+		}
+	}
+
+	@Override
+	public int countPending() throws RQSException {
+		reclaimExpiredLocks();
+		return getNumberOfMessages(Queue.RQS_PENDING_VIEW_NAME) + countGroupedPending();
+	}
+
+	@Override
+	public int countLocked() throws RQSException {
+		reclaimExpiredLocks();
+		return getNumberOfMessages(Queue.RQS_LOCKED_VIEW_NAME);
+	}
+
+	@Override
+	public String toString() {
+		return transport + CouchTransport.path(name);
+	}
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+/**
+ * Signals that the CouchDB server answered a request with an error status.<br />
+ * This is an internal exception - public methods translate it into an {@link RQSException} or one of its subclasses.
+ */
+class CouchHttpException extends Exception {
+
+	private final int statusCode;
+	private final String error;
+
+	CouchHttpException(int statusCode, String error, String reason) {
+		super(String.format("CouchDB returned %d: %s (%s)", statusCode, error, reason));
+		this.statusCode = statusCode;
+		this.error = error;
+	}
+
+	/**
+	 * Returns the HTTP status code of the response.
+	 */
+	int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * Returns the value of the "error" field in CouchDB's response, e.g. "conflict" or "not_found".
+	 */
+	String getError() {
+		return error;
+	}
+
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.List;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * A thin HTTP layer over a pooled, thread-safe HttpClient, used for all requests to a CouchDB server.
+ * <p>
+ * One transport is created per {@link QueueService} and shared by every {@link Queue} that service hands out,
+ * so connections are kept alive and reused across queues and threads instead of being opened per request.
+ * Every request goes through the server's {@link CircuitBreaker}, so requests fail fast while the server is down.
+ */
+class CouchTransport {
+
+	static final ObjectMapper MAPPER = new ObjectMapper();
+	static final String JSON_MIME_TYPE = "application/json";
+	/** Where CouchDB reports the new revision of a document saved by an update handler. */
+	static final String UPDATE_NEW_REV_HEADER = "X-Couch-Update-NewRev";
+
+	private final String host;
+	private final int port;
+	private final String baseUri;
+	private final ThreadSafeClientConnManager connManager;
+	private final DefaultHttpClient httpClient;
+	private final CircuitBreaker breaker;
+	/** Where every request is counted, or null if metrics aren't collected. */
+	private volatile QueueMetrics metrics;
+
+	CouchTransport(String host, int port, final ConnectionSettings settings) {
+		this.host = host;
+		this.port = port;
+		this.baseUri = "http://" + host + ":" + port;
+		this.breaker = new CircuitBreaker(baseUri);
+
+		SchemeRegistry schemes = new SchemeRegistry();
+		schemes.register(new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
+		connManager = new ThreadSafeClientConnManager(schemes);
+		connManager.setMaxTotal(settings.getMaxConnectionsTotal());
+		connManager.setDefaultMaxPerRoute(settings.getMaxConnectionsPerRoute());
+
+		HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setConnectionTimeout(params, settings.getConnectionTimeout());
+		HttpConnectionParams.setSoTimeout(params, settings.getSocketTimeout());
+		HttpConnectionParams.setTcpNoDelay(params, settings.isTcpNoDelay());
+
+		httpClient = new DefaultHttpClient(connManager, params);
+		httpClient.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				// honor the server's Keep-Alive header if it asks for less than our setting
+				long duration = super.getKeepAliveDuration(response, context);
+				if (duration < 0 || duration > settings.getKeepAlive())
+					return settings.getKeepAlive();
+				return duration;
+			}
+		});
+	}
+
+	void setMetrics(QueueMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Counts the bytes read through it.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0)
+				count += n;
+			return n;
+		}
+	}
+
+	/**
+	 * Count a completed request in the metrics, if they're collected.
+	 */
+	private void recordRoundTrip(HttpRequestBase request, HttpEntity responseEntity, long bytesRead) {
+		QueueMetrics m = metrics;
+		if (m == null)
+			return;
+		long sent = 0;
+		if (request instanceof HttpEntityEnclosingRequestBase) {
+			HttpEntity entity = ((HttpEntityEnclosingRequestBase) request).getEntity();
+			if (entity != null)
+				sent = Math.max(entity.getContentLength(), 0);
+		}
+		long received = bytesRead;
+		if (responseEntity != null)
+			received = Math.max(received, responseEntity.getContentLength());
+		m.roundTrip(sent, received);
+	}
+
+	String getHost() {
+		return host;
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * Build a request path from the given segments, URL-encoding each one.<br />
+	 * For example <code>path("q", "_design", "couchrqs")</code> returns <code>/q/_design/couchrqs</code>.
+	 */
+	static String path(String... segments) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			for (String segment : segments)
+				sb.append('/').append(URLEncoder.encode(segment, "UTF-8").replace("+", "%20"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e); // UTF-8 is always supported
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get a new UUID from the server.
+	 */
+	String nextUUID() throws CouchHttpException, IOException {
+		return get("/_uuids", null).get("uuids").get(0).getTextValue();
+	}
+
+	private String uri(String path, List<NameValuePair> params) {
+		if (params == null || params.isEmpty())
+			return baseUri + path;
+		return baseUri + path + "?" + URLEncodedUtils.format(params, "UTF-8");
+	}
+
+	JsonNode get(String path, List<NameValuePair> params) throws CouchHttpException, IOException {
+		return executeJson(new HttpGet(uri(path, params)));
+	}
+
+	/**
+	 * Like {@link #get(java.lang.String, java.util.List) }, but returns null instead of throwing if the server
+	 * responds with 404.
+	 */
+	JsonNode getOrNull(String path, List<NameValuePair> params) throws CouchHttpException, IOException {
+		try {
+			return get(path, params);
+		} catch (CouchHttpException che) {
+			if (che.getStatusCode() == 404)
+				return null;
+			throw che;
+		}
+	}
+
+	/**
+	 * Returns true iff a HEAD request on the path succeeds, false if the server responds with 404.
+	 */
+	boolean exists(String path) throws CouchHttpException, IOException {
+		HttpHead head = new HttpHead(uri(path, null));
+		HttpResponse response = send(head);
+		EntityUtils.consume(response.getEntity());
+		recordRoundTrip(head, null, 0);
+		int status = response.getStatusLine().getStatusCode();
+		if (status == 404)
+			return false;
+		if (status >= 400)
+			throw new CouchHttpException(status, null, response.getStatusLine().getReasonPhrase());
+		return true;
+	}
+
+	JsonNode put(String path, List<NameValuePair> params, JsonNode body) throws CouchHttpException, IOException {
+		return executeJson(withJsonBody(new HttpPut(uri(path, params)), body));
+	}
+
+	JsonNode post(String path, List<NameValuePair> params, JsonNode body) throws CouchHttpException, IOException {
+		return executeJson(withJsonBody(new HttpPost(uri(path, params)), body));
+	}
+
+	JsonNode delete(String path, List<NameValuePair> params) throws CouchHttpException, IOException {
+		return executeJson(new HttpDelete(uri(path, params)));
+	}
+
+	/**
+	 * Call an update handler, with its arguments as query parameters and no request body.<br />
+	 * Returns the handler's JSON response, with the new revision of the document it saved as its "_rev" field -
+	 * CouchDB reports that revision in a header, since the handler itself can't know it.
+	 */
+	JsonNode update(String path, List<NameValuePair> params) throws CouchHttpException, IOException {
+		return executeJson(new HttpPost(uri(path, params)), UPDATE_NEW_REV_HEADER);
+	}
+
+	/**
+	 * Upload raw bytes, e.g. an attachment, with the given content type.
+	 */
+	JsonNode putBytes(String path, List<NameValuePair> params, byte[] data, String mimeType)
+			throws CouchHttpException, IOException
+	{
+		HttpPut put = new HttpPut(uri(path, params));
+		ByteArrayEntity entity = new ByteArrayEntity(data);
+		entity.setContentType(mimeType);
+		put.setEntity(entity);
+		return executeJson(put);
+	}
+
+	/**
+	 * Download the response body as raw bytes, e.g. an attachment.
+	 */
+	byte[] getBytes(String path) throws CouchHttpException, IOException {
+		HttpGet get = new HttpGet(uri(path, null));
+		HttpResponse response = send(get);
+		HttpEntity entity = response.getEntity();
+		long received = 0;
+		try {
+			checkStatus(response);
+			byte[] data = (entity == null) ? new byte[0] : EntityUtils.toByteArray(entity);
+			received = data.length;
+			return data;
+		} finally {
+			EntityUtils.consume(entity);
+			recordRoundTrip(get, entity, received);
+		}
+	}
+
+	/**
+	 * Execute the request through the circuit breaker, and tell the breaker how it went.
+	 */
+	private HttpResponse send(HttpRequestBase request) throws IOException {
+		breaker.acquire();
+		HttpResponse response;
+		try {
+			response = httpClient.execute(request);
+		} catch (IOException e) {
+			breaker.failed();
+			throw e;
+		} catch (RuntimeException e) {
+			breaker.failed();
+			throw e;
+		}
+		if (response.getStatusLine().getStatusCode() >= 500)
+			breaker.failed();
+		else
+			breaker.succeeded();
+		return response;
+	}
+
+	private HttpEntityEnclosingRequestBase withJsonBody(HttpEntityEnclosingRequestBase request, JsonNode body)
+			throws IOException
+	{
+		if (body != null) {
+			ByteArrayEntity entity = new ByteArrayEntity(MAPPER.writeValueAsBytes(body));
+			entity.setContentType(JSON_MIME_TYPE);
+			request.setEntity(entity);
+		}
+		return request;
+	}
+
+	private JsonNode executeJson(HttpRequestBase request) throws CouchHttpException, IOException {
+		return executeJson(request, null);
+	}
+
+	/**
+	 * Execute the request and parse the JSON response.<br />
+	 * If <code>revHeader</code> is not null, the value of that response header is set as the "_rev" of the
+	 * response object.
+	 */
+	private JsonNode executeJson(HttpRequestBase request, String revHeader) throws CouchHttpException, IOException {
+		request.setHeader("Accept", JSON_MIME_TYPE);
+		HttpResponse response = send(request);
+		HttpEntity entity = response.getEntity();
+		long received = 0;
+		try {
+			checkStatus(response);
+			if (entity == null)
+				return null;
+			CountingInputStream in = new CountingInputStream(entity.getContent());
+			try {
+				JsonNode json = MAPPER.readTree(in);
+				Header rev = (revHeader == null) ? null : response.getFirstHeader(revHeader);
+				if (rev != null && json instanceof ObjectNode)
+					((ObjectNode) json).put("_rev", rev.getValue());
+				return json;
+			} finally {
+				in.close();
+				received = in.count;
+			}
+		} finally {
+			// always release the connection back to the pool
+			EntityUtils.consume(entity);
+			recordRoundTrip(request, entity, received);
+		}
+	}
+
+	/**
+	 * Throws a CouchHttpException carrying CouchDB's error and reason if the response status is 4xx/5xx.
+	 */
+	private void checkStatus(HttpResponse response) throws CouchHttpException, IOException {
+		int status = response.getStatusLine().getStatusCode();
+		if (status < 400)
+			return;
+		String error = null;
+		String reason = response.getStatusLine().getReasonPhrase();
+		HttpEntity entity = response.getEntity();
+		if (entity != null) {
+			try {
+				JsonNode json = MAPPER.readTree(entity.getContent());
+				if (json.get("error") != null)
+					error = json.get("error").getTextValue();
+				if (json.get("reason") != null)
+					reason = json.get("reason").getTextValue();
+			} catch (IOException e) {
+				// the error body isn't JSON - keep the status line's reason phrase
+			}
+		}
+		throw new CouchHttpException(status, error, reason);
+	}
+
+	/**
+	 * Close all pooled connections. The transport cannot be used after this call.
+	 */
+	void shutdown() {
+		connManager.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return baseUri;
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes the expired messages of the queues a {@link QueueService} hands out, on a background thread.
+ * <p>
+ * Each queue is swept with one {@link QueueBackend#deleteExpired(long, int) } call per {@link #SWEEP_INTERVAL_MILLIS}
+ * at most, so a queue full of expired messages loses them at a steady {@link #SWEEP_BATCH_SIZE} per interval, and
+ * the server isn't flooded with deletions. A sweep that deletes less than a full batch means the queue is caught up,
+ * and it's swept again only after {@link #IDLE_INTERVAL_MILLIS}. Meanwhile receives skip expired messages.
+ * <p>
+ * A queue whose sweep fails is dropped until the service hands it out again. The thread is started with the first
+ * queue, and is a daemon, so it doesn't keep the process alive.
+ */
+class ExpirySweeper {
+
+	private static final Logger logger = LoggerFactory.getLogger(ExpirySweeper.class);
+
+	static final long SWEEP_INTERVAL_MILLIS = 1000;
+	static final long IDLE_INTERVAL_MILLIS = 10000;
+	static final int SWEEP_BATCH_SIZE = 500;
+
+	/**
+	 * A queue, and when it's swept next.
+	 */
+	private static final class Sweep {
+		final QueueBackend backend;
+		volatile long next;
+
+		Sweep(QueueBackend backend) {
+			this.backend = backend;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Sweep> sweeps = new ConcurrentHashMap<String, Sweep>();
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Start sweeping the queue, if it isn't swept already.
+	 */
+	void add(QueueBackend backend) {
+		Sweep sweep = sweeps.get(backend.getName());
+		if (sweep != null && sweep.backend == backend)
+			return;
+		sweeps.put(backend.getName(), new Sweep(backend));
+		start();
+	}
+
+	void remove(String queueName) {
+		sweeps.remove(queueName);
+	}
+
+	private synchronized void start() {
+		if (executor != null)
+			return;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "couchrqs-expiry");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sweep(System.currentTimeMillis());
+			}
+		}, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sweep the queues that are due.
+	 */
+	void sweep(long now) {
+		for (Map.Entry<String, Sweep> entry : sweeps.entrySet()) {
+			Sweep sweep = entry.getValue();
+			if (sweep.next > now)
+				continue;
+			try {
+				int deleted = sweep.backend.deleteExpired(now, SWEEP_BATCH_SIZE);
+				sweep.next = (deleted < SWEEP_BATCH_SIZE) ? now + IDLE_INTERVAL_MILLIS : 0;
+			} catch (Exception e) {
+				// e.g. the queue was deleted by another process
+				logger.warn("Failed to delete the expired messages of " + entry.getKey() + ", stopped sweeping it", e);
+				sweeps.remove(entry.getKey(), sweep);
+			}
+		}
+	}
+
+	synchronized void shutdown() {
+		if (executor != null)
+			executor.shutdownNow();
+	}
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+/**
+ * A hybrid logical clock, which orders the messages sent by this process.
+ * <p>
+ * Each time is a <em>stamp</em>: the system time in milliseconds, plus a logical counter that tells apart times
+ * within the same millisecond. Stamps are packed into a single long - <code>millis &lt;&lt; 16 | logical</code>
+ * - so they compare as numbers.
+ * <p>
+ * Every stamp this clock returns is greater than the ones before it, even at high send rates or if the system clock
+ * goes back. The clock also moves past the stamps of messages this process receives, so a message sent after
+ * another one was received is ordered after it, whatever the clocks of the hosts involved say. Messages with no
+ * such relation are ordered by the time they were sent, up to the difference between clocks, and ties are broken
+ * by message id. No coordination between processes is needed for any of this.
+ */
+class HybridClock {
+
+	static final int LOGICAL_BITS = 16;
+	static final int MAX_LOGICAL = (1 << LOGICAL_BITS) - 1;
+	/**
+	 * Received stamps further ahead of the system clock than this are ignored, so a host with a badly wrong clock
+	 * doesn't drag every other host's clock along.
+	 */
+	static final long MAX_OFFSET_MILLIS = 60000;
+
+	private long millis;
+	private int logical;
+
+	static long stamp(long millis, int logical) {
+		return (millis << LOGICAL_BITS) | logical;
+	}
+
+	static long millis(long stamp) {
+		return stamp >>> LOGICAL_BITS;
+	}
+
+	static int logical(long stamp) {
+		return (int) (stamp & MAX_LOGICAL);
+	}
+
+	/**
+	 * Returns the system time. Tests override this to control the clock.
+	 */
+	long physicalTime() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns a new stamp, greater than any stamp returned or received before.
+	 */
+	synchronized long now() {
+		long physical = physicalTime();
+		if (physical > millis) {
+			millis = physical;
+			logical = 0;
+		} else {
+			tick();
+		}
+		return stamp(millis, logical);
+	}
+
+	/**
+	 * Move the clock past a stamp received from another process.
+	 */
+	synchronized void update(long received) {
+		long receivedMillis = millis(received);
+		if (receivedMillis > physicalTime() + MAX_OFFSET_MILLIS)
+			return;
+		if (received >= stamp(millis, logical)) {
+			millis = receivedMillis;
+			logical = logical(received);
+		}
+	}
+
+	/**
+	 * Advance the logical counter - into the next millisecond if it runs out. The clock then runs slightly ahead of
+	 * the system time, until the system time catches up.
+	 */
+	private void tick() {
+		if (logical == MAX_LOGICAL) {
+			millis++;
+			logical = 0;
+		} else {
+			logical++;
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A backend that keeps all queues in the memory of this process, with no HTTP or CouchDB involved.
+ * <p>
+ * Queues keep the usual RQS semantics - visibility timeouts, receipt tokens and FIFO/LIFO order - and are
+ * safe to use from many threads. Messages are lost when the process exits, so this backend is meant for
+ * embedded use, local pipelines, tests and benchmarks.
+ * <p>
+ * Messages are indexed as they're stored, so there's no difference between the {@link ReceiveMode}s, and the
+ * mode a queue is created with is ignored.
+ */
+public class InMemoryBackend implements Backend {
+
+	private final ConcurrentHashMap<String, InMemoryQueueBackend> queues =
+			new ConcurrentHashMap<String, InMemoryQueueBackend>();
+
+	@Override
+	public boolean exists(String queueName) {
+		return queues.containsKey(queueName);
+	}
+
+	@Override
+	public boolean isQueue(String queueName) {
+		return queues.containsKey(queueName);
+	}
+
+	@Override
+	public QueueBackend createQueue(String queueName, ReceiveMode receiveMode) throws RQSException {
+		InMemoryQueueBackend queue = new InMemoryQueueBackend(queueName);
+		if (queues.putIfAbsent(queueName, queue) != null)
+			throw new QueueNameAlreadyTakenException("Queue already exists: " + queueName);
+		return queue;
+	}
+
+	@Override
+	public QueueBackend openQueue(String queueName) throws NoSuchQueueException {
+		InMemoryQueueBackend queue = queues.get(queueName);
+		if (queue == null)
+			throw new NoSuchQueueException("Queue not found: " + queueName);
+		return queue;
+	}
+
+	@Override
+	public boolean deleteQueue(String queueName) {
+		return queues.remove(queueName) != null;
+	}
+
+	@Override
+	public Map<String, QueueBackend> listQueues() {
+		return new TreeMap<String, QueueBackend>(queues);
+	}
+
+	@Override
+	public boolean upgradeQueue(String queueName) {
+		return false;
+	}
+
+	@Override
+	public void shutdown() {
+	}
+
+	@Override
+	public String toString() {
+		return "InMemoryBackend with " + queues.size() + " queues";
+	}
+
+}
@@ -0,0 +1,814 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import com.jzboy.couchdb.Document;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Stores a queue's messages in the memory of this process.
+ * <p>
+ * Follows the same rules as the CouchDB backend: every update creates a new revision, and updates or deletes
+ * that name an out of date revision fail, and a lock that outlives its visibility timeout is removed, so the
+ * message becomes pending again.
+ * <p>
+ * Reads never block: each message holds a volatile reference to its latest immutable revision, and pending
+ * messages are ordered in a concurrent skip list. Writes to a message synchronize on that message only,
+ * so they contend only with other writes to the same message. Expired locks are found through a
+ * {@link TimerWheel} that is advanced by the queue operations themselves.
+ * <p>
+ * The messages of each message group are also kept in a skip list of their own, ordered like the pending ones,
+ * which holds locked messages too. A grouped message is handed out only while it's the first in that list.
+ * Messages with an expiry time are kept in one more skip list, ordered by it, for {@link #deleteExpired(long, int) }.
+ * The messages themselves are kept in a skip list by id, so they can be listed in the order CouchDB lists them,
+ * and their ids in one more, by the order they were stored in, which stands in for CouchDB's _changes.
+ * <p>
+ * Documents that aren't messages - see {@link #createDocuments(List) } - are kept with the messages, but have only
+ * revisions: they're in none of the indexes. When one is deleted, its last revision is remembered for
+ * {@link #TOMBSTONE_MILLIS}, so that storing it again continues from there, as CouchDB does.
+ */
+class InMemoryQueueBackend implements QueueBackend {
+
+	static final long EXPIRY_TICK_MILLIS = 10;
+	static final int EXPIRY_WHEEL_SIZE = 1024;
+	/** How long (in milliseconds) a deleted document that isn't a message is remembered. */
+	static final long TOMBSTONE_MILLIS = 60000;
+
+	/**
+	 * An immutable revision of a message document.
+	 */
+	private static final class Revision {
+		final int seq;
+		final String rev;
+		/** Never modified once the revision is created. Callers get copies. */
+		final ObjectNode json;
+		/** When the lock expires, or 0 if the message is pending. */
+		final long lockDeadline;
+
+		Revision(int seq, String rev, ObjectNode json) {
+			this.seq = seq;
+			this.rev = rev;
+			this.json = json;
+			JsonNode lock = json.get("lock");
+			this.lockDeadline = (lock == null) ? 0 :
+					lock.get("locked_at").getLongValue() + lock.get("visibility_timeout").getLongValue();
+		}
+
+		boolean isLocked() {
+			return lockDeadline != 0;
+		}
+	}
+
+	/**
+	 * A message, or a document that isn't one, which has no payload. The id, send time and payload never change;
+	 * everything else lives in the current revision.
+	 */
+	private static final class Slot {
+		final String id;
+		/** The {@link HybridClock} stamp of when the message was sent. */
+		final long sentStamp;
+		/** Order of arrival, used to break ties between messages with the same stamp. */
+		final long seq;
+		/** The message group, or null. */
+		final String groupId;
+		/** When the message expires, or 0 if it doesn't. */
+		final long expiresAt;
+		final byte[] data;
+		/** Where the message is in the change log. Set when it's stored, while holding the slot's monitor. */
+		long changeSeq;
+		/** The current revision, or null once the message is deleted. Only replaced while holding the slot's monitor. */
+		volatile Revision revision;
+		/** Set when a document that isn't a message is deleted. Only replaced while holding the slot's monitor. */
+		Tombstone tombstone;
+
+		Slot(String id, long seq, JsonNode json, byte[] data) {
+			this.id = id;
+			this.sentStamp = Queue.getSentStamp(json);
+			this.seq = seq;
+			this.groupId = Queue.getGroupId(json);
+			this.expiresAt = Queue.getExpiresAt(json);
+			this.data = data;
+		}
+	}
+
+	/**
+	 * A deleted document that isn't a message, kept until it's forgotten.
+	 */
+	private static final class Tombstone {
+		final Slot slot;
+		/** The generation of the deleted revision, which counts as a revision of its own. */
+		final int seq;
+		final long deletedAt;
+
+		Tombstone(Slot slot, int seq, long deletedAt) {
+			this.slot = slot;
+			this.seq = seq;
+			this.deletedAt = deletedAt;
+		}
+	}
+
+	/**
+	 * Orders pending messages by sent_at and sent_seq, like the CouchDB pending view. Messages with the same
+	 * stamp - sent by different processes - are ordered by arrival, where CouchDB would order them by id.
+	 */
+	private static final class PendingKey implements Comparable<PendingKey> {
+		final long sentStamp;
+		final long seq;
+
+		PendingKey(Slot slot) {
+			this.sentStamp = slot.sentStamp;
+			this.seq = slot.seq;
+		}
+
+		@Override
+		public int compareTo(PendingKey o) {
+			if (sentStamp != o.sentStamp)
+				return (sentStamp < o.sentStamp) ? -1 : 1;
+			if (seq != o.seq)
+				return (seq < o.seq) ? -1 : 1;
+			return 0;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return (o instanceof PendingKey) && compareTo((PendingKey) o) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (seq ^ (seq >>> 32));
+		}
+	}
+
+	/**
+	 * Orders messages by expiry time, then by arrival.
+	 */
+	private static final class ExpiresKey implements Comparable<ExpiresKey> {
+		final long expiresAt;
+		final long seq;
+
+		ExpiresKey(long expiresAt, long seq) {
+			this.expiresAt = expiresAt;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(ExpiresKey o) {
+			if (expiresAt != o.expiresAt)
+				return (expiresAt < o.expiresAt) ? -1 : 1;
+			if (seq != o.seq)
+				return (seq < o.seq) ? -1 : 1;
+			return 0;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return (o instanceof ExpiresKey) && compareTo((ExpiresKey) o) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (seq ^ (seq >>> 32));
+		}
+	}
+
+	/**
+	 * A scheduled lock expiry. Only takes effect if the message is still at the same revision.
+	 */
+	private static final class Expiry {
+		final Slot slot;
+		final String rev;
+
+		Expiry(Slot slot, String rev) {
+			this.slot = slot;
+			this.rev = rev;
+		}
+	}
+
+	private final String name;
+	private final ConcurrentSkipListMap<String, Slot> slots = new ConcurrentSkipListMap<String, Slot>();
+	private final ConcurrentSkipListMap<PendingKey, Slot> pending = new ConcurrentSkipListMap<PendingKey, Slot>();
+	/** The messages of each group, pending or locked. Groups are added and removed while holding this map's monitor. */
+	private final ConcurrentHashMap<String, ConcurrentSkipListMap<PendingKey, Slot>> groups =
+			new ConcurrentHashMap<String, ConcurrentSkipListMap<PendingKey, Slot>>();
+	/** The messages that expire, pending or locked. */
+	private final ConcurrentSkipListMap<ExpiresKey, Slot> expiring = new ConcurrentSkipListMap<ExpiresKey, Slot>();
+	/** The messages' ids, by the order they were stored in. Appended to while holding its monitor. */
+	private final ConcurrentSkipListMap<Long, String> changes = new ConcurrentSkipListMap<Long, String>();
+	/** The sequence number of the latest message stored. Guarded by the monitor of <code>changes</code>. */
+	private long lastChange;
+	private final ConcurrentHashMap<String, ObjectNode> locals = new ConcurrentHashMap<String, ObjectNode>();
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private final AtomicInteger lockedCount = new AtomicInteger();
+	private final AtomicLong revCounter = new AtomicLong();
+	private final AtomicLong arrivalCounter = new AtomicLong();
+	/** Oldest first. */
+	private final ConcurrentLinkedQueue<Tombstone> tombstones = new ConcurrentLinkedQueue<Tombstone>();
+	private final TimerWheel<Expiry> expiries;
+
+	InMemoryQueueBackend(String name) {
+		this.name = name;
+		this.expiries = new TimerWheel<Expiry>(EXPIRY_TICK_MILLIS, EXPIRY_WHEEL_SIZE, System.currentTimeMillis());
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Copy the document JSON for storage, without the CouchDB-specific fields.
+	 */
+	private static ObjectNode copyForStorage(JsonNode json) {
+		ObjectNode copy = (ObjectNode) Message.copyJson(json);
+		copy.remove("_id");
+		copy.remove("_rev");
+		return copy;
+	}
+
+	/**
+	 * Copy a payload, so that the caller and the queue never share one array.
+	 */
+	private static byte[] copyPayload(byte[] data) {
+		return (data == null) ? null : data.clone();
+	}
+
+	private Revision newRevision(Revision previous, ObjectNode json) {
+		return newRevision((previous == null) ? 1 : previous.seq + 1, json);
+	}
+
+	private Revision newRevision(int seq, ObjectNode json) {
+		return new Revision(seq, seq + "-" + Long.toHexString(revCounter.incrementAndGet()), json);
+	}
+
+	private static Document toDocument(Slot slot, Revision revision) {
+		Document doc = new Document(slot.id, Message.copyJson(revision.json));
+		doc.setRev(revision.rev);
+		return doc;
+	}
+
+	/**
+	 * Replace the slot's revision and update the pending index, counters and expiry schedule to match.<br />
+	 * Must be called while holding the slot's monitor. <code>next</code> is null when deleting.
+	 */
+	private void swap(Slot slot, Revision next) {
+		Revision previous = slot.revision;
+		slot.revision = next;
+		if (slot.data == null)
+			return;
+		boolean wasPending = (previous != null) && !previous.isLocked();
+		boolean wasLocked = (previous != null) && previous.isLocked();
+		boolean isPending = (next != null) && !next.isLocked();
+		boolean isLocked = (next != null) && next.isLocked();
+
+		// a new grouped message joins its group before it can be seen as pending
+		if (previous == null && next != null && slot.groupId != null)
+			joinGroup(slot);
+		if (previous == null && next != null && slot.expiresAt > 0)
+			expiring.put(new ExpiresKey(slot.expiresAt, slot.seq), slot);
+		if (wasPending && !isPending) {
+			pending.remove(new PendingKey(slot));
+			pendingCount.decrementAndGet();
+		} else if (!wasPending && isPending) {
+			pending.put(new PendingKey(slot), slot);
+			pendingCount.incrementAndGet();
+		}
+		if (wasLocked && !isLocked)
+			lockedCount.decrementAndGet();
+		else if (!wasLocked && isLocked)
+			lockedCount.incrementAndGet();
+		// a lock that was extended or replaced gets a new expiry; the old one is ignored when it fires
+		if (isLocked)
+			expiries.schedule(next.lockDeadline, new Expiry(slot, next.rev));
+		if (previous != null && next == null && slot.groupId != null)
+			leaveGroup(slot);
+		if (previous != null && next == null && slot.expiresAt > 0)
+			expiring.remove(new ExpiresKey(slot.expiresAt, slot.seq));
+		// sequence numbers are handed out and logged together, so a reader never sees a later one before an earlier
+		if (previous == null && next != null) {
+			synchronized (changes) {
+				slot.changeSeq = ++lastChange;
+				changes.put(slot.changeSeq, slot.id);
+			}
+		}
+		if (previous != null && next == null)
+			changes.remove(slot.changeSeq);
+	}
+
+	/**
+	 * Delete the slot's revision, and the slot itself - unless it isn't a message, in which case it's kept as a
+	 * tombstone. Must be called while holding the slot's monitor.
+	 */
+	private void remove(Slot slot) {
+		Revision previous = slot.revision;
+		swap(slot, null);
+		if (slot.data != null) {
+			slots.remove(slot.id, slot);
+			return;
+		}
+		slot.tombstone = new Tombstone(slot, previous.seq + 1, System.currentTimeMillis());
+		tombstones.add(slot.tombstone);
+	}
+
+	/**
+	 * Forget the documents deleted more than {@link #TOMBSTONE_MILLIS} ago, unless they were stored again since.
+	 */
+	private void forgetTombstones(long now) {
+		Tombstone oldest;
+		while ((oldest = tombstones.peek()) != null && oldest.deletedAt + TOMBSTONE_MILLIS <= now) {
+			// only one thread gets to remove the head
+			if (!tombstones.remove(oldest))
+				continue;
+			Slot slot = oldest.slot;
+			synchronized (slot) {
+				if (slot.tombstone == oldest)
+					slots.remove(slot.id, slot);
+			}
+		}
+	}
+
+	private void joinGroup(Slot slot) {
+		synchronized (groups) {
+			ConcurrentSkipListMap<PendingKey, Slot> members = groups.get(slot.groupId);
+			if (members == null) {
+				members = new ConcurrentSkipListMap<PendingKey, Slot>();
+				groups.put(slot.groupId, members);
+			}
+			members.put(new PendingKey(slot), slot);
+		}
+	}
+
+	private void leaveGroup(Slot slot) {
+		synchronized (groups) {
+			ConcurrentSkipListMap<PendingKey, Slot> members = groups.get(slot.groupId);
+			members.remove(new PendingKey(slot));
+			if (members.isEmpty())
+				groups.remove(slot.groupId);
+		}
+	}
+
+	/**
+	 * Returns true if the message is the oldest in its group - the only one of the group that may be received.
+	 */
+	private boolean isGroupHead(Slot slot) {
+		ConcurrentSkipListMap<PendingKey, Slot> members = groups.get(slot.groupId);
+		Map.Entry<PendingKey, Slot> head = (members == null) ? null : members.firstEntry();
+		return head != null && head.getValue() == slot;
+	}
+
+	/**
+	 * Return messages whose lock expired to pending state.
+	 */
+	private void expireLocks() {
+		long now = System.currentTimeMillis();
+		for (Expiry expiry : expiries.advance(now)) {
+			Slot slot = expiry.slot;
+			synchronized (slot) {
+				Revision current = slot.revision;
+				if (current == null || !current.rev.equals(expiry.rev) || current.lockDeadline > now)
+					continue;
+				ObjectNode json = (ObjectNode) Message.copyJson(current.json);
+				json.remove("lock");
+				swap(slot, newRevision(current, json));
+			}
+		}
+	}
+
+	@Override
+	public String createMessage(ObjectNode json, byte[] data) throws RQSException {
+		long sentStamp = Queue.getSentStamp(json);
+		String id = Queue.newMessageId(sentStamp);
+		Slot slot = new Slot(id, arrivalCounter.incrementAndGet(), json, copyPayload(data));
+		synchronized (slot) {
+			slots.put(id, slot);
+			swap(slot, newRevision(null, copyForStorage(json)));
+		}
+		return id;
+	}
+
+	@Override
+	public void createMessages(List<Message> messages) throws RQSException {
+		for (Message message : messages) {
+			JsonNode json = message.getDoc().getJson();
+			Slot slot = new Slot(message.getMessageId(), arrivalCounter.incrementAndGet(), json,
+								 copyPayload(message.getData()));
+			synchronized (slot) {
+				if (slots.putIfAbsent(slot.id, slot) != null)
+					continue; // already stored
+				swap(slot, newRevision(null, copyForStorage(json)));
+			}
+		}
+	}
+
+	@Override
+	public List<Document> queryPending(int limit, boolean descending) throws RQSException {
+		return queryPending(null, null, limit, descending);
+	}
+
+	/**
+	 * Scans the pending messages in order. There's no index by attribute, so selecting on one reads past the
+	 * messages without it.
+	 */
+	@Override
+	public List<Document> queryPendingByAttribute(String name, JsonNode value, int limit, boolean descending)
+			throws RQSException
+	{
+		return queryPending(name, value, limit, descending);
+	}
+
+	private List<Document> queryPending(String attributeName, JsonNode attributeValue, int limit, boolean descending) {
+		expireLocks();
+		ConcurrentNavigableMap<PendingKey, Slot> view = descending ? pending.descendingMap() : pending;
+		List<Document> docs = new ArrayList<Document>(Math.min(limit, 64));
+		for (Map.Entry<PendingKey, Slot> entry : view.entrySet()) {
+			if (docs.size() >= limit)
+				break;
+			Slot slot = entry.getValue();
+			Revision revision = slot.revision;
+			if (revision == null || revision.isLocked())
+				continue;
+			if (attributeName != null && !Queue.hasAttribute(revision.json, attributeName, attributeValue))
+				continue;
+			// only the oldest message of a group may be received
+			if (slot.groupId != null && !isGroupHead(slot))
+				continue;
+			docs.add(toDocument(slot, revision));
+		}
+		return docs;
+	}
+
+	@Override
+	public List<Document> getDocuments(List<String> ids) throws RQSException {
+		expireLocks();
+		List<Document> docs = new ArrayList<Document>(ids.size());
+		for (String id : ids) {
+			Slot slot = slots.get(id);
+			Revision revision = (slot == null) ? null : slot.revision;
+			if (revision != null)
+				docs.add(toDocument(slot, revision));
+		}
+		return docs;
+	}
+
+	@Override
+	public Document getDocumentOrNull(String id) throws RQSException {
+		expireLocks();
+		Slot slot = slots.get(id);
+		Revision revision = (slot == null) ? null : slot.revision;
+		return (revision == null) ? null : toDocument(slot, revision);
+	}
+
+	@Override
+	public List<Document> getDocumentsByPrefix(String prefix) throws RQSException {
+		List<Document> docs = new ArrayList<Document>();
+		for (Slot slot : slots.subMap(prefix, prefix + "\uffff").values()) {
+			Revision revision = slot.revision;
+			if (revision != null)
+				docs.add(toDocument(slot, revision));
+		}
+		return docs;
+	}
+
+	@Override
+	public List<Document> createDocuments(List<Document> docs) throws RQSException {
+		forgetTombstones(System.currentTimeMillis());
+		List<Document> created = new ArrayList<Document>(docs.size());
+		for (Document doc : docs) {
+			Revision revision = create(doc.getId(), doc.getJson());
+			if (revision == null)
+				continue; // taken
+			doc.setRev(revision.rev);
+			created.add(doc);
+		}
+		return created;
+	}
+
+	/**
+	 * Store a document that isn't a message, or store it again after it was deleted.
+	 * @return the new revision, or null if the id is taken
+	 */
+	private Revision create(String id, JsonNode json) {
+		while (true) {
+			Slot slot = slots.get(id);
+			if (slot == null) {
+				slot = new Slot(id, arrivalCounter.incrementAndGet(), json, null);
+				synchronized (slot) {
+					if (slots.putIfAbsent(id, slot) != null)
+						continue; // stored at the same time
+					Revision revision = newRevision(null, copyForStorage(json));
+					swap(slot, revision);
+					return revision;
+				}
+			}
+			synchronized (slot) {
+				if (slot.revision != null || slot.data != null)
+					return null;
+				if (slots.get(id) != slot)
+					continue; // just forgotten
+				Revision revision = newRevision(slot.tombstone.seq + 1, copyForStorage(json));
+				slot.tombstone = null;
+				swap(slot, revision);
+				return revision;
+			}
+		}
+	}
+
+	@Override
+	public List<Document> lockDocuments(List<Document> docs, JsonNode lock) throws RQSException {
+		List<Document> locked = new ArrayList<Document>(docs.size());
+		for (Document doc : docs) {
+			Slot slot = slots.get(doc.getId());
+			if (slot == null)
+				continue;
+			synchronized (slot) {
+				Revision current = slot.revision;
+				if (current == null || !current.rev.equals(doc.getRev()))
+					continue; // conflict
+				ObjectNode json = copyForStorage(doc.getJson());
+				json.put("lock", Message.copyJson(lock));
+				Revision next = newRevision(current, json);
+				swap(slot, next);
+				((ObjectNode) doc.getJson()).put("lock", lock);
+				doc.setRev(next.rev);
+			}
+			locked.add(doc);
+		}
+		return locked;
+	}
+
+	@Override
+	public Document lockDocument(String id, String rev, JsonNode lock)
+			throws ReceiptTokenOutOfDateException, RQSException
+	{
+		expireLocks();
+		Slot slot = slots.get(id);
+		if (slot == null)
+			return null;
+		synchronized (slot) {
+			Revision current = slot.revision;
+			if (current == null)
+				return null;
+			if (rev != null && !current.rev.equals(rev))
+				throw new ReceiptTokenOutOfDateException("The message was already acquired by another process");
+			ObjectNode json = (ObjectNode) Message.copyJson(current.json);
+			json.put("lock", Message.copyJson(lock));
+			Revision next = newRevision(current, json);
+			swap(slot, next);
+			return toDocument(slot, next);
+		}
+	}
+
+	@Override
+	public String extendLock(String id, String rev, long extension)
+			throws NoSuchMessageException, ReceiptTokenOutOfDateException, RQSException
+	{
+		Slot slot = slots.get(id);
+		if (slot == null)
+			throw new NoSuchMessageException("The queue has no message with ID " + id);
+		synchronized (slot) {
+			Revision current = slot.revision;
+			if (current == null)
+				throw new NoSuchMessageException("The queue has no message with ID " + id);
+			if (!current.rev.equals(rev) || !current.isLocked())
+				throw new ReceiptTokenOutOfDateException("The message was already acquired by another process");
+			ObjectNode json = (ObjectNode) Message.copyJson(current.json);
+			ObjectNode lock = (ObjectNode) json.get("lock");
+			lock.put("visibility_timeout", lock.get("visibility_timeout").getLongValue() + extension);
+			Revision next = newRevision(current, json);
+			swap(slot, next);
+			return next.rev;
+		}
+	}
+
+	@Override
+	public Document updateDocument(Document doc) throws ReceiptTokenOutOfDateException, RQSException {
+		Slot slot = slots.get(doc.getId());
+		if (slot == null)
+			throw new ReceiptTokenOutOfDateException("The message was already acquired by another process");
+		synchronized (slot) {
+			Revision current = slot.revision;
+			if (current == null || !current.rev.equals(doc.getRev()))
+				throw new ReceiptTokenOutOfDateException("The message was already acquired by another process");
+			Revision next = newRevision(current, copyForStorage(doc.getJson()));
+			swap(slot, next);
+			doc.setRev(next.rev);
+		}
+		return doc;
+	}
+
+	@Override
+	public List<Document> updateDocuments(List<Document> docs) throws RQSException {
+		List<Document> updated = new ArrayList<Document>(docs.size());
+		for (Document doc : docs) {
+			try {
+				updated.add(updateDocument(doc));
+			} catch (ReceiptTokenOutOfDateException e) {
+				// conflict
+			}
+		}
+		return updated;
+	}
+
+	@Override
+	public byte[] getPayload(String id) throws RQSException {
+		Slot slot = slots.get(id);
+		if (slot == null)
+			throw new NoSuchMessageException("The queue has no message with ID " + id);
+		return copyPayload(slot.data);
+	}
+
+	@Override
+	public Map<String, byte[]> getPayloads(List<String> ids) throws RQSException {
+		Map<String, byte[]> payloads = new HashMap<String, byte[]>();
+		for (String id : ids) {
+			Slot slot = slots.get(id);
+			if (slot != null && slot.data != null)
+				payloads.put(id, copyPayload(slot.data));
+		}
+		return payloads;
+	}
+
+	@Override
+	public void deleteDocument(String id, String rev)
+			throws NoSuchMessageException, ReceiptTokenOutOfDateException, RQSException
+	{
+		Slot slot = slots.get(id);
+		if (slot == null)
+			throw new NoSuchMessageException("The queue has no message with ID " + id);
+		synchronized (slot) {
+			Revision current = slot.revision;
+			if (current == null)
+				throw new NoSuchMessageException("The queue has no message with ID " + id);
+			if (!current.rev.equals(rev))
+				throw new ReceiptTokenOutOfDateException("The message was already acquired by another process");
+			remove(slot);
+		}
+	}
+
+	@Override
+	public List<String> deleteDocuments(List<Document> docs) throws RQSException {
+		List<String> deleted = new ArrayList<String>(docs.size());
+		for (Document doc : docs) {
+			Slot slot = slots.get(doc.getId());
+			if (slot == null)
+				continue;
+			synchronized (slot) {
+				Revision current = slot.revision;
+				if (current == null || !current.rev.equals(doc.getRev()))
+					continue;
+				remove(slot);
+			}
+			deleted.add(doc.getId());
+		}
+		return deleted;
+	}
+
+	/**
+	 * Returns null: the payloads are in this process anyway.
+	 */
+	@Override
+	public List<String> copyDocuments(List<Document> docs, QueueBackend target) throws RQSException {
+		return null;
+	}
+
+	@Override
+	public int deleteExpired(long now, int limit) throws RQSException {
+		expireLocks();
+		int deleted = 0;
+		for (Slot slot : expiring.headMap(new ExpiresKey(now, Long.MAX_VALUE), true).values()) {
+			if (deleted >= limit)
+				break;
+			synchronized (slot) {
+				Revision current = slot.revision;
+				if (current == null || current.lockDeadline > now)
+					continue;
+				swap(slot, null);
+				slots.remove(slot.id, slot);
+			}
+			deleted++;
+		}
+		return deleted;
+	}
+
+	@Override
+	public List<Message> listMessages(String afterId, int limit) throws RQSException {
+		expireLocks();
+		ConcurrentNavigableMap<String, Slot> range = (afterId == null) ? slots : slots.tailMap(afterId, false);
+		List<Message> messages = new ArrayList<Message>(Math.min(limit, 64));
+		for (Slot slot : range.values()) {
+			if (messages.size() >= limit)
+				break;
+			Revision revision = slot.revision;
+			if (revision != null && slot.data != null)
+				messages.add(new Message(toDocument(slot, revision), copyPayload(slot.data)));
+		}
+		return messages;
+	}
+
+	/**
+	 * Deletes the messages one by one, since they're only in memory. A message stored during the purge may be
+	 * deleted or kept.
+	 */
+	@Override
+	public void purge() throws RQSException {
+		for (Slot slot : slots.values()) {
+			synchronized (slot) {
+				if (slot.revision == null)
+					continue;
+				remove(slot);
+			}
+		}
+	}
+
+	@Override
+	public Changes getChanges(String since, int limit) throws RQSException {
+		long from = (since == null) ? 0 : Long.parseLong(since);
+		List<String> ids = new ArrayList<String>(Math.min(limit, 64));
+		long last = from;
+		for (Map.Entry<Long, String> change : changes.tailMap(from, false).entrySet()) {
+			if (ids.size() >= limit)
+				break;
+			ids.add(change.getValue());
+			last = change.getKey();
+		}
+		return new Changes(ids, String.valueOf(last));
+	}
+
+	@Override
+	public String getLastSequence() throws RQSException {
+		synchronized (changes) {
+			return String.valueOf(lastChange);
+		}
+	}
+
+	@Override
+	public ObjectNode getLocalDocument(String id) throws RQSException {
+		ObjectNode json = locals.get(id);
+		return (json == null) ? null : (ObjectNode) Message.copyJson(json);
+	}
+
+	/**
+	 * Local documents have revisions "0-1", "0-2" and so on, like CouchDB's.
+	 */
+	@Override
+	public String putLocalDocument(String id, ObjectNode json) throws ReceiptTokenOutOfDateException, RQSException {
+		synchronized (locals) {
+			ObjectNode current = locals.get(id);
+			String currentRev = (current == null) ? null : current.get("_rev").getTextValue();
+			String rev = (json.get("_rev") == null) ? null : json.get("_rev").getTextValue();
+			if (currentRev == null ? rev != null : !currentRev.equals(rev))
+				throw new ReceiptTokenOutOfDateException("Another process updated " + id);
+			int generation = (currentRev == null) ? 1 : Integer.parseInt(currentRev.substring(2)) + 1;
+			ObjectNode stored = (ObjectNode) Message.copyJson(json);
+			stored.put("_rev", "0-" + generation);
+			locals.put(id, stored);
+			return "0-" + generation;
+		}
+	}
+
+	@Override
+	public boolean deleteLocalDocument(String id, String rev) throws ReceiptTokenOutOfDateException, RQSException {
+		synchronized (locals) {
+			ObjectNode current = locals.get(id);
+			if (current == null)
+				return false;
+			if (!current.get("_rev").getTextValue().equals(rev))
+				throw new ReceiptTokenOutOfDateException("Another process updated " + id);
+			locals.remove(id);
+			return true;
+		}
+	}
+
+	@Override
+	public int countPending() throws RQSException {
+		expireLocks();
+		return pendingCount.get();
+	}
+
+	@Override
+	public int countLocked() throws RQSException {
+		expireLocks();
+		return lockedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "memory:" + name;
+	}
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds, with a precision of about 6%.
+ * <p>
+ * Buckets are log-linear: every power of two is split into 16 equal buckets, so that the relative error of a
+ * percentile is the same for a 100 microsecond call as for a 10 second one. Latencies up to 2^40 microseconds
+ * (about 12 days) are counted; longer ones are counted in the last bucket. Like {@link StripedCounter}, the
+ * buckets are striped per thread, and {@link #record(long) } never allocates.
+ */
+class LatencyHistogram {
+
+	static final int SUB_BUCKET_BITS = 4;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	static final int MAX_EXPONENT = 40;
+	static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+	static final int STRIPES = Math.min(StripedCounter.STRIPES, 8);
+
+	private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+	private final StripedCounter count = new StripedCounter();
+	private final StripedCounter total = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Returns the bucket that holds the value.
+	 */
+	static int bucketOf(long micros) {
+		if (micros < SUB_BUCKETS)
+			return (int) Math.max(micros, 0);
+		int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+		if (exponent == MAX_EXPONENT && micros >= (1L << (MAX_EXPONENT + 1)))
+			return BUCKETS - 1;
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Returns the smallest value that falls in the bucket.
+	 */
+	static long lowestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	/**
+	 * Record a latency measured in nanoseconds.
+	 */
+	void record(long nanos) {
+		long micros = (nanos + 999) / 1000;
+		counts.incrementAndGet(StripedCounter.stripe(STRIPES) * BUCKETS + bucketOf(micros));
+		count.increment();
+		total.add(micros);
+		long current;
+		while (micros > (current = max.get()) && !max.compareAndSet(current, micros))
+			;
+	}
+
+	long count() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the bucket counts, summed over the stripes.
+	 */
+	private long[] merge() {
+		long[] merged = new long[BUCKETS];
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			for (int bucket = 0; bucket < BUCKETS; bucket++)
+				merged[bucket] += counts.get(stripe * BUCKETS + bucket);
+		}
+		return merged;
+	}
+
+	/**
+	 * Returns the highest value in the bucket that holds the specified quantile, or 0 if nothing was recorded.
+	 */
+	private static long valueAt(long[] merged, long total, double quantile) {
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += merged[bucket];
+			if (seen >= rank)
+				return (bucket == BUCKETS - 1) ? lowestValueOf(bucket) : lowestValueOf(bucket + 1) - 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the quantile of the values recorded so far, in microseconds, or 0 if nothing was recorded.
+	 */
+	long valueAt(double quantile) {
+		long[] merged = merge();
+		long n = 0;
+		for (long c : merged)
+			n += c;
+		return (n == 0) ? 0 : Math.min(valueAt(merged, n, quantile), max.get());
+	}
+
+	/**
+	 * Returns a summary of the values recorded so far.<br />
+	 * The summary isn't atomic: values recorded while it is taken may be partly included.
+	 */
+	LatencySnapshot snapshot() {
+		long[] merged = merge();
+		long n = 0;
+		for (long c : merged)
+			n += c;
+		if (n == 0)
+			return new LatencySnapshot(0, 0, 0, 0, 0, 0);
+		long maxValue = max.get();
+		return new LatencySnapshot(n, (double) total.sum() / n,
+				Math.min(valueAt(merged, n, 0.5), maxValue),
+				Math.min(valueAt(merged, n, 0.99), maxValue),
+				Math.min(valueAt(merged, n, 0.999), maxValue),
+				maxValue);
+	}
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A summary of the latencies of an operation, in microseconds.<br />
+ * Percentiles are accurate to about 6%. Through JMX, a snapshot appears as a composite value.
+ *
+ * @see QueueMetrics#getLatency(QueueMetrics.Operation)
+ */
+public class LatencySnapshot {
+
+	private final long count;
+	private final double mean;
+	private final long p50;
+	private final long p99;
+	private final long p999;
+	private final long max;
+
+	@ConstructorProperties({"count", "mean", "p50", "p99", "p999", "max"})
+	public LatencySnapshot(long count, double mean, long p50, long p99, long p999, long max) {
+		this.count = count;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p99 = p99;
+		this.p999 = p999;
+		this.max = max;
+	}
+
+	/**
+	 * Returns the number of operations measured.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public double getMean() {
+		return mean;
+	}
+
+	public long getP50() {
+		return p50;
+	}
+
+	public long getP99() {
+		return p99;
+	}
+
+	public long getP999() {
+		return p999;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.1fus p50=%dus p99=%dus p99.9=%dus max=%dus",
+							 count, mean, p50, p99, p999, max);
+	}
+
+}
@@ -7,7 +7,10 @@
 package com.couchrqs;
 
 import com.jzboy.couchdb.Document;
+import java.util.Iterator;
+import java.util.Map;
 import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.ObjectNode;
 
@@ -21,7 +24,7 @@ public class Message {
 
 	public Message() {
 		ObjectNode json = new ObjectNode(JsonNodeFactory.instance);
-		json.put("sent_at", System.currentTimeMillis());
+		Queue.putSentStamp(json, Queue.CLOCK.now());
 		doc = new Document(json);
 		data = null;
 	}
@@ -60,6 +63,27 @@ public class Message {
 		return doc.getJson().get("sent_at").getLongValue();
 	}
 
+	/**
+	 * Returns the message group the message was sent in, or null if it was sent without one.
+	 */
+	public String getGroupId() {
+		return Queue.getGroupId(doc.getJson());
+	}
+
+	/**
+	 * Returns the message's attributes - strings, longs, doubles and booleans - or an empty map if it has none.
+	 */
+	public Map<String, Object> getAttributes() {
+		return Queue.getAttributes(doc.getJson());
+	}
+
+	/**
+	 * Returns when the message expires, in milliseconds, or 0 if it's kept until deleted.
+	 */
+	public long getExpiresAt() {
+		return Queue.getExpiresAt(doc.getJson());
+	}
+
 	public JsonNode getLock() {
 		return doc.getJson().get("lock");
 	}
@@ -71,5 +95,26 @@ public class Message {
 		return 0l;
 	}
 
+	/**
+	 * Returns a deep copy of a JSON tree. Value nodes are immutable, so they're shared.
+	 */
+	static JsonNode copyJson(JsonNode node) {
+		if (node.isObject()) {
+			ObjectNode copy = JsonNodeFactory.instance.objectNode();
+			Iterator<String> names = node.getFieldNames();
+			while (names.hasNext()) {
+				String field = names.next();
+				copy.put(field, copyJson(node.get(field)));
+			}
+			return copy;
+		}
+		if (node.isArray()) {
+			ArrayNode copy = JsonNodeFactory.instance.arrayNode();
+			for (JsonNode element : node)
+				copy.add(copyJson(element));
+			return copy;
+		}
+		return node;
+	}
 
 }
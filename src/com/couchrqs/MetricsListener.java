@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+/**
+ * Receives every measurement taken by {@link QueueMetrics}, e.g. to forward it to an external metrics system.
+ * <p>
+ * Listeners are called synchronously, on the thread that performed the operation, so they must be fast and
+ * thread-safe. An exception thrown by a listener is propagated to the caller of the queue operation.
+ *
+ * @see QueueMetrics#addListener(MetricsListener)
+ */
+public interface MetricsListener {
+
+	/**
+	 * Called when a queue or service operation completes.
+	 *
+	 * @param operation		the operation
+	 * @param queueName		the queue it was performed on, or null for service operations that span queues
+	 * @param latencyNanos	how long the operation took
+	 * @param roundTrips	the number of requests it made to the server
+	 * @param succeeded		false if the operation threw an exception
+	 */
+	void operationCompleted(QueueMetrics.Operation operation, String queueName, long latencyNanos,
+							int roundTrips, boolean succeeded);
+
+	/**
+	 * Called after an attempt to lock messages for receiving.
+	 *
+	 * @param queueName		the queue
+	 * @param attempted		the number of messages the receiver tried to lock
+	 * @param conflicts		how many of those were locked by another process first
+	 */
+	void locksAttempted(String queueName, int attempted, int conflicts);
+
+	/**
+	 * Called after the payloads of received messages were fetched.
+	 *
+	 * @param queueName		the queue
+	 * @param messages		the number of payloads fetched
+	 * @param latencyNanos	how long fetching them took
+	 */
+	void attachmentsFetched(String queueName, int messages, long latencyNanos);
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives messages from a queue in batches, and hands them out one at a time.
+ * <p>
+ * Each call to {@link Queue#receiveMessage() } costs a view query, a lock update and an attachment fetch.
+ * A PrefetchingReceiver instead receives up to {@link #getPrefetchCount() } messages with one call to
+ * {@link Queue#receiveMessages(int, long) } - whose cost hardly depends on the number of messages - and buffers
+ * them. {@link #receiveMessage() } takes the next buffered message, and only goes to the server when the buffer
+ * is empty. Any number of threads may share one receiver.
+ * <p>
+ * Buffered messages are already locked, and their visibility timeout runs while they wait in the buffer.
+ * A message is only handed out while at least {@link #getMinRemainingTimeout() } milliseconds of its timeout
+ * remain, so that the caller has time to process it. Messages with less time left are released back to the
+ * queue by a background thread - as soon as their time is up, whether or not anyone asks for a message - and all
+ * the buffered messages are released when the receiver is closed.
+ * <p>
+ * Messages are handed out in the order they were received, but with many threads processing them the
+ * order in which they are <em>processed</em> is not guaranteed.
+ */
+public class PrefetchingReceiver {
+
+	public static final int DEFAULT_PREFETCH_COUNT = 10;
+
+	private static final Logger logger = LoggerFactory.getLogger(PrefetchingReceiver.class);
+
+	/**
+	 * A received message, and the time by which it must be handed out.
+	 */
+	private static final class Prefetched {
+		final Message message;
+		final long handOutDeadline;
+
+		Prefetched(Message message, long handOutDeadline) {
+			this.message = message;
+			this.handOutDeadline = handOutDeadline;
+		}
+	}
+
+	private final Queue queue;
+	private final ConcurrentLinkedQueue<Prefetched> buffer = new ConcurrentLinkedQueue<Prefetched>();
+	/** Held while receiving from the queue, so that only one thread refills the buffer at a time. */
+	private final ReentrantLock refillLock = new ReentrantLock();
+	/** Releases the buffered messages whose hand-out deadline passed, at the deadline of each batch. */
+	private final ScheduledExecutorService releaser = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "couchrqs-prefetch-release");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private volatile int prefetchCount;
+	private volatile long visibilityTimeout;
+	private volatile long minRemainingTimeout;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a receiver that prefetches up to <code>prefetchCount</code> messages at a time.<br />
+	 * Messages are received with the queue's visibility timeout, and handed out while at least a third of it
+	 * remains.
+	 */
+	public PrefetchingReceiver(Queue queue, int prefetchCount) {
+		this.queue = queue;
+		this.prefetchCount = prefetchCount;
+		this.visibilityTimeout = queue.getVisibilityTimeout();
+		this.minRemainingTimeout = visibilityTimeout / 3;
+	}
+
+	public PrefetchingReceiver(Queue queue) {
+		this(queue, DEFAULT_PREFETCH_COUNT);
+	}
+
+	/**
+	 * Returns the maximum number of messages received from the queue at once.
+	 */
+	public int getPrefetchCount() {
+		return prefetchCount;
+	}
+
+	/**
+	 * Set the maximum number of messages received from the queue at once.
+	 */
+	public void setPrefetchCount(int prefetchCount) {
+		this.prefetchCount = prefetchCount;
+	}
+
+	/**
+	 * Returns the visibility timeout (in milliseconds) that prefetched messages are received with.
+	 */
+	public long getVisibilityTimeout() {
+		return visibilityTimeout;
+	}
+
+	/**
+	 * Set the visibility timeout (in milliseconds) that prefetched messages are received with.<br />
+	 * It has to cover the time a message waits in the buffer as well as the time it takes to process it.
+	 */
+	public void setVisibilityTimeout(long visibilityTimeout) {
+		this.visibilityTimeout = visibilityTimeout;
+	}
+
+	/**
+	 * Returns the least visibility time (in milliseconds) a message must have left to be handed out.
+	 */
+	public long getMinRemainingTimeout() {
+		return minRemainingTimeout;
+	}
+
+	/**
+	 * Set the least visibility time (in milliseconds) a message must have left to be handed out.
+	 * Messages with less time left are released back to the queue.
+	 */
+	public void setMinRemainingTimeout(long minRemainingTimeout) {
+		this.minRemainingTimeout = minRemainingTimeout;
+	}
+
+	/**
+	 * Returns the number of messages waiting in the buffer.
+	 */
+	public int bufferedCount() {
+		return buffer.size();
+	}
+
+	/**
+	 * Retrieve a single message - from the buffer, or from the queue's head (FIFO) if the buffer is empty.<br />
+	 * The message must be deleted with {@link Queue#deleteMessage(String, String) } like any received message.
+	 *
+	 * @return	a message, or null if no pending messages were found
+	 * @throws RQSException	if the receiver is closed, or wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public Message receiveMessage() throws RQSException {
+		List<Message> stale = new ArrayList<Message>();
+		try {
+			while (true) {
+				if (closed)
+					throw new RQSException("PrefetchingReceiver is closed");
+				Prefetched next = buffer.poll();
+				if (next != null) {
+					if (System.currentTimeMillis() <= next.handOutDeadline)
+						return next.message;
+					stale.add(next.message);
+					continue;
+				}
+				// release before refilling, so that the refill can receive these messages again
+				if (!stale.isEmpty()) {
+					queue.releaseMessages(stale);
+					stale.clear();
+				}
+				refillLock.lock();
+				try {
+					if (closed)
+						throw new RQSException("PrefetchingReceiver is closed");
+					// another thread may have refilled the buffer while this one waited for the lock
+					if (buffer.isEmpty() && !refill())
+						return null;
+				} finally {
+					refillLock.unlock();
+				}
+			}
+		} finally {
+			if (!stale.isEmpty())
+				queue.releaseMessages(stale);
+		}
+	}
+
+	/**
+	 * Receive a batch of messages into the buffer.
+	 * @return false if no messages were received
+	 */
+	private boolean refill() throws RQSException {
+		long timeout = visibilityTimeout;
+		// the lock is taken some time after this, so the deadline errs on the safe side
+		long handOutDeadline = System.currentTimeMillis() + timeout - minRemainingTimeout;
+		List<Message> messages = queue.receiveMessages(prefetchCount, timeout);
+		for (Message message : messages)
+			buffer.add(new Prefetched(message, handOutDeadline));
+		if (messages.isEmpty())
+			return false;
+		try {
+			releaser.schedule(new Runnable() {
+				@Override
+				public void run() {
+					releaseStale(System.currentTimeMillis());
+				}
+			}, Math.max(0, handOutDeadline - System.currentTimeMillis()) + 1, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// closed meanwhile; close() releases the buffer
+		}
+		return true;
+	}
+
+	/**
+	 * Release the buffered messages whose hand-out deadline is before <code>now</code>.
+	 */
+	private void releaseStale(long now) {
+		List<Message> stale = new ArrayList<Message>();
+		for (Prefetched prefetched : buffer) {
+			// a message another thread took meanwhile isn't removed, and stays with that thread
+			if (prefetched.handOutDeadline < now && buffer.remove(prefetched))
+				stale.add(prefetched.message);
+		}
+		try {
+			queue.releaseMessages(stale);
+		} catch (RQSException e) {
+			// their locks run out by themselves
+			logger.warn("Failed to release " + stale.size() + " stale messages of " + queue.getName(), e);
+		}
+	}
+
+	/**
+	 * Release the buffered messages back to the queue, and stop handing out messages.<br />
+	 * Messages that were already handed out are not affected.
+	 */
+	public void close() throws RQSException {
+		closed = true;
+		releaser.shutdownNow();
+		refillLock.lock();
+		try {
+			List<Message> unused = new ArrayList<Message>();
+			Prefetched next;
+			while ((next = buffer.poll()) != null)
+				unused.add(next.message);
+			queue.releaseMessages(unused);
+		} finally {
+			refillLock.unlock();
+		}
+	}
+
+}
@@ -6,54 +6,124 @@
 
 package com.couchrqs;
 
-import com.jzboy.couchdb.CouchDBException;
 import com.jzboy.couchdb.Database;
 import com.jzboy.couchdb.Document;
 import com.jzboy.couchdb.Server;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import org.apache.http.NameValuePair;
-import org.apache.http.message.BasicNameValuePair;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.ObjectNode;
 
 /**
  * This class provides methods that enqueue, dequeue and delete queue messages.
- * Queues are acquired through the methods in QueueService.
+ * Queues are acquired through the methods in QueueService.<br />
+ * Messages are stored through a {@link QueueBackend} - by default in a CouchDB database.
  * <p>
  * You can use <code>Queue</code> as a stack and receive messages in LIFO order. Note however that
  * FIFO/LIFO style isn't enforced anywhere, so it is up to your code to do this in a consistent manner.
  * <p>
- * The queue orders messages using timestamps assigned locally using the system time.
- * If processes on different machines add messages to the queue, discrepancies in system clocks
- * affect the ordering of messages.
+ * The queue orders messages by the time they were sent, as told by a {@link HybridClock}: messages sent by one
+ * process are always in the order they were sent in, and a message sent after another one was received comes after
+ * it. Otherwise, if processes on different machines add messages to the queue, discrepancies in system clocks
+ * affect the ordering of messages. Messages sent at the same time are ordered by id.
+ * <p>
+ * Messages can be sent in a <em>message group</em>, e.g. one per customer, when their order matters only within
+ * the group. Receives hand out at most one message of each group at a time - the group's oldest - and the group's
+ * next message only once that one is deleted, or released, or its lock expires. Messages of different groups are
+ * received in parallel, so the more groups are active, the more consumers can work on the queue at once. Messages
+ * sent without a group are received as usual. Receiving a message by its id ignores its group.
+ * <p>
+ * Messages can also carry <em>attributes</em> - named strings, numbers or booleans, e.g. a message type - and be
+ * received by attribute, with {@link #receiveMessages(int, java.lang.String, java.lang.Object) }. Only messages
+ * with a matching attribute are locked and downloaded, so a consumer that handles some types of messages never
+ * takes the others. Attribute receives keep to message groups as well.
+ * <p>
+ * Messages can be given a time to live when sent, or take the queue's {@link #setRetentionPeriod(long) retention
+ * period}. A message whose time is up is never received again, and is deleted in the background by the
+ * {@link QueueService} - see {@link QueueBackend#deleteExpired(long, int) }.
+ * <p>
+ * A Queue is thread-safe, and meant to be shared: every operation makes its own requests, and keeps no state
+ * between calls, so any number of threads can send and receive through one Queue - and through the connection pool
+ * of the {@link QueueService} it came from. A message's receipt token guards it against being deleted or released
+ * by another thread or process, as usual.
  */
 public class Queue {
 
 	static final String RQS_DESIGN_DOC_NAME = "couchrqs";
 	static final String	RQS_PENDING_VIEW_NAME = "pending";
 	static final String RQS_LOCKED_VIEW_NAME = "locked";
+	static final String RQS_GROUPS_VIEW_NAME = "groups";
+	static final String RQS_ATTRIBUTES_VIEW_NAME = "attributes";
+	static final String RQS_EXPIRING_VIEW_NAME = "expiring";
+	static final String RQS_LOCK_UPDATE_NAME = "lock";
+	static final String RQS_EXTEND_LOCK_UPDATE_NAME = "extend_lock";
 
 	static final long DEFAULT_VISIBILITY_TIMEOUT = 30000;
 	static final String MESSAGE_ATTACHMENT_NAME = "message";
 	static final String MESSAGE_MIME_TYPE = "application/octet-stream";
+	static final String MESSAGE_GROUP_FIELD = "group";
+	static final String MESSAGE_ATTRIBUTES_FIELD = "attributes";
+	/** When the message expires, in milliseconds. Messages without it are kept until deleted. */
+	static final String MESSAGE_EXPIRES_FIELD = "expires_at";
+	/** The most messages whose status is read with one request. */
+	static final int STATUS_BATCH_SIZE = 1000;
+
+	/** Stamps the messages sent by this process. */
+	static final HybridClock CLOCK = new HybridClock();
+	private static final Random ID_RANDOM = new Random();
+	/** Tells apart ids generated by different processes with the same stamp. */
+	private static final String ID_PREFIX = String.format("%08x", ID_RANDOM.nextInt());
+	/**
+	 * Follows the stamp in the ids generated by {@link #newMessageId(long) }. It isn't a hex digit, so it never
+	 * appears in a UUID generated by CouchDB.
+	 */
+	private static final char ID_MARKER = 'r';
+	private static final int ID_MARKER_INDEX = 16;
 
+	/** The underlying CouchDB database, or null if this queue isn't stored in CouchDB. */
 	final Database db;
+	final QueueBackend backend;
+	final QueueMetrics metrics;
 	/** The visibility timeout (in milliseconds) to use for messages in this queue. */
-	private long visibilityTimeout;
+	private volatile long visibilityTimeout;
 	/** Identification used in locking messages. */
-	private String processId;
+	private volatile String processId;
+	/** How long (in milliseconds) messages sent through this object are kept, or 0 to keep them until deleted. */
+	private volatile long retentionPeriod;
 
+	/**
+	 * Creates an object for an existing queue on the server. All the queues created this way on the same server share
+	 * a connection pool, which stays open for the life of the process. Nothing is read from the server until the
+	 * queue is first used.
+	 *
+	 * @deprecated	get queues through a {@link QueueService}, which shares one connection pool among all of them,
+	 *				closes it on {@link QueueService#shutdown() }, and checks that the queue exists
+	 */
+	@Deprecated
 	public Queue(Server couchDB, String name) {
-		db = new Database(couchDB, name);
+		this(CouchDBBackend.openQueue(couchDB, name), new QueueMetrics());
+	}
+
+	Queue(QueueBackend backend, QueueMetrics metrics) {
+		this.backend = backend;
+		this.metrics = metrics;
+		db = (backend instanceof CouchDBQueueBackend) ? ((CouchDBQueueBackend) backend).db : null;
 		visibilityTimeout = DEFAULT_VISIBILITY_TIMEOUT;
 		processId = ManagementFactory.getRuntimeMXBean().getName();
 	}
 
 	public String getName() {
-		return db.getDbName();
+		return backend.getName();
 	}
 
 	/**
@@ -87,6 +157,25 @@ public class Queue {
 		this.visibilityTimeout = visibilityTimeout;
 	}
 
+	/**
+	 * Return how long (in milliseconds) messages sent to this queue are kept, unless sent with a time to live of
+	 * their own, or 0 if they're kept until deleted.
+	 */
+	public long getRetentionPeriod() {
+		return retentionPeriod;
+	}
+
+	/**
+	 * Set how long (in milliseconds) messages sent to this queue are kept, unless sent with a time to live of their
+	 * own. 0, the default, keeps them until they're deleted.<br />
+	 * The period is stamped on each message as it's sent, so it applies to the messages sent through this object
+	 * from now on - like the visibility timeout, it's not shared with other processes. Messages sent through a
+	 * {@link BufferedSender} are kept until deleted.
+	 */
+	public void setRetentionPeriod(long retentionPeriod) {
+		this.retentionPeriod = retentionPeriod;
+	}
+
 	/**
 	 * Add a message to the queue.<br />
 	 * Treats the message as an opaque binary. No parsing is performed on it and it is added as
@@ -100,140 +189,384 @@ public class Queue {
 	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer
 	 */
 	public String sendMessage(byte[] data) throws RQSException {
+		return sendMessage(data, null);
+	}
+
+	/**
+	 * Add a message to a message group in the queue.<br />
+	 * Otherwise the same as {@link #sendMessage(byte[]) }.
+	 *
+	 * @param data		the message content
+	 * @param groupId	the message group, or null to send the message without a group
+	 * @return	an id that uniquely identifies the message on this queue
+	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public String sendMessage(byte[] data, String groupId) throws RQSException {
+		return sendMessage(data, groupId, null);
+	}
+
+	/**
+	 * Add a message with attributes to the queue.<br />
+	 * Otherwise the same as {@link #sendMessage(byte[], java.lang.String) }.
+	 *
+	 * @param data			the message content
+	 * @param groupId		the message group, or null to send the message without a group
+	 * @param attributes	the message's attributes, or null for none. Values must be strings, numbers or booleans
+	 * @return	an id that uniquely identifies the message on this queue
+	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer
+	 * @throws IllegalArgumentException	if an attribute value is of another type
+	 */
+	public String sendMessage(byte[] data, String groupId, Map<String, ?> attributes) throws RQSException {
+		return sendMessage(data, groupId, attributes, retentionPeriod);
+	}
+
+	/**
+	 * Add a message to the queue, to be deleted once its time to live is up if it wasn't already.<br />
+	 * Otherwise the same as {@link #sendMessage(byte[]) }.
+	 *
+	 * @param data			the message content
+	 * @param timeToLive	how long (in milliseconds) to keep the message, or 0 to keep it until it's deleted
+	 * @return	an id that uniquely identifies the message on this queue
+	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public String sendMessage(byte[] data, long timeToLive) throws RQSException {
+		return sendMessage(data, null, null, timeToLive);
+	}
+
+	/**
+	 * Add a message with a group, attributes and a time to live to the queue.<br />
+	 * Otherwise the same as {@link #sendMessage(byte[], java.lang.String, java.util.Map) }.
+	 *
+	 * @param data			the message content
+	 * @param groupId		the message group, or null to send the message without a group
+	 * @param attributes	the message's attributes, or null for none. Values must be strings, numbers or booleans
+	 * @param timeToLive	how long (in milliseconds) to keep the message, or 0 to keep it until it's deleted
+	 * @return	an id that uniquely identifies the message on this queue
+	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer
+	 * @throws IllegalArgumentException	if an attribute value is of another type
+	 */
+	public String sendMessage(byte[] data, String groupId, Map<String, ?> attributes, long timeToLive)
+			throws RQSException
+	{
+		long start = metrics.start();
+		boolean succeeded = false;
 		try {
-			String uuid = db.getServer().nextUUID();
 			ObjectNode json = new ObjectNode(JsonNodeFactory.instance);
-			json.put("sent_at", System.currentTimeMillis());
-			Document doc = db.createDocument(new Document(uuid, json));
-			db.saveAttachment(doc, MESSAGE_ATTACHMENT_NAME, data, MESSAGE_MIME_TYPE);
-			return uuid;
-		} catch (Exception e) {
-			throw new RQSException(e);
+			long stamp = CLOCK.now();
+			putSentStamp(json, stamp);
+			putGroupId(json, groupId);
+			putAttributes(json, attributes);
+			putExpiry(json, stamp, timeToLive);
+			String id = backend.createMessage(json, data);
+			succeeded = true;
+			return id;
+		} finally {
+			metrics.completed(QueueMetrics.Operation.SEND, getName(), start, succeeded);
 		}
 	}
 
 	/**
-	 * Get as many as maxNumberOfMessages messages from the specified view.<br />
-	 * The descending param is used to get LIFO (if true) or FIFO (if false) behavior.
+	 * Add several messages to the queue in a single bulk operation.<br />
+	 * The messages are ordered in the queue as they are ordered in the list.
+	 * <p>
+	 * This saves round trips when sending many small messages. For large messages prefer
+	 * {@link #sendMessage(byte[]) }, which uploads the payload as is rather than encoded inside a JSON request.
+	 *
+	 * @param data	the contents of the messages
+	 * @return	the ids of the new messages, in the same order
+	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public List<String> sendMessages(List<byte[]> data) throws RQSException {
+		return sendMessages(data, null);
+	}
+
+	/**
+	 * Add several messages to a message group in a single bulk operation.<br />
+	 * Otherwise the same as {@link #sendMessages(java.util.List) }.
+	 *
+	 * @param data		the contents of the messages
+	 * @param groupId	the message group, or null to send the messages without a group
+	 * @return	the ids of the new messages, in the same order
+	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public List<String> sendMessages(List<byte[]> data, String groupId) throws RQSException {
+		return sendMessages(data, groupId, null);
+	}
+
+	/**
+	 * Add several messages, with the same attributes, in a single bulk operation.<br />
+	 * Otherwise the same as {@link #sendMessages(java.util.List, java.lang.String) }.
+	 *
+	 * @param data			the contents of the messages
+	 * @param groupId		the message group, or null to send the messages without a group
+	 * @param attributes	the attributes of every message, or null for none. Values must be strings, numbers or
+	 *						booleans
+	 * @return	the ids of the new messages, in the same order
+	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer
+	 * @throws IllegalArgumentException	if an attribute value is of another type
 	 */
-	private List<Document> getPendingDocsFromView(String viewName, 
-												  final int maxNumberOfMessages,
-												  final boolean descending)
+	public List<String> sendMessages(List<byte[]> data, String groupId, Map<String, ?> attributes)
 			throws RQSException
 	{
-		List<NameValuePair> params = new ArrayList<NameValuePair>() {{
-				add(new BasicNameValuePair("include_docs", "true"));
-				add(new BasicNameValuePair("limit", String.valueOf(maxNumberOfMessages)));
-				if (descending)
-					add(new BasicNameValuePair("descending", "true"));
-		}};
-		try {
-			return db.queryView(RQS_DESIGN_DOC_NAME, viewName, params);
-		} catch (Exception e) {
-			throw new RQSException(e);
+		return sendMessages(data, groupId, attributes, retentionPeriod);
+	}
+
+	/**
+	 * Add several messages, with the same attributes and time to live, in a single bulk operation.<br />
+	 * Otherwise the same as {@link #sendMessages(java.util.List, java.lang.String, java.util.Map) }.
+	 *
+	 * @param data			the contents of the messages
+	 * @param groupId		the message group, or null to send the messages without a group
+	 * @param attributes	the attributes of every message, or null for none. Values must be strings, numbers or
+	 *						booleans
+	 * @param timeToLive	how long (in milliseconds) to keep each message, or 0 to keep them until they're deleted
+	 * @return	the ids of the new messages, in the same order
+	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer
+	 * @throws IllegalArgumentException	if an attribute value is of another type
+	 */
+	public List<String> sendMessages(List<byte[]> data, String groupId, Map<String, ?> attributes, long timeToLive)
+			throws RQSException
+	{
+		List<Message> messages = new ArrayList<Message>(data.size());
+		List<String> ids = new ArrayList<String>(data.size());
+		for (byte[] d : data) {
+			long stamp = CLOCK.now();
+			Message message = newMessage(newMessageId(stamp), stamp, d);
+			putGroupId((ObjectNode) message.getDoc().getJson(), groupId);
+			putAttributes((ObjectNode) message.getDoc().getJson(), attributes);
+			putExpiry((ObjectNode) message.getDoc().getJson(), stamp, timeToLive);
+			messages.add(message);
+			ids.add(message.getMessageId());
 		}
+		sendPrepared(messages);
+		return ids;
 	}
 
 	/**
-	 * Get the specified messages from the database.
+	 * Store messages that were already assigned ids and send times, e.g. by a {@link BufferedSender}.<br />
+	 * Messages whose ids are already in the queue are skipped.
 	 */
-	private List<Document> getDocsFromDatabase(List<String> messageIds) throws RQSException	{
+	void sendPrepared(List<Message> messages) throws RQSException {
+		if (messages.isEmpty())
+			return;
+		long start = metrics.start();
+		boolean succeeded = false;
 		try {
-			return db.getDocuments(messageIds, true);
-		} catch (Exception e) {
-			throw new RQSException(e);
+			backend.createMessages(messages);
+			succeeded = true;
+		} finally {
+			metrics.completed(QueueMetrics.Operation.SEND, getName(), start, succeeded);
 		}
 	}
 
 	/**
-	 * Create a JSON lock object.<br />
-	 * This is added to the message document to signify that it was locked by this process.
+	 * Returns a new unique message id, for a message sent now.
 	 */
-	private JsonNode createLock(long visibilityTimeout) {
-		ObjectNode lock = new ObjectNode(JsonNodeFactory.instance);
-		lock.put("locked_at", System.currentTimeMillis());
-		lock.put("locked_by", this.processId);
-		lock.put("visibility_timeout", visibilityTimeout);
-		return lock;
+	static String newMessageId() {
+		return newMessageId(CLOCK.now());
 	}
 
 	/**
-	 * Attempts to lock the documents - bulk-update them with a "lock" field.<br />
-	 * Returns the result of the bulk update. Some or all of the documents may not have been saved
-	 * due to update conflict (some other process had already updated these docs).
+	 * Returns a new unique message id, 32 characters long like the UUIDs generated by CouchDB.<br />
+	 * Like CouchDB's "utc_random" algorithm, ids begin with the time the message was sent - here, its
+	 * {@link HybridClock} stamp, in 16 hex digits - so they sort in the order messages were sent - see
+	 * {@link ReceiveMode#ID}. The stamp is followed by the letter 'r', which tells these ids apart from CouchDB's,
+	 * then a random prefix chosen once per process, and random digits.
 	 */
-	private ArrayList<JsonNode> lockDocuments(List<Document> docs, long visibilityTimeout) throws RQSException {
-		// ensure that the bulk cache size is larger than the docs list, so that it won't flush early
-		final int bulkSize = docs.size() << 1;
-		if (db.getBulkUpdatesLimit() < bulkSize)
-			db.setBulkUpdatesLimit(bulkSize);
-		
-		JsonNode lock = createLock(visibilityTimeout);
+	static String newMessageId(long stamp) {
+		return String.format("%012x%04x%c%s%07x", HybridClock.millis(stamp), HybridClock.logical(stamp), ID_MARKER,
+							 ID_PREFIX, ID_RANDOM.nextInt() & 0xfffffff);
+	}
+
+	/**
+	 * Returns the time the message id was generated by {@link #newMessageId() }, or -1 if it wasn't - e.g. it was
+	 * generated by CouchDB, or by an older version of RQS, whose ids had no marker.
+	 */
+	static long messageIdTime(String messageId) {
+		if (messageId.length() != 32 || messageId.charAt(ID_MARKER_INDEX) != ID_MARKER)
+			return -1;
 		try {
-			for (Document doc : docs) {
-				ObjectNode json = (ObjectNode) doc.getJson();
-				json.put("lock", lock);
-				db.saveInBulk(doc);
-			}
-			return db.flushBulkUpdatesCache(false, true);
-		} catch (Exception e) {
-			throw new RQSException(e);
+			return Long.parseLong(messageId.substring(0, 12), 16);
+		} catch (NumberFormatException e) {
+			return -1;
 		}
 	}
 
 	/**
-	 * Returns a list of Messages that encapsulate the given documents.
-	 * </p>
-	 * The lockResults JSONs contain message ids, that should match ids in docs, and an optional error.
-	 * Get this list by calling {@link #lockDocuments(java.util.List, long) }.<br />
-	 * This method only creates and returns Message object for docs that had no lock errors.
+	 * Create a message that hasn't been stored yet.
 	 */
-	/*
-	 * This runs in O(n^2) time. I'm assuming that normally people won't retrieve lots of messages
-	 * at once. Still, consider revising for long lists.
+	static Message newMessage(String id, long stamp, byte[] data) {
+		ObjectNode json = new ObjectNode(JsonNodeFactory.instance);
+		putSentStamp(json, stamp);
+		return new Message(new Document(id, json), data);
+	}
+
+	/**
+	 * Set the time the message was sent: "sent_at" is the time in milliseconds, which the message is ordered by,
+	 * and "sent_seq" breaks ties between messages sent in the same millisecond.
 	 */
-	private ArrayList<Message> createMessagesFromLockedDocs(List<Document> docs, List<JsonNode> lockResults) {
-		ArrayList<Message> messages = new ArrayList<Message>();
-		for (JsonNode res : lockResults) {
-			if (res.get("error") != null)
-				continue;
-			String id = res.get("id").getTextValue();
-			String rev = res.get("rev").getTextValue();
-			Document doc = findDocById(docs, id);
-			doc.setRev(rev);
-			messages.add(new Message(doc));
-		}
-		return messages;
+	static void putSentStamp(ObjectNode json, long stamp) {
+		json.put("sent_at", HybridClock.millis(stamp));
+		json.put("sent_seq", HybridClock.logical(stamp));
+	}
+
+	/**
+	 * Returns the {@link HybridClock} stamp of the time the message was sent. Messages sent by older versions of
+	 * RQS have no "sent_seq".
+	 */
+	static long getSentStamp(JsonNode json) {
+		return HybridClock.stamp(json.path("sent_at").getLongValue(), json.path("sent_seq").getIntValue());
+	}
+
+	private static void putGroupId(ObjectNode json, String groupId) {
+		if (groupId != null)
+			json.put(MESSAGE_GROUP_FIELD, groupId);
+	}
+
+	/**
+	 * Returns the message group of the document, or null if it has none. An empty group id counts as none.
+	 */
+	static String getGroupId(JsonNode json) {
+		String groupId = json.path(MESSAGE_GROUP_FIELD).getTextValue();
+		return (groupId == null || groupId.length() == 0) ? null : groupId;
+	}
+
+	private static void putAttributes(ObjectNode json, Map<String, ?> attributes) {
+		if (attributes == null || attributes.isEmpty())
+			return;
+		ObjectNode node = json.putObject(MESSAGE_ATTRIBUTES_FIELD);
+		for (Map.Entry<String, ?> attribute : attributes.entrySet())
+			node.put(attribute.getKey(), toAttributeNode(attribute.getValue()));
+	}
+
+	/**
+	 * Set when the message expires: <code>timeToLive</code> milliseconds after it was sent, or never if that's 0.
+	 */
+	static void putExpiry(ObjectNode json, long stamp, long timeToLive) {
+		if (timeToLive > 0)
+			json.put(MESSAGE_EXPIRES_FIELD, HybridClock.millis(stamp) + timeToLive);
 	}
 
 	/**
-	 * Return the first document in the list whose id is the same as the id specified, or null
-	 * if no such document is found.
+	 * Returns when the message expires, in milliseconds, or 0 if it's kept until deleted.
 	 */
-	private Document findDocById(List<Document> docs, String id) {
-		for (Document doc : docs) {
-			if (doc.getId().equals(id))
-				return doc;
+	static long getExpiresAt(JsonNode json) {
+		return json.path(MESSAGE_EXPIRES_FIELD).getLongValue();
+	}
+
+	static boolean isExpired(JsonNode json, long now) {
+		long expiresAt = getExpiresAt(json);
+		return expiresAt > 0 && expiresAt <= now;
+	}
+
+	/**
+	 * Returns the JSON value of an attribute.
+	 * @throws IllegalArgumentException	if the value isn't a string, a number or a boolean
+	 */
+	static JsonNode toAttributeNode(Object value) {
+		if (value instanceof String)
+			return JsonNodeFactory.instance.textNode((String) value);
+		if (value instanceof Boolean)
+			return JsonNodeFactory.instance.booleanNode((Boolean) value);
+		if (value instanceof Double || value instanceof Float)
+			return JsonNodeFactory.instance.numberNode(((Number) value).doubleValue());
+		if (value instanceof Number)
+			return JsonNodeFactory.instance.numberNode(((Number) value).longValue());
+		throw new IllegalArgumentException("Attribute values must be strings, numbers or booleans, not " + value);
+	}
+
+	/**
+	 * Returns the attributes of the document, as strings, longs, doubles and booleans.
+	 */
+	static Map<String, Object> getAttributes(JsonNode json) {
+		Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+		JsonNode node = json.path(MESSAGE_ATTRIBUTES_FIELD);
+		Iterator<String> names = node.getFieldNames();
+		while (names.hasNext()) {
+			String name = names.next();
+			JsonNode value = node.get(name);
+			if (value.isTextual())
+				attributes.put(name, value.getTextValue());
+			else if (value.isBoolean())
+				attributes.put(name, value.getBooleanValue());
+			else if (value.isIntegralNumber())
+				attributes.put(name, value.getLongValue());
+			else if (value.isNumber())
+				attributes.put(name, value.getDoubleValue());
 		}
-		return null;
+		return Collections.unmodifiableMap(attributes);
+	}
+
+	/**
+	 * Returns true if the document's attribute has the value - compared like CouchDB collates them, so numbers
+	 * are equal whatever their type.
+	 */
+	static boolean hasAttribute(JsonNode json, String name, JsonNode value) {
+		JsonNode actual = json.path(MESSAGE_ATTRIBUTES_FIELD).get(name);
+		if (actual == null)
+			return false;
+		if (actual.isNumber() && value.isNumber())
+			return actual.getDoubleValue() == value.getDoubleValue();
+		return actual.equals(value);
+	}
+
+	/**
+	 * Create a JSON lock object.<br />
+	 * This is added to the message document to signify that it was locked by this process.
+	 */
+	private JsonNode createLock(long visibilityTimeout) {
+		ObjectNode lock = new ObjectNode(JsonNodeFactory.instance);
+		lock.put("locked_at", System.currentTimeMillis());
+		lock.put("locked_by", this.processId);
+		lock.put("visibility_timeout", visibilityTimeout);
+		return lock;
 	}
 
+	/**
+	 * Attempts to lock the documents, and returns Messages for those docs that were locked successfully.<br />
+	 * Some or all of the documents may not be locked due to update conflict (some other process had
+	 * already updated these docs).
+	 */
 	private List<Message> lockAndGetAttachments(List<Document> docs, long visibilityTimeout) throws RQSException {
+		ArrayList<Message> messages = new ArrayList<Message>();
 		if (docs.isEmpty()) // no messages found
-			return new ArrayList<Message>();
-		List<JsonNode> lockResults = lockDocuments(docs, visibilityTimeout);
-		// only use docs messages that were successfully locked
-		ArrayList<Message> messages = createMessagesFromLockedDocs(docs, lockResults);
-		// the message data is a document attachment, and must be retrieved separately
-		for (Message message : messages) {
-			byte[] data;
+			return messages;
+		int attempted = docs.size();
+		List<Document> lockedDocs;
+		if (docs.size() == 1) {
+			// lock on the server, rather than sending the whole document back
+			Document doc = docs.get(0);
+			lockedDocs = new ArrayList<Document>(1);
 			try {
-				data = db.getAttachment(message.getDoc().getId(), MESSAGE_ATTACHMENT_NAME);
-			} catch (Exception e) {
-				throw new RQSException(e);
+				Document lockedDoc = backend.lockDocument(doc.getId(), doc.getRev(), createLock(visibilityTimeout));
+				if (lockedDoc != null)
+					lockedDocs.add(lockedDoc);
+			} catch (ReceiptTokenOutOfDateException e) {
+				// another process locked it first
 			}
-			message.setData(data);
+		} else {
+			lockedDocs = backend.lockDocuments(docs, createLock(visibilityTimeout));
 		}
+		metrics.locksAttempted(getName(), attempted, attempted - lockedDocs.size());
+		if (lockedDocs.isEmpty())
+			return messages;
+		// whatever this process sends from now on comes after these messages
+		for (Document doc : lockedDocs)
+			CLOCK.update(getSentStamp(doc.getJson()));
+		// the message data is a document attachment, and must be retrieved separately
+		long fetchStart = System.nanoTime();
+		if (lockedDocs.size() == 1) {
+			Document doc = lockedDocs.get(0);
+			messages.add(new Message(doc, backend.getPayload(doc.getId())));
+		} else {
+			List<String> ids = new ArrayList<String>(lockedDocs.size());
+			for (Document doc : lockedDocs)
+				ids.add(doc.getId());
+			Map<String, byte[]> payloads = backend.getPayloads(ids);
+			for (Document doc : lockedDocs)
+				messages.add(new Message(doc, payloads.get(doc.getId())));
+		}
+		metrics.attachmentsFetched(getName(), messages.size(), fetchStart);
 		return messages;
 	}
 
@@ -243,15 +576,36 @@ public class Queue {
 	 * Returns an empty list if there are no messages pending, or there are messages pending, but the
 	 * attempt to lock them failed - probably because another process had locked the same messages first.
 	 * In that case, the call should be attempted again after a while.<br />
-	 * Note that this method only returns those messages for which a lock was acquired successfully.
+	 * Note that this method only returns those messages for which a lock was acquired successfully.<br />
+	 * If <code>attributeName</code> isn't null, only messages whose attribute has <code>attributeValue</code> are
+	 * received. If <code>attempted</code> isn't null, its first element is set to the number of messages this call
+	 * tried to lock.
 	 */
-	private List<Message> doReceiveMessages(int maxNumberOfMessages, long visibilityTimeout, boolean descending)
-		throws RQSException
+	private List<Message> doReceiveMessages(int maxNumberOfMessages, long visibilityTimeout, boolean descending,
+											String attributeName, Object attributeValue, int[] attempted)
+			throws RQSException
 	{
-		List<Document> docs = getPendingDocsFromView(RQS_PENDING_VIEW_NAME,
-													 maxNumberOfMessages,
-													 descending);
-		return lockAndGetAttachments(docs, visibilityTimeout);
+		long start = metrics.start();
+		boolean succeeded = false;
+		try {
+			List<Document> docs = (attributeName == null) ? backend.queryPending(maxNumberOfMessages, descending) :
+					backend.queryPendingByAttribute(attributeName, toAttributeNode(attributeValue),
+													maxNumberOfMessages, descending);
+			// expired messages wait to be deleted in the background
+			long now = System.currentTimeMillis();
+			for (Iterator<Document> i = docs.iterator(); i.hasNext(); ) {
+				if (isExpired(i.next().getJson(), now))
+					i.remove();
+			}
+			if (attempted != null)
+				attempted[0] = docs.size();
+			List<Message> messages = lockAndGetAttachments(docs, visibilityTimeout);
+			metrics.received(messages.size());
+			succeeded = true;
+			return messages;
+		} finally {
+			metrics.completed(QueueMetrics.Operation.RECEIVE, getName(), start, succeeded);
+		}
 	}
 
 	/**
@@ -263,7 +617,41 @@ public class Queue {
 	 * @return	a list of messages for processing. The list may be empty but never null.
 	 */
 	public List<Message> receiveMessages(int maxNumberOfMessages, long visibilityTimeout) throws RQSException {
-		return doReceiveMessages(maxNumberOfMessages, visibilityTimeout, false);
+		return doReceiveMessages(maxNumberOfMessages, visibilityTimeout, false, null, null, null);
+	}
+
+	/**
+	 * Retrieves up to maxNumberOfMessages messages that have the attribute value, from the queue's head (FIFO).<br />
+	 * Messages without it are neither locked nor downloaded. Otherwise behaves the same as
+	 * {@link #receiveMessages(int, long) }
+	 *
+	 * @param maxNumberOfMessages	maximum number of messages that will be retrieved
+	 * @param visibilityTimeout		visibility timeout assigned to those messages. Overrides this queue's default
+	 * @param attributeName			the attribute to select on
+	 * @param attributeValue		the value of the attribute - a string, a number or a boolean
+	 * @return	a list of messages for processing. The list may be empty but never null.
+	 * @throws IllegalArgumentException	if the value is of another type
+	 */
+	public List<Message> receiveMessages(int maxNumberOfMessages, long visibilityTimeout, String attributeName,
+										 Object attributeValue) throws RQSException
+	{
+		return doReceiveMessages(maxNumberOfMessages, visibilityTimeout, false, attributeName, attributeValue, null);
+	}
+
+	public List<Message> receiveMessages(int maxNumberOfMessages, String attributeName, Object attributeValue)
+			throws RQSException
+	{
+		return receiveMessages(maxNumberOfMessages, this.visibilityTimeout, attributeName, attributeValue);
+	}
+
+	/**
+	 * Like {@link #receiveMessages(int, long) }, and also tells how many messages it tried to lock, for an
+	 * {@link AdaptiveReceiver} to tell conflicts from an emptying queue.
+	 */
+	List<Message> receiveMessages(int maxNumberOfMessages, long visibilityTimeout, int[] attempted)
+			throws RQSException
+	{
+		return doReceiveMessages(maxNumberOfMessages, visibilityTimeout, false, null, null, attempted);
 	}
 
 	/**
@@ -271,7 +659,7 @@ public class Queue {
 	 * Other than LIFO instead of FIFO, behaves the same as {@link #receiveMessages(int, long) }
 	 */
 	public List<Message> receiveMessagesFromTail(int maxNumberOfMessages, long visibilityTimeout) throws RQSException {
-		return doReceiveMessages(maxNumberOfMessages, visibilityTimeout, true);
+		return doReceiveMessages(maxNumberOfMessages, visibilityTimeout, true, null, null, null);
 	}
 
 	public List<Message> receiveMessages(int maxNumberOfMessages) throws RQSException {
@@ -290,10 +678,17 @@ public class Queue {
 	 * @return	a list of messages for processing. The list may be empty but never <code>null</code>.
 	 */
 	public List<Message> receiveMessages(List<String> messageIds, long visibilityTimeout) throws RQSException {
-		for (String id : messageIds)
-			System.out.println("messageId: " + id);
-		List<Document> docs = getDocsFromDatabase(messageIds);
-		return lockAndGetAttachments(docs, visibilityTimeout);
+		long start = metrics.start();
+		boolean succeeded = false;
+		try {
+			List<Document> docs = backend.getDocuments(messageIds);
+			List<Message> messages = lockAndGetAttachments(docs, visibilityTimeout);
+			metrics.received(messages.size());
+			succeeded = true;
+			return messages;
+		} finally {
+			metrics.completed(QueueMetrics.Operation.RECEIVE, getName(), start, succeeded);
+		}
 	}
 
 	/**
@@ -330,23 +725,31 @@ public class Queue {
 	 * @return	a message, or null if no pending messages were found
 	 */
 	public Message receiveMessage(String messageId, long visibilityTimeout) throws RQSException {
+		long start = metrics.start();
+		boolean succeeded = false;
 		try {
-			Document doc = db.getDocumentOrNull(messageId);
-			if (null == doc)
-				return null;
-			// lock the document
-			ObjectNode json = (ObjectNode) doc.getJson();
-			json.put("lock", createLock(visibilityTimeout));
-			Document lockedDoc = db.updateDocument(doc);
-			byte[] data;
+			Document lockedDoc;
 			try {
-				data = db.getAttachment(lockedDoc.getId(), MESSAGE_ATTACHMENT_NAME);
-			} catch (Exception e) {
-				throw new RQSException(e);
+				lockedDoc = backend.lockDocument(messageId, null, createLock(visibilityTimeout));
+			} catch (ReceiptTokenOutOfDateException e) {
+				metrics.locksAttempted(getName(), 1, 1);
+				throw e;
 			}
-			return new Message(lockedDoc, data);
-		} catch (Exception e) {
-			throw new RQSException(e);
+			if (null == lockedDoc) {
+				metrics.received(0);
+				succeeded = true;
+				return null;
+			}
+			metrics.locksAttempted(getName(), 1, 0);
+			CLOCK.update(getSentStamp(lockedDoc.getJson()));
+			long fetchStart = System.nanoTime();
+			Message message = new Message(lockedDoc, backend.getPayload(lockedDoc.getId()));
+			metrics.attachmentsFetched(getName(), 1, fetchStart);
+			metrics.received(1);
+			succeeded = true;
+			return message;
+		} finally {
+			metrics.completed(QueueMetrics.Operation.RECEIVE, getName(), start, succeeded);
 		}
 	}
 
@@ -377,19 +780,182 @@ public class Queue {
 	public void deleteMessage(String messageId, String receiptToken)
 			throws NoSuchMessageException, ReceiptTokenOutOfDateException, RQSException
 	{
-		Document doc = new Document(messageId, receiptToken);
+		long start = metrics.start();
+		boolean succeeded = false;
+		try {
+			backend.deleteDocument(messageId, receiptToken);
+			succeeded = true;
+		} finally {
+			metrics.completed(QueueMetrics.Operation.DELETE, getName(), start, succeeded);
+		}
+	}
+
+	/**
+	 * Return a received message to the queue right away, instead of waiting for its visibility timeout.<br />
+	 * Use this when the message can't be processed now - on shutdown, or after a transient failure - so that
+	 * another process can receive it.
+	 *
+	 * @param message	a message received by this process
+	 *
+	 * @throws ReceiptTokenOutOfDateException	if the message's receipt token is no longer valid - probably because
+	 * the original timeout was exceeded and another process got a lock on the message
+	 * @throws RQSException					wraps any other exception thrown by the underlying CouchDB layer
+	 */
+	public void releaseMessage(Message message) throws ReceiptTokenOutOfDateException, RQSException {
+		releaseMessage(message, 0);
+	}
+
+	/**
+	 * Return a received message to the queue after the specified delay.<br />
+	 * The message stays invisible for <code>delay</code> more milliseconds, as if its visibility timeout had been
+	 * set to end then, and then becomes available to all processes - including this one.
+	 *
+	 * @param message	a message received by this process
+	 * @param delay		milliseconds from now until the message becomes available. Zero releases it right away
+	 *
+	 * @throws ReceiptTokenOutOfDateException	if the message's receipt token is no longer valid
+	 * @throws RQSException					wraps any other exception thrown by the underlying CouchDB layer
+	 */
+	public void releaseMessage(Message message, long delay) throws ReceiptTokenOutOfDateException, RQSException {
+		long start = metrics.start();
+		boolean succeeded = false;
+		try {
+			backend.updateDocument(prepareRelease(message, delay, System.currentTimeMillis()));
+			succeeded = true;
+		} finally {
+			metrics.completed(QueueMetrics.Operation.RELEASE, getName(), start, succeeded);
+		}
+	}
+
+	/**
+	 * Return received messages to the queue right away, in a single bulk update.<br />
+	 * A message whose receipt token is no longer valid is skipped - its lock is no longer ours to remove.
+	 *
+	 * @param messages	messages received by this process
+	 * @return	the ids of the messages that were released
+	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public List<String> releaseMessages(Collection<Message> messages) throws RQSException {
+		return releaseMessages(messages, 0);
+	}
+
+	/**
+	 * Return received messages to the queue after the specified delay, in a single bulk update.<br />
+	 * See {@link #releaseMessage(Message, long) } and {@link #releaseMessages(Collection) }.
+	 */
+	public List<String> releaseMessages(Collection<Message> messages, long delay) throws RQSException {
+		List<String> released = new ArrayList<String>(messages.size());
+		if (messages.isEmpty())
+			return released;
+		long start = metrics.start();
+		boolean succeeded = false;
 		try {
-			db.deleteDocument(doc);
-		} catch (CouchDBException cdbe) {
-			if (cdbe.getStatusCode() == 404)
-				throw new NoSuchMessageException("The queue has no message with ID " + messageId, cdbe);
-			if (cdbe.getStatusCode() == 409)
-				throw new ReceiptTokenOutOfDateException("The message was already acquired by another process", cdbe);
-			else
-				throw new RQSException(cdbe);
-		} catch (Exception e) {
-			throw new RQSException(e);
+			long now = System.currentTimeMillis();
+			List<Document> docs = new ArrayList<Document>(messages.size());
+			for (Message message : messages)
+				docs.add(prepareRelease(message, delay, now));
+			for (Document doc : backend.updateDocuments(docs))
+				released.add(doc.getId());
+			succeeded = true;
+			return released;
+		} finally {
+			metrics.completed(QueueMetrics.Operation.RELEASE, getName(), start, succeeded);
+		}
+	}
+
+	/**
+	 * Move received messages to another queue, in bulk. Each message is stored in the target queue, pending, with
+	 * its id, send time, group and attributes, and then deleted from this queue.<br />
+	 * When both queues are in the same CouchDB server, the server copies the messages, with replication, so the
+	 * payloads never leave it. Otherwise the payloads are sent to the target from this process.
+	 * <p>
+	 * A message is deleted from this queue only once its copy in the target is confirmed. When the server copies
+	 * the messages, a message whose receipt token is no longer valid isn't copied, and stays in this queue. A
+	 * message whose lock is lost between the copy and the delete ends up in both queues.
+	 *
+	 * @param target	the queue to move the messages to
+	 * @param messages	messages received by this process
+	 * @return	the ids of the messages that were moved
+	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public List<String> moveMessages(Queue target, Collection<Message> messages) throws RQSException {
+		List<String> moved = new ArrayList<String>(messages.size());
+		if (messages.isEmpty())
+			return moved;
+		long start = metrics.start();
+		boolean succeeded = false;
+		try {
+			long now = System.currentTimeMillis();
+			List<Document> copies = new ArrayList<Document>(messages.size());
+			for (Message message : messages)
+				copies.add(prepareRelease(message, 0, now));
+			List<String> copied = backend.copyDocuments(copies, target.backend);
+			if (copied == null)
+				copied = sendCopies(target, messages);
+			Set<String> confirmed = new HashSet<String>(copied);
+			List<Document> originals = new ArrayList<Document>(confirmed.size());
+			for (Message message : messages) {
+				if (confirmed.contains(message.getMessageId())) {
+					Document doc = new Document(message.getMessageId(), message.getDoc().getJson());
+					doc.setRev(message.getReceiptToken());
+					originals.add(doc);
+				}
+			}
+			moved.addAll(backend.deleteDocuments(originals));
+			succeeded = true;
+			return moved;
+		} finally {
+			metrics.completed(QueueMetrics.Operation.MOVE, getName(), start, succeeded);
+		}
+	}
+
+	/**
+	 * Store copies of the messages in the target queue, without their locks, with the payloads sent from this
+	 * process - fetched first for messages received without them.
+	 * @return the ids of the messages stored
+	 */
+	private List<String> sendCopies(Queue target, Collection<Message> messages) throws RQSException {
+		List<String> missing = new ArrayList<String>();
+		for (Message message : messages) {
+			if (message.getData() == null)
+				missing.add(message.getMessageId());
+		}
+		Map<String, byte[]> payloads = missing.isEmpty() ?
+				Collections.<String, byte[]>emptyMap() : backend.getPayloads(missing);
+		List<Message> copies = new ArrayList<Message>(messages.size());
+		List<String> ids = new ArrayList<String>(messages.size());
+		for (Message message : messages) {
+			byte[] data = (message.getData() != null) ? message.getData() : payloads.get(message.getMessageId());
+			if (data == null)
+				continue; // deleted since it was received
+			ObjectNode json = (ObjectNode) Message.copyJson(message.getDoc().getJson());
+			json.remove("lock");
+			json.remove("_rev");
+			json.remove("_attachments");
+			copies.add(new Message(new Document(message.getMessageId(), json), data));
+			ids.add(message.getMessageId());
 		}
+		target.backend.createMessages(copies);
+		return ids;
+	}
+
+	/**
+	 * Returns a copy of the message's document without the lock - or, with a delay, with the lock ending
+	 * <code>delay</code> milliseconds from <code>now</code>.<br />
+	 * The message itself keeps its receipt token, which is out of date once the release is saved.
+	 */
+	private Document prepareRelease(Message message, long delay, long now) {
+		Document doc = new Document(message.getMessageId(), Message.copyJson(message.getDoc().getJson()));
+		doc.setRev(message.getReceiptToken());
+		ObjectNode json = (ObjectNode) doc.getJson();
+		JsonNode lock = json.get("lock");
+		if (delay <= 0 || lock == null) {
+			json.remove("lock");
+		} else {
+			long lockedAt = lock.get("locked_at").getLongValue();
+			((ObjectNode) lock).put("visibility_timeout", now + delay - lockedAt);
+		}
+		return doc;
 	}
 
 	/**
@@ -410,40 +976,32 @@ public class Queue {
 	public String changeMessageVisibility(String messageId, String receiptToken, long visibilityTimeout)
 			throws ReceiptTokenOutOfDateException, NoSuchMessageException, RQSException
 	{
-		Document doc = null;
+		long start = metrics.start();
+		boolean succeeded = false;
 		try {
-			doc = db.getDocumentOrNull(messageId);
-			if (doc == null)
-				throw new NoSuchMessageException("The queue has no message with ID " + messageId);
-			if (!doc.getRev().equals(receiptToken))
-				throw new ReceiptTokenOutOfDateException("The message was already acquired by another process");
-			ObjectNode lock = (ObjectNode) doc.getJson().get("lock");
-			long current = lock.get("visibility_timeout").getLongValue();
-			lock.put("visibility_timeout", current + visibilityTimeout);
-			try {
-				Document newDoc = db.updateDocument(doc);
-				return newDoc.getRev();
-			} catch (CouchDBException cdbe) {
-				if (cdbe.getStatusCode() == 409) // update conflict
-					throw new ReceiptTokenOutOfDateException("The message was already acquired by another process");
-				else // rethrow
-					throw cdbe;
-			}
-		} catch (Exception e) {
-			throw new RQSException(e);
+			String rev = backend.extendLock(messageId, receiptToken, visibilityTimeout);
+			succeeded = true;
+			return rev;
+		} finally {
+			metrics.completed(QueueMetrics.Operation.CHANGE_VISIBILITY, getName(), start, succeeded);
 		}
 	}
 
-	private int getNumberOfMessages(String viewName) throws RQSException {
-		// use limit=0 to get just the view metadata, including total rows, but no actual rows
-		List<NameValuePair> params = new ArrayList<NameValuePair>() {{
-			add(new BasicNameValuePair("limit", "0"));
-		}};
+	/**
+	 * Deletes all the messages in the queue, pending or locked, however many there are.<br />
+	 * The queue stays usable meanwhile: messages can be sent while it's purged, though they may be purged too.
+	 * Messages received before the purge can't be deleted or changed afterwards.
+	 *
+	 * @throws RQSException wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public void purge() throws RQSException {
+		long start = metrics.start();
+		boolean succeeded = false;
 		try {
-			JsonNode json = db.queryViewRaw(RQS_DESIGN_DOC_NAME, viewName, params);
-			return json.get("total_rows").getIntValue();
-		} catch (Exception e) {
-			throw new RQSException(e);
+			backend.purge();
+			succeeded = true;
+		} finally {
+			metrics.completed(QueueMetrics.Operation.PURGE_QUEUE, getName(), start, succeeded);
 		}
 	}
 
@@ -454,7 +1012,7 @@ public class Queue {
 	 * @throws RQSException wraps any exception thrown by the underlying CouchDB layer
 	 */
 	public int numberOfMessagesPending() throws RQSException {
-		return getNumberOfMessages(RQS_PENDING_VIEW_NAME);
+		return backend.countPending();
 	}
 
 	/**
@@ -465,12 +1023,12 @@ public class Queue {
 	 * @throws RQSException wraps any exception thrown by the underlying CouchDB layer
 	 */
 	public int numberOfMessagesNotVisible() throws RQSException {
-		return getNumberOfMessages(RQS_LOCKED_VIEW_NAME);
+		return backend.countLocked();
 	}
 
 	@Override
 	public String toString() {
-		return String.format("Queue %s on %s", processId, db.toString());
+		return String.format("Queue %s on %s", processId, backend);
 	}
 
 	/**
@@ -481,26 +1039,72 @@ public class Queue {
 	 * @throws RQSException wraps any exception thrown by the underlying CouchDB layer
 	 */
 	public MessageStatus getMessageStatus(String messageId) throws RQSException {
-		Document doc;
-		try {
-			doc = db.getDocumentOrNull(messageId);
-		} catch (Exception e) {
-			throw new RQSException(e);
-		}
-		if (doc == null)
-			return MessageStatus.MISSING;
-
-		JsonNode lock;
-		if ((lock = doc.getJson().get("lock")) != null) {
-			MessageStatus locked = MessageStatus.LOCKED;
-			locked.setProcessId(lock.get("locked_by").getTextValue());
-			locked.setTimestamp(lock.get("visibility_timeout").getLongValue());
-			return locked;
+		return getMessageStatusDetails(messageId).getStatus();
+	}
+
+	/**
+	 * Returns the status of the specified message, with the details of the status - see
+	 * {@link MessageStatusDetails}.
+	 *
+	 * @throws RQSException wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public MessageStatusDetails getMessageStatusDetails(String messageId) throws RQSException {
+		return toDetails(backend.getDocumentOrNull(messageId));
+	}
+
+	/**
+	 * Returns the statuses of many messages, reading up to {@link #STATUS_BATCH_SIZE} of them with each request to
+	 * the server, rather than one at a time.
+	 *
+	 * @param messageIds	the ids of the messages
+	 * @return	an unmodifiable map from each id to the status of its message, in the order of the ids
+	 * @see MessageStatus
+	 *
+	 * @throws RQSException wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public Map<String, MessageStatus> getMessageStatuses(Collection<String> messageIds) throws RQSException {
+		Map<String, MessageStatus> statuses = new LinkedHashMap<String, MessageStatus>();
+		for (Map.Entry<String, MessageStatusDetails> entry : getMessageStatusDetails(messageIds).entrySet())
+			statuses.put(entry.getKey(), entry.getValue().getStatus());
+		return Collections.unmodifiableMap(statuses);
+	}
+
+	/**
+	 * Like {@link #getMessageStatuses(java.util.Collection) }, but returns the details of each status.
+	 *
+	 * @param messageIds	the ids of the messages
+	 * @return	an unmodifiable map from each id to the status details of its message, in the order of the ids
+	 *
+	 * @throws RQSException wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public Map<String, MessageStatusDetails> getMessageStatusDetails(Collection<String> messageIds)
+			throws RQSException
+	{
+		Map<String, MessageStatusDetails> statuses = new LinkedHashMap<String, MessageStatusDetails>();
+		List<String> ids = new ArrayList<String>(messageIds);
+		for (int from = 0; from < ids.size(); from += STATUS_BATCH_SIZE) {
+			List<String> chunk = ids.subList(from, Math.min(from + STATUS_BATCH_SIZE, ids.size()));
+			Map<String, Document> docs = new LinkedHashMap<String, Document>();
+			for (Document doc : backend.getDocuments(chunk))
+				docs.put(doc.getId(), doc);
+			for (String id : chunk)
+				statuses.put(id, toDetails(docs.get(id)));
 		}
+		return Collections.unmodifiableMap(statuses);
+	}
 
-		MessageStatus pending = MessageStatus.PENDING;
-		pending.setTimestamp(doc.getJson().get("sent_at").getLongValue());
-		return pending;
+	/**
+	 * Returns the status details of the message stored as the document, or of a missing message if it's null.
+	 */
+	private static MessageStatusDetails toDetails(Document doc) {
+		if (doc == null)
+			return new MessageStatusDetails(MessageStatus.MISSING, -1, null, -1);
+		JsonNode lock = doc.getJson().get("lock");
+		if (lock == null)
+			return new MessageStatusDetails(MessageStatus.PENDING, doc.getJson().get("sent_at").getLongValue(), null, -1);
+		long visibilityTimeout = lock.get("visibility_timeout").getLongValue();
+		return new MessageStatusDetails(MessageStatus.LOCKED, visibilityTimeout, lock.get("locked_by").getTextValue(),
+										lock.get("locked_at").getLongValue() + visibilityTimeout);
 	}
 
 	/**
@@ -511,15 +1115,56 @@ public class Queue {
 	 * <li>MISSING - the message wasn't found in the queue. It may have been deleted already.</li>
 	 * </ul>
 	 * <p>
-	 * For some statuses, more information is available - see {@link #getProcessId() } and {@link #getTimestamp() }
+	 * For the details of a message's status - such as who locked it - see
+	 * {@link Queue#getMessageStatusDetails(java.lang.String) }.
 	 */
 	public enum MessageStatus {
 		PENDING,
 		LOCKED,
 		MISSING;
 
-		private long timestamp = -1;
-		private String processId = null;
+		/**
+		 * Always returns <code>null</code>: a status is shared by all the messages that have it, so it carries no
+		 * details.
+		 * @deprecated use {@link MessageStatusDetails#getProcessId() }
+		 */
+		@Deprecated
+		public String getProcessId() {
+			return null;
+		}
+
+		/**
+		 * Always returns -1: a status is shared by all the messages that have it, so it carries no details.
+		 * @deprecated use {@link MessageStatusDetails#getTimestamp() }
+		 */
+		@Deprecated
+		public long getTimestamp() {
+			return -1;
+		}
+
+	}
+
+	/**
+	 * The status of a message in the queue, with its details, as they were when it was read. Immutable, so it can be
+	 * shared between threads.
+	 */
+	public static final class MessageStatusDetails {
+
+		private final MessageStatus status;
+		private final long timestamp;
+		private final String processId;
+		private final long lockExpires;
+
+		MessageStatusDetails(MessageStatus status, long timestamp, String processId, long lockExpires) {
+			this.status = status;
+			this.timestamp = timestamp;
+			this.processId = processId;
+			this.lockExpires = lockExpires;
+		}
+
+		public MessageStatus getStatus() {
+			return status;
+		}
 
 		/**
 		 * If <code>LOCKED</code>, returns the identifier of the owner of this lock.<br />
@@ -529,21 +1174,27 @@ public class Queue {
 			return processId;
 		}
 
-		void setProcessId(String processId) {
-			this.processId = processId;
-		}
-
 		/**
 		 * If <code>PENDING</code>, returns the timestamp when this message was sent to the queue.<br />
-		 * If <code>LOCKED</code>, returns the timestamp when this message was locked.<br />
+		 * If <code>LOCKED</code>, returns the message's visibility timeout.<br />
 		 * Otherwise returns -1.
 		 */
 		public long getTimestamp() {
 			return timestamp;
 		}
 
-		void setTimestamp(long timestamp) {
-			this.timestamp = timestamp;
+		/**
+		 * If <code>LOCKED</code>, returns the time the lock expires, in milliseconds since the epoch. The lock may
+		 * already have expired, if no receive has reclaimed the message yet.<br />
+		 * Otherwise returns -1.
+		 */
+		public long getLockExpires() {
+			return lockExpires;
+		}
+
+		@Override
+		public String toString() {
+			return status.toString();
 		}
 
 	}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import com.jzboy.couchdb.Document;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Writes a queue's messages to a file, and reads them back into a queue - see {@link QueueService#exportQueue} and
+ * {@link QueueService#importQueue}.
+ * <p>
+ * The file starts with the magic bytes "RQSA" and the format version. Then comes a record for each message, in
+ * order of id: the length of the message's metadata, the metadata as UTF-8 JSON - with its id and lock, but no
+ * revision - the length of the payload, and the payload. A length of -1 ends the file, so a file cut short is told
+ * from a complete one. Lengths are 4-byte big-endian ints.
+ * <p>
+ * Messages are read from the queue a page at a time, and stored a batch at a time, through a fixed size buffer,
+ * so only a page or a batch is ever held in memory, however large the queue.
+ */
+class QueueArchive {
+
+	static final int MAGIC = 0x52515341; // "RQSA"
+	static final int FORMAT_VERSION = 1;
+	/** How many messages are read from the queue at a time, when exporting. */
+	static final int EXPORT_PAGE_SIZE = 100;
+	/** The most messages, and payload bytes, stored at a time when importing. */
+	static final int IMPORT_BATCH_SIZE = 200;
+	static final int IMPORT_BATCH_BYTES = 4 << 20;
+	static final int BUFFER_SIZE = 64 << 10;
+
+	private QueueArchive() {
+	}
+
+	/**
+	 * Writes all the messages of the queue to the file, replacing it.
+	 * @return the number of messages written
+	 */
+	static long write(QueueBackend backend, File file) throws IOException, RQSException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			FileChannel channel = out.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			buffer.putInt(MAGIC);
+			buffer.putInt(FORMAT_VERSION);
+			long count = 0;
+			String afterId = null;
+			List<Message> page;
+			do {
+				page = backend.listMessages(afterId, EXPORT_PAGE_SIZE);
+				for (Message message : page) {
+					ObjectNode json = (ObjectNode) message.getDoc().getJson();
+					json.put("_id", message.getMessageId());
+					json.remove("_rev");
+					writeBlock(channel, buffer, CouchTransport.MAPPER.writeValueAsBytes(json));
+					writeBlock(channel, buffer, message.getData());
+					afterId = message.getMessageId();
+					count++;
+				}
+			} while (page.size() == EXPORT_PAGE_SIZE);
+			ensureRoom(channel, buffer, 4);
+			buffer.putInt(-1);
+			flush(channel, buffer);
+			channel.force(false);
+			return count;
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Stores the messages in the file in the queue, with their ids, in the order they were written. Messages whose
+	 * ids are already in the queue are skipped, so an import that failed part way can be run again.
+	 * @return the number of messages read
+	 */
+	static long read(QueueBackend backend, File file) throws IOException, RQSException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			buffer.flip();
+			if (readInt(channel, buffer) != MAGIC)
+				throw new IOException(file + " isn't a queue archive");
+			int version = readInt(channel, buffer);
+			if (version != FORMAT_VERSION)
+				throw new IOException("Unsupported queue archive version " + version + " in " + file);
+			long count = 0;
+			List<Message> batch = new ArrayList<Message>(IMPORT_BATCH_SIZE);
+			int batchBytes = 0;
+			int length;
+			while ((length = readInt(channel, buffer)) >= 0) {
+				JsonNode json = CouchTransport.MAPPER.readTree(
+						new ByteArrayInputStream(readBlock(channel, buffer, length)));
+				byte[] data = readBlock(channel, buffer, readInt(channel, buffer));
+				String id = json.get("_id").getTextValue();
+				((ObjectNode) json).remove("_id");
+				batch.add(new Message(new Document(id, json), data));
+				batchBytes += data.length;
+				count++;
+				if (batch.size() >= IMPORT_BATCH_SIZE || batchBytes >= IMPORT_BATCH_BYTES) {
+					backend.createMessages(batch);
+					batch = new ArrayList<Message>(IMPORT_BATCH_SIZE);
+					batchBytes = 0;
+				}
+			}
+			if (!batch.isEmpty())
+				backend.createMessages(batch);
+			return count;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeBlock(FileChannel channel, ByteBuffer buffer, byte[] block) throws IOException {
+		ensureRoom(channel, buffer, 4);
+		buffer.putInt(block.length);
+		if (block.length <= buffer.remaining()) {
+			buffer.put(block);
+			return;
+		}
+		// too large to buffer: write it straight through
+		flush(channel, buffer);
+		ByteBuffer wrapped = ByteBuffer.wrap(block);
+		while (wrapped.hasRemaining())
+			channel.write(wrapped);
+	}
+
+	private static void ensureRoom(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+		if (buffer.remaining() < bytes)
+			flush(channel, buffer);
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Reads from the channel until the buffer - which is kept ready for reading - holds at least that many bytes.
+	 */
+	private static void fill(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+		if (buffer.remaining() >= bytes)
+			return;
+		buffer.compact();
+		while (buffer.position() < bytes) {
+			if (channel.read(buffer) < 0)
+				throw new EOFException("The queue archive ends in the middle of a message");
+		}
+		buffer.flip();
+	}
+
+	private static int readInt(FileChannel channel, ByteBuffer buffer) throws IOException {
+		fill(channel, buffer, 4);
+		return buffer.getInt();
+	}
+
+	private static byte[] readBlock(FileChannel channel, ByteBuffer buffer, int length) throws IOException {
+		byte[] block = new byte[length];
+		int buffered = Math.min(length, buffer.remaining());
+		buffer.get(block, 0, buffered);
+		ByteBuffer rest = ByteBuffer.wrap(block, buffered, length - buffered);
+		while (rest.hasRemaining()) {
+			if (channel.read(rest) < 0)
+				throw new EOFException("The queue archive ends in the middle of a message");
+		}
+		return block;
+	}
+
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import com.jzboy.couchdb.Document;
+import java.util.List;
+import java.util.Map;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * The storage operations that a {@link Queue} performs on its messages.
+ * <p>
+ * Each message is stored as a JSON document, with a revision that changes on every update, plus an opaque payload.
+ * A document is <em>pending</em> if it has no "lock" field, and <em>locked</em> otherwise. Updates and deletes
+ * must name the current revision of the document - this optimistic concurrency is what makes a lock exclusive.
+ * <p>
+ * Documents and payloads returned by these methods belong to the caller, who may modify them freely, and the
+ * payloads passed to them may be modified once they return.
+ */
+public interface QueueBackend {
+
+	/**
+	 * Returns the name of the queue.
+	 */
+	String getName();
+
+	/**
+	 * Stores a new message.
+	 * @param json	the message metadata. Must contain a "sent_at" timestamp
+	 * @param data	the message payload
+	 * @return the id of the new message
+	 */
+	String createMessage(ObjectNode json, byte[] data) throws RQSException;
+
+	/**
+	 * Stores a batch of new messages, whose ids were chosen by the caller, in a single bulk operation.<br />
+	 * A message whose id already exists is skipped, so a batch that may have been partly stored can be
+	 * safely sent again.
+	 * @param messages	messages carrying an id, metadata with a "sent_at" timestamp, and a payload
+	 */
+	void createMessages(List<Message> messages) throws RQSException;
+
+	/**
+	 * Returns up to <code>limit</code> pending documents, ordered by "sent_at" - ascending, or descending
+	 * if <code>descending</code> is true.<br />
+	 * A document in a message group is returned only if it's the oldest message in its group, whichever the order,
+	 * and none of the group's messages is locked - see {@link Queue#getGroupId(org.codehaus.jackson.JsonNode) }.
+	 */
+	List<Document> queryPending(int limit, boolean descending) throws RQSException;
+
+	/**
+	 * Like {@link #queryPending(int, boolean) }, but returns only documents whose attribute has the value - see
+	 * {@link Queue#hasAttribute(org.codehaus.jackson.JsonNode, java.lang.String, org.codehaus.jackson.JsonNode) }.
+	 */
+	List<Document> queryPendingByAttribute(String name, JsonNode value, int limit, boolean descending)
+			throws RQSException;
+
+	/**
+	 * Returns the documents with the specified ids, in the same order. Missing ids are skipped.
+	 */
+	List<Document> getDocuments(List<String> ids) throws RQSException;
+
+	/**
+	 * Returns the document with the specified id, or null if there's no such document.
+	 */
+	Document getDocumentOrNull(String id) throws RQSException;
+
+	/**
+	 * Returns the documents whose ids begin with the prefix, in order of id.
+	 */
+	List<Document> getDocumentsByPrefix(String prefix) throws RQSException;
+
+	/**
+	 * Stores new documents that aren't messages - they have no payload - in a single bulk operation.<br />
+	 * A document whose id is taken is skipped. A document that was stored and deleted before is stored under a
+	 * revision past the first, like CouchDB, which keeps the deleted revision.
+	 * @return the documents that were stored, with their revisions
+	 */
+	List<Document> createDocuments(List<Document> docs) throws RQSException;
+
+	/**
+	 * Adds the lock to all the documents in a single bulk operation.<br />
+	 * A document whose revision is no longer current is skipped - some other process already updated it.
+	 * @return the documents that were locked, with their new revisions
+	 */
+	List<Document> lockDocuments(List<Document> docs, JsonNode lock) throws RQSException;
+
+	/**
+	 * Adds the lock to a document in a single atomic operation.<br />
+	 * Only the lock is sent to the storage, not the whole document.
+	 * @param rev	the revision the document must be at to be locked, or null to lock whatever its revision
+	 * @return the locked document with its new revision, or null if there's no such document
+	 * @throws ReceiptTokenOutOfDateException	if the document is not at <code>rev</code>, or another process
+	 * updated it at the same time
+	 */
+	Document lockDocument(String id, String rev, JsonNode lock) throws ReceiptTokenOutOfDateException, RQSException;
+
+	/**
+	 * Extends the lock on the specified revision of a document by <code>extension</code> milliseconds, in a single
+	 * atomic operation.
+	 * @return the new revision of the document
+	 * @throws NoSuchMessageException			if there's no message with that id
+	 * @throws ReceiptTokenOutOfDateException	if <code>rev</code> is not the current revision, or the document
+	 * is not locked
+	 */
+	String extendLock(String id, String rev, long extension)
+			throws NoSuchMessageException, ReceiptTokenOutOfDateException, RQSException;
+
+	/**
+	 * Saves the document, which must carry its current revision.
+	 * @return the document with its new revision
+	 * @throws ReceiptTokenOutOfDateException	if the document's revision is no longer the current one
+	 */
+	Document updateDocument(Document doc) throws ReceiptTokenOutOfDateException, RQSException;
+
+	/**
+	 * Saves all the documents, each carrying its current revision, in a single bulk operation.<br />
+	 * A document whose revision is no longer current is skipped, as is a document that no longer exists.
+	 * @return the documents that were saved, with their new revisions
+	 */
+	List<Document> updateDocuments(List<Document> docs) throws RQSException;
+
+	/**
+	 * Returns the payload of the specified message.
+	 */
+	byte[] getPayload(String id) throws RQSException;
+
+	/**
+	 * Returns the payloads of the specified messages, fetched together.<br />
+	 * Missing messages are left out of the map.
+	 */
+	Map<String, byte[]> getPayloads(List<String> ids) throws RQSException;
+
+	/**
+	 * Returns up to <code>limit</code> messages, pending or locked, with their payloads, in order of id - starting
+	 * after the message with the id <code>afterId</code>, or from the first message if it's null. Fewer than
+	 * <code>limit</code> messages means there are no more.
+	 */
+	List<Message> listMessages(String afterId, int limit) throws RQSException;
+
+	/**
+	 * Deletes the specified revision of a message.
+	 * @throws NoSuchMessageException			if there's no message with that id
+	 * @throws ReceiptTokenOutOfDateException	if <code>rev</code> is not the current revision
+	 */
+	void deleteDocument(String id, String rev)
+			throws NoSuchMessageException, ReceiptTokenOutOfDateException, RQSException;
+
+	/**
+	 * Deletes all the documents, each at the revision it carries, in a single bulk operation.<br />
+	 * A document whose revision is no longer current is skipped, as is a document that no longer exists.
+	 * @return the ids of the documents that were deleted
+	 */
+	List<String> deleteDocuments(List<Document> docs) throws RQSException;
+
+	/**
+	 * Copies the documents, with their payloads, into the target queue without the payloads passing through this
+	 * process - if the two queues are stored together. Each document carries the revision it's copied at, and the
+	 * JSON the copy is saved with, which the target gets under a new revision.<br />
+	 * A document that's no longer at that revision isn't copied, and a copy the target can't confirm is removed.
+	 * @return the ids of the documents copied, or null if the queues aren't stored together
+	 */
+	List<String> copyDocuments(List<Document> docs, QueueBackend target) throws RQSException;
+
+	/**
+	 * Deletes up to <code>limit</code> messages whose expiry time - see
+	 * {@link Queue#getExpiresAt(org.codehaus.jackson.JsonNode) } - is at or before <code>now</code>, oldest expiry
+	 * first. Messages locked until after <code>now</code> are left for their owner.
+	 * @return the number of messages deleted
+	 */
+	int deleteExpired(long now, int limit) throws RQSException;
+
+	/**
+	 * Deletes all the messages, pending or locked, without reading them, while the queue stays usable. Messages
+	 * stored while the purge runs may be deleted too.
+	 */
+	void purge() throws RQSException;
+
+	/**
+	 * Returns the ids of up to <code>limit</code> messages stored after the sequence mark <code>since</code>, in
+	 * the order they were stored - or from the first message, if it's null. Messages since deleted are skipped, as
+	 * are the documents that aren't messages. Fewer than <code>limit</code> ids means there are no more for now.
+	 */
+	Changes getChanges(String since, int limit) throws RQSException;
+
+	/**
+	 * Returns the sequence mark of the latest change to the queue, which {@link #getChanges(String, int) } reads
+	 * on from.
+	 */
+	String getLastSequence() throws RQSException;
+
+	/**
+	 * Returns a local document: one that's stored with the queue, but isn't a message - or null if there's none with
+	 * that id. The document's revision is in its "_rev" field.
+	 */
+	ObjectNode getLocalDocument(String id) throws RQSException;
+
+	/**
+	 * Saves a local document. The JSON carries the document's current revision in its "_rev" field, or none for a
+	 * new document.
+	 * @return the new revision
+	 * @throws ReceiptTokenOutOfDateException	if the revision isn't the current one
+	 */
+	String putLocalDocument(String id, ObjectNode json) throws ReceiptTokenOutOfDateException, RQSException;
+
+	/**
+	 * Deletes the specified revision of a local document.
+	 * @return false if there's no local document with that id
+	 * @throws ReceiptTokenOutOfDateException	if <code>rev</code> is not the current revision
+	 */
+	boolean deleteLocalDocument(String id, String rev) throws ReceiptTokenOutOfDateException, RQSException;
+
+	/**
+	 * Returns the number of pending documents.
+	 */
+	int countPending() throws RQSException;
+
+	/**
+	 * Returns the number of locked documents.
+	 */
+	int countLocked() throws RQSException;
+
+	/**
+	 * A page of message ids from {@link QueueBackend#getChanges(String, int) }, and the sequence mark to read on
+	 * from.
+	 */
+	final class Changes {
+		private final List<String> ids;
+		private final String lastSequence;
+
+		public Changes(List<String> ids, String lastSequence) {
+			this.ids = ids;
+			this.lastSequence = lastSequence;
+		}
+
+		/**
+		 * Returns the ids of the messages, in the order they were stored.
+		 */
+		public List<String> getIds() {
+			return ids;
+		}
+
+		/**
+		 * Returns the sequence mark to read on from, with the next call to
+		 * {@link QueueBackend#getChanges(String, int) }.
+		 */
+		public String getLastSequence() {
+			return lastSequence;
+		}
+	}
+
+}
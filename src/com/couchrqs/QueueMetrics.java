@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Measures where time goes in the queues of a {@link QueueService}.
+ * <p>
+ * Every operation is timed into a latency histogram, and the requests it makes to the server are counted, along
+ * with the bytes sent and received. Receives also count lock attempts against lock conflicts - messages that
+ * another process locked first - how many receives came back empty, and how long fetching the payloads took.
+ * <p>
+ * Recording is cheap enough to leave on in production: counters are striped per thread (see
+ * {@link StripedCounter}) and recording never allocates. Read the numbers with the getters here, through JMX
+ * after {@link #registerMBean(java.lang.String) }, or as they happen with a {@link MetricsListener}.
+ *
+ * @see QueueService#getMetrics()
+ */
+public class QueueMetrics implements QueueMetricsMXBean {
+
+	/**
+	 * The operations that are measured.
+	 */
+	public enum Operation {
+		SEND, RECEIVE, DELETE, CHANGE_VISIBILITY, RELEASE, MOVE,
+		GET_QUEUE, CREATE_QUEUE, DELETE_QUEUE, LIST_QUEUES, PURGE_QUEUE;
+
+		/**
+		 * Returns true for operations on messages, as opposed to operations on queues.
+		 */
+		boolean isMessageOperation() {
+			return ordinal() <= MOVE.ordinal();
+		}
+	}
+
+	public static final String JMX_DOMAIN = "com.couchrqs";
+
+	/**
+	 * The number of requests made by the operation currently running on each thread. Each operation gets a counter
+	 * of its own, which the threads it makes requests from count in too.
+	 */
+	private static final ThreadLocal<AtomicInteger> CURRENT_ROUND_TRIPS = new ThreadLocal<AtomicInteger>() {
+		@Override
+		protected AtomicInteger initialValue() {
+			return new AtomicInteger();
+		}
+	};
+
+	private static final MetricsListener[] NO_LISTENERS = new MetricsListener[0];
+
+	private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+	private final StripedCounter[] roundTripsByOperation = new StripedCounter[Operation.values().length];
+	private final StripedCounter[] errorsByOperation = new StripedCounter[Operation.values().length];
+	private final LatencyHistogram attachmentFetches = new LatencyHistogram();
+	private final StripedCounter roundTrips = new StripedCounter();
+	private final StripedCounter bytesSent = new StripedCounter();
+	private final StripedCounter bytesReceived = new StripedCounter();
+	private final StripedCounter lockAttempts = new StripedCounter();
+	private final StripedCounter lockConflicts = new StripedCounter();
+	private final StripedCounter receives = new StripedCounter();
+	private final StripedCounter emptyReceives = new StripedCounter();
+
+	private volatile MetricsListener[] listeners = NO_LISTENERS;
+	private ObjectName registeredName;
+
+	public QueueMetrics() {
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyHistogram();
+			roundTripsByOperation[i] = new StripedCounter();
+			errorsByOperation[i] = new StripedCounter();
+		}
+	}
+
+	/**
+	 * Add a listener to be notified of every measurement.
+	 */
+	public synchronized void addListener(MetricsListener listener) {
+		MetricsListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+		updated[listeners.length] = listener;
+		listeners = updated;
+	}
+
+	public synchronized void removeListener(MetricsListener listener) {
+		List<MetricsListener> updated = new ArrayList<MetricsListener>(Arrays.asList(listeners));
+		updated.remove(listener);
+		listeners = updated.toArray(NO_LISTENERS);
+	}
+
+	/**
+	 * Register these metrics with the platform MBean server, under
+	 * <code>com.couchrqs:type=QueueMetrics,name=&lt;name&gt;</code>.
+	 *
+	 * @param name	identifies this service among others in the same JVM, e.g. the server's address
+	 * @throws RQSException	if the name is taken, or the MBean can't be registered
+	 */
+	public synchronized void registerMBean(String name) throws RQSException {
+		try {
+			ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=QueueMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			registeredName = objectName;
+		} catch (JMException e) {
+			throw new RQSException(e);
+		}
+	}
+
+	/**
+	 * Remove these metrics from the platform MBean server, if they were registered.
+	 */
+	public synchronized void unregisterMBean() throws RQSException {
+		if (registeredName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+			registeredName = null;
+		} catch (JMException e) {
+			throw new RQSException(e);
+		}
+	}
+
+	/*
+	 * Recording, called by Queue, QueueService and CouchTransport.
+	 */
+
+	/**
+	 * Mark the start of an operation on the current thread.
+	 * @return the start time, to pass to {@link #completed }
+	 */
+	long start() {
+		// a new counter, so a request the last operation left running doesn't count in this one
+		CURRENT_ROUND_TRIPS.set(new AtomicInteger());
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record an operation that started at <code>startNanos</code> on the current thread.
+	 */
+	void completed(Operation operation, String queueName, long startNanos, boolean succeeded) {
+		long latency = System.nanoTime() - startNanos;
+		int trips = CURRENT_ROUND_TRIPS.get().get();
+		latencies[operation.ordinal()].record(latency);
+		roundTripsByOperation[operation.ordinal()].add(trips);
+		if (!succeeded)
+			errorsByOperation[operation.ordinal()].increment();
+		MetricsListener[] current = listeners;
+		for (int i = 0; i < current.length; i++)
+			current[i].operationCompleted(operation, queueName, latency, trips, succeeded);
+	}
+
+	/**
+	 * Returns the request counter of the operation running on the current thread, for the threads it makes requests
+	 * from - see {@link #countRoundTripsIn(AtomicInteger) }.
+	 */
+	static AtomicInteger currentRoundTrips() {
+		return CURRENT_ROUND_TRIPS.get();
+	}
+
+	/**
+	 * Count the requests made on the current thread in the counter of an operation running on another thread, until
+	 * this is called again with the counter it returns.
+	 * @return the counter the current thread counted in until now
+	 */
+	static AtomicInteger countRoundTripsIn(AtomicInteger roundTrips) {
+		AtomicInteger previous = CURRENT_ROUND_TRIPS.get();
+		CURRENT_ROUND_TRIPS.set(roundTrips);
+		return previous;
+	}
+
+	/**
+	 * Record a request to the server, made on the current thread.
+	 */
+	void roundTrip(long sent, long received) {
+		CURRENT_ROUND_TRIPS.get().incrementAndGet();
+		roundTrips.increment();
+		bytesSent.add(sent);
+		bytesReceived.add(received);
+	}
+
+	void locksAttempted(String queueName, int attempted, int conflicts) {
+		lockAttempts.add(attempted);
+		lockConflicts.add(conflicts);
+		MetricsListener[] current = listeners;
+		for (int i = 0; i < current.length; i++)
+			current[i].locksAttempted(queueName, attempted, conflicts);
+	}
+
+	/**
+	 * Record a receive operation that returned <code>count</code> messages.
+	 */
+	void received(int count) {
+		receives.increment();
+		if (count == 0)
+			emptyReceives.increment();
+	}
+
+	void attachmentsFetched(String queueName, int messages, long startNanos) {
+		long latency = System.nanoTime() - startNanos;
+		attachmentFetches.record(latency);
+		MetricsListener[] current = listeners;
+		for (int i = 0; i < current.length; i++)
+			current[i].attachmentsFetched(queueName, messages, latency);
+	}
+
+	/*
+	 * Reading
+	 */
+
+	/**
+	 * Returns the latencies of the operation so far, in microseconds.
+	 */
+	public LatencySnapshot getLatency(Operation operation) {
+		return latencies[operation.ordinal()].snapshot();
+	}
+
+	/**
+	 * Returns the number of requests made to the server by all the operations of this kind so far.
+	 */
+	public long getRoundTrips(Operation operation) {
+		return roundTripsByOperation[operation.ordinal()].sum();
+	}
+
+	/**
+	 * Returns the number of operations of this kind that threw an exception.
+	 */
+	public long getErrorCount(Operation operation) {
+		return errorsByOperation[operation.ordinal()].sum();
+	}
+
+	@Override
+	public LatencySnapshot getSendLatency() {
+		return getLatency(Operation.SEND);
+	}
+
+	@Override
+	public LatencySnapshot getReceiveLatency() {
+		return getLatency(Operation.RECEIVE);
+	}
+
+	@Override
+	public LatencySnapshot getDeleteLatency() {
+		return getLatency(Operation.DELETE);
+	}
+
+	@Override
+	public LatencySnapshot getChangeVisibilityLatency() {
+		return getLatency(Operation.CHANGE_VISIBILITY);
+	}
+
+	@Override
+	public LatencySnapshot getReleaseLatency() {
+		return getLatency(Operation.RELEASE);
+	}
+
+	@Override
+	public LatencySnapshot getAttachmentFetchLatency() {
+		return attachmentFetches.snapshot();
+	}
+
+	@Override
+	public long getRoundTrips() {
+		return roundTrips.sum();
+	}
+
+	@Override
+	public double getRoundTripsPerOperation() {
+		long trips = 0;
+		long operations = 0;
+		for (Operation operation : Operation.values()) {
+			if (operation.isMessageOperation()) {
+				trips += roundTripsByOperation[operation.ordinal()].sum();
+				operations += latencies[operation.ordinal()].count();
+			}
+		}
+		return (operations == 0) ? 0 : (double) trips / operations;
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	@Override
+	public long getLockAttempts() {
+		return lockAttempts.sum();
+	}
+
+	@Override
+	public long getLockConflicts() {
+		return lockConflicts.sum();
+	}
+
+	@Override
+	public long getReceiveCount() {
+		return receives.sum();
+	}
+
+	@Override
+	public long getEmptyReceiveCount() {
+		return emptyReceives.sum();
+	}
+
+	@Override
+	public double getEmptyReceiveRatio() {
+		long total = receives.sum();
+		return (total == 0) ? 0 : (double) emptyReceives.sum() / total;
+	}
+
+	@Override
+	public long getErrorCount() {
+		long total = 0;
+		for (StripedCounter errors : errorsByOperation)
+			total += errors.sum();
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("QueueMetrics:");
+		for (Operation operation : Operation.values()) {
+			LatencySnapshot latency = getLatency(operation);
+			if (latency.getCount() > 0)
+				sb.append("\n  ").append(operation).append(": ").append(latency);
+		}
+		sb.append(String.format("%n  round trips=%d bytes sent=%d bytes received=%d",
+								getRoundTrips(), getBytesSent(), getBytesReceived()));
+		sb.append(String.format("%n  lock attempts=%d conflicts=%d empty receives=%d/%d",
+								getLockAttempts(), getLockConflicts(), getEmptyReceiveCount(), getReceiveCount()));
+		return sb.toString();
+	}
+
+}
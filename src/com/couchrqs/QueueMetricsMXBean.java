@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+/**
+ * The JMX view of {@link QueueMetrics}. Latencies are in microseconds.
+ *
+ * @see QueueMetrics#registerMBean(java.lang.String)
+ */
+public interface QueueMetricsMXBean {
+
+	LatencySnapshot getSendLatency();
+
+	LatencySnapshot getReceiveLatency();
+
+	LatencySnapshot getDeleteLatency();
+
+	LatencySnapshot getChangeVisibilityLatency();
+
+	LatencySnapshot getReleaseLatency();
+
+	LatencySnapshot getAttachmentFetchLatency();
+
+	/**
+	 * Returns the total number of requests made to the server.
+	 */
+	long getRoundTrips();
+
+	/**
+	 * Returns the average number of requests made to the server per send, receive, delete, change visibility and
+	 * release operation.
+	 */
+	double getRoundTripsPerOperation();
+
+	long getBytesSent();
+
+	long getBytesReceived();
+
+	long getLockAttempts();
+
+	/**
+	 * Returns the number of lock attempts that failed because another process locked the message first.
+	 */
+	long getLockConflicts();
+
+	long getReceiveCount();
+
+	/**
+	 * Returns the number of receive operations that returned no messages.
+	 */
+	long getEmptyReceiveCount();
+
+	/**
+	 * Returns the fraction of receive operations that returned no messages.
+	 */
+	double getEmptyReceiveRatio();
+
+	/**
+	 * Returns the number of operations that threw an exception.
+	 */
+	long getErrorCount();
+
+}
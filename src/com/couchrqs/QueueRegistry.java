@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which queues were recently validated, so that {@link QueueService} doesn't ask the server again
+ * every time a queue is requested.
+ * <p>
+ * Each entry holds the queue's storage handle and the time it was last confirmed to be a queue. An entry is
+ * trusted for the registry's time-to-live, then validated again. Queues created or deleted through the same
+ * service update the registry right away; queues deleted by another process are noticed once the entry expires.
+ */
+class QueueRegistry {
+
+	static final long DEFAULT_TTL = 60000;
+
+	/**
+	 * A validated queue.
+	 */
+	static final class Entry {
+		final QueueBackend backend;
+		final long validatedAt;
+
+		Entry(QueueBackend backend, long validatedAt) {
+			this.backend = backend;
+			this.validatedAt = validatedAt;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private volatile long ttl = DEFAULT_TTL;
+
+	long getTtl() {
+		return ttl;
+	}
+
+	void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Returns the storage of the named queue if it was validated within the TTL, otherwise null.
+	 */
+	QueueBackend get(String queueName) {
+		Entry entry = entries.get(queueName);
+		if (entry == null)
+			return null;
+		if (System.currentTimeMillis() - entry.validatedAt >= ttl) {
+			entries.remove(queueName, entry);
+			return null;
+		}
+		return entry.backend;
+	}
+
+	/**
+	 * Record that the named queue was just confirmed to exist.
+	 */
+	void put(String queueName, QueueBackend backend) {
+		entries.put(queueName, new Entry(backend, System.currentTimeMillis()));
+	}
+
+	void invalidate(String queueName) {
+		entries.remove(queueName);
+	}
+
+	void clear() {
+		entries.clear();
+	}
+
+}
@@ -6,41 +6,97 @@
 
 package com.couchrqs;
 
-import com.jzboy.couchdb.CouchDBException;
-import com.jzboy.couchdb.Database;
 import com.jzboy.couchdb.Server;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 /**
  * This class provides methods for manipulating queues.
+ * <p>
+ * Queues are stored in CouchDB, unless the service is created with another {@link Backend}.
  * 
  * @see com.couchrqs.Queue
  */
 public class QueueService {
 
-	static final String DESIGN_DOC_JSON = "{\"views\":{" +
-		"\"" + Queue.RQS_PENDING_VIEW_NAME + "\":{\"map\":\"function(doc) { if(!doc.lock) emit(doc.sent_at, null);}\"}," +
-		"\"" + Queue.RQS_LOCKED_VIEW_NAME + "\":{\"map\":\"function(doc) { if(doc.lock) emit(doc.lock.locked_at, null);}\"}}}";
+	static final String DEFAULT_HOST = "localhost";
+	static final int DEFAULT_PORT = 5984;
 
+	final Backend backend;
+	/** The CouchDB server, or null if this service isn't backed by CouchDB. */
 	final Server couchDB;
+	/** Queues that were recently confirmed to exist. */
+	private final QueueRegistry registry = new QueueRegistry();
+	/** Shared by this service and all the queues it hands out. */
+	private final QueueMetrics metrics = new QueueMetrics();
+	/** Deletes the expired messages of the queues handed out. */
+	private final ExpirySweeper sweeper = new ExpirySweeper();
 
 	/**
-	 * Creates a new queue service that works with the CouchDB instance at the specified location.
+	 * Creates a new queue service that works with the CouchDB instance at the specified location.<br />
+	 * All queues acquired through this service share a single HTTP connection pool, configured by
+	 * <code>settings</code>.
+	 * @param host		where to find your CouchDB instance
+	 * @param port		port of your CouchDB instance
+	 * @param settings	configuration of the shared HTTP connection pool
+	 */
+	public QueueService(String host, int port, ConnectionSettings settings) {
+		this(new CouchDBBackend(host, port, settings));
+	}
+
+	/**
+	 * Creates a new queue service that works with the CouchDB instance at the specified location, and reads from
+	 * its replicas where it can - see {@link ReplicaSettings}.<br />
+	 * All queues acquired through this service share a single HTTP connection pool per server, configured by
+	 * <code>settings</code>.
+	 * @param host		where to find the primary CouchDB instance
+	 * @param port		port of the primary CouchDB instance
+	 * @param replicas	the replicas of the primary, and how stale their reads may be
+	 * @param settings	configuration of the HTTP connection pools
+	 */
+	public QueueService(String host, int port, ReplicaSettings replicas, ConnectionSettings settings) {
+		this(new CouchDBBackend(host, port, replicas, settings));
+	}
+
+	/**
+	 * Creates a new queue service that works with the CouchDB instance at the specified location, using
+	 * the default {@link ConnectionSettings}.
 	 * @param host		where to find your CouchDB instance
 	 * @param port		port of your CouchDB instance
 	 */
 	public QueueService(String host, int port) {
-		couchDB = new Server(host, port);
+		this(host, port, new ConnectionSettings());
 	}
 
 	/**
 	 * Creates a new queue service that works with a local CouchDB instance listening on the default port.
 	 */
 	public QueueService() {
-		couchDB = new Server();
+		this(DEFAULT_HOST, DEFAULT_PORT);
+	}
+
+	/**
+	 * Creates a new queue service that stores its queues in the specified backend.<br />
+	 * For example, <code>new QueueService(new InMemoryBackend())</code> creates a service whose queues live in
+	 * this process only.
+	 */
+	public QueueService(Backend backend) {
+		this.backend = backend;
+		couchDB = (backend instanceof CouchDBBackend) ? ((CouchDBBackend) backend).couchDB : null;
+		if (backend instanceof CouchDBBackend)
+			((CouchDBBackend) backend).setMetrics(metrics);
+	}
+
+	/**
+	 * Returns the metrics of this service and all the queues it hands out.
+	 */
+	public QueueMetrics getMetrics() {
+		return metrics;
 	}
 
 	/**
@@ -50,24 +106,56 @@ public class QueueService {
 	 * @throws RQSException		wraps any exception thrown by the underlying CouchDB layer
 	 */
 	public Queue getQueue(String queueName) throws NoSuchQueueException, RQSException {
-		Queue queue = new Queue(couchDB, queueName);
-		if (!isQueue(queueName))
-			throw new NoSuchQueueException("Queue not found: " + queueName);
-		return queue;
+		long start = metrics.start();
+		boolean succeeded = false;
+		try {
+			QueueBackend cached = registry.get(queueName);
+			Queue queue;
+			if (cached != null)
+				queue = toQueue(cached);
+			else if (isQueue(queueName))
+				queue = newQueue(queueName);
+			else
+				throw new NoSuchQueueException("Queue not found: " + queueName);
+			succeeded = true;
+			return queue;
+		} finally {
+			metrics.completed(QueueMetrics.Operation.GET_QUEUE, queueName, start, succeeded);
+		}
 	}
 
 	/**
-	 * Creates a new queue with the specified name.
+	 * Creates a new queue with the specified name, that receives messages through the pending view.
 	 *
 	 * @throws QueueNameAlreadyTakenException	if there already exists a database with this name on the server
 	 * @throws RQSException					wraps any exception thrown by the underlying CouchDB layer
 	 */
 	public Queue createQueue(String queueName) throws QueueNameAlreadyTakenException, RQSException {
-		if (!isNameAvailable(queueName))
-			throw new QueueNameAlreadyTakenException("Database already exists, or name is invalid: " + queueName);
-		Queue queue = new Queue(couchDB, queueName);
-		initQueue(queue);
-		return queue;
+		return createQueue(queueName, ReceiveMode.VIEW);
+	}
+
+	/**
+	 * Creates a new queue with the specified name and receive mode.<br />
+	 * The mode is kept with the queue, and applies to every process that uses it.
+	 *
+	 * @throws QueueNameAlreadyTakenException	if there already exists a database with this name on the server
+	 * @throws RQSException					wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public Queue createQueue(String queueName, ReceiveMode receiveMode)
+			throws QueueNameAlreadyTakenException, RQSException
+	{
+		long start = metrics.start();
+		boolean succeeded = false;
+		try {
+			if (!isNameAvailable(queueName))
+				throw new QueueNameAlreadyTakenException("Database already exists, or name is invalid: " + queueName);
+			QueueBackend created = backend.createQueue(queueName, receiveMode);
+			registry.put(queueName, created);
+			succeeded = true;
+			return toQueue(created);
+		} finally {
+			metrics.completed(QueueMetrics.Operation.CREATE_QUEUE, queueName, start, succeeded);
+		}
 	}
 
 	/**
@@ -79,24 +167,32 @@ public class QueueService {
 	 * @throws RQSException					wraps any exception thrown by the underlying CouchDB layer
 	 */
 	public Queue getOrCreateQueue(String queueName) throws QueueNameAlreadyTakenException, RQSException {
+		QueueBackend cached = registry.get(queueName);
+		if (cached != null)
+			return toQueue(cached);
 		if (isNameAvailable(queueName))
 			return createQueue(queueName);
 		if (isQueue(queueName))
-			return new Queue(couchDB, queueName);
+			return newQueue(queueName);
 		// there is such a database, and it isn't a queue
 		throw new QueueNameAlreadyTakenException("Non-RQS Database already exists: " + queueName);
 	}
 
 	/**
-	 * Initializes a Couch database for use by RQS by creating a design document with the necessary views.
+	 * Create a Queue object for an existing queue, and remember that the queue exists.
 	 */
-	private void initQueue(Queue queue) throws RQSException {
-		try {
-			queue.db.create();
-			queue.db.createDocument("_design/"+Queue.RQS_DESIGN_DOC_NAME, DESIGN_DOC_JSON, false);
-		} catch (Exception e) {
-			throw new RQSException(e);
-		}
+	private Queue newQueue(String queueName) throws RQSException {
+		QueueBackend opened = backend.openQueue(queueName);
+		registry.put(queueName, opened);
+		return toQueue(opened);
+	}
+
+	/**
+	 * Create a Queue object, and have its expired messages deleted in the background.
+	 */
+	private Queue toQueue(QueueBackend queueBackend) {
+		sweeper.add(queueBackend);
+		return new Queue(queueBackend, metrics);
 	}
 
     /**
@@ -115,12 +211,7 @@ public class QueueService {
 	private boolean isNameAvailable(String queueName) throws RQSException {
         if (!isNameValid(queueName))
             return false;
-		try {
-			Database db = new Database(this.couchDB, queueName);
-			return !db.exists();
-		} catch (Exception e) {
-			throw new RQSException(e);
-		}
+		return !backend.exists(queueName);
 	}
 
 	/**
@@ -133,21 +224,9 @@ public class QueueService {
 	public boolean isQueue(String queueName) throws RQSException {
         if (!isNameValid(queueName))
             return false;
-		if (isNameAvailable(queueName))
-			return false;
-		Database db = new Database(this.couchDB, queueName);
-		try {
-			// the following method throws an exception if the design doc isn't found
-			db.designDocumentInfo(Queue.RQS_DESIGN_DOC_NAME);
+		if (registry.get(queueName) != null)
 			return true;
-		} catch (CouchDBException cdbe) {
-			if (cdbe.getStatusCode() == 404)
-				return false;
-			else
-				throw new RQSException(cdbe);
-		} catch (Exception e) {
-			throw new RQSException(e);
-		}
+		return backend.isQueue(queueName);
 	}
 
 	/**
@@ -155,26 +234,32 @@ public class QueueService {
 	 * Effectively, this means all databases that have a RQS design document.
 	 * <p>
 	 * Note that this method is inefficient when there is a large number of databases on the server,
-	 * as it takes the list of all databases and checks each one separately.
+	 * as it takes the list of all databases and checks each one separately - though the checks run
+	 * concurrently. The queues found are remembered, so getting any of them afterwards is free.
 	 *
 	 * @see #isQueue(java.lang.String)
 	 *
 	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer
 	 */
 	public List<String> listQueues() throws RQSException {
-		ArrayList<String> dbNames;
+		long start = metrics.start();
+		boolean succeeded = false;
 		try {
-			dbNames = couchDB.allDbs();
-		} catch (Exception e) {
-			throw new RQSException(e);
+			Map<String, QueueBackend> queues = backend.listQueues();
+			// the topics' lock stores are part of the topics
+			for (Iterator<String> it = queues.keySet().iterator(); it.hasNext(); ) {
+				if (it.next().endsWith(Topic.LOCKS_SUFFIX))
+					it.remove();
+			}
+			for (Map.Entry<String, QueueBackend> entry : queues.entrySet()) {
+				QueueBackend cached = registry.get(entry.getKey());
+				registry.put(entry.getKey(), (cached != null) ? cached : entry.getValue());
+			}
+			succeeded = true;
+			return new ArrayList<String>(queues.keySet());
+		} finally {
+			metrics.completed(QueueMetrics.Operation.LIST_QUEUES, null, start, succeeded);
 		}
-		ListIterator<String> lit = dbNames.listIterator();
-		while (lit.hasNext()) {
-			String queueName = lit.next();
-			if (!isQueue(queueName))
-				lit.remove();
-		}
-		return dbNames;
 	}
 
 	/**
@@ -187,19 +272,185 @@ public class QueueService {
 	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer
 	 */
 	public boolean deleteQueue(String queueName) throws RQSException {
+		long start = metrics.start();
+		boolean succeeded = false;
 		try {
-			if (!isQueue(queueName))
-				return false;
-			new Database(this.couchDB, queueName).delete();
-			return true;
-		} catch (Exception e) {
+			boolean deleted = false;
+			if (isQueue(queueName)) {
+				registry.invalidate(queueName);
+				sweeper.remove(queueName);
+				deleted = backend.deleteQueue(queueName);
+			}
+			succeeded = true;
+			return deleted;
+		} finally {
+			metrics.completed(QueueMetrics.Operation.DELETE_QUEUE, queueName, start, succeeded);
+		}
+	}
+
+	/**
+	 * Deletes all the messages in the specified queue, without deleting the queue. Purging a topic removes its
+	 * subscriptions and their lock records too.
+	 * @see Queue#purge()
+	 *
+	 * @throws NoSuchQueueException	if there's no queue named <code>queueName</code>
+	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public void purgeQueue(String queueName) throws NoSuchQueueException, RQSException {
+		getQueue(queueName).purge();
+		String locksName = Topic.locksName(queueName);
+		if (isQueue(locksName))
+			backend.openQueue(locksName).purge();
+	}
+
+	/**
+	 * Creates a new topic with the specified name, and its lock store. Topics and queues share the server's
+	 * namespace.
+	 * @see Topic
+	 *
+	 * @throws QueueNameAlreadyTakenException	if there already exists a database with this name, or with the name
+	 * of its lock store, on the server
+	 * @throws RQSException					wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public Topic createTopic(String topicName) throws QueueNameAlreadyTakenException, RQSException {
+		String locksName = Topic.locksName(topicName);
+		if (!isNameAvailable(locksName))
+			throw new QueueNameAlreadyTakenException("Database already exists, or name is invalid: " + locksName);
+		Queue queue = createQueue(topicName);
+		QueueBackend locks = backend.createQueue(locksName, ReceiveMode.VIEW);
+		registry.put(locksName, locks);
+		return new Topic(queue, locks);
+	}
+
+	/**
+	 * Get a Topic object given that topic's name.
+	 *
+	 * @throws NoSuchQueueException	if a topic with the specified name does not exist on the server
+	 * @throws RQSException		wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public Topic getTopic(String topicName) throws NoSuchQueueException, RQSException {
+		Queue queue = getQueue(topicName);
+		String locksName = Topic.locksName(topicName);
+		QueueBackend locks = registry.get(locksName);
+		if (locks == null) {
+			if (!isQueue(locksName))
+				throw new NoSuchQueueException("Topic not found: " + topicName);
+			locks = backend.openQueue(locksName);
+			registry.put(locksName, locks);
+		}
+		return new Topic(queue, locks);
+	}
+
+	/**
+	 * Deletes the specified topic from the server, with its messages, subscriptions and lock store.
+	 * @return true iff a topic named <code>topicName</code> was found and deleted
+	 *
+	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public boolean deleteTopic(String topicName) throws RQSException {
+		boolean deleted = deleteQueue(topicName);
+		deleteQueue(Topic.locksName(topicName));
+		return deleted;
+	}
+
+	/**
+	 * Writes all the messages in the specified queue - pending or locked, with their payloads and locks - to a
+	 * file, replacing it. The file can be loaded into any queue with
+	 * {@link #importQueue(java.lang.String, java.io.File) }.
+	 * <p>
+	 * The messages are read a page at a time, so this works for queues much larger than memory. The queue can be
+	 * used meanwhile; messages sent or deleted during the export may or may not be in the file.
+	 * @return the number of messages written
+	 *
+	 * @throws NoSuchQueueException	if there's no queue named <code>queueName</code>
+	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer, or by writing the file
+	 */
+	public long exportQueue(String queueName, File file) throws NoSuchQueueException, RQSException {
+		Queue queue = getQueue(queueName);
+		try {
+			return QueueArchive.write(queue.backend, file);
+		} catch (IOException e) {
+			throw new RQSException(e);
+		}
+	}
+
+	/**
+	 * Stores the messages in a file written by {@link #exportQueue(java.lang.String, java.io.File) } in the
+	 * specified queue, in bulk. The messages keep their ids, send times and locks, so they're received in the order
+	 * they were sent. Messages whose ids are already in the queue are skipped, so a failed import can be run again.
+	 * @return the number of messages in the file
+	 *
+	 * @throws NoSuchQueueException	if there's no queue named <code>queueName</code>
+	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer, or by reading the file
+	 */
+	public long importQueue(String queueName, File file) throws NoSuchQueueException, RQSException {
+		Queue queue = getQueue(queueName);
+		try {
+			return QueueArchive.read(queue.backend, file);
+		} catch (IOException e) {
 			throw new RQSException(e);
 		}
 	}
 
+	/**
+	 * Upgrades the queue's design document to the current version, if it was created by an older version of RQS.
+	 * <p>
+	 * Queues are never upgraded otherwise: an old design document keeps working, without the features that need a
+	 * newer one, so that processes running the older version of RQS can go on using the queue. Call this once they've
+	 * all been updated. It waits for the new views to be built, which may take a while on a large queue, but the queue
+	 * can be used meanwhile. Queue objects got before the upgrade keep using the old views; get the queue again to
+	 * use the new ones.
+	 * @return true iff the queue was upgraded by this call
+	 *
+	 * @throws NoSuchQueueException	if there's no queue named <code>queueName</code>
+	 * @throws RQSException	wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public boolean upgradeQueue(String queueName) throws NoSuchQueueException, RQSException {
+		if (!isQueue(queueName))
+			throw new NoSuchQueueException("Queue not found: " + queueName);
+		boolean upgraded = backend.upgradeQueue(queueName);
+		// reopened by the next getQueue, with the new version
+		registry.invalidate(queueName);
+		return upgraded;
+	}
+
+	/**
+	 * Returns how long (in milliseconds) a queue is trusted to exist after it was last checked.
+	 */
+	public long getQueueCacheTtl() {
+		return registry.getTtl();
+	}
+
+	/**
+	 * Set how long (in milliseconds) a queue is trusted to exist after it was last checked.<br />
+	 * Within that time, {@link #getQueue(java.lang.String) }, {@link #getOrCreateQueue(java.lang.String) } and
+	 * {@link #isQueue(java.lang.String) } don't contact the server. Queues deleted through this service are
+	 * forgotten right away, but a queue deleted by another process may be handed out until its entry expires -
+	 * operations on it then fail. Zero disables the cache.
+	 */
+	public void setQueueCacheTtl(long ttl) {
+		registry.setTtl(ttl);
+	}
+
+	/**
+	 * Forget all the queues this service has seen, so that the next request for each one checks the server.
+	 */
+	public void clearQueueCache() {
+		registry.clear();
+	}
+
+	/**
+	 * Closes all pooled connections to the server.<br />
+	 * Neither this service nor any of the queues it handed out can be used after this call.
+	 */
+	public void shutdown() {
+		sweeper.shutdown();
+		backend.shutdown();
+	}
+
 	@Override
 	public String toString() {
-		return "QueueService on " + this.couchDB.toString();
+		return "QueueService on " + backend.toString();
 	}
 
 }
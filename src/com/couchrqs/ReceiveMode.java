@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+/**
+ * How a queue finds its pending messages when receiving. Chosen when the queue is created, and kept with the queue,
+ * so every process receiving from it uses the same mode.
+ */
+public enum ReceiveMode {
+
+	/**
+	 * Query the pending view, ordered by send time. A message can only be received once the view has indexed it,
+	 * so under a burst of sends, receives wait for the indexing to catch up.
+	 */
+	VIEW,
+
+	/**
+	 * Scan the queue's documents in id order, skipping locked messages. Message ids begin with the time they were
+	 * sent, so this is also in order of send time, and new messages can be received as soon as they're stored - no
+	 * view is involved.<br />
+	 * Locked messages at the head of the queue are remembered between receives, and skipped until their locks
+	 * expire. This works best when most messages are deleted soon after they're received.
+	 */
+	ID
+
+}
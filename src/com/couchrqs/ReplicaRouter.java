@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Picks the server that a read of a queue database goes to: a replica that's fresh enough, or else the primary.
+ * See {@link ReplicaSettings}.
+ * <p>
+ * How far behind a replica is, is measured per database, by probes taken in the background every half of the
+ * staleness bound, for the databases recently read. A probe notes the latest change on the primary - a document id
+ * and revision - and asks each replica, with <code>_revs_diff</code>, which of the recent probes it's missing. A
+ * replica that has a probe taken at some time is taken to be as fresh as the primary was then.
+ * <p>
+ * That's an estimate: CouchDB replicates changes in batches, written by several workers, not one by one in order,
+ * so a replica that has the probe's change may still be missing a few changes made shortly before it - at most
+ * those of the batch being written. Reads from a replica that's a little staler than the bound are safe, since
+ * every change is made on the primary at the revision read, and just cost some conflicts.
+ */
+class ReplicaRouter {
+
+	private static final Logger logger = LoggerFactory.getLogger(ReplicaRouter.class);
+
+	/** The most probes of a database kept, for replicas that are a few probes behind. */
+	static final int MAX_PROBES = 8;
+	/** How many rounds of probes a database that isn't read any more is probed for. */
+	static final int MAX_IDLE_ROUNDS = 8;
+
+	/**
+	 * The latest change on the primary, when a probe was taken. Immutable.
+	 */
+	static final class Probe {
+		final long time;
+		final String id;
+		final String rev;
+
+		Probe(long time, String id, String rev) {
+			this.time = time;
+			this.id = id;
+			this.rev = rev;
+		}
+	}
+
+	/**
+	 * A replica, and how fresh it is known to be in each database.
+	 */
+	static final class Replica {
+		final CouchTransport transport;
+		/** The time of the latest probe of each database that the replica has. */
+		private final ConcurrentHashMap<String, Long> freshAsOf = new ConcurrentHashMap<String, Long>();
+
+		Replica(CouchTransport transport) {
+			this.transport = transport;
+		}
+
+		long freshAsOf(String db) {
+			Long time = freshAsOf.get(db);
+			return (time == null) ? 0 : time;
+		}
+
+		void setFreshAsOf(String db, long time) {
+			freshAsOf.put(db, time);
+		}
+	}
+
+	/**
+	 * The recent probes of a database, oldest first.
+	 */
+	private static final class Probes {
+		/** When the database was last read, in milliseconds. */
+		volatile long lastRead;
+		private final LinkedList<Probe> recent = new LinkedList<Probe>();
+
+		synchronized List<Probe> add(Probe probe) {
+			recent.addLast(probe);
+			if (recent.size() > MAX_PROBES)
+				recent.removeFirst();
+			return new ArrayList<Probe>(recent);
+		}
+	}
+
+	private final CouchTransport primary;
+	private final List<Replica> replicas;
+	private final long maxStaleness;
+	/** The databases recently read, and their probes. */
+	private final ConcurrentHashMap<String, Probes> probes = new ConcurrentHashMap<String, Probes>();
+	/** Spreads reads over the fresh replicas. */
+	private final AtomicInteger next = new AtomicInteger();
+	/** Takes the probes, on a thread of its own, so reads never wait for them. Started by the first read. */
+	private ScheduledExecutorService prober;
+
+	ReplicaRouter(CouchTransport primary, ReplicaSettings replicaSettings, ConnectionSettings settings) {
+		this.primary = primary;
+		this.maxStaleness = replicaSettings.getMaxStaleness();
+		List<Replica> list = new ArrayList<Replica>();
+		for (InetSocketAddress address : replicaSettings.getReplicas())
+			list.add(new Replica(new CouchTransport(address.getHostName(), address.getPort(), settings)));
+		this.replicas = Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Returns the replicas' transports.
+	 */
+	List<CouchTransport> getReplicaTransports() {
+		List<CouchTransport> transports = new ArrayList<CouchTransport>(replicas.size());
+		for (Replica replica : replicas)
+			transports.add(replica.transport);
+		return transports;
+	}
+
+	/**
+	 * Returns the transport to read the database through: the next replica that's no more than the staleness bound
+	 * behind the primary, or the primary if there's none. A database read for the first time is probed in the
+	 * background, and read from the primary until then.
+	 */
+	CouchTransport reader(String db) {
+		if (replicas.isEmpty())
+			return primary;
+		long now = currentTimeMillis();
+		Probes dbProbes = probes.get(db);
+		if (dbProbes == null) {
+			Probes created = new Probes();
+			dbProbes = probes.putIfAbsent(db, created);
+			if (dbProbes == null) {
+				dbProbes = created;
+				startProbing(db);
+			}
+		}
+		dbProbes.lastRead = now;
+		int first = next.getAndIncrement() & Integer.MAX_VALUE;
+		for (int i = 0; i < replicas.size(); i++) {
+			Replica replica = replicas.get((first + i) % replicas.size());
+			if (now - replica.freshAsOf(db) <= maxStaleness)
+				return replica.transport;
+		}
+		return primary;
+	}
+
+	/**
+	 * Stop reading the database from the replica until the next probe finds it fresh, after a read from it failed.
+	 */
+	void failed(CouchTransport reader, String db, Exception e) {
+		logger.warn("Failed to read " + db + " from the replica at " + reader + ", reading from the primary", e);
+		for (Replica replica : replicas) {
+			if (replica.transport == reader)
+				replica.setFreshAsOf(db, 0);
+		}
+	}
+
+	/**
+	 * Probe the database right away, and then with the others every half of the staleness bound, in the background.
+	 */
+	synchronized void startProbing(final String db) {
+		if (prober == null) {
+			prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "couchrqs-replica-probe");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			long interval = Math.max(1, maxStaleness / 2);
+			prober.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					probeAll();
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+		prober.execute(new Runnable() {
+			@Override
+			public void run() {
+				Probes dbProbes = probes.get(db);
+				if (dbProbes != null)
+					probe(db, dbProbes, currentTimeMillis());
+			}
+		});
+	}
+
+	/**
+	 * Probe the replicas for each database read recently, and stop probing the others.
+	 */
+	void probeAll() {
+		long now = currentTimeMillis();
+		long idle = MAX_IDLE_ROUNDS * Math.max(1, maxStaleness / 2);
+		for (Map.Entry<String, Probes> entry : probes.entrySet()) {
+			// if it's read again, it's probed again, and read from the primary until then
+			if (now - entry.getValue().lastRead > idle)
+				probes.remove(entry.getKey(), entry.getValue());
+			else
+				probe(entry.getKey(), entry.getValue(), now);
+		}
+	}
+
+	private void probe(String db, Probes dbProbes, long now) {
+		Probe probe;
+		try {
+			JsonNode results = latestChange(db).get("results");
+			if (results.size() == 0)
+				return; // an empty database, which isn't a queue
+			JsonNode change = results.get(0);
+			probe = new Probe(now, change.get("id").getTextValue(),
+							  change.get("changes").get(0).get("rev").getTextValue());
+		} catch (Exception e) {
+			// the replicas age until the primary answers again
+			logger.warn("Failed to read the latest change to " + db + " from the primary", e);
+			return;
+		}
+		List<Probe> recent = dbProbes.add(probe);
+		for (Replica replica : replicas)
+			probe(replica, db, recent);
+	}
+
+	/**
+	 * Set how fresh the replica is, by the latest of the probes that it has.
+	 */
+	private void probe(Replica replica, String db, List<Probe> recent) {
+		ObjectNode body = new ObjectNode(JsonNodeFactory.instance);
+		for (Probe probe : recent) {
+			ArrayNode revs = (ArrayNode) body.get(probe.id);
+			if (revs == null)
+				revs = body.putArray(probe.id);
+			revs.add(probe.rev);
+		}
+		JsonNode missing;
+		try {
+			missing = revsDiff(replica.transport, db, body);
+		} catch (Exception e) {
+			logger.warn("Failed to probe the replica at " + replica.transport + " for " + db, e);
+			replica.setFreshAsOf(db, 0);
+			return;
+		}
+		for (int i = recent.size() - 1; i >= 0; i--) {
+			Probe probe = recent.get(i);
+			if (!isMissing(missing, probe)) {
+				if (probe.time > replica.freshAsOf(db))
+					replica.setFreshAsOf(db, probe.time);
+				return;
+			}
+		}
+	}
+
+	private static boolean isMissing(JsonNode missing, Probe probe) {
+		for (JsonNode rev : missing.path(probe.id).path("missing")) {
+			if (probe.rev.equals(rev.getTextValue()))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the primary's <code>_changes</code> response with just its latest change.
+	 */
+	JsonNode latestChange(String db) throws CouchHttpException, IOException {
+		List<NameValuePair> params = new ArrayList<NameValuePair>(2);
+		params.add(new BasicNameValuePair("descending", "true"));
+		params.add(new BasicNameValuePair("limit", "1"));
+		return primary.get(CouchTransport.path(db, "_changes"), params);
+	}
+
+	/**
+	 * Returns the replica's <code>_revs_diff</code> response: the revisions it's missing, by document id.
+	 */
+	JsonNode revsDiff(CouchTransport replica, String db, JsonNode revs) throws CouchHttpException, IOException {
+		return replica.post(CouchTransport.path(db, "_revs_diff"), null, revs);
+	}
+
+	/**
+	 * Returns the system time. Tests override this to control the clock.
+	 */
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	void shutdown() {
+		synchronized (this) {
+			if (prober != null)
+				prober.shutdownNow();
+		}
+		for (Replica replica : replicas)
+			replica.transport.shutdown();
+	}
+
+}
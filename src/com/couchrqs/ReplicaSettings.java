@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The read replicas of the CouchDB server that a {@link QueueService} works with - servers that the primary's
+ * queue databases are replicated to, with CouchDB's replication.
+ * <p>
+ * Finding pending messages, counting messages and downloading payloads are read from a replica, which takes that
+ * load, and the load of building the views, off the primary. Everything that changes a message - sending, locking,
+ * deleting and changing visibility - goes to the primary, as do the reads that decide the order within message
+ * groups and the status of messages.<br />
+ * A message found on a replica is locked on the primary at the revision the replica had. If the replica is behind,
+ * and the message was locked, deleted or changed on the primary since, the lock fails as a conflict - as it would
+ * if another process had received the message first. So a lagging replica costs receives some conflicts, but never
+ * delivers a message twice.
+ * <p>
+ * A replica is only read while it's less than {@link #getMaxStaleness() } behind the primary, for each queue. Until
+ * a replica is known to be that fresh, or while it's unreachable, its reads go to the primary. The bound is
+ * approximate, since CouchDB doesn't replicate changes strictly in order: a replica may also miss a few changes
+ * made shortly before the bound.<br />
+ * Settings are read once, when the <code>QueueService</code> is created.
+ */
+public class ReplicaSettings {
+
+	static final long DEFAULT_MAX_STALENESS = 5000;
+
+	private final List<InetSocketAddress> replicas = new ArrayList<InetSocketAddress>();
+	private long maxStaleness = DEFAULT_MAX_STALENESS;
+
+	/**
+	 * Add a replica, to share the reads with the others.
+	 * @param host	where to find the replica's CouchDB instance
+	 * @param port	port of the replica's CouchDB instance
+	 */
+	public void addReplica(String host, int port) {
+		replicas.add(InetSocketAddress.createUnresolved(host, port));
+	}
+
+	/**
+	 * Returns the replicas, in the order they were added.
+	 */
+	public List<InetSocketAddress> getReplicas() {
+		return Collections.unmodifiableList(replicas);
+	}
+
+	/**
+	 * Returns how far behind the primary (in milliseconds) a replica may be and still be read from.
+	 */
+	public long getMaxStaleness() {
+		return maxStaleness;
+	}
+
+	/**
+	 * Set how far behind the primary (in milliseconds) a replica may be and still be read from.<br />
+	 * A replica that's further behind only makes receives slower, with lock conflicts over messages already gone
+	 * from the primary, and hides the newest messages from receives and counts. Replicas are checked in the
+	 * background every half of this time, for each queue that's read.
+	 */
+	public void setMaxStaleness(long maxStaleness) {
+		this.maxStaleness = maxStaleness;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ReplicaSettings[replicas=%s, maxStaleness=%d]", replicas, maxStaleness);
+	}
+
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a queue's reads fast when the server has a slow moment or a transient error: retries reads that failed, and
+ * hedges slow ones - sends the same read again and takes whichever answer comes first.
+ * <p>
+ * A read that failed with an I/O error or a 5xx status is retried up to {@link #MAX_RETRIES} times, after a random
+ * pause that grows with each try. Only reads are retried: a write whose response was lost may have been applied.
+ * A read is hedged when it takes longer than {@link #HEDGE_QUANTILE} of the recent reads of its kind - views and
+ * payloads are measured apart, since they take different times.
+ * <p>
+ * Retries and hedges are extra load on a server that may be struggling, so they're paid for from the queue's
+ * budget: each read that succeeds earns a tenth of a retry, up to {@link #MAX_RETRY_BUDGET} retries, and each retry
+ * or hedge spends one. So they stay within about a tenth of the queue's reads however bad things get, instead of
+ * growing into a storm. A read that the server's {@link CircuitBreaker} turned away isn't retried.
+ */
+class RequestGuard {
+
+	static final int MAX_RETRIES = 2;
+	/** The pause before the first retry, in milliseconds. It doubles with each retry. */
+	static final long RETRY_BACKOFF_MILLIS = 20;
+	/** The most retries the budget holds. It starts full. */
+	static final int MAX_RETRY_BUDGET = 10;
+	/** How many successful reads earn one retry. */
+	static final int READS_PER_RETRY = 10;
+	/** A read is hedged once it takes longer than this quantile of the recent reads of its kind. */
+	static final double HEDGE_QUANTILE = 0.95;
+	/** How long (in milliseconds) reads are measured before the hedge delay is worked out again. */
+	static final long HEDGE_WINDOW_MILLIS = 10000;
+	/** How many reads must be measured before the hedge delay is worked out. Until then reads aren't hedged. */
+	static final int MIN_HEDGE_SAMPLES = 50;
+	/** The shortest hedge delay, in microseconds. */
+	static final long MIN_HEDGE_DELAY_MICROS = 1000;
+
+	private static final Random BACKOFF_RANDOM = new Random();
+
+	/**
+	 * A read, which may be sent more than once, and from more than one thread at a time.
+	 */
+	interface Request<T> {
+		T send() throws CouchHttpException, IOException;
+	}
+
+	/**
+	 * The recent latencies of a kind of read, and how long such a read may take before it's hedged.
+	 */
+	static final class Latencies {
+		private volatile LatencyHistogram window = new LatencyHistogram();
+		private volatile long windowEnd;
+		/** In microseconds, or 0 while there are too few measurements. */
+		private volatile long hedgeDelay;
+
+		void record(long nanos, long now) {
+			window.record(nanos);
+			if (now >= windowEnd)
+				rotate(now);
+		}
+
+		/**
+		 * Work out the hedge delay from the ending window, and start a new one - unless there are too few
+		 * measurements yet, in which case the window is extended.
+		 */
+		private synchronized void rotate(long now) {
+			if (now < windowEnd)
+				return;
+			windowEnd = now + HEDGE_WINDOW_MILLIS;
+			LatencyHistogram ended = window;
+			if (ended.count() < MIN_HEDGE_SAMPLES)
+				return;
+			hedgeDelay = Math.max(ended.valueAt(HEDGE_QUANTILE), MIN_HEDGE_DELAY_MICROS);
+			window = new LatencyHistogram();
+		}
+
+		long getHedgeDelay() {
+			return hedgeDelay;
+		}
+	}
+
+	/** Where hedged reads are sent from. */
+	private final ExecutorService executor;
+	/** In tenths of a retry. */
+	private final AtomicInteger budget = new AtomicInteger(MAX_RETRY_BUDGET * READS_PER_RETRY);
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong hedges = new AtomicLong();
+
+	RequestGuard(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns how many reads were retried.
+	 */
+	long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * Returns how many reads were hedged.
+	 */
+	long getHedges() {
+		return hedges.get();
+	}
+
+	/**
+	 * Send the read, retrying it if it fails with a transient error and the budget allows.
+	 */
+	<T> T read(Request<T> request) throws CouchHttpException, IOException {
+		return read(request, null);
+	}
+
+	/**
+	 * Send the read, hedging it if it's slower than the recent reads of its kind, and retrying it if it fails with a
+	 * transient error - as the budget allows.
+	 *
+	 * @param latencies	the recent latencies of this kind of read, or null to not hedge it
+	 */
+	<T> T read(Request<T> request, Latencies latencies) throws CouchHttpException, IOException {
+		for (int attempt = 0; ; attempt++) {
+			try {
+				T result = (latencies == null) ? request.send() : hedge(request, latencies);
+				earn();
+				return result;
+			} catch (CouchHttpException che) {
+				if (che.getStatusCode() < 500 || attempt >= MAX_RETRIES || !spend())
+					throw che;
+			} catch (CircuitBreaker.OpenException e) {
+				throw e;
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				if (attempt >= MAX_RETRIES || !spend())
+					throw e;
+			}
+			retries.incrementAndGet();
+			pause(attempt);
+		}
+	}
+
+	private void earn() {
+		int current;
+		do {
+			current = budget.get();
+			if (current >= MAX_RETRY_BUDGET * READS_PER_RETRY)
+				return;
+		} while (!budget.compareAndSet(current, current + 1));
+	}
+
+	/**
+	 * Take a retry out of the budget.
+	 * @return false if the budget is spent
+	 */
+	private boolean spend() {
+		int current;
+		do {
+			current = budget.get();
+			if (current < READS_PER_RETRY)
+				return false;
+		} while (!budget.compareAndSet(current, current - READS_PER_RETRY));
+		return true;
+	}
+
+	/**
+	 * Wait a random time between half the backoff and all of it, before retrying.
+	 */
+	private static void pause(int attempt) throws InterruptedIOException {
+		long backoff = RETRY_BACKOFF_MILLIS << attempt;
+		try {
+			Thread.sleep(backoff / 2 + (long) (BACKOFF_RANDOM.nextDouble() * backoff / 2));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted before retrying a read");
+		}
+	}
+
+	/**
+	 * Send the read from the executor, and if it hasn't returned within the hedge delay, send it again. Returns the
+	 * first answer, and throws only if both fail. The slower read is left to finish on its own.
+	 */
+	private <T> T hedge(final Request<T> request, final Latencies latencies) throws CouchHttpException, IOException {
+		long delay = latencies.getHedgeDelay();
+		if (delay == 0)
+			return timed(request, latencies);
+		CompletionService<T> completion = new ExecutorCompletionService<T>(executor);
+		completion.submit(task(request, latencies, true));
+		int outstanding = 1;
+		Throwable failure = null;
+		try {
+			Future<T> done = completion.poll(delay, TimeUnit.MICROSECONDS);
+			if (done == null && spend()) {
+				hedges.incrementAndGet();
+				completion.submit(task(request, latencies, false));
+				outstanding++;
+			}
+			while (outstanding > 0) {
+				if (done == null)
+					done = completion.take();
+				outstanding--;
+				try {
+					return done.get();
+				} catch (ExecutionException e) {
+					if (failure == null)
+						failure = e.getCause();
+				}
+				done = null;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a read");
+		}
+		if (failure instanceof CouchHttpException)
+			throw (CouchHttpException) failure;
+		if (failure instanceof IOException)
+			throw (IOException) failure;
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		throw new IOException(failure);
+	}
+
+	/**
+	 * Returns the read as a task for the executor, whose requests count in the metrics of the operation that made
+	 * it, running on the calling thread - not in those of the executor's thread.
+	 */
+	private <T> Callable<T> task(final Request<T> request, final Latencies latencies, final boolean measured) {
+		final AtomicInteger roundTrips = QueueMetrics.currentRoundTrips();
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				AtomicInteger previous = QueueMetrics.countRoundTripsIn(roundTrips);
+				try {
+					return measured ? timed(request, latencies) : request.send();
+				} finally {
+					QueueMetrics.countRoundTripsIn(previous);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Send the read, and measure it if it succeeds. Hedges aren't measured, so they don't pull the delay down.
+	 */
+	private <T> T timed(Request<T> request, Latencies latencies) throws CouchHttpException, IOException {
+		long start = System.nanoTime();
+		T result = request.send();
+		latencies.record(System.nanoTime() - start, currentTimeMillis());
+		return result;
+	}
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of outgoing messages, used by {@link BufferedSender}.
+ * <p>
+ * Messages are appended at the write offset and removed from the commit offset once they're stored in the queue.
+ * When the log is backed by a file, the file is memory-mapped: an append is a memory copy, and the operating
+ * system writes the pages to disk even if this process crashes. When the spool is opened again, every message
+ * between the commit offset and the last intact record is recovered, in order.
+ * <p>
+ * Layout: a header of <code>MAGIC, (epoch, commit offset)</code>, followed by records of
+ * <code>length, epoch, crc, sent_at, id length, id, payload</code>. The epoch and commit offset share a single
+ * long, so they always change together. The sent_at long carries the logical part of the message's
+ * {@link HybridClock} stamp in its top 16 bits, which are zero in records written before there was one. The epoch
+ * is incremented whenever records move back to the start of the log, so stale records left over from before are
+ * never mistaken for new ones.
+ * <p>
+ * Once everything is committed the log rewinds to its start. Under steady load it may never empty out, so when
+ * the end of the log is reached the pending records are copied to the free space at its start - but only if
+ * they fit without overlapping, so that a crash during the copy leaves the original records intact.
+ * <p>
+ * This class isn't thread-safe - BufferedSender guards it with a lock.
+ */
+class Spool {
+
+	static final int MAGIC = 0x52515331; // "RQS1"
+	static final int HEADER_SIZE = 32;
+	/** length + epoch + crc + sent_at + id length */
+	static final int RECORD_HEADER_SIZE = 4 + 4 + 4 + 8 + 2;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ByteBuffer buffer;
+	private final RandomAccessFile file;
+	private int epoch;
+	private int commitOffset;
+	private int writeOffset;
+	private int pendingRecords;
+
+	/**
+	 * Open a spool backed by a memory-mapped file, recovering any messages left in it.
+	 * @param spoolFile	the file. Created if it doesn't exist
+	 * @param capacity	size of the file in bytes. Ignored if the file already exists
+	 */
+	Spool(File spoolFile, int capacity) throws IOException {
+		boolean exists = spoolFile.exists() && spoolFile.length() >= HEADER_SIZE;
+		file = new RandomAccessFile(spoolFile, "rw");
+		int size = exists ? (int) file.length() : capacity;
+		MappedByteBuffer mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		buffer = mapped;
+		if (exists && buffer.getInt(0) == MAGIC)
+			recover();
+		else
+			reset(0);
+	}
+
+	/**
+	 * Create a spool in (direct) memory only. Its content is lost if the process exits.
+	 */
+	Spool(int capacity) {
+		file = null;
+		buffer = ByteBuffer.allocateDirect(capacity);
+		reset(0);
+	}
+
+	/**
+	 * Rewind the log to its start under a new epoch. Only called when no records are pending.
+	 */
+	private void reset(int newEpoch) {
+		buffer.putInt(HEADER_SIZE, 0);
+		buffer.putInt(0, MAGIC);
+		epoch = newEpoch;
+		commitOffset = HEADER_SIZE;
+		writeOffset = HEADER_SIZE;
+		pendingRecords = 0;
+		writeHeader();
+	}
+
+	private void writeHeader() {
+		buffer.putLong(8, ((long) epoch << 32) | (commitOffset & 0xffffffffL));
+	}
+
+	/**
+	 * Move the pending records to the start of the log, if the free space there can hold them.
+	 * @return true if the records were moved
+	 */
+	private boolean compact() {
+		int pendingBytes = writeOffset - commitOffset;
+		if (commitOffset - HEADER_SIZE < pendingBytes + 4)
+			return false;
+		int newEpoch = epoch + 1;
+		ByteBuffer source = buffer.duplicate();
+		source.position(commitOffset).limit(writeOffset);
+		ByteBuffer target = buffer.duplicate();
+		target.position(HEADER_SIZE);
+		target.put(source);
+		target.putInt(0);
+		for (int offset = HEADER_SIZE; offset < HEADER_SIZE + pendingBytes; offset += buffer.getInt(offset))
+			buffer.putInt(offset + 4, newEpoch);
+		// switch over in a single write; until then, recovery still finds the records at their old offsets
+		epoch = newEpoch;
+		commitOffset = HEADER_SIZE;
+		writeOffset = HEADER_SIZE + pendingBytes;
+		writeHeader();
+		return true;
+	}
+
+	/**
+	 * Read the header and scan the records after the commit offset, stopping at the first one that is
+	 * incomplete, corrupt or from an earlier epoch.
+	 */
+	private void recover() {
+		long header = buffer.getLong(8);
+		epoch = (int) (header >>> 32);
+		commitOffset = (int) header;
+		int offset = commitOffset;
+		pendingRecords = 0;
+		while (offset + RECORD_HEADER_SIZE <= buffer.capacity()) {
+			int length = buffer.getInt(offset);
+			if (length < RECORD_HEADER_SIZE || offset + length > buffer.capacity())
+				break;
+			if (buffer.getInt(offset + 4) != epoch)
+				break;
+			if (buffer.getInt(offset + 8) != checksum(offset, length))
+				break;
+			offset += length;
+			pendingRecords++;
+		}
+		writeOffset = offset;
+	}
+
+	private int checksum(int offset, int length) {
+		CRC32 crc = new CRC32();
+		byte[] bytes = new byte[length - 12];
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset + 12);
+		view.get(bytes);
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Append a message to the log.
+	 * @return false if there's not enough room left
+	 */
+	boolean append(String id, long sentStamp, byte[] data) {
+		byte[] idBytes = id.getBytes(UTF8);
+		int length = RECORD_HEADER_SIZE + idBytes.length + data.length;
+		if (pendingRecords == 0 && writeOffset != HEADER_SIZE)
+			reset(epoch + 1);
+		// keep room for the terminating zero length that marks the end of the log
+		if (writeOffset + length + 4 > buffer.capacity()) {
+			if (!compact() || writeOffset + length + 4 > buffer.capacity())
+				return false;
+		}
+
+		ByteBuffer body = ByteBuffer.allocate(length - 12);
+		long sentAt = HybridClock.millis(sentStamp) | ((long) HybridClock.logical(sentStamp) << 48);
+		body.putLong(sentAt).putShort((short) idBytes.length).put(idBytes).put(data);
+		CRC32 crc = new CRC32();
+		crc.update(body.array());
+
+		ByteBuffer view = buffer.duplicate();
+		view.position(writeOffset);
+		view.putInt(0); // the length is written last, once the rest of the record is in place
+		view.putInt(epoch).putInt((int) crc.getValue()).put(body.array());
+		view.putInt(0);
+		buffer.putInt(writeOffset, length);
+		writeOffset += length;
+		pendingRecords++;
+		return true;
+	}
+
+	/**
+	 * Returns up to <code>max</code> messages, starting at the commit offset. They stay in the log until
+	 * {@link #commit(int) } is called.
+	 */
+	List<Message> peek(int max) {
+		List<Message> messages = new ArrayList<Message>(Math.min(max, pendingRecords));
+		int offset = commitOffset;
+		ByteBuffer view = buffer.duplicate();
+		while (messages.size() < max && offset < writeOffset) {
+			int length = buffer.getInt(offset);
+			view.position(offset + 12);
+			long sentAt = view.getLong();
+			byte[] idBytes = new byte[view.getShort()];
+			view.get(idBytes);
+			byte[] data = new byte[length - RECORD_HEADER_SIZE - idBytes.length];
+			view.get(data);
+			long sentStamp = HybridClock.stamp(sentAt & 0xffffffffffffL, (int) (sentAt >>> 48));
+			messages.add(Queue.newMessage(new String(idBytes, UTF8), sentStamp, data));
+			offset += length;
+		}
+		return messages;
+	}
+
+	/**
+	 * Remove the first <code>count</code> messages from the log, once they are safely stored in the queue.
+	 */
+	void commit(int count) {
+		int offset = commitOffset;
+		for (int i = 0; i < count; i++)
+			offset += buffer.getInt(offset);
+		commitOffset = offset;
+		pendingRecords -= count;
+		writeHeader();
+	}
+
+	/**
+	 * Returns the number of messages in the log that weren't committed yet.
+	 */
+	int pendingRecords() {
+		return pendingRecords;
+	}
+
+	/**
+	 * Returns the largest payload (with an id of the given length) that an empty spool can hold.
+	 */
+	int maxPayload(int idLength) {
+		return buffer.capacity() - HEADER_SIZE - RECORD_HEADER_SIZE - idLength - 4;
+	}
+
+	/**
+	 * Write the mapped pages to disk and close the file.
+	 */
+	void close() throws IOException {
+		if (file == null)
+			return;
+		((MappedByteBuffer) buffer).force();
+		file.close();
+	}
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can update without contending on a single memory location.
+ * <p>
+ * The count is split into stripes, each on its own cache line, and a thread always updates the stripe picked by
+ * its id. Reading the count sums all the stripes, so it is slower than updating - the right trade-off for
+ * metrics, which are updated on every operation and read once in a while. Updates never allocate.
+ */
+class StripedCounter {
+
+	/** Longs per stripe: a stripe fills a 64 byte cache line, so neighboring stripes don't share one. */
+	static final int PADDING = 8;
+	static final int STRIPES = stripesFor(Runtime.getRuntime().availableProcessors());
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	/**
+	 * Returns the smallest power of two that is at least twice the number of processors, up to 64.
+	 */
+	static int stripesFor(int processors) {
+		int stripes = 1;
+		while (stripes < processors * 2 && stripes < 64)
+			stripes <<= 1;
+		return stripes;
+	}
+
+	/**
+	 * Returns the stripe of the current thread, as a number in [0, stripes).
+	 */
+	static int stripe(int stripes) {
+		long id = Thread.currentThread().getId();
+		// spread the ids, which are usually small and consecutive
+		int h = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+		return (h >>> 16) & (stripes - 1);
+	}
+
+	void add(long delta) {
+		cells.addAndGet(stripe(STRIPES) * PADDING, delta);
+	}
+
+	void increment() {
+		add(1);
+	}
+
+	long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++)
+			sum += cells.get(i * PADDING);
+		return sum;
+	}
+
+}
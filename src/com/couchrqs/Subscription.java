@@ -0,0 +1,430 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import com.jzboy.couchdb.Document;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * A subscription to a {@link Topic}: receives every message published to the topic since the subscription was
+ * created, like a queue - each message is handed out to one receiver at a time, until it's deleted from the
+ * subscription or its visibility timeout runs out.
+ * <p>
+ * The subscription doesn't copy the messages. Its state is a cursor - the sequence mark of the last change to the
+ * topic it has read - in a local document of the topic's, and a lock record for each message it has handed out,
+ * each in a small document of its own in the topic's lock store, whose revision is the message's receipt token.
+ * A receive hands out the messages whose locks expired first, then claims the next messages published since the
+ * cursor by storing their lock records. A record whose id is taken belongs to the receiver that claimed the message
+ * first, and one that was stored and since deleted comes back under a later revision; it's deleted again, and its
+ * message isn't handed out. So receivers don't take turns on the cursor: it only saves the next receive from
+ * reading the claimed messages again, and a receive that finds it moved by another receiver leaves it as it is.
+ * Deletes and visibility changes write just the message's lock record.
+ * <p>
+ * Messages are received in the order they were published, except for messages handed out again, which come first.
+ * Message groups and attributes aren't supported. A Subscription object can be shared between threads.
+ */
+public class Subscription {
+
+	private enum LockChange { DELETE, EXTEND, RELEASE }
+
+	private final Topic topic;
+	private final QueueBackend backend;
+	/** Where the lock records are stored. */
+	private final QueueBackend locks;
+	private final QueueMetrics metrics;
+	private final String name;
+	private final String stateId;
+	private final String lockPrefix;
+	/** The visibility timeout (in milliseconds) to use for messages received through this object. */
+	private volatile long visibilityTimeout;
+
+	Subscription(Topic topic, String name) {
+		this.topic = topic;
+		this.backend = topic.queue.backend;
+		this.locks = topic.locks;
+		this.metrics = topic.queue.metrics;
+		this.name = name;
+		this.stateId = Topic.SUBSCRIPTION_PREFIX + name;
+		this.lockPrefix = lockPrefix(name);
+		this.visibilityTimeout = topic.queue.getVisibilityTimeout();
+	}
+
+	/**
+	 * Returns the state of a new subscription, which reads on from the sequence mark.
+	 */
+	static ObjectNode newState(String sequence) {
+		ObjectNode state = new ObjectNode(JsonNodeFactory.instance);
+		state.put("seq", sequence);
+		return state;
+	}
+
+	/**
+	 * Returns the prefix of the ids of the subscription's lock records, which end with the message id.
+	 */
+	static String lockPrefix(String name) {
+		return name + ":";
+	}
+
+	/**
+	 * Returns the subscription's lock records, from the topic's lock store, in order of message id.
+	 */
+	static List<Document> readLocks(QueueBackend lockStore, String name) throws RQSException {
+		String prefix = lockPrefix(name);
+		List<Document> records = lockStore.getDocumentsByPrefix(prefix);
+		// those of a subscription named like this one, then a colon and more, are in the same range
+		for (Iterator<Document> it = records.iterator(); it.hasNext(); ) {
+			if (it.next().getId().indexOf(':', prefix.length()) >= 0)
+				it.remove();
+		}
+		return records;
+	}
+
+	/**
+	 * Returns the name of the subscription.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public Topic getTopic() {
+		return topic;
+	}
+
+	/**
+	 * Returns the default visibility timeout (in milliseconds) used for messages received through this object.
+	 */
+	public long getVisibilityTimeout() {
+		return visibilityTimeout;
+	}
+
+	/**
+	 * Set the default visibility timeout (in milliseconds) used for messages received through this object.
+	 */
+	public void setVisibilityTimeout(long visibilityTimeout) {
+		this.visibilityTimeout = visibilityTimeout;
+	}
+
+	/**
+	 * The name the subscription's operations are measured under.
+	 */
+	private String metricsName() {
+		return topic.getName() + "/" + name;
+	}
+
+	private ObjectNode readState() throws NoSuchQueueException, RQSException {
+		ObjectNode state = backend.getLocalDocument(stateId);
+		if (state == null)
+			throw new NoSuchQueueException("Subscription not found: " + metricsName());
+		return state;
+	}
+
+	private String messageId(Document lock) {
+		return lock.getId().substring(lockPrefix.length());
+	}
+
+	/**
+	 * Returns true if the lock record's lock expired - or is gone, which it is if the lock store was received from as
+	 * a queue, and reclaimed it.
+	 */
+	private static boolean isLockExpired(Document record, long now) {
+		JsonNode lock = record.getJson().get("lock");
+		return lock == null ||
+				lock.get("locked_at").getLongValue() + lock.get("visibility_timeout").getLongValue() <= now;
+	}
+
+	private ObjectNode newLock(long visibilityTimeout) {
+		ObjectNode lock = new ObjectNode(JsonNodeFactory.instance);
+		lock.put("locked_at", System.currentTimeMillis());
+		lock.put("locked_by", topic.queue.getProcessId());
+		lock.put("visibility_timeout", visibilityTimeout);
+		return lock;
+	}
+
+	/**
+	 * Retrieves up to maxNumberOfMessages messages from the subscription.<br />
+	 * If there are no messages to hand out, returns an empty list.
+	 *
+	 * @param maxNumberOfMessages	maximum number of messages that will be retrieved
+	 * @param visibilityTimeout		visibility timeout assigned to those messages. Overrides the default
+	 * @return	a list of messages for processing. The list may be empty but never null.
+	 * @throws NoSuchQueueException	if the subscription was deleted
+	 * @throws RQSException			wraps any other exception thrown by the underlying CouchDB layer
+	 */
+	public List<Message> receiveMessages(int maxNumberOfMessages, long visibilityTimeout) throws RQSException {
+		long start = metrics.start();
+		boolean succeeded = false;
+		try {
+			Map<String, String> tokens = lockNext(maxNumberOfMessages, visibilityTimeout);
+			List<Message> messages = tokens.isEmpty() ? new ArrayList<Message>() : fetch(tokens);
+			succeeded = true;
+			return messages;
+		} finally {
+			metrics.completed(QueueMetrics.Operation.RECEIVE, metricsName(), start, succeeded);
+		}
+	}
+
+	public List<Message> receiveMessages(int maxNumberOfMessages) throws RQSException {
+		return receiveMessages(maxNumberOfMessages, visibilityTimeout);
+	}
+
+	/**
+	 * Retrieves a single message from the subscription, or null if there's none to hand out.
+	 * See {@link #receiveMessages(int, long) }.
+	 */
+	public Message receiveMessage(long visibilityTimeout) throws RQSException {
+		List<Message> messages = receiveMessages(1, visibilityTimeout);
+		return messages.isEmpty() ? null : messages.get(0);
+	}
+
+	public Message receiveMessage() throws RQSException {
+		return receiveMessage(visibilityTimeout);
+	}
+
+	/**
+	 * Lock up to max messages: those whose locks expired first, oldest first, then the next ones published to the
+	 * topic.
+	 * @return the receipt tokens of the messages, by id, in the order they're handed out
+	 */
+	private Map<String, String> lockNext(int max, long visibilityTimeout) throws RQSException {
+		Map<String, String> tokens = new LinkedHashMap<String, String>();
+		long now = System.currentTimeMillis();
+		// lock records are in order of message id, and ids begin with the send time
+		List<Document> expired = new ArrayList<Document>();
+		for (Document lock : readLocks(locks, name)) {
+			if (expired.size() >= max)
+				break;
+			if (isLockExpired(lock, now)) {
+				((ObjectNode) lock.getJson()).put("lock", newLock(visibilityTimeout));
+				expired.add(lock);
+			}
+		}
+		// a record that another receiver locked first is skipped
+		if (!expired.isEmpty()) {
+			for (Document lock : locks.updateDocuments(expired))
+				tokens.put(messageId(lock), lock.getRev());
+		}
+		if (tokens.size() < max)
+			claimNext(max - tokens.size(), visibilityTimeout, tokens);
+		return tokens;
+	}
+
+	/**
+	 * Claim up to max of the messages published since the cursor by storing their lock records, then move the
+	 * cursor past the messages read - all of which are claimed by now, by this receiver or another - unless another
+	 * receiver moved it meanwhile.
+	 * @param tokens	where the receipt tokens of the messages handed out are added, by id
+	 */
+	private void claimNext(int max, long visibilityTimeout, Map<String, String> tokens) throws RQSException {
+		ObjectNode state = readState();
+		String sequence = state.get("seq").getTextValue();
+		String read = sequence;
+		int wanted = max;
+		while (wanted > 0) {
+			int pageSize = wanted;
+			QueueBackend.Changes changes = backend.getChanges(read, pageSize);
+			read = changes.getLastSequence();
+			if (changes.getIds().isEmpty())
+				break;
+			List<Document> records = new ArrayList<Document>(changes.getIds().size());
+			for (String id : changes.getIds())
+				records.add(newLockRecord(id, visibilityTimeout));
+			List<Document> handled = new ArrayList<Document>();
+			// a record whose id is taken was stored by the receiver that claimed the message first
+			for (Document lock : locks.createDocuments(records)) {
+				if (lock.getRev().startsWith("1-")) {
+					tokens.put(messageId(lock), lock.getRev());
+					wanted--;
+				} else {
+					handled.add(lock); // stored and deleted before: the message was handed out, and deleted
+				}
+			}
+			if (!handled.isEmpty())
+				locks.deleteDocuments(handled);
+			if (changes.getIds().size() < pageSize)
+				break;
+		}
+		if (read.equals(sequence))
+			return;
+		state.put("seq", read);
+		try {
+			backend.putLocalDocument(stateId, state);
+		} catch (ReceiptTokenOutOfDateException e) {
+			// another receiver moved it - the next receive reads on from there, skipping what's claimed
+		}
+	}
+
+	private Document newLockRecord(String messageId, long visibilityTimeout) {
+		ObjectNode json = new ObjectNode(JsonNodeFactory.instance);
+		json.put("lock", newLock(visibilityTimeout));
+		return new Document(lockPrefix + messageId, json);
+	}
+
+	/**
+	 * Returns the locked messages, with the receipt tokens as their revisions. Messages that are gone from the
+	 * topic - expired - are left out, and their lock records deleted.
+	 */
+	private List<Message> fetch(Map<String, String> tokens) throws RQSException {
+		List<String> ids = new ArrayList<String>(tokens.keySet());
+		List<Document> docs = backend.getDocuments(ids);
+		List<String> found = new ArrayList<String>(docs.size());
+		for (Document doc : docs)
+			found.add(doc.getId());
+		Map<String, byte[]> payloads = found.isEmpty() ?
+				Collections.<String, byte[]>emptyMap() : backend.getPayloads(found);
+		long now = System.currentTimeMillis();
+		List<Message> messages = new ArrayList<Message>(docs.size());
+		List<String> gone = new ArrayList<String>(ids);
+		for (Document doc : docs) {
+			byte[] data = payloads.get(doc.getId());
+			if (data == null || Queue.isExpired(doc.getJson(), now))
+				continue;
+			Document received = new Document(doc.getId(), doc.getJson());
+			received.setRev(tokens.get(doc.getId()));
+			messages.add(new Message(received, data));
+			gone.remove(doc.getId());
+		}
+		if (!gone.isEmpty()) {
+			List<Document> records = new ArrayList<Document>(gone.size());
+			for (String id : gone) {
+				Document lock = new Document(lockPrefix + id, new ObjectNode(JsonNodeFactory.instance));
+				lock.setRev(tokens.get(id));
+				records.add(lock);
+			}
+			locks.deleteDocuments(records);
+		}
+		return messages;
+	}
+
+	/**
+	 * Delete the specified message from the subscription - it's not handed out again. The message stays in the
+	 * topic for the other subscriptions.<br />
+	 * Caller must be the owner of the lock on this message.
+	 *
+	 * @throws NoSuchMessageException			if the message isn't handed out - it was deleted already
+	 * @throws ReceiptTokenOutOfDateException	if the receiptToken is no longer valid - probably because
+	 * the original timeout was exceeded and another process got a lock on the message
+	 * @throws RQSException					wraps any other exception thrown by the underlying CouchDB layer
+	 */
+	public void deleteMessage(String messageId, String receiptToken)
+			throws NoSuchMessageException, ReceiptTokenOutOfDateException, RQSException
+	{
+		long start = metrics.start();
+		boolean succeeded = false;
+		try {
+			changeLock(messageId, receiptToken, LockChange.DELETE, 0);
+			succeeded = true;
+		} finally {
+			metrics.completed(QueueMetrics.Operation.DELETE, metricsName(), start, succeeded);
+		}
+	}
+
+	/**
+	 * Extend the visibility timeout of the specified message by the specified amount.<br />
+	 * Caller must be the owner of the lock on this message.
+	 * @return a new receipt token for the message
+	 *
+	 * @throws NoSuchMessageException			if the message isn't handed out
+	 * @throws ReceiptTokenOutOfDateException	if the receiptToken is no longer valid
+	 * @throws RQSException					wraps any other exception thrown by the underlying CouchDB layer
+	 */
+	public String changeMessageVisibility(String messageId, String receiptToken, long visibilityTimeout)
+			throws NoSuchMessageException, ReceiptTokenOutOfDateException, RQSException
+	{
+		long start = metrics.start();
+		boolean succeeded = false;
+		try {
+			String token = changeLock(messageId, receiptToken, LockChange.EXTEND, visibilityTimeout);
+			succeeded = true;
+			return token;
+		} finally {
+			metrics.completed(QueueMetrics.Operation.CHANGE_VISIBILITY, metricsName(), start, succeeded);
+		}
+	}
+
+	/**
+	 * Return a received message to the subscription right away, instead of waiting for its visibility timeout.
+	 *
+	 * @throws NoSuchMessageException			if the message isn't handed out
+	 * @throws ReceiptTokenOutOfDateException	if the message's receipt token is no longer valid
+	 * @throws RQSException					wraps any other exception thrown by the underlying CouchDB layer
+	 */
+	public void releaseMessage(Message message)
+			throws NoSuchMessageException, ReceiptTokenOutOfDateException, RQSException
+	{
+		long start = metrics.start();
+		boolean succeeded = false;
+		try {
+			changeLock(message.getMessageId(), message.getReceiptToken(), LockChange.RELEASE, 0);
+			succeeded = true;
+		} finally {
+			metrics.completed(QueueMetrics.Operation.RELEASE, metricsName(), start, succeeded);
+		}
+	}
+
+	/**
+	 * Change the lock record of a message, if the receipt token is still its revision.
+	 * @return the record's new revision, or null if it was deleted
+	 */
+	private String changeLock(String messageId, String receiptToken, LockChange change, long extension)
+			throws NoSuchMessageException, ReceiptTokenOutOfDateException, RQSException
+	{
+		String id = lockPrefix + messageId;
+		if (change == LockChange.DELETE) {
+			try {
+				locks.deleteDocument(id, receiptToken);
+			} catch (NoSuchMessageException e) {
+				throw notHandedOut(messageId);
+			}
+			return null;
+		}
+		Document record = locks.getDocumentOrNull(id);
+		if (record == null)
+			throw notHandedOut(messageId);
+		ObjectNode lock = (ObjectNode) record.getJson().get("lock");
+		if (!record.getRev().equals(receiptToken) || lock == null)
+			throw new ReceiptTokenOutOfDateException("The message was already acquired by another process");
+		long timeout = lock.get("visibility_timeout").getLongValue();
+		if (change == LockChange.EXTEND)
+			lock.put("visibility_timeout", timeout + extension);
+		else
+			lock.put("visibility_timeout", System.currentTimeMillis() - lock.get("locked_at").getLongValue());
+		return locks.updateDocument(record).getRev();
+	}
+
+	private NoSuchMessageException notHandedOut(String messageId) {
+		return new NoSuchMessageException("The subscription has no message with ID " + messageId + " handed out");
+	}
+
+	/**
+	 * Returns the number of messages handed out and not yet deleted, whose visibility timeout hasn't run out.
+	 *
+	 * @throws RQSException wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public int numberOfMessagesNotVisible() throws RQSException {
+		long now = System.currentTimeMillis();
+		int count = 0;
+		for (Document lock : readLocks(locks, name)) {
+			if (!isLockExpired(lock, now))
+				count++;
+		}
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Subscription %s to %s", name, topic);
+	}
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A hashed timer wheel: schedules items for expiry in O(1) and collects the expired ones in time proportional
+ * to the number of ticks that passed.
+ * <p>
+ * Time is divided into ticks of <code>tickMillis</code>, and each tick maps to one of <code>wheelSize</code>
+ * buckets. Items due further away than a full turn of the wheel simply stay in their bucket until their tick
+ * comes around. The wheel has no thread of its own - callers drive it by calling {@link #advance(long)}.
+ * <p>
+ * Scheduling is lock-free. Only one thread advances the wheel at a time; other threads that try to
+ * advance concurrently return immediately with nothing.
+ */
+class TimerWheel<T> {
+
+	private static final class Timeout<T> {
+		final long tick;
+		final T item;
+
+		Timeout(long tick, T item) {
+			this.tick = tick;
+			this.item = item;
+		}
+	}
+
+	private final long tickMillis;
+	private final int mask;
+	private final List<ConcurrentLinkedQueue<Timeout<T>>> buckets;
+	/** Items scheduled for a tick that the wheel had already passed. */
+	private final ConcurrentLinkedQueue<Timeout<T>> overdue = new ConcurrentLinkedQueue<Timeout<T>>();
+	private final ReentrantLock advanceLock = new ReentrantLock();
+	/** The latest tick whose bucket was (or is being) processed. */
+	private volatile long currentTick;
+
+	/**
+	 * @param tickMillis	duration of a tick, in milliseconds. This is the precision of the wheel.
+	 * @param wheelSize		number of buckets. Rounded up to a power of 2.
+	 * @param now			the current time, in milliseconds
+	 */
+	TimerWheel(long tickMillis, int wheelSize, long now) {
+		int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+		this.tickMillis = tickMillis;
+		this.mask = size - 1;
+		List<ConcurrentLinkedQueue<Timeout<T>>> wheel = new ArrayList<ConcurrentLinkedQueue<Timeout<T>>>(size);
+		for (int i = 0; i < size; i++)
+			wheel.add(new ConcurrentLinkedQueue<Timeout<T>>());
+		this.buckets = wheel;
+		this.currentTick = now / tickMillis;
+	}
+
+	/**
+	 * Schedule <code>item</code> to expire at <code>deadline</code> (in milliseconds).
+	 */
+	void schedule(long deadline, T item) {
+		long tick = deadline / tickMillis;
+		Timeout<T> timeout = new Timeout<T>(tick, item);
+		buckets.get((int) (tick & mask)).add(timeout);
+		// advance() publishes currentTick before scanning a bucket, so if the bucket was already scanned
+		// we're sure to see it here. The item may then be returned twice, which callers must tolerate.
+		if (tick <= currentTick)
+			overdue.add(timeout);
+	}
+
+	/**
+	 * Returns all the items whose deadline is at or before <code>now</code>, and removes them from the wheel.<br />
+	 * Returns an empty list if another thread is currently advancing the wheel.
+	 */
+	List<T> advance(long now) {
+		long nowTick = now / tickMillis;
+		List<T> expired = new ArrayList<T>();
+		if (nowTick <= currentTick && overdue.isEmpty())
+			return expired;
+		if (!advanceLock.tryLock())
+			return expired;
+		try {
+			long from = currentTick + 1;
+			// if more than a full turn passed, every bucket is scanned exactly once
+			long to = Math.min(nowTick, from + mask);
+			for (long tick = from; tick <= to; tick++) {
+				currentTick = (tick == to) ? nowTick : tick;
+				collect(buckets.get((int) (tick & mask)), nowTick, expired);
+			}
+			Timeout<T> timeout;
+			while ((timeout = overdue.poll()) != null)
+				expired.add(timeout.item);
+		} finally {
+			advanceLock.unlock();
+		}
+		return expired;
+	}
+
+	private void collect(ConcurrentLinkedQueue<Timeout<T>> bucket, long nowTick, List<T> expired) {
+		Iterator<Timeout<T>> it = bucket.iterator();
+		while (it.hasNext()) {
+			Timeout<T> timeout = it.next();
+			if (timeout.tick <= nowTick) {
+				it.remove();
+				expired.add(timeout.item);
+			}
+		}
+	}
+
+}
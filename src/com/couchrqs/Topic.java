@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.util.Collections;
+import java.util.List;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * A topic: messages published to it are delivered to every one of its {@link Subscription subscriptions}.
+ * Topics are acquired through the methods in QueueService.
+ * <p>
+ * A message is stored once, in the topic, however many subscriptions there are. Each subscription receives the
+ * topic's messages like a queue, with its own visibility timeouts and deletes, but keeps just a cursor into the
+ * topic's changes and a small lock record for each message it has handed out. The lock records are stored apart
+ * from the messages, in the topic's lock store, so publishing costs one write, and a subscription reads just the
+ * messages from the topic's changes, however many other subscriptions there are. A lock record is deleted when its
+ * message is deleted from the subscription, but the lock store keeps a deleted record for each message every
+ * subscription has deleted - as CouchDB keeps every deleted document - until the topic is purged or deleted.
+ * <p>
+ * Messages stay in the topic until they expire - see {@link #setRetentionPeriod(long) }. A subscription that falls
+ * further behind than that misses the expired messages. A topic is stored like a queue, in a database of its own,
+ * which shouldn't be received from as a queue, and its lock store in another, named like the topic with
+ * {@link #LOCKS_SUFFIX} added. Purging the topic removes its subscriptions too.
+ * <p>
+ * A Topic object can be shared between threads.
+ */
+public class Topic {
+
+	/** The prefix of the ids of the local documents that hold the subscriptions' state. */
+	static final String SUBSCRIPTION_PREFIX = "rqs_subscription_";
+	/** Added to the name of a topic to name its lock store. */
+	public static final String LOCKS_SUFFIX = "$locks";
+
+	/** Where the topic's messages are stored, and published through. */
+	final Queue queue;
+	/** Where the subscriptions' lock records are stored. */
+	final QueueBackend locks;
+
+	Topic(Queue queue, QueueBackend locks) {
+		this.queue = queue;
+		this.locks = locks;
+	}
+
+	/**
+	 * Returns the name of the topic's lock store.
+	 */
+	static String locksName(String topicName) {
+		return topicName + LOCKS_SUFFIX;
+	}
+
+	/**
+	 * Returns the name of the topic.
+	 */
+	public String getName() {
+		return queue.getName();
+	}
+
+	/**
+	 * Returns how long (in milliseconds) messages published through this object are kept.
+	 */
+	public long getRetentionPeriod() {
+		return queue.getRetentionPeriod();
+	}
+
+	/**
+	 * Set how long (in milliseconds) messages published through this object are kept, or 0 to keep them for as
+	 * long as the topic exists. Subscriptions don't delete messages from the topic, so this is what keeps it from
+	 * growing for good.
+	 */
+	public void setRetentionPeriod(long retentionPeriod) {
+		queue.setRetentionPeriod(retentionPeriod);
+	}
+
+	/**
+	 * Publish a message to all the topic's subscriptions.<br />
+	 * The message and its payload are stored in a single write, so a subscription never sees the one without
+	 * the other.
+	 * @return the id of the message
+	 *
+	 * @throws RQSException wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public String publish(byte[] data) throws RQSException {
+		return queue.sendMessages(Collections.singletonList(data)).get(0);
+	}
+
+	/**
+	 * Publish messages to all the topic's subscriptions, in a single bulk operation.
+	 * @return the ids of the messages, in the same order as the payloads
+	 *
+	 * @throws RQSException wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public List<String> publish(List<byte[]> data) throws RQSException {
+		return queue.sendMessages(data);
+	}
+
+	/**
+	 * Returns the subscription with the specified name, creating it if there's none.<br />
+	 * A new subscription receives the messages published from now on.
+	 *
+	 * @throws RQSException wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public Subscription subscribe(String subscriptionName) throws RQSException {
+		String stateId = SUBSCRIPTION_PREFIX + subscriptionName;
+		if (queue.backend.getLocalDocument(stateId) == null) {
+			ObjectNode state = Subscription.newState(queue.backend.getLastSequence());
+			try {
+				queue.backend.putLocalDocument(stateId, state);
+			} catch (ReceiptTokenOutOfDateException e) {
+				// created by another process at the same time
+			}
+		}
+		return new Subscription(this, subscriptionName);
+	}
+
+	/**
+	 * Returns the subscription with the specified name.
+	 *
+	 * @throws NoSuchQueueException	if the topic has no subscription with that name
+	 * @throws RQSException			wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public Subscription getSubscription(String subscriptionName) throws NoSuchQueueException, RQSException {
+		if (queue.backend.getLocalDocument(SUBSCRIPTION_PREFIX + subscriptionName) == null)
+			throw new NoSuchQueueException("Subscription not found: " + getName() + "/" + subscriptionName);
+		return new Subscription(this, subscriptionName);
+	}
+
+	/**
+	 * Deletes the subscription with the specified name, and its lock records. Its messages stay in the topic for the
+	 * other subscriptions.
+	 * @return true iff the subscription was found and deleted
+	 *
+	 * @throws RQSException wraps any exception thrown by the underlying CouchDB layer
+	 */
+	public boolean unsubscribe(String subscriptionName) throws RQSException {
+		String stateId = SUBSCRIPTION_PREFIX + subscriptionName;
+		while (true) {
+			ObjectNode state = queue.backend.getLocalDocument(stateId);
+			if (state == null)
+				return false;
+			try {
+				if (!queue.backend.deleteLocalDocument(stateId, state.get("_rev").getTextValue()))
+					return false;
+				break;
+			} catch (ReceiptTokenOutOfDateException e) {
+				// the subscription was just used - try again with its new state
+			}
+		}
+		locks.deleteDocuments(Subscription.readLocks(locks, subscriptionName));
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Topic on %s", queue.backend);
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for AdaptiveReceiver, against the in-memory backend, with sleeps recorded instead of slept.
+ */
+public class AdaptiveReceiverTest {
+
+	Queue instance;
+	List<Long> sleeps;
+	AdaptiveReceiver receiver;
+
+	@Before
+	public void setUp() throws Exception {
+		instance = new QueueService(new InMemoryBackend()).createQueue("rqs_adaptivetest");
+		sleeps = new ArrayList<Long>();
+		receiver = new AdaptiveReceiver(instance) {
+			@Override
+			void sleep(long millis) {
+				sleeps.add(millis);
+			}
+		};
+	}
+
+	@Test
+	public void testBatchGrowsWhileFull() throws Exception {
+		for (int i = 0; i < 500; i++)
+			instance.sendMessage(new byte[] {(byte) i});
+		receiver.setMaxBatchSize(40);
+		int last = 0;
+		for (int i = 0; i < 10; i++) {
+			int size = receiver.getBatchSize();
+			List<Message> messages = receiver.receiveMessages();
+			assertEquals(size, messages.size());
+			assertTrue("The batch should grow while full batches are received", size >= last);
+			last = size;
+			for (Message message : messages)
+				instance.deleteMessage(message.getMessageId(), message.getReceiptToken());
+		}
+		assertEquals("The batch shouldn't grow past the maximum", 40, receiver.getBatchSize());
+		assertTrue(sleeps.isEmpty());
+	}
+
+	@Test
+	public void testConflictsShrinkBatch() {
+		receiver.adjust(10, 10, 8);
+		assertEquals("A few conflicts shouldn't shrink the batch", 10, receiver.getBatchSize());
+		receiver.adjust(10, 10, 5);
+		assertEquals("Many conflicts should halve the batch", 5, receiver.getBatchSize());
+		receiver.adjust(5, 2, 2);
+		assertEquals("A queue running dry shouldn't change the batch", 5, receiver.getBatchSize());
+		for (int i = 0; i < 5; i++)
+			receiver.adjust(receiver.getBatchSize(), receiver.getBatchSize(), 0);
+		assertEquals("The batch shouldn't shrink below the minimum", 1, receiver.getBatchSize());
+	}
+
+	@Test
+	public void testVisibilityTimeoutCapsBatch() {
+		receiver.setVisibilityTimeout(1000);
+		receiver.measureProcessing(20);
+		for (int i = 0; i < 20; i++)
+			receiver.adjust(receiver.getBatchSize(), receiver.getBatchSize(), receiver.getBatchSize());
+		assertEquals("A batch should be processed within half the visibility timeout", 25, receiver.getBatchSize());
+		receiver.measureProcessing(200);
+		receiver.adjust(25, 25, 25);
+		assertTrue("Slower processing should shrink the batch", receiver.getBatchSize() < 25);
+	}
+
+	@Test
+	public void testBackoffOnEmptyQueue() throws Exception {
+		receiver.setMaxBackoff(100);
+		for (int i = 0; i < 6; i++)
+			assertTrue(receiver.receiveMessages().isEmpty());
+		long[] backoffs = {10, 20, 40, 80, 100, 100};
+		assertEquals(backoffs.length, sleeps.size());
+		for (int i = 0; i < backoffs.length; i++) {
+			long sleep = sleeps.get(i);
+			assertTrue("Sleep " + sleep + " should be jittered within half of " + backoffs[i],
+					   sleep > backoffs[i] / 2 && sleep <= backoffs[i]);
+		}
+
+		instance.sendMessage(new byte[0]);
+		assertEquals(1, receiver.receiveMessages().size());
+		sleeps.clear();
+		receiver.receiveMessages();
+		assertTrue("Receiving messages should reset the backoff", sleeps.get(0) <= 10);
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for BufferedSender and its spool, against the in-memory backend.
+ */
+public class BufferedSenderTest {
+
+	QueueService service;
+	Queue instance;
+	File spoolFile;
+
+	@Before
+	public void setUp() throws Exception {
+		service = new QueueService(new InMemoryBackend());
+		instance = service.createQueue("rqs_bufferedsendertest");
+		spoolFile = File.createTempFile("rqs_spool", ".bin");
+		spoolFile.delete();
+	}
+
+	@After
+	public void tearDown() {
+		spoolFile.delete();
+	}
+
+	@Test
+	public void testSendInOrder() throws Exception {
+		BufferedSender sender = new BufferedSender(instance, spoolFile, 64 * 1024);
+		sender.setBatchSize(16);
+		List<String> sentIds = new ArrayList<String>();
+		// more than the spool holds at once, so it has to rewind or compact along the way
+		for (int i = 0; i < 2000; i++) {
+			sentIds.add(sender.send(("Test message " + i).getBytes()));
+			// don't outrun the flusher, which would fill the spool
+			if (i % 250 == 249)
+				assertTrue("flush should complete", sender.flush(5000));
+		}
+		assertTrue("flush should complete", sender.flush(5000));
+		assertEquals(0, sender.pendingCount());
+		sender.close();
+
+		List<Message> received = instance.receiveMessages(2000);
+		assertEquals(sentIds.size(), received.size());
+		for (int i = 0; i < received.size(); i++) {
+			assertEquals(sentIds.get(i), received.get(i).getMessageId());
+			assertEquals("Test message " + i, new String(received.get(i).getData()));
+		}
+	}
+
+	@Test
+	public void testRecoverSpooledMessages() throws Exception {
+		// simulate a sender that crashed before anything was sent
+		Spool spool = new Spool(spoolFile, 64 * 1024);
+		List<String> sentIds = new ArrayList<String>();
+		for (int i = 0; i < 10; i++) {
+			long stamp = Queue.CLOCK.now();
+			String id = Queue.newMessageId(stamp);
+			assertTrue(spool.append(id, stamp, ("Test message " + i).getBytes()));
+			sentIds.add(id);
+		}
+		spool.commit(3);
+		spool.close();
+
+		BufferedSender sender = new BufferedSender(instance, spoolFile);
+		assertTrue("flush should complete", sender.flush(5000));
+		sender.close();
+		List<Message> received = instance.receiveMessages(10);
+		assertEquals("Only uncommitted messages should be replayed", 7, received.size());
+		for (int i = 0; i < received.size(); i++)
+			assertEquals(sentIds.get(i + 3), received.get(i).getMessageId());
+	}
+
+	@Test
+	public void testRetentionPeriod() throws Exception {
+		instance.setRetentionPeriod(60000);
+		BufferedSender sender = new BufferedSender(instance, spoolFile);
+		sender.send("Retained message".getBytes());
+		assertTrue("flush should complete", sender.flush(5000));
+		sender.close();
+		Message received = instance.receiveMessage();
+		long sentAt = HybridClock.millis(Queue.getSentStamp(received.getDoc().getJson()));
+		assertEquals("The message should take the queue's retention period", sentAt + 60000,
+					 Queue.getExpiresAt(received.getDoc().getJson()));
+	}
+
+	@Test
+	public void testSpoolFull() throws Exception {
+		Spool spool = new Spool(256);
+		byte[] data = new byte[100];
+		assertTrue(spool.append(Queue.newMessageId(), 0, data));
+		assertFalse("A full spool should refuse the append", spool.append(Queue.newMessageId(), 0, data));
+		spool.commit(1);
+		assertTrue("An emptied spool should rewind", spool.append(Queue.newMessageId(), 0, data));
+	}
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for HybridClock, with a system time set by the test, and for the ordering it gives messages.
+ */
+public class HybridClockTest {
+
+	long physical;
+	HybridClock clock;
+
+	@Before
+	public void setUp() {
+		physical = 1000;
+		clock = new HybridClock() {
+			@Override
+			long physicalTime() {
+				return physical;
+			}
+		};
+	}
+
+	@Test
+	public void testMonotonicWithinMillisecond() {
+		long first = clock.now();
+		long second = clock.now();
+		assertEquals(1000, HybridClock.millis(first));
+		assertEquals(0, HybridClock.logical(first));
+		assertEquals(1000, HybridClock.millis(second));
+		assertEquals(1, HybridClock.logical(second));
+		physical = 1001;
+		assertEquals(HybridClock.stamp(1001, 0), clock.now());
+	}
+
+	@Test
+	public void testSystemClockGoesBack() {
+		long before = clock.now();
+		physical = 900;
+		long after = clock.now();
+		assertTrue("The clock must not go back with the system time", after > before);
+		assertEquals(1000, HybridClock.millis(after));
+	}
+
+	@Test
+	public void testLogicalOverflow() {
+		long last = 0;
+		for (int i = 0; i <= HybridClock.MAX_LOGICAL + 1; i++) {
+			long stamp = clock.now();
+			assertTrue(stamp > last);
+			last = stamp;
+		}
+		assertEquals("The clock should run into the next millisecond", 1001, HybridClock.millis(last));
+	}
+
+	@Test
+	public void testUpdate() {
+		clock.update(HybridClock.stamp(5000, 7));
+		assertEquals("A stamp after a received one should follow it", HybridClock.stamp(5000, 8), clock.now());
+		clock.update(HybridClock.stamp(2000, 0));
+		assertEquals("An older stamp shouldn't move the clock", HybridClock.stamp(5000, 9), clock.now());
+		clock.update(HybridClock.stamp(physical + HybridClock.MAX_OFFSET_MILLIS + 1, 0));
+		assertEquals("A stamp too far ahead should be ignored", HybridClock.stamp(5000, 10), clock.now());
+	}
+
+	@Test
+	public void testMessagesOrderedBySendStamp() throws Exception {
+		Queue queue = new QueueService(new InMemoryBackend()).createQueue("rqs_clocktest");
+		List<String> sent = new ArrayList<String>();
+		for (int i = 0; i < 100; i++)
+			sent.add(queue.sendMessage(new byte[] {(byte) i}));
+		List<byte[]> batch = new ArrayList<byte[]>();
+		for (int i = 0; i < 100; i++)
+			batch.add(new byte[] {(byte) i});
+		sent.addAll(queue.sendMessages(batch));
+		List<String> received = new ArrayList<String>();
+		for (Message message : queue.receiveMessages(200)) {
+			assertEquals(message.getDoc().getJson().get("sent_at").getLongValue(),
+						 HybridClock.millis(Queue.getSentStamp(message.getDoc().getJson())));
+			received.add(message.getMessageId());
+		}
+		assertEquals("Messages from one process should be received in the order they were sent", sent, received);
+
+		// a message received from a host whose clock is ahead
+		long ahead = HybridClock.stamp(System.currentTimeMillis() + 10000, 3);
+		queue.sendPrepared(Collections.singletonList(Queue.newMessage(Queue.newMessageId(ahead), ahead, new byte[0])));
+		assertNotNull(queue.receiveMessage());
+		String next = queue.sendMessage(new byte[0]);
+		assertTrue("A message sent after a received one should be stamped after it",
+				   Queue.getSentStamp(queue.backend.getDocumentOrNull(next).getJson()) > ahead);
+	}
+
+}
@@ -0,0 +1,599 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import com.couchrqs.Queue.MessageStatus;
+import com.couchrqs.Queue.MessageStatusDetails;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.codehaus.jackson.node.ObjectNode;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the in-memory backend. Unlike the other tests, these don't need a CouchDB server.
+ */
+public class InMemoryBackendTest {
+
+	QueueService service;
+	Queue instance;
+
+	@Before
+	public void setUp() throws Exception {
+		service = new QueueService(new InMemoryBackend());
+		instance = service.createQueue("rqs_inmemorytest");
+	}
+
+	@Test
+	public void testQueueLifecycle() throws Exception {
+		assertTrue("Created queue should respond 'true' to isQueue", service.isQueue("rqs_inmemorytest"));
+		assertFalse("Non-existent queue should respond 'false' to isQueue", service.isQueue("rqs_no_such_queue"));
+		try {
+			service.createQueue("rqs_inmemorytest");
+			fail("Creation of a duplicate queue should throw a QueueNameAlreadyTakenException");
+		} catch (QueueNameAlreadyTakenException qnate) { }
+		assertEquals(Collections.singletonList("rqs_inmemorytest"), service.listQueues());
+		assertTrue("deleteQueue should return 'true' on an existing queue", service.deleteQueue("rqs_inmemorytest"));
+		try {
+			service.getQueue("rqs_inmemorytest");
+			fail("getQueue on a deleted queue should throw a NoSuchQueueException");
+		} catch (NoSuchQueueException nsqe) { }
+	}
+
+	@Test
+	public void testListQueuesRegistersHandles() throws Exception {
+		final AtomicInteger opened = new AtomicInteger();
+		InMemoryBackend backend = new InMemoryBackend() {
+			@Override
+			public QueueBackend openQueue(String queueName) throws NoSuchQueueException {
+				opened.incrementAndGet();
+				return super.openQueue(queueName);
+			}
+		};
+		backend.createQueue("rqs_listed_b", ReceiveMode.VIEW);
+		backend.createQueue("rqs_listed_a", ReceiveMode.VIEW);
+		QueueService other = new QueueService(backend);
+		assertEquals(Arrays.asList("rqs_listed_a", "rqs_listed_b"), other.listQueues());
+		assertEquals("rqs_listed_b", other.getQueue("rqs_listed_b").getName());
+		assertEquals("Listed queues shouldn't be opened one by one", 0, opened.get());
+	}
+
+	@Test
+	public void testFifoAndLifo() throws Exception {
+		List<String> messageIds = sendNMessages(5);
+		List<Message> head = instance.receiveMessages(2);
+		assertEquals(messageIds.get(0), head.get(0).getMessageId());
+		assertEquals(messageIds.get(1), head.get(1).getMessageId());
+		List<Message> tail = instance.receiveMessagesFromTail(2);
+		assertEquals(messageIds.get(4), tail.get(0).getMessageId());
+		assertEquals(messageIds.get(3), tail.get(1).getMessageId());
+		assertEquals("Test message 3", new String(tail.get(1).getData()));
+		assertEquals("Number of pending messages not as expected,", 1, instance.numberOfMessagesPending());
+		assertEquals("Number of invisible messages not as expected,", 4, instance.numberOfMessagesNotVisible());
+	}
+
+	@Test
+	public void testReceiptTokens() throws Exception {
+		String messageId = instance.sendMessage("Test message".getBytes());
+		assertEquals(MessageStatus.PENDING, instance.getMessageStatus(messageId));
+		Message msg = instance.receiveMessage(messageId);
+		assertEquals(MessageStatus.LOCKED, instance.getMessageStatus(messageId));
+		try {
+			instance.deleteMessage(messageId, msg.getReceiptToken() + "1");
+			fail("deleteMessage with wrong receipt token should throw a ReceiptTokenOutOfDateException");
+		} catch (ReceiptTokenOutOfDateException e) { }
+
+		String receiptToken = instance.changeMessageVisibility(messageId, msg.getReceiptToken(), 1000);
+		try {
+			instance.deleteMessage(messageId, msg.getReceiptToken());
+			fail("The old receipt token should be invalid after changeMessageVisibility");
+		} catch (ReceiptTokenOutOfDateException e) { }
+		instance.deleteMessage(messageId, receiptToken);
+		assertEquals(MessageStatus.MISSING, instance.getMessageStatus(messageId));
+		try {
+			instance.deleteMessage(messageId, receiptToken);
+			fail("deleteMessage on a deleted message should throw a NoSuchMessageException");
+		} catch (NoSuchMessageException e) { }
+	}
+
+	@Test
+	public void testMessageStatuses() throws Exception {
+		List<String> messageIds = sendNMessages(3);
+		Message msg = instance.receiveMessage(messageIds.get(1), 1000);
+		instance.deleteMessage(messageIds.get(2), instance.receiveMessage(messageIds.get(2)).getReceiptToken());
+		List<String> ids = new ArrayList<String>(messageIds);
+		ids.add("no_such_message");
+		Map<String, MessageStatus> statuses = instance.getMessageStatuses(ids);
+		assertEquals("Statuses should be in the order of the ids", ids, new ArrayList<String>(statuses.keySet()));
+		assertSame(MessageStatus.PENDING, statuses.get(messageIds.get(0)));
+		assertSame(MessageStatus.LOCKED, statuses.get(messageIds.get(1)));
+		assertSame(MessageStatus.MISSING, statuses.get(messageIds.get(2)));
+		assertSame(MessageStatus.MISSING, statuses.get("no_such_message"));
+
+		Map<String, MessageStatusDetails> details = instance.getMessageStatusDetails(ids);
+		assertEquals(ids, new ArrayList<String>(details.keySet()));
+		MessageStatusDetails pending = details.get(messageIds.get(0));
+		assertSame(MessageStatus.PENDING, pending.getStatus());
+		assertEquals(instance.getMessageStatusDetails(messageIds.get(0)).getTimestamp(), pending.getTimestamp());
+		assertTrue(pending.getTimestamp() > 0);
+		assertEquals(-1, pending.getLockExpires());
+
+		MessageStatusDetails locked = details.get(messageIds.get(1));
+		assertSame(MessageStatus.LOCKED, locked.getStatus());
+		assertEquals(instance.getProcessId(), locked.getProcessId());
+		assertEquals(1000, locked.getTimestamp());
+		assertEquals(msg.getLock().get("locked_at").getLongValue() + 1000, locked.getLockExpires());
+
+		assertSame(MessageStatus.MISSING, details.get("no_such_message").getStatus());
+		assertNull(details.get("no_such_message").getProcessId());
+	}
+
+	@Test
+	public void testLockChanges() throws Exception {
+		assertNull("Receiving a missing message should return null", instance.receiveMessage("no_such_message"));
+		String messageId = instance.sendMessage("Test message".getBytes());
+		Message msg = instance.receiveMessage(messageId, 1000);
+		String receiptToken = instance.changeMessageVisibility(messageId, msg.getReceiptToken(), 500);
+		assertEquals(1500, instance.getMessageStatusDetails(messageId).getTimestamp());
+		try {
+			instance.changeMessageVisibility("no_such_message", receiptToken, 500);
+			fail("changeMessageVisibility on a missing message should throw a NoSuchMessageException");
+		} catch (NoSuchMessageException e) { }
+
+		msg = instance.receiveMessage(messageId);
+		instance.releaseMessage(msg);
+		String pendingRev = instance.backend.getDocumentOrNull(messageId).getRev();
+		try {
+			instance.changeMessageVisibility(messageId, pendingRev, 500);
+			fail("changeMessageVisibility on a pending message should throw a ReceiptTokenOutOfDateException");
+		} catch (ReceiptTokenOutOfDateException e) { }
+	}
+
+	@Test
+	public void testVisibilityTimeoutExpires() throws Exception {
+		String messageId = instance.sendMessage("Test message".getBytes());
+		Message msg = instance.receiveMessage(50);
+		assertEquals(messageId, msg.getMessageId());
+		assertNull("A locked message mustn't be received again", instance.receiveMessage());
+		Thread.sleep(100);
+		Message again = instance.receiveMessage();
+		assertNotNull("The message should be pending again after its visibility timeout", again);
+		assertEquals(messageId, again.getMessageId());
+		try {
+			instance.deleteMessage(messageId, msg.getReceiptToken());
+			fail("The first receipt token should be invalid after the message was received again");
+		} catch (ReceiptTokenOutOfDateException e) { }
+	}
+
+	@Test
+	public void testConcurrentConsumersReceiveEachMessageOnce() throws Exception {
+		final int numMessages = 2000;
+		final int numConsumers = 8;
+		sendNMessages(numMessages);
+		final Set<String> received = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final AtomicInteger duplicates = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(numConsumers);
+		for (int i = 0; i < numConsumers; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						List<Message> messages;
+						while (!(messages = instance.receiveMessages(10)).isEmpty() || instance.numberOfMessagesPending() > 0) {
+							for (Message msg : messages) {
+								if (!received.add(msg.getMessageId()))
+									duplicates.incrementAndGet();
+								instance.deleteMessage(msg.getMessageId(), msg.getReceiptToken());
+							}
+						}
+					} catch (RQSException e) {
+						e.printStackTrace(System.err);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		assertEquals("No message may be delivered twice,", 0, duplicates.get());
+		assertEquals("Every message should be delivered,", numMessages, received.size());
+		assertEquals(0, instance.numberOfMessagesPending());
+		assertEquals(0, instance.numberOfMessagesNotVisible());
+	}
+
+	@Test
+	public void testReleaseMessages() throws Exception {
+		List<String> messageIds = sendNMessages(3);
+		List<Message> messages = instance.receiveMessages(3);
+		assertEquals(3, messages.size());
+		assertEquals(messageIds, instance.releaseMessages(messages));
+		assertEquals("Released messages should be pending right away", 3, instance.numberOfMessagesPending());
+
+		Message msg = instance.receiveMessage();
+		instance.releaseMessage(msg, 50);
+		assertEquals(2, instance.numberOfMessagesPending());
+		assertEquals("A delayed release should keep the message locked", 1, instance.numberOfMessagesNotVisible());
+		Thread.sleep(100);
+		assertEquals("The message should be pending once the delay passes", 3, instance.numberOfMessagesPending());
+		try {
+			instance.releaseMessage(msg);
+			fail("A stale receipt token should throw a ReceiptTokenOutOfDateException");
+		} catch (ReceiptTokenOutOfDateException e) { }
+	}
+
+	@Test
+	public void testPayloadsAreCopied() throws Exception {
+		byte[] sent = "payload".getBytes();
+		instance.sendMessage(sent);
+		instance.sendMessages(Collections.singletonList(sent));
+		sent[0] = 'X';
+		List<Message> received = instance.receiveMessages(2);
+		assertEquals(2, received.size());
+		for (Message message : received) {
+			assertEquals("Changing the array sent shouldn't change the message", "payload",
+						 new String(message.getData()));
+			message.getData()[0] = 'X';
+		}
+		instance.releaseMessages(received);
+		for (Message message : instance.receiveMessages(2))
+			assertEquals("Changing the array received shouldn't change the message", "payload",
+						 new String(message.getData()));
+	}
+
+	@Test
+	public void testMessageGroups() throws Exception {
+		String a1 = instance.sendMessage("a1".getBytes(), "a");
+		List<String> a23 = instance.sendMessages(Arrays.asList("a2".getBytes(), "a3".getBytes()), "a");
+		String b1 = instance.sendMessage("b1".getBytes(), "b");
+		String plain = instance.sendMessage("plain".getBytes());
+		List<Message> received = instance.receiveMessages(10);
+		List<String> ids = new ArrayList<String>();
+		for (Message msg : received)
+			ids.add(msg.getMessageId());
+		assertEquals("Only the oldest message of each group should be received",
+					 Arrays.asList(a1, b1, plain), ids);
+		assertEquals("a", received.get(0).getGroupId());
+		assertNull(received.get(2).getGroupId());
+		assertTrue("A group with a locked message should wait", instance.receiveMessages(10).isEmpty());
+
+		instance.deleteMessage(a1, received.get(0).getReceiptToken());
+		Message msg = instance.receiveMessageFromTail();
+		assertEquals("The group's next message should follow once the first is deleted", a23.get(0), msg.getMessageId());
+		instance.releaseMessage(msg);
+		assertEquals("A released message should still come first in its group", a23.get(0),
+					 instance.receiveMessage().getMessageId());
+	}
+
+	@Test
+	public void testReceiveByAttribute() throws Exception {
+		Map<String, Object> typeB = new HashMap<String, Object>();
+		typeB.put("type", "b");
+		typeB.put("priority", 2);
+		String a1 = instance.sendMessage("a1".getBytes(), null, Collections.singletonMap("type", "a"));
+		String b1 = instance.sendMessage("b1".getBytes(), null, typeB);
+		String a2 = instance.sendMessages(Arrays.asList("a2".getBytes()), null,
+										  Collections.singletonMap("type", "a")).get(0);
+		instance.sendMessage("plain".getBytes());
+
+		List<Message> received = instance.receiveMessages(10, "type", "b");
+		assertEquals(1, received.size());
+		assertEquals(b1, received.get(0).getMessageId());
+		assertEquals("b", received.get(0).getAttributes().get("type"));
+		assertEquals(2L, received.get(0).getAttributes().get("priority"));
+		received = instance.receiveMessages(10, "type", "a");
+		assertEquals(2, received.size());
+		assertEquals(a1, received.get(0).getMessageId());
+		assertEquals(a2, received.get(1).getMessageId());
+		assertTrue(instance.receiveMessages(10, "priority", 2L).isEmpty());
+		assertEquals("Messages without the attribute shouldn't be locked", 1, instance.numberOfMessagesPending());
+		assertTrue(instance.receiveMessage().getAttributes().isEmpty());
+		try {
+			instance.receiveMessages(10, "type", new Object());
+			fail("An attribute value that isn't a string, number or boolean should be refused");
+		} catch (IllegalArgumentException e) { }
+
+		instance.sendMessage("g1".getBytes(), "g", Collections.singletonMap("type", "x"));
+		String g2 = instance.sendMessage("g2".getBytes(), "g", Collections.singletonMap("type", "y"));
+		assertTrue("A message behind its group's head shouldn't be received by attribute",
+				   instance.receiveMessages(10, "type", "y").isEmpty());
+		Message head = instance.receiveMessages(10, "type", "x").get(0);
+		instance.deleteMessage(head.getMessageId(), head.getReceiptToken());
+		assertEquals(g2, instance.receiveMessages(10, "type", "y").get(0).getMessageId());
+	}
+
+	@Test
+	public void testConcurrentConsumersKeepGroupOrder() throws Exception {
+		final int numGroups = 20;
+		final int perGroup = 50;
+		final int numConsumers = 8;
+		for (int i = 0; i < perGroup; i++) {
+			for (int g = 0; g < numGroups; g++)
+				instance.sendMessage(String.valueOf(i).getBytes(), "group" + g);
+		}
+		final ConcurrentHashMap<String, Integer> lastReceived = new ConcurrentHashMap<String, Integer>();
+		final Set<String> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final AtomicInteger violations = new AtomicInteger();
+		final AtomicInteger count = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(numConsumers);
+		for (int i = 0; i < numConsumers; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						while (count.get() < numGroups * perGroup) {
+							for (Message msg : instance.receiveMessages(5)) {
+								String group = msg.getGroupId();
+								int seq = Integer.parseInt(new String(msg.getData()));
+								Integer last = lastReceived.get(group);
+								if (!inFlight.add(group) || seq != ((last == null) ? 0 : last + 1))
+									violations.incrementAndGet();
+								lastReceived.put(group, seq);
+								// the group's next message can only be received once this one is deleted
+								inFlight.remove(group);
+								instance.deleteMessage(msg.getMessageId(), msg.getReceiptToken());
+								count.incrementAndGet();
+							}
+						}
+					} catch (RQSException e) {
+						e.printStackTrace(System.err);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		assertEquals("Messages of a group must be received one at a time, in order,", 0, violations.get());
+		assertEquals(numGroups * perGroup, count.get());
+		assertEquals(0, instance.numberOfMessagesPending());
+	}
+
+	@Test
+	public void testMessageExpiry() throws Exception {
+		String kept = instance.sendMessage("kept".getBytes());
+		instance.sendMessage("expiring".getBytes(), 1);
+		instance.setRetentionPeriod(1);
+		instance.sendMessages(Arrays.asList("retained".getBytes(), "retained".getBytes()));
+		String locked = instance.sendMessage("locked".getBytes());
+		Message lockedMessage = instance.receiveMessage(locked, 60000);
+		assertTrue(lockedMessage.getExpiresAt() > 0);
+		Thread.sleep(5);
+
+		List<Message> received = instance.receiveMessages(10);
+		assertEquals("Expired messages shouldn't be received", 1, received.size());
+		assertEquals(kept, received.get(0).getMessageId());
+		assertEquals(0, received.get(0).getExpiresAt());
+		instance.releaseMessage(received.get(0));
+
+		assertEquals(2, instance.backend.deleteExpired(System.currentTimeMillis(), 2));
+		assertEquals("A message locked past its expiry should be left for its owner",
+					 1, instance.backend.deleteExpired(System.currentTimeMillis(), 2));
+		instance.deleteMessage(locked, lockedMessage.getReceiptToken());
+		assertEquals(1, instance.numberOfMessagesPending());
+		assertEquals(0, instance.numberOfMessagesNotVisible());
+	}
+
+	@Test
+	public void testPurgeQueue() throws Exception {
+		instance.sendMessages(Arrays.asList("a".getBytes(), "b".getBytes()));
+		instance.sendMessage("grouped".getBytes(), "group");
+		Message locked = instance.receiveMessage(60000);
+		service.purgeQueue(instance.getName());
+		assertEquals(0, instance.numberOfMessagesPending());
+		assertEquals(0, instance.numberOfMessagesNotVisible());
+		try {
+			instance.deleteMessage(locked.getMessageId(), locked.getReceiptToken());
+			fail("A purged message shouldn't be found");
+		} catch (NoSuchMessageException nsme) { }
+
+		String sent = instance.sendMessage("after".getBytes(), "group");
+		assertEquals("A purged group shouldn't hold back its new messages",
+					 sent, instance.receiveMessage().getMessageId());
+		try {
+			service.purgeQueue("rqs_nosuchqueue");
+			fail("Purging a missing queue should fail");
+		} catch (NoSuchQueueException nsqe) { }
+	}
+
+	@Test
+	public void testMoveMessages() throws Exception {
+		Queue target = service.createQueue("rqs_inmemorytest_target");
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put("reason", "retry");
+		List<String> sent = instance.sendMessages(Arrays.asList("a".getBytes(), "b".getBytes(), "c".getBytes()),
+												  null, attributes);
+		List<Message> received = instance.receiveMessages(3, 60000);
+		// another process takes over the last message's lock
+		Message lost = received.get(2);
+		instance.changeMessageVisibility(lost.getMessageId(), lost.getReceiptToken(), 1000);
+
+		List<String> moved = instance.moveMessages(target, received);
+		assertEquals(sent.subList(0, 2), moved);
+		assertEquals("The message whose lock was lost should stay", 0, instance.numberOfMessagesPending());
+		assertEquals(1, instance.numberOfMessagesNotVisible());
+		List<Message> copies = target.receiveMessages(10, "reason", "retry");
+		// copied by this process, which can't tell the lock was lost, so that message is in both queues
+		assertEquals("Moved messages should be pending in the target", 3, copies.size());
+		assertEquals(sent.get(0), copies.get(0).getMessageId());
+		assertEquals("a", new String(copies.get(0).getData()));
+		assertTrue(instance.moveMessages(target, Collections.<Message>emptyList()).isEmpty());
+	}
+
+	@Test
+	public void testTopic() throws Exception {
+		Topic topic = service.createTopic("rqs_inmemorytest_topic");
+		topic.publish("before".getBytes());
+		Subscription first = topic.subscribe("first");
+		Subscription second = topic.subscribe("second");
+		List<String> published = topic.publish(Arrays.asList("a".getBytes(), "b".getBytes(), "c".getBytes()));
+		assertEquals("Payloads should be stored once", 4, topic.queue.numberOfMessagesPending());
+
+		List<Message> received = first.receiveMessages(10, 60000);
+		assertEquals("A subscription should get the messages published since it was created", 3, received.size());
+		assertEquals(published.get(0), received.get(0).getMessageId());
+		assertEquals("a", new String(received.get(0).getData()));
+		assertEquals(3, first.numberOfMessagesNotVisible());
+		assertTrue(first.receiveMessages(10).isEmpty());
+		assertEquals("Each subscription should get every message", 2, second.receiveMessages(2, 60000).size());
+		assertEquals(published.get(2), second.receiveMessage().getMessageId());
+
+		first.deleteMessage(received.get(0).getMessageId(), received.get(0).getReceiptToken());
+		try {
+			first.deleteMessage(received.get(0).getMessageId(), received.get(0).getReceiptToken());
+			fail("A deleted message shouldn't be found");
+		} catch (NoSuchMessageException nsme) { }
+		first.releaseMessage(received.get(2));
+		try {
+			first.deleteMessage(received.get(2).getMessageId(), received.get(2).getReceiptToken());
+			fail("A released message's receipt token should be out of date");
+		} catch (ReceiptTokenOutOfDateException rtoode) { }
+		String token = first.changeMessageVisibility(received.get(1).getMessageId(), received.get(1).getReceiptToken(),
+													 -60000);
+		Message again = first.receiveMessage(60000);
+		assertEquals("Messages whose locks expired should be handed out again first",
+					 published.get(1), again.getMessageId());
+		assertFalse(token.equals(again.getReceiptToken()));
+		assertEquals(published.get(2), first.receiveMessage().getMessageId());
+		assertEquals("The topic should be left as it was", 4, topic.queue.numberOfMessagesPending());
+
+		assertTrue(topic.unsubscribe("first"));
+		try {
+			topic.getSubscription("first");
+			fail("An unsubscribed subscription shouldn't be found");
+		} catch (NoSuchQueueException nsqe) { }
+		assertSame(second.getTopic(), topic);
+		assertEquals("second", service.getTopic(topic.getName()).getSubscription("second").getName());
+	}
+
+	@Test
+	public void testSubscriptionConflicts() throws Exception {
+		// the subscription's state conflicts as many times as the test says
+		final AtomicInteger conflicts = new AtomicInteger();
+		final AtomicInteger stateWrites = new AtomicInteger();
+		QueueService conflicting = new QueueService(new InMemoryBackend() {
+			@Override
+			public QueueBackend createQueue(String queueName, ReceiveMode receiveMode) {
+				return new InMemoryQueueBackend(queueName) {
+					@Override
+					public String putLocalDocument(String id, ObjectNode json)
+							throws ReceiptTokenOutOfDateException, RQSException
+					{
+						stateWrites.incrementAndGet();
+						if (conflicts.getAndDecrement() > 0)
+							throw new ReceiptTokenOutOfDateException("Another process updated " + id);
+						return super.putLocalDocument(id, json);
+					}
+				};
+			}
+		});
+		Topic topic = conflicting.createTopic("rqs_inmemorytest_conflicts");
+		Subscription subscription = topic.subscribe("only");
+		String published = topic.publish("a".getBytes());
+		// as if another receiver moved the cursor first every time
+		conflicts.set(Integer.MAX_VALUE);
+		Message received = subscription.receiveMessage(60000);
+		assertEquals(published, received.getMessageId());
+		assertNull("A claimed message shouldn't be handed out again, though the cursor wasn't moved",
+				   subscription.receiveMessage());
+
+		stateWrites.set(0);
+		String token = subscription.changeMessageVisibility(received.getMessageId(), received.getReceiptToken(), 1000);
+		subscription.deleteMessage(received.getMessageId(), token);
+		assertEquals("Deletes and visibility changes shouldn't write the subscription's state", 0, stateWrites.get());
+		assertEquals(0, subscription.numberOfMessagesNotVisible());
+
+		topic.publish("b".getBytes());
+		assertEquals("A deleted message shouldn't be handed out again, though the cursor wasn't moved",
+					 "b", new String(subscription.receiveMessage().getData()));
+		conflicts.set(0);
+		String last = topic.publish("c".getBytes());
+		assertEquals(last, subscription.receiveMessage().getMessageId());
+		assertNull(subscription.receiveMessage());
+	}
+
+	@Test
+	public void testExportImport() throws Exception {
+		// more than a page and a batch, and a payload larger than the buffer
+		List<String> messageIds = sendNMessages(250);
+		byte[] large = new byte[QueueArchive.BUFFER_SIZE * 2];
+		Arrays.fill(large, (byte) 7);
+		messageIds.add(instance.sendMessage(large));
+		Message locked = instance.receiveMessage(60000);
+		File file = File.createTempFile("rqs_archive", ".rqsa");
+		try {
+			assertEquals(251, service.exportQueue(instance.getName(), file));
+			Queue copy = service.createQueue("rqs_inmemorytest_copy");
+			assertEquals(251, service.importQueue(copy.getName(), file));
+			assertEquals("Importing again shouldn't duplicate messages", 251, service.importQueue(copy.getName(), file));
+			assertEquals(250, copy.numberOfMessagesPending());
+			assertEquals("Locks should be kept", 1, copy.numberOfMessagesNotVisible());
+
+			List<Message> received = copy.receiveMessages(300);
+			List<String> receivedIds = new ArrayList<String>();
+			for (Message message : received)
+				receivedIds.add(message.getMessageId());
+			assertEquals("Messages should be received in the order they were sent",
+						 messageIds.subList(1, messageIds.size()), receivedIds);
+			assertTrue(Arrays.equals(large, received.get(received.size() - 1).getData()));
+			try {
+				copy.deleteMessage(locked.getMessageId(), "1-stale");
+				fail("The locked message should keep its lock");
+			} catch (ReceiptTokenOutOfDateException e) { }
+
+			RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+			truncated.setLength(truncated.length() - 10);
+			truncated.close();
+			try {
+				service.importQueue(copy.getName(), file);
+				fail("A truncated archive should fail to import");
+			} catch (RQSException e) { }
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testQueueCache() throws Exception {
+		assertNotNull(service.getQueue("rqs_inmemorytest"));
+		// deleted behind the service's back - the cached entry still vouches for the queue
+		service.backend.deleteQueue("rqs_inmemorytest");
+		assertTrue(service.isQueue("rqs_inmemorytest"));
+		service.clearQueueCache();
+		assertFalse("A cleared cache should check the backend", service.isQueue("rqs_inmemorytest"));
+
+		service.createQueue("rqs_inmemorytest");
+		assertTrue(service.deleteQueue("rqs_inmemorytest"));
+		try {
+			service.getQueue("rqs_inmemorytest");
+			fail("deleteQueue should invalidate the cached queue");
+		} catch (NoSuchQueueException nsqe) { }
+
+		service.createQueue("rqs_inmemorytest");
+		service.setQueueCacheTtl(0);
+		service.backend.deleteQueue("rqs_inmemorytest");
+		assertFalse("A zero TTL should disable the cache", service.isQueue("rqs_inmemorytest"));
+	}
+
+	private List<String> sendNMessages(int n) throws RQSException {
+		List<String> messageIds = new ArrayList<String>();
+		for (int i = 0; i < n; i++)
+			messageIds.add(instance.sendMessage(String.format("Test message %d", i).getBytes()));
+		return messageIds;
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for PrefetchingReceiver, against the in-memory backend.
+ */
+public class PrefetchingReceiverTest {
+
+	QueueService service;
+	Queue instance;
+
+	@Before
+	public void setUp() throws Exception {
+		service = new QueueService(new InMemoryBackend());
+		instance = service.createQueue("rqs_prefetchtest");
+	}
+
+	private List<String> sendNMessages(int n) throws RQSException {
+		List<String> ids = new ArrayList<String>(n);
+		for (int i = 0; i < n; i++)
+			ids.add(instance.sendMessage(("Test message " + i).getBytes()));
+		return ids;
+	}
+
+	@Test
+	public void testReceiveOneAtATime() throws Exception {
+		List<String> messageIds = sendNMessages(12);
+		PrefetchingReceiver receiver = new PrefetchingReceiver(instance, 5);
+		for (int i = 0; i < 12; i++) {
+			Message message = receiver.receiveMessage();
+			assertEquals(messageIds.get(i), message.getMessageId());
+			assertEquals("Test message " + i, new String(message.getData()));
+			instance.deleteMessage(message.getMessageId(), message.getReceiptToken());
+		}
+		assertNull("An empty queue should return null", receiver.receiveMessage());
+		receiver.close();
+	}
+
+	@Test
+	public void testCloseReleasesBuffered() throws Exception {
+		sendNMessages(5);
+		PrefetchingReceiver receiver = new PrefetchingReceiver(instance, 5);
+		assertNotNull(receiver.receiveMessage());
+		assertEquals(4, receiver.bufferedCount());
+		assertEquals(0, instance.numberOfMessagesPending());
+		receiver.close();
+		assertEquals("Unused messages should return to the queue", 4, instance.numberOfMessagesPending());
+		assertEquals(1, instance.numberOfMessagesNotVisible());
+		try {
+			receiver.receiveMessage();
+			fail("A closed receiver should throw");
+		} catch (RQSException e) { }
+	}
+
+	@Test
+	public void testStaleMessagesAreReleased() throws Exception {
+		List<String> messageIds = sendNMessages(3);
+		PrefetchingReceiver receiver = new PrefetchingReceiver(instance, 3);
+		receiver.setVisibilityTimeout(10000);
+		receiver.setMinRemainingTimeout(9950);
+		Message first = receiver.receiveMessage();
+		assertEquals(messageIds.get(0), first.getMessageId());
+		Thread.sleep(100);
+		// the other two are too close to their deadline now: they are released, and received again
+		Message second = receiver.receiveMessage();
+		assertEquals(messageIds.get(1), second.getMessageId());
+		assertEquals(1, receiver.bufferedCount());
+		instance.deleteMessage(second.getMessageId(), second.getReceiptToken());
+		receiver.close();
+		assertEquals(1, instance.numberOfMessagesPending());
+	}
+
+	@Test
+	public void testStaleMessagesAreReleasedInTheBackground() throws Exception {
+		sendNMessages(3);
+		PrefetchingReceiver receiver = new PrefetchingReceiver(instance, 3);
+		receiver.setVisibilityTimeout(10000);
+		receiver.setMinRemainingTimeout(9950);
+		Message first = receiver.receiveMessage();
+		assertEquals(2, receiver.bufferedCount());
+		Thread.sleep(500);
+		// nobody asked for another message, but the other two shouldn't stay locked until their timeout
+		assertEquals(0, receiver.bufferedCount());
+		assertEquals(2, instance.numberOfMessagesPending());
+		instance.deleteMessage(first.getMessageId(), first.getReceiptToken());
+		receiver.close();
+	}
+
+}
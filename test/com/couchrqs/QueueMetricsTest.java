@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import com.couchrqs.QueueMetrics.Operation;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for QueueMetrics and its histograms, against the in-memory backend.
+ */
+public class QueueMetricsTest {
+
+	QueueService service;
+	Queue instance;
+
+	@Before
+	public void setUp() throws Exception {
+		service = new QueueService(new InMemoryBackend());
+		instance = service.createQueue("rqs_metricstest");
+	}
+
+	@Test
+	public void testHistogramBuckets() {
+		for (long value : new long[] {0, 1, 15, 16, 17, 31, 32, 1000, 123456789, 1L << 40}) {
+			int bucket = LatencyHistogram.bucketOf(value);
+			assertTrue("Value should be at least its bucket's lowest value",
+						LatencyHistogram.lowestValueOf(bucket) <= value);
+			assertTrue("Value should be below the next bucket's lowest value",
+						value < LatencyHistogram.lowestValueOf(bucket + 1));
+		}
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testHistogramPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int micros = 1; micros <= 1000; micros++)
+			histogram.record(micros * 1000L);
+		LatencySnapshot snapshot = histogram.snapshot();
+		assertEquals(1000, snapshot.getCount());
+		assertEquals(500.5, snapshot.getMean(), 0.01);
+		assertEquals(1000, snapshot.getMax());
+		// buckets are about 6% wide
+		assertEquals(500, snapshot.getP50(), 32);
+		assertEquals(990, snapshot.getP99(), 64);
+		assertEquals(1000, snapshot.getP999());
+	}
+
+	@Test
+	public void testOperationsAreMeasured() throws Exception {
+		final List<Operation> seen = new ArrayList<Operation>();
+		service.getMetrics().addListener(new MetricsListener() {
+			public void operationCompleted(Operation operation, String queueName, long latencyNanos,
+										   int roundTrips, boolean succeeded) {
+				seen.add(operation);
+			}
+			public void locksAttempted(String queueName, int attempted, int conflicts) { }
+			public void attachmentsFetched(String queueName, int messages, long latencyNanos) { }
+		});
+
+		instance.sendMessage("Test message".getBytes());
+		Message msg = instance.receiveMessage();
+		assertNull(instance.receiveMessage());
+		instance.deleteMessage(msg.getMessageId(), msg.getReceiptToken());
+		try {
+			instance.deleteMessage(msg.getMessageId(), msg.getReceiptToken());
+			fail("Deleting a message twice should throw");
+		} catch (NoSuchMessageException nsme) { }
+
+		QueueMetrics metrics = service.getMetrics();
+		assertEquals(1, metrics.getSendLatency().getCount());
+		assertEquals(2, metrics.getReceiveLatency().getCount());
+		assertEquals(2, metrics.getDeleteLatency().getCount());
+		assertEquals(1, metrics.getErrorCount(Operation.DELETE));
+		assertEquals(1, metrics.getLockAttempts());
+		assertEquals(0, metrics.getLockConflicts());
+		assertEquals(0.5, metrics.getEmptyReceiveRatio(), 0.001);
+		assertEquals(1, metrics.getAttachmentFetchLatency().getCount());
+		assertEquals("The in-memory backend makes no requests", 0, metrics.getRoundTrips());
+		assertEquals(5, seen.size());
+		assertEquals(Operation.SEND, seen.get(0));
+	}
+
+	@Test
+	public void testMBean() throws Exception {
+		QueueMetrics metrics = service.getMetrics();
+		metrics.registerMBean("metricstest");
+		try {
+			instance.sendMessage("Test message".getBytes());
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("com.couchrqs:type=QueueMetrics,name=\"metricstest\"");
+			CompositeData send = (CompositeData) server.getAttribute(name, "SendLatency");
+			assertEquals(1L, send.get("count"));
+			assertEquals(0L, server.getAttribute(name, "RoundTrips"));
+		} finally {
+			metrics.unregisterMBean();
+		}
+	}
+
+}
@@ -9,9 +9,19 @@ package com.couchrqs;
 import com.couchrqs.Queue.MessageStatus;
 import com.jzboy.couchdb.CouchDBException;
 import com.jzboy.couchdb.Document;
+import com.jzboy.couchdb.Server;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -217,6 +227,451 @@ public class QueueTest {
 		}
 	}
 
+	@Test
+	public void testReleaseMessages() throws Exception {
+		List<String> messageIds = sendNMessages(3);
+		List<Message> messages = instance.receiveMessages(messageIds, 60000);
+		assertEquals(3, messages.size());
+		instance.releaseMessage(messages.get(0));
+		assertEquals("A released message should be pending",
+						Queue.MessageStatus.PENDING, instance.getMessageStatus(messageIds.get(0)));
+		List<String> released = instance.releaseMessages(messages.subList(1, 3));
+		assertEquals(messageIds.subList(1, 3), released);
+		assertEquals("A released message should be pending",
+						Queue.MessageStatus.PENDING, instance.getMessageStatus(messageIds.get(2)));
+		try {
+			instance.releaseMessage(messages.get(0));
+			fail("Releasing a message twice should throw a ReceiptTokenOutOfDateException");
+		} catch (ReceiptTokenOutOfDateException rtoode) { }
+	}
+
+	@Test
+	public void testMessageIdsAreOrdered() throws Exception {
+		long t0 = System.currentTimeMillis();
+		String previous = Queue.newMessageId();
+		for (int i = 0; i < 1000; i++) {
+			String id = Queue.newMessageId();
+			assertTrue("Message ids should increase, but " + id + " follows " + previous, id.compareTo(previous) > 0);
+			previous = id;
+		}
+		assertEquals(32, previous.length());
+		long idTime = Queue.messageIdTime(previous);
+		assertTrue("A message id should begin with the time it was generated",
+						idTime >= t0 && idTime <= System.currentTimeMillis());
+		assertEquals(-1, Queue.messageIdTime("no-such-message-id"));
+		// a UUID generated by CouchDB is 32 hex digits too, but has no marker
+		assertEquals(-1, Queue.messageIdTime("0004b3c1f2a9e8d7c6b5a4f3e2d1c0b9"));
+	}
+
+	@Test
+	public void testReceiveModeId() throws Exception {
+		Queue queue = service.createQueue(queueName + "_id", ReceiveMode.ID);
+		try {
+			List<String> messageIds = new ArrayList<String>();
+			for (int i = 0; i < 5; i++)
+				messageIds.add(queue.sendMessage(String.format("Test message %d", i).getBytes()));
+			Message first = queue.receiveMessage();
+			assertEquals(messageIds.get(0), first.getMessageId());
+			assertEquals("A locked message should be skipped",
+							messageIds.get(1), queue.receiveMessage().getMessageId());
+			assertEquals(messageIds.get(4), queue.receiveMessageFromTail().getMessageId());
+			List<Message> messages = queue.receiveMessages(5);
+			assertEquals(2, messages.size());
+			assertEquals(messageIds.get(2), messages.get(0).getMessageId());
+
+			queue.releaseMessage(first);
+			assertEquals("A released message should be received again",
+							messageIds.get(0), queue.receiveMessage().getMessageId());
+			assertNull(queue.receiveMessage());
+		} finally {
+			service.deleteQueue(queue.getName());
+		}
+	}
+
+	@Test
+	public void testMessageGroups() throws Exception {
+		for (ReceiveMode mode : ReceiveMode.values()) {
+			Queue queue = service.createQueue(queueName + "_groups", mode);
+			try {
+				String a1 = queue.sendMessage("a1".getBytes(), "a");
+				String a2 = queue.sendMessage("a2".getBytes(), "a");
+				String b1 = queue.sendMessages(Collections.singletonList("b1".getBytes()), "b").get(0);
+				String plain = queue.sendMessage("plain".getBytes());
+				List<String> ids = new ArrayList<String>();
+				List<Message> received = queue.receiveMessages(10);
+				for (Message msg : received)
+					ids.add(msg.getMessageId());
+				assertEquals("Only the oldest message of each group should be received in " + mode,
+							 Arrays.asList(a1, b1, plain), ids);
+				assertTrue("A group with a locked message should wait", queue.receiveMessages(10).isEmpty());
+				queue.deleteMessage(a1, received.get(0).getReceiptToken());
+				assertEquals("The group's next message should follow once the first is deleted",
+							 a2, queue.receiveMessage().getMessageId());
+			} finally {
+				service.deleteQueue(queue.getName());
+			}
+		}
+	}
+
+	@Test
+	public void testLongGroupAheadOfOtherMessages() throws Exception {
+		for (ReceiveMode mode : ReceiveMode.values()) {
+			Queue queue = service.createQueue(queueName + "_longgroup", mode);
+			try {
+				List<byte[]> backlog = new ArrayList<byte[]>();
+				for (int i = 0; i < 100; i++)
+					backlog.add(("g" + i).getBytes());
+				Map<String, String> attributes = Collections.singletonMap("kind", "x");
+				List<String> grouped = queue.sendMessages(backlog, "long", attributes);
+				List<String> expected = new ArrayList<String>();
+				expected.add(grouped.get(0));
+				expected.addAll(queue.sendMessages(Arrays.asList("u1".getBytes(), "u2".getBytes(), "u3".getBytes()),
+												   null, attributes));
+				assertEquals(103, queue.numberOfMessagesPending());
+
+				List<Message> received = queue.receiveMessages(10, 60000, "kind", "x");
+				assertEquals("The group's head and the messages behind the group should be received by attribute in " +
+							 mode, expected, messageIds(received));
+				assertEquals(99, queue.numberOfMessagesPending());
+				for (Message msg : received)
+					queue.deleteMessage(msg.getMessageId(), msg.getReceiptToken());
+
+				expected.clear();
+				expected.add(grouped.get(1));
+				expected.addAll(queue.sendMessages(Arrays.asList("u4".getBytes(), "u5".getBytes())));
+				assertEquals("The group's head and the messages behind the group should be received in " + mode,
+							 expected, messageIds(queue.receiveMessages(10)));
+			} finally {
+				service.deleteQueue(queue.getName());
+			}
+		}
+	}
+
+	private static List<String> messageIds(List<Message> messages) {
+		List<String> ids = new ArrayList<String>();
+		for (Message msg : messages)
+			ids.add(msg.getMessageId());
+		return ids;
+	}
+
+	@Test
+	public void testReceiveByAttribute() throws Exception {
+		Queue queue = service.createQueue(queueName + "_attributes");
+		try {
+			String a = queue.sendMessage("a".getBytes(), null, Collections.singletonMap("type", "a"));
+			String b = queue.sendMessage("b".getBytes(), null, Collections.singletonMap("type", 7));
+			queue.sendMessage("plain".getBytes());
+			List<Message> received = queue.receiveMessages(10, "type", 7);
+			assertEquals(1, received.size());
+			assertEquals(b, received.get(0).getMessageId());
+			assertEquals(7L, received.get(0).getAttributes().get("type"));
+			assertEquals(a, queue.receiveMessages(10, "type", "a").get(0).getMessageId());
+			assertTrue(queue.receiveMessages(10, "type", "a").isEmpty());
+			assertEquals("Messages without the attribute shouldn't be locked", 1, queue.numberOfMessagesPending());
+		} finally {
+			service.deleteQueue(queue.getName());
+		}
+	}
+
+	@Test
+	public void testMessageExpiry() throws Exception {
+		Queue queue = service.createQueue(queueName + "_expiry");
+		try {
+			String kept = queue.sendMessage("kept".getBytes());
+			queue.setRetentionPeriod(1);
+			queue.sendMessages(Arrays.asList("retained".getBytes(), "retained".getBytes(), "retained".getBytes()));
+			String locked = queue.sendMessage("locked".getBytes());
+			Message lockedMessage = queue.receiveMessage(locked, 60000);
+			Thread.sleep(5);
+			List<Message> received = queue.receiveMessages(10);
+			assertEquals("Expired messages shouldn't be received", 1, received.size());
+			assertEquals(kept, received.get(0).getMessageId());
+
+			assertEquals("Expired messages should be deleted in batches",
+						 2, queue.backend.deleteExpired(System.currentTimeMillis(), 2));
+			assertEquals("A message locked past its expiry should be left for its owner",
+						 1, queue.backend.deleteExpired(System.currentTimeMillis(), 2));
+			queue.deleteMessage(locked, lockedMessage.getReceiptToken());
+			assertEquals(0, queue.numberOfMessagesPending());
+			assertEquals(1, queue.numberOfMessagesNotVisible());
+		} finally {
+			service.deleteQueue(queue.getName());
+		}
+	}
+
+	@Test
+	public void testExpiryPastLockedMessages() throws Exception {
+		Queue queue = service.createQueue(queueName + "_expirylocked");
+		try {
+			queue.setRetentionPeriod(50);
+			for (int i = 0; i < 3; i++)
+				queue.receiveMessage(queue.sendMessage("locked".getBytes()), 60000);
+			queue.sendMessages(Arrays.asList("retained".getBytes(), "retained".getBytes()));
+			Thread.sleep(100);
+			assertEquals("Messages locked past their expiry shouldn't hold up the ones behind them",
+						 2, queue.backend.deleteExpired(System.currentTimeMillis(), 2));
+			assertEquals(0, queue.backend.deleteExpired(System.currentTimeMillis(), 2));
+			assertEquals(3, queue.numberOfMessagesNotVisible());
+		} finally {
+			service.deleteQueue(queue.getName());
+		}
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testServerConstructor() throws Exception {
+		service.createQueue(queueName + "_server");
+		try {
+			Queue queue = new Queue(new Server("localhost", 5984), queueName + "_server");
+			assertEquals(queueName + "_server", queue.getName());
+			queue.sendMessages(Collections.singletonList("old api".getBytes()));
+			Message received = queue.receiveMessage(60000);
+			assertNotNull(received);
+			assertEquals("old api", new String(received.getData()));
+			queue.deleteMessage(received.getMessageId(), received.getReceiptToken());
+			assertEquals(0, queue.numberOfMessagesPending());
+
+			Queue other = new Queue(new Server("localhost", 5984), queueName + "_server");
+			assertSame("Queues on the same server should share a connection pool",
+					   ((CouchDBQueueBackend) queue.backend).transport,
+					   ((CouchDBQueueBackend) other.backend).transport);
+			// nothing is read until the queue is used, so this doesn't fail
+			new Queue(new Server("localhost", 1), queueName + "_server");
+		} finally {
+			service.deleteQueue(queueName + "_server");
+		}
+	}
+
+	@Test
+	public void testUpgradeOnlyWhenAsked() throws Exception {
+		String name = queueName + "_upgrade";
+		service.createQueue(name);
+		try {
+			// make it a version 1 queue, as if an older RQS had created it
+			CouchTransport transport = ((CouchDBBackend) service.backend).transport;
+			String designPath = CouchTransport.path(name, "_design", Queue.RQS_DESIGN_DOC_NAME);
+			ObjectNode design = (ObjectNode) transport.get(designPath, null);
+			design.put(CouchDBBackend.DESIGN_VERSION_FIELD, 1);
+			transport.put(designPath, null, design);
+
+			QueueService other = new QueueService();
+			try {
+				Queue queue = other.getQueue(name);
+				queue.sendMessage("old".getBytes());
+				assertEquals(1, queue.numberOfMessagesPending());
+				Thread.sleep(200);
+				assertEquals("Opening a queue shouldn't upgrade it", 1,
+							 transport.get(designPath, null).get(CouchDBBackend.DESIGN_VERSION_FIELD).getIntValue());
+
+				assertTrue(other.upgradeQueue(name));
+				assertEquals(CouchDBBackend.DESIGN_VERSION,
+							 transport.get(designPath, null).get(CouchDBBackend.DESIGN_VERSION_FIELD).getIntValue());
+				assertFalse(other.upgradeQueue(name));
+				assertEquals(CouchDBBackend.DESIGN_VERSION,
+							 ((CouchDBQueueBackend) other.getQueue(name).backend).getDesignVersion());
+			} finally {
+				other.shutdown();
+			}
+		} finally {
+			service.deleteQueue(name);
+		}
+	}
+
+	@Test
+	public void testPurgeQueue() throws Exception {
+		Queue queue = service.createQueue(queueName + "_purge", ReceiveMode.ID);
+		try {
+			queue.sendMessages(Arrays.asList("a".getBytes(), "b".getBytes(), "c".getBytes()));
+			Message locked = queue.receiveMessage(60000);
+			CouchTransport transport = ((CouchDBBackend) service.backend).transport;
+			String designPath = CouchTransport.path(queue.getName(), "_design", Queue.RQS_DESIGN_DOC_NAME);
+			JsonNode before = transport.get(designPath, null);
+			service.purgeQueue(queue.getName());
+			assertEquals(0, queue.numberOfMessagesPending());
+			assertEquals(0, queue.numberOfMessagesNotVisible());
+			try {
+				queue.deleteMessage(locked.getMessageId(), locked.getReceiptToken());
+				fail("A purged message shouldn't be found");
+			} catch (NoSuchMessageException nsme) { }
+
+			String sent = queue.sendMessage("after".getBytes());
+			assertEquals(sent, queue.receiveMessage().getMessageId());
+			JsonNode design = transport.get(designPath, null);
+			assertEquals("The purged queue should keep its receive mode", ReceiveMode.ID.name(),
+						 design.get(CouchDBBackend.RECEIVE_MODE_FIELD).getTextValue());
+			assertEquals("The purged queue should keep its design version",
+						 before.get(CouchDBBackend.DESIGN_VERSION_FIELD), design.get(CouchDBBackend.DESIGN_VERSION_FIELD));
+			assertEquals("The purged queue should keep its views", before.get("views"), design.get("views"));
+		} finally {
+			service.deleteQueue(queue.getName());
+		}
+	}
+
+	@Test
+	public void testMoveMessages() throws Exception {
+		Queue source = service.createQueue(queueName + "_movesource");
+		Queue target = service.createQueue(queueName + "_movetarget");
+		try {
+			List<String> sent = source.sendMessages(Arrays.asList("a".getBytes(), "b".getBytes(), "c".getBytes()));
+			List<Message> received = source.receiveMessages(3, 60000);
+			assertEquals(3, received.size());
+			Message lost = received.get(2);
+			source.changeMessageVisibility(lost.getMessageId(), lost.getReceiptToken(), 1000);
+
+			List<String> moved = source.moveMessages(target, received);
+			assertEquals("A message whose lock was lost shouldn't be moved", sent.subList(0, 2), moved);
+			assertEquals(0, source.numberOfMessagesPending());
+			assertEquals(1, source.numberOfMessagesNotVisible());
+			assertEquals(2, target.numberOfMessagesPending());
+			assertEquals("A copy that couldn't be confirmed should be removed", 0, target.numberOfMessagesNotVisible());
+			Message copy = target.receiveMessage();
+			assertEquals(sent.get(0), copy.getMessageId());
+			assertEquals("a", new String(copy.getData()));
+		} finally {
+			service.deleteQueue(source.getName());
+			service.deleteQueue(target.getName());
+		}
+	}
+
+	@Test
+	public void testTopic() throws Exception {
+		Topic topic = service.createTopic(queueName + "_topic");
+		try {
+			topic.publish("before".getBytes());
+			Subscription first = topic.subscribe("first");
+			Subscription second = topic.subscribe("second");
+			List<String> published = topic.publish(Arrays.asList("a".getBytes(), "b".getBytes(), "c".getBytes()));
+			String publishedSequence = topic.queue.backend.getLastSequence();
+
+			List<Message> received = first.receiveMessages(10, 60000);
+			assertEquals("A subscription should get the messages published since it was created", 3, received.size());
+			assertEquals(published.get(0), received.get(0).getMessageId());
+			assertEquals("a", new String(received.get(0).getData()));
+			assertEquals(3, second.receiveMessages(10, 60000).size());
+
+			first.deleteMessage(received.get(0).getMessageId(), received.get(0).getReceiptToken());
+			first.releaseMessage(received.get(1));
+			Message again = first.receiveMessage();
+			assertEquals("A released message should be handed out again", published.get(1), again.getMessageId());
+			assertEquals(2, first.numberOfMessagesNotVisible());
+			assertEquals("Subscriptions shouldn't copy messages", 4, topic.queue.numberOfMessagesPending());
+			assertEquals("Receives and deletes shouldn't change the topic", publishedSequence,
+						 topic.queue.backend.getLastSequence());
+			assertTrue(topic.unsubscribe("second"));
+			assertFalse(topic.unsubscribe("second"));
+			assertFalse("The lock store isn't a queue of its own",
+						service.listQueues().contains(Topic.locksName(topic.getName())));
+		} finally {
+			service.deleteTopic(topic.getName());
+		}
+		assertFalse(service.isQueue(Topic.locksName(topic.getName())));
+	}
+
+	@Test
+	public void testExportImport() throws Exception {
+		Queue queue = service.createQueue(queueName + "_export");
+		Queue copy = service.createQueue(queueName + "_import");
+		File file = File.createTempFile("rqs_archive", ".rqsa");
+		try {
+			List<byte[]> data = new ArrayList<byte[]>();
+			for (int i = 0; i < QueueArchive.EXPORT_PAGE_SIZE + 10; i++)
+				data.add(("message " + i).getBytes());
+			List<String> sent = queue.sendMessages(data);
+			queue.receiveMessage(sent.get(0), 60000);
+			assertEquals(data.size(), service.exportQueue(queue.getName(), file));
+			assertEquals(data.size(), service.importQueue(copy.getName(), file));
+			assertEquals(data.size() - 1, copy.numberOfMessagesPending());
+			assertEquals("Locks should be kept", 1, copy.numberOfMessagesNotVisible());
+			List<Message> received = copy.receiveMessages(data.size());
+			assertEquals("Messages should be received in the order they were sent",
+						 sent.get(1), received.get(0).getMessageId());
+			assertEquals(sent.get(sent.size() - 1), received.get(received.size() - 1).getMessageId());
+			assertEquals("message 1", new String(received.get(0).getData()));
+		} finally {
+			file.delete();
+			service.deleteQueue(queue.getName());
+			service.deleteQueue(copy.getName());
+		}
+	}
+
+	@Test
+	public void testListMessagesAfterDeletedMessage() throws Exception {
+		Queue queue = service.createQueue(queueName + "_list");
+		try {
+			List<String> sent = queue.sendMessages(Arrays.asList("0".getBytes(), "1".getBytes(), "2".getBytes(),
+																 "3".getBytes(), "4".getBytes()));
+			List<Message> page = queue.backend.listMessages(null, 2);
+			assertEquals(sent.subList(0, 2), messageIds(page));
+			// the message the next page starts after is deleted between the pages
+			Message last = queue.receiveMessage(sent.get(1), 60000);
+			queue.deleteMessage(last.getMessageId(), last.getReceiptToken());
+			page = queue.backend.listMessages(sent.get(1), 2);
+			assertEquals("No message should be skipped after a deleted one", sent.subList(2, 4), messageIds(page));
+			assertEquals("2", new String(page.get(0).getData()));
+		} finally {
+			service.deleteQueue(queue.getName());
+		}
+	}
+
+	@Test
+	public void testSharedQueueStress() throws Exception {
+		final Queue queue = service.createQueue(queueName + "_shared");
+		final int numThreads = 8;
+		final int perThread = 60;
+		final Set<String> sent = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final Set<String> received = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final AtomicInteger errors = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(numThreads);
+		try {
+			for (int t = 0; t < numThreads; t++) {
+				// each thread's own timeout shows up in the statuses it reads, unless another thread's leaks in
+				final long visibilityTimeout = 60000 + t;
+				new Thread() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+							for (int i = 0; i < perThread; i += 6) {
+								sent.add(queue.sendMessage(new byte[] {(byte) i}));
+								List<byte[]> batch = new ArrayList<byte[]>();
+								for (int j = 1; j < 6; j++)
+									batch.add(new byte[] {(byte) (i + j)});
+								sent.addAll(queue.sendMessages(batch));
+								for (Message msg : queue.receiveMessages(4, visibilityTimeout)) {
+									if (!received.add(msg.getMessageId()))
+										errors.incrementAndGet();
+									Queue.MessageStatusDetails status = queue.getMessageStatusDetails(msg.getMessageId());
+									if (status.getStatus() != MessageStatus.LOCKED
+											|| status.getTimestamp() != visibilityTimeout)
+										errors.incrementAndGet();
+									queue.deleteMessage(msg.getMessageId(), msg.getReceiptToken());
+								}
+							}
+						} catch (Exception e) {
+							e.printStackTrace(System.err);
+							errors.incrementAndGet();
+						} finally {
+							done.countDown();
+						}
+					}
+				}.start();
+			}
+			start.countDown();
+			done.await();
+			assertEquals("Shared queue operations should neither fail nor interfere,", 0, errors.get());
+			assertEquals(numThreads * perThread, sent.size());
+			List<Message> rest;
+			while (!(rest = queue.receiveMessages(50)).isEmpty()) {
+				for (Message msg : rest)
+					assertTrue("No message may be delivered twice", received.add(msg.getMessageId()));
+			}
+			assertEquals("Every message should be delivered", sent, received);
+		} finally {
+			service.deleteQueue(queue.getName());
+		}
+	}
+
 	private List<String> sendNMessages(int n) throws RQSException {
 		List<String> messageIds = new ArrayList<String>();
 		for (int i = 0; i < n; i++) {
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ReplicaRouter, with the primary's latest change and the revisions each replica has set by the test, and
+ * a clock set by the test. The probes are taken when the test says, rather than in the background. No requests
+ * are made.
+ */
+public class ReplicaRouterTest {
+
+	static final String DB = "rqs_replicatest";
+
+	long now;
+	/** The latest revision on the primary. */
+	String latestRev;
+	/** The revisions each replica has, by the replica's port. */
+	Map<Integer, Set<String>> replicated;
+	int probes;
+	/** The databases the router started probing, each time it started. */
+	List<String> probing;
+	CouchTransport primary;
+	ReplicaRouter router;
+
+	@Before
+	public void setUp() {
+		now = 100000;
+		latestRev = "1-a";
+		replicated = new HashMap<Integer, Set<String>>();
+		replicated.put(5985, new HashSet<String>());
+		replicated.put(5986, new HashSet<String>());
+		probes = 0;
+		probing = new ArrayList<String>();
+		ReplicaSettings replicaSettings = new ReplicaSettings();
+		replicaSettings.addReplica("localhost", 5985);
+		replicaSettings.addReplica("localhost", 5986);
+		replicaSettings.setMaxStaleness(1000);
+		primary = new CouchTransport("localhost", 5984, new ConnectionSettings());
+		router = new ReplicaRouter(primary, replicaSettings, new ConnectionSettings()) {
+			@Override
+			JsonNode latestChange(String db) {
+				probes++;
+				ObjectNode response = new ObjectNode(JsonNodeFactory.instance);
+				ObjectNode change = response.putArray("results").addObject();
+				change.put("id", "msg");
+				change.putArray("changes").addObject().put("rev", latestRev);
+				return response;
+			}
+
+			@Override
+			JsonNode revsDiff(CouchTransport replica, String db, JsonNode revs) throws IOException {
+				Set<String> has = replicated.get(replica.getPort());
+				if (has == null)
+					throw new IOException("Connection refused");
+				ObjectNode response = new ObjectNode(JsonNodeFactory.instance);
+				ArrayNode missing = response.putObject("msg").putArray("missing");
+				for (JsonNode rev : revs.get("msg")) {
+					if (!has.contains(rev.getTextValue()))
+						missing.add(rev.getTextValue());
+				}
+				return response;
+			}
+
+			@Override
+			void startProbing(String db) {
+				probing.add(db);
+			}
+
+			@Override
+			long currentTimeMillis() {
+				return now;
+			}
+		};
+	}
+
+	@After
+	public void tearDown() {
+		router.shutdown();
+		primary.shutdown();
+	}
+
+	private int readerPort() {
+		return router.reader(DB).getPort();
+	}
+
+	@Test
+	public void testNoReplicas() {
+		ReplicaRouter none = new ReplicaRouter(primary, new ReplicaSettings(), new ConnectionSettings());
+		assertSame(primary, none.reader(DB));
+	}
+
+	@Test
+	public void testReadsFromFreshReplicas() {
+		replicated.get(5985).add("1-a");
+		replicated.get(5986).add("1-a");
+		assertEquals("A database should be read from the primary until it's probed", 5984, readerPort());
+		assertEquals(Collections.singletonList(DB), probing);
+		assertEquals("Reads shouldn't probe", 0, probes);
+		router.probeAll();
+		Set<Integer> ports = new HashSet<Integer>();
+		for (int i = 0; i < 4; i++)
+			ports.add(readerPort());
+		assertEquals("Reads should be spread over the fresh replicas", 2, ports.size());
+		assertEquals(1, probes);
+		assertEquals("A database should start being probed once", 1, probing.size());
+	}
+
+	@Test
+	public void testLaggingReplica() {
+		assertEquals("A replica shouldn't be read before it's known to be fresh", 5984, readerPort());
+		router.probeAll();
+		assertEquals(5984, readerPort());
+		replicated.get(5985).add("1-a");
+		now += 500;
+		router.probeAll();
+		assertEquals(5985, readerPort());
+		assertEquals(5985, readerPort());
+
+		// the primary moves on, and the replica stops replicating
+		latestRev = "2-b";
+		now += 500;
+		router.probeAll();
+		assertEquals("A replica within the bound should still be read", 5985, readerPort());
+		now += 501;
+		assertEquals("A replica past the bound shouldn't be read", 5984, readerPort());
+
+		// it catches up
+		replicated.get(5985).add("2-b");
+		now += 500;
+		router.probeAll();
+		assertEquals(5985, readerPort());
+	}
+
+	@Test
+	public void testFailedReplica() {
+		replicated.get(5985).add("1-a");
+		replicated.remove(5986);
+		readerPort();
+		router.probeAll();
+		for (int i = 0; i < 4; i++)
+			assertEquals("An unreachable replica shouldn't be read", 5985, readerPort());
+		router.failed(router.reader(DB), DB, new IOException("Connection reset"));
+		assertEquals("A replica that failed shouldn't be read until probed again", 5984, readerPort());
+		now += 500;
+		router.probeAll();
+		assertEquals(5985, readerPort());
+	}
+
+	@Test
+	public void testIdleDatabases() {
+		replicated.get(5985).add("1-a");
+		readerPort();
+		for (int i = 0; i < ReplicaRouter.MAX_IDLE_ROUNDS; i++) {
+			now += 500;
+			router.probeAll();
+		}
+		assertEquals(ReplicaRouter.MAX_IDLE_ROUNDS, probes);
+		now += 500;
+		router.probeAll();
+		assertEquals("A database that isn't read should stop being probed", ReplicaRouter.MAX_IDLE_ROUNDS, probes);
+		now += 1000;
+		assertEquals("Without probes, the replica should go stale", 5984, readerPort());
+		assertEquals("A database read again should be probed again", 2, probing.size());
+	}
+
+	@Test
+	public void testProbesInTheBackground() throws Exception {
+		ReplicaSettings replicaSettings = new ReplicaSettings();
+		replicaSettings.addReplica("localhost", 5985);
+		replicaSettings.setMaxStaleness(100);
+		final Set<String> probed = Collections.synchronizedSet(new HashSet<String>());
+		ReplicaRouter background = new ReplicaRouter(primary, replicaSettings, new ConnectionSettings()) {
+			@Override
+			JsonNode latestChange(String db) {
+				probed.add(db + "@" + Thread.currentThread().getName());
+				ObjectNode response = new ObjectNode(JsonNodeFactory.instance);
+				response.putArray("results");
+				return response;
+			}
+		};
+		try {
+			assertSame(primary, background.reader(DB));
+			for (int i = 0; i < 100 && probed.isEmpty(); i++)
+				Thread.sleep(10);
+			assertEquals(Collections.singleton(DB + "@couchrqs-replica-probe"), probed);
+		} finally {
+			background.shutdown();
+		}
+	}
+
+}
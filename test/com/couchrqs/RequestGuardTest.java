@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2011. Elad Kehat.
+ * This software is provided under the MIT License:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+package com.couchrqs;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for RequestGuard and CircuitBreaker, with requests that fail or stall as the test says, and a clock set by
+ * the test. No requests are made.
+ */
+public class RequestGuardTest {
+
+	long now;
+	ExecutorService executor;
+	RequestGuard guard;
+	CircuitBreaker breaker;
+
+	@Before
+	public void setUp() {
+		now = 100000;
+		executor = Executors.newCachedThreadPool();
+		guard = new RequestGuard(executor);
+		breaker = new CircuitBreaker("http://localhost:5984") {
+			@Override
+			long currentTimeMillis() {
+				return now;
+			}
+		};
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * A request that fails the first <code>failures</code> times it's sent, with the status, or with an I/O error
+	 * if the status is 0.
+	 */
+	static final class FailingRequest implements RequestGuard.Request<String> {
+		final AtomicInteger sent = new AtomicInteger();
+		final int failures;
+		final int status;
+
+		FailingRequest(int failures, int status) {
+			this.failures = failures;
+			this.status = status;
+		}
+
+		@Override
+		public String send() throws CouchHttpException, IOException {
+			if (sent.incrementAndGet() > failures)
+				return "ok";
+			if (status == 0)
+				throw new IOException("Connection reset");
+			throw new CouchHttpException(status, "error", "test");
+		}
+	}
+
+	@Test
+	public void testRetryTransientFailures() throws Exception {
+		FailingRequest request = new FailingRequest(RequestGuard.MAX_RETRIES, 503);
+		assertEquals("ok", guard.read(request));
+		assertEquals(RequestGuard.MAX_RETRIES + 1, request.sent.get());
+		request = new FailingRequest(1, 0);
+		assertEquals("ok", guard.read(request));
+		assertEquals(2, request.sent.get());
+		assertEquals(RequestGuard.MAX_RETRIES + 1, guard.getRetries());
+
+		request = new FailingRequest(RequestGuard.MAX_RETRIES + 1, 500);
+		try {
+			guard.read(request);
+			fail("Expected the last failure after the retries");
+		} catch (CouchHttpException che) {
+			assertEquals(500, che.getStatusCode());
+		}
+		assertEquals(RequestGuard.MAX_RETRIES + 1, request.sent.get());
+	}
+
+	@Test
+	public void testDontRetryOtherFailures() throws Exception {
+		FailingRequest request = new FailingRequest(1, 404);
+		try {
+			guard.read(request);
+			fail("Expected the 404");
+		} catch (CouchHttpException che) {
+			assertEquals(404, che.getStatusCode());
+		}
+		assertEquals(1, request.sent.get());
+
+		final AtomicInteger sent = new AtomicInteger();
+		try {
+			guard.read(new RequestGuard.Request<String>() {
+				@Override
+				public String send() throws CircuitBreaker.OpenException {
+					sent.incrementAndGet();
+					throw new CircuitBreaker.OpenException("open");
+				}
+			});
+			fail("Expected the open breaker");
+		} catch (CircuitBreaker.OpenException e) {
+			// expected
+		}
+		assertEquals(1, sent.get());
+		assertEquals(0, guard.getRetries());
+	}
+
+	@Test
+	public void testRetryBudget() throws Exception {
+		// the budget starts full, and each retry spends one, while each read that succeeds earns a tenth of one back
+		int retried = 0;
+		FailingRequest request;
+		while (true) {
+			request = new FailingRequest(1, 503);
+			try {
+				guard.read(request);
+				retried++;
+			} catch (CouchHttpException che) {
+				assertEquals(503, che.getStatusCode());
+				break;
+			}
+		}
+		assertEquals(RequestGuard.MAX_RETRY_BUDGET + 1, retried);
+		assertEquals(1, request.sent.get());
+
+		// successful reads earn it back
+		for (int i = 0; i < RequestGuard.READS_PER_RETRY - 1; i++)
+			guard.read(new FailingRequest(0, 0));
+		request = new FailingRequest(1, 503);
+		assertEquals("ok", guard.read(request));
+		assertEquals(2, request.sent.get());
+		assertEquals(RequestGuard.MAX_RETRY_BUDGET + 2, guard.getRetries());
+	}
+
+	@Test
+	public void testHedgeSlowReads() throws Exception {
+		RequestGuard.Latencies latencies = new RequestGuard.Latencies();
+		assertEquals(0, latencies.getHedgeDelay());
+		for (int i = 0; i < RequestGuard.MIN_HEDGE_SAMPLES; i++)
+			latencies.record(50000000, now);
+		assertEquals("Too few measurements to hedge", 0, latencies.getHedgeDelay());
+		now += RequestGuard.HEDGE_WINDOW_MILLIS;
+		latencies.record(50000000, now);
+		long delay = latencies.getHedgeDelay();
+		assertTrue("Hedge delay " + delay, delay >= 50000 && delay < 54000);
+
+		// the first read stalls, and the hedge answers
+		final AtomicInteger sent = new AtomicInteger();
+		long start = System.currentTimeMillis();
+		String result = guard.read(new RequestGuard.Request<String>() {
+			@Override
+			public String send() throws IOException {
+				if (sent.incrementAndGet() == 1) {
+					try {
+						Thread.sleep(5000);
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+					return "slow";
+				}
+				return "hedge";
+			}
+		}, latencies);
+		assertEquals("hedge", result);
+		assertEquals(2, sent.get());
+		assertEquals(1, guard.getHedges());
+		assertTrue(System.currentTimeMillis() - start < 2000);
+
+		// a fast read isn't hedged
+		FailingRequest request = new FailingRequest(0, 0);
+		assertEquals("ok", guard.read(request, latencies));
+		assertEquals(1, request.sent.get());
+		assertEquals(1, guard.getHedges());
+	}
+
+	@Test
+	public void testHedgeWhenTheFirstReadFails() throws Exception {
+		RequestGuard.Latencies latencies = new RequestGuard.Latencies();
+		for (int i = 0; i <= RequestGuard.MIN_HEDGE_SAMPLES; i++)
+			latencies.record(50000000, now + i * RequestGuard.HEDGE_WINDOW_MILLIS / RequestGuard.MIN_HEDGE_SAMPLES);
+		assertTrue(latencies.getHedgeDelay() > 0);
+
+		// the first read stalls and then fails, after the hedge failed too: the read is retried
+		final AtomicInteger sent = new AtomicInteger();
+		String result = guard.read(new RequestGuard.Request<String>() {
+			@Override
+			public String send() throws CouchHttpException {
+				int n = sent.incrementAndGet();
+				if (n == 1) {
+					try {
+						Thread.sleep(300);
+					} catch (InterruptedException e) {
+						// fail anyway
+					}
+				}
+				if (n <= 2)
+					throw new CouchHttpException(503, "error", "test");
+				return "ok";
+			}
+		}, latencies);
+		assertEquals("ok", result);
+		assertEquals(1, guard.getRetries());
+		assertTrue(guard.getHedges() >= 1);
+	}
+
+	@Test
+	public void testHedgedReadsCountInTheCallersOperation() throws Exception {
+		RequestGuard.Latencies latencies = new RequestGuard.Latencies();
+		for (int i = 0; i <= RequestGuard.MIN_HEDGE_SAMPLES; i++)
+			latencies.record(50000000, now + i * RequestGuard.HEDGE_WINDOW_MILLIS / RequestGuard.MIN_HEDGE_SAMPLES);
+		assertTrue(latencies.getHedgeDelay() > 0);
+
+		// each read counts a request, as the transport does, from the executor's thread
+		final QueueMetrics metrics = new QueueMetrics();
+		RequestGuard.Request<String> request = new RequestGuard.Request<String>() {
+			@Override
+			public String send() {
+				metrics.roundTrip(0, 0);
+				return "ok";
+			}
+		};
+		for (int i = 0; i < 2; i++) {
+			long start = metrics.start();
+			assertEquals("ok", guard.read(request, latencies));
+			metrics.completed(QueueMetrics.Operation.RECEIVE, "q", start, true);
+		}
+		assertEquals(2, metrics.getRoundTrips());
+		assertEquals("Reads sent from the executor should count in the caller's operation",
+					 2, metrics.getRoundTrips(QueueMetrics.Operation.RECEIVE));
+	}
+
+	@Test
+	public void testCircuitBreaker() throws Exception {
+		for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD - 1; i++) {
+			breaker.acquire();
+			breaker.failed();
+		}
+		// a success resets the count
+		breaker.acquire();
+		breaker.succeeded();
+		for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD - 1; i++) {
+			breaker.acquire();
+			breaker.failed();
+		}
+		assertFalse(breaker.isOpen());
+		breaker.acquire();
+		breaker.failed();
+		assertTrue(breaker.isOpen());
+		assertOpen();
+
+		// after the open period, one trial request is let through
+		now += CircuitBreaker.OPEN_MILLIS;
+		assertFalse(breaker.isOpen());
+		breaker.acquire();
+		assertOpen();
+		// it fails, so the breaker opens for twice as long
+		breaker.failed();
+		now += CircuitBreaker.OPEN_MILLIS;
+		assertOpen();
+		now += CircuitBreaker.OPEN_MILLIS;
+		breaker.acquire();
+		breaker.succeeded();
+		assertFalse(breaker.isOpen());
+		breaker.acquire();
+		breaker.acquire();
+
+		// the open period starts over
+		for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; i++)
+			breaker.failed();
+		now += CircuitBreaker.OPEN_MILLIS;
+		breaker.acquire();
+	}
+
+	private void assertOpen() {
+		try {
+			breaker.acquire();
+			fail("Expected the breaker to be open");
+		} catch (CircuitBreaker.OpenException e) {
+			// expected
+		}
+	}
+
+}